@@ -0,0 +1,143 @@
+package lu.albert.android.jsonbackup;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.database.ContentObserver;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Process;
+import android.os.SystemClock;
+import android.provider.Contacts;
+import android.util.Log;
+
+/**
+ * Backs up the contacts in the background whenever they change.
+ *
+ * The service watches the contacts provider. Editing a contact sends a
+ * burst of notifications, one per table, so the check only runs once the
+ * provider has been quiet for {@link #DEBOUNCE_MS}. The check compares a
+ * {@link ContactsDigest} with the one of the last backup, and only runs a
+ * backup if they differ. The backup is incremental (see
+ * {@link Settings#isIncrementalBackup(Context)}), so it only appends the
+ * contacts which changed.
+ *
+ * While a restore runs, or after one which did not finish, the contacts on
+ * the device are only part of the backup. Backing them up would replace the
+ * good backup with them, so the background backups are skipped until a
+ * restore completes or the user backs up by hand.
+ */
+public class BackgroundBackupService extends Service {
+
+	/** How long the provider must be quiet before the contacts are checked */
+	static final long DEBOUNCE_MS = 60 * 1000;
+
+	private HandlerThread mThread;
+	private Handler mHandler;
+	private ContentObserver mObserver;
+
+	private final Runnable mCheck = new Runnable() {
+		public void run() {
+			check();
+		}
+	};
+
+	/**
+	 * Start or stop the service, depending on the settings
+	 *
+	 * @param context The context used to start the service
+	 */
+	static void update(Context context) {
+		Intent intent = new Intent(context, BackgroundBackupService.class);
+		if (Settings.isBackgroundBackup(context)) {
+			context.startService(intent);
+		} else {
+			context.stopService(intent);
+		}
+	}
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		/* the notifications and the backups are handled off the main thread */
+		mThread = new HandlerThread("BackgroundBackup", Process.THREAD_PRIORITY_BACKGROUND);
+		mThread.start();
+		mHandler = new Handler(mThread.getLooper());
+		mObserver = new ContentObserver(mHandler) {
+			@Override
+			public void onChange(boolean selfChange) {
+				schedule();
+			}
+		};
+		getContentResolver().registerContentObserver(Contacts.CONTENT_URI, true, mObserver);
+	}
+
+	@Override
+	public void onStart(Intent intent, int startId) {
+		super.onStart(intent, startId);
+		/* the contacts may have changed while nobody was watching */
+		schedule();
+	}
+
+	@Override
+	public void onDestroy() {
+		getContentResolver().unregisterContentObserver(mObserver);
+		mHandler.removeCallbacks(mCheck);
+		mThread.quit();
+		super.onDestroy();
+	}
+
+	@Override
+	public IBinder onBind(Intent intent) {
+		return null;
+	}
+
+	/**
+	 * (Re)start the countdown to the next check
+	 */
+	private void schedule() {
+		mHandler.removeCallbacks(mCheck);
+		mHandler.postDelayed(mCheck, DEBOUNCE_MS);
+	}
+
+	/**
+	 * Run a backup if the contacts changed since the last one. Called on
+	 * the background thread.
+	 */
+	private void check() {
+		if (!Settings.isBackgroundBackup(this)) {
+			stopSelf();
+			return;
+		}
+		if (!Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+			/* the next change will trigger another check */
+			return;
+		}
+		/* a restore holds the same lock, so it cannot start in between */
+		synchronized (BackupThread.class) {
+			if (RestoreThread.isIncomplete(this)) {
+				Log.i(JsonBackup.TAG, "Restore running or incomplete, backup skipped");
+				return;
+			}
+			long start = SystemClock.elapsedRealtime();
+			String digest = ContactsDigest.compute(getContentResolver());
+			if (digest.equals(ContactsDigest.getLast(this))
+					&& JsonBackup.getBackupFile(this).exists()) {
+				Log.i(JsonBackup.TAG, "Contacts unchanged, backup skipped. Checked in "
+						+ (SystemClock.elapsedRealtime() - start) + "ms");
+				return;
+			}
+
+			BackupThread backup = new BackupThread(null, this);
+			backup.setIncremental(true);
+			backup.setDigest(digest);
+			/* on this thread: further changes are handled once it is done */
+			backup.run();
+			Log.i(JsonBackup.TAG, "Background backup done in "
+					+ (SystemClock.elapsedRealtime() - start) + "ms");
+		}
+	}
+
+}
@@ -0,0 +1,340 @@
+package lu.albert.android.jsonbackup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import lu.albert.android.jsonbackup.format.RecordDirectory;
+import lu.albert.android.jsonbackup.schema.ContactRecord;
+import lu.albert.android.jsonbackup.schema.ContactSchema;
+import android.app.ListActivity;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.BaseAdapter;
+import android.widget.ImageView;
+import android.widget.TextView;
+import android.widget.Toast;
+
+/**
+ * Lists the contacts of a backup file.
+ *
+ * Nothing is read up front but the positions of the records (see
+ * {@link RecordDirectory}), a step at a time, so the first contacts are
+ * shown right away however large the backup is. A row is only decoded, and
+ * its photo scaled down, once it is about to be shown; a bounded number of
+ * decoded rows is kept. All file access happens on a loader thread.
+ */
+public class BackupBrowser extends ListActivity {
+
+	/** Key of the intent extra holding the path of the backup file */
+	public static final String KEY_FILE = "lu.albert.android.jsonbackup.backup_file";
+
+	/** The number of record positions looked up per step */
+	private static final int LOAD_STEP = 500;
+
+	/** The number of decoded rows kept */
+	private static final int MAX_CACHED_ROWS = 64;
+
+	/** Rows that far off screen are still decoded, for smooth scrolling */
+	private static final int PRELOAD_ROWS = 10;
+
+	/** The size of the photos, in pixels */
+	private static final int THUMBNAIL_SIZE = 48;
+
+	/* messages of the loader thread */
+	private static final int MSG_OPEN = 1;
+	private static final int MSG_LOAD = 2;
+	private static final int MSG_ROW = 3;
+
+	/* messages of the UI thread */
+	private static final int MSG_LOADED = 1;
+	private static final int MSG_ROW_READY = 2;
+	private static final int MSG_ERROR = 3;
+
+	private File mFile;
+	private HandlerThread mLoaderThread;
+	private Handler mLoader;
+	private RowAdapter mAdapter;
+
+	/** Only used by the loader thread */
+	private RecordDirectory mDirectory;
+	private final ContactRecord mRecord = new ContactRecord();
+	private long mStarted;
+
+	/** The rows on screen, written by the UI thread */
+	private volatile int mFirstVisible;
+	private volatile int mVisibleCount = 20;
+
+	/** Decoded rows, the least recently shown are dropped */
+	private final LinkedHashMap<Integer, Row> mRows = new LinkedHashMap<Integer, Row>(
+			MAX_CACHED_ROWS, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, Row> eldest) {
+			return size() > MAX_CACHED_ROWS;
+		}
+	};
+
+	/** The rows requested from the loader thread */
+	private final HashSet<Integer> mPending = new HashSet<Integer>();
+
+	/** The number of records whose position is known */
+	private int mCount;
+
+	@Override
+	public void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		String path = getIntent().getStringExtra(KEY_FILE);
+		if (path == null) {
+			finish();
+			return;
+		}
+		mFile = new File(path);
+		setTitle(mFile.getName());
+		mAdapter = new RowAdapter();
+		setListAdapter(mAdapter);
+		getListView().setOnScrollListener(new AbsListView.OnScrollListener() {
+			public void onScroll(AbsListView view, int first, int count, int total) {
+				mFirstVisible = first;
+				mVisibleCount = count;
+			}
+
+			public void onScrollStateChanged(AbsListView view, int state) {
+				// rows are requested as they are bound
+			}
+		});
+
+		mLoaderThread = new HandlerThread("BackupBrowser");
+		mLoaderThread.start();
+		mLoader = new Handler(mLoaderThread.getLooper()) {
+			@Override
+			public void handleMessage(Message msg) {
+				try {
+					switch (msg.what) {
+					case MSG_OPEN:
+						mDirectory = new RecordDirectory(mFile);
+						load();
+						break;
+					case MSG_LOAD:
+						load();
+						break;
+					case MSG_ROW:
+						decodeRow(msg.arg1);
+						break;
+					}
+				} catch (IOException e) {
+					Log.e(JsonBackup.TAG, "Unable to browse " + mFile + ": " + e.getMessage());
+					mHandler.sendMessage(mHandler.obtainMessage(MSG_ERROR, e.getMessage()));
+				}
+			}
+		};
+		mLoader.sendEmptyMessage(MSG_OPEN);
+	}
+
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		if (mLoader == null) {
+			return;
+		}
+		mLoader.removeMessages(MSG_LOAD);
+		mLoader.removeMessages(MSG_ROW);
+		mLoader.post(new Runnable() {
+			public void run() {
+				if (mDirectory != null) {
+					mDirectory.close();
+				}
+				Looper.myLooper().quit();
+			}
+		});
+	}
+
+	/**
+	 * Receives the results of the loader thread
+	 */
+	private final Handler mHandler = new Handler() {
+		@Override
+		public void handleMessage(Message msg) {
+			switch (msg.what) {
+			case MSG_LOADED:
+				mCount = msg.arg1;
+				if (((Boolean) msg.obj).booleanValue()) {
+					setTitle(getString(R.string.browse_n_contacts, mCount));
+				} else if (msg.arg2 >= 0) {
+					setTitle(getString(R.string.browse_n_of_m_contacts, mCount, msg.arg2));
+				} else {
+					setTitle(getString(R.string.browse_n_contacts_so_far, mCount));
+				}
+				mAdapter.notifyDataSetChanged();
+				break;
+			case MSG_ROW_READY:
+				mPending.remove(Integer.valueOf(msg.arg1));
+				if (msg.obj != null) {
+					mRows.put(Integer.valueOf(msg.arg1), (Row) msg.obj);
+					mAdapter.notifyDataSetChanged();
+				}
+				break;
+			case MSG_ERROR:
+				Toast.makeText(BackupBrowser.this, (String) msg.obj, Toast.LENGTH_LONG).show();
+				finish();
+				break;
+			}
+		}
+	};
+
+	/**
+	 * Look up the positions of the next records, on the loader thread. The
+	 * next step is queued behind the rows requested meanwhile.
+	 */
+	private void load() throws IOException {
+		if (mDirectory.size() == 0) {
+			mStarted = SystemClock.elapsedRealtime();
+		}
+		mDirectory.load(LOAD_STEP);
+		boolean complete = mDirectory.isComplete();
+		mHandler.sendMessage(mHandler.obtainMessage(MSG_LOADED, mDirectory.size(),
+				mDirectory.getExpectedSize(), Boolean.valueOf(complete)));
+		if (complete) {
+			Log.i(JsonBackup.TAG, "Found " + mDirectory.size() + " contacts to browse in "
+					+ (SystemClock.elapsedRealtime() - mStarted) + "ms");
+		} else {
+			mLoader.sendEmptyMessage(MSG_LOAD);
+		}
+	}
+
+	/**
+	 * Decode a row, on the loader thread. Rows which scrolled out of sight
+	 * since they were requested are skipped.
+	 */
+	private void decodeRow(int position) throws IOException {
+		int first = mFirstVisible - PRELOAD_ROWS;
+		int last = mFirstVisible + mVisibleCount + PRELOAD_ROWS;
+		Row row = null;
+		if (position >= first && position <= last) {
+			mDirectory.read(position, mRecord);
+			row = new Row(mRecord);
+		}
+		mHandler.sendMessage(mHandler.obtainMessage(MSG_ROW_READY, position, 0, row));
+	}
+
+	/**
+	 * What is shown of a contact
+	 */
+	private static class Row {
+
+		final String name;
+		final String detail;
+		final Bitmap photo;
+
+		Row(ContactRecord record) {
+			name = record.getName();
+			detail = detail(record);
+			photo = record.photos.size() == 0 ? null
+					: thumbnail(record.photos.getData(0), record.photos.getLength(0));
+		}
+
+		/**
+		 * @return The first phone number, e-mail address or company
+		 */
+		private static String detail(ContactRecord record) {
+			for (int i = 0; i < record.phones.size(); i++) {
+				if (record.phones.get(i).has(ContactSchema.PHONE_NUMBER)) {
+					return record.phones.get(i).getString(ContactSchema.PHONE_NUMBER);
+				}
+			}
+			for (int i = 0; i < record.methods.size(); i++) {
+				if (record.methods.get(i).has(ContactSchema.METHOD_DATA)) {
+					return record.methods.get(i).getString(ContactSchema.METHOD_DATA);
+				}
+			}
+			for (int i = 0; i < record.organizations.size(); i++) {
+				if (record.organizations.get(i).has(ContactSchema.ORGANIZATION_COMPANY)) {
+					return record.organizations.get(i).getString(ContactSchema.ORGANIZATION_COMPANY);
+				}
+			}
+			return "";
+		}
+
+		/**
+		 * Decode a photo at about the size it is shown. Only the bounds are
+		 * decoded first, so a large photo never takes its full size in
+		 * memory.
+		 */
+		private static Bitmap thumbnail(byte[] data, int length) {
+			BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inJustDecodeBounds = true;
+			BitmapFactory.decodeByteArray(data, 0, length, options);
+			int sample = 1;
+			while (options.outWidth / (sample * 2) >= THUMBNAIL_SIZE
+					&& options.outHeight / (sample * 2) >= THUMBNAIL_SIZE) {
+				sample *= 2;
+			}
+			options = new BitmapFactory.Options();
+			options.inSampleSize = sample;
+			return BitmapFactory.decodeByteArray(data, 0, length, options);
+		}
+
+	}
+
+	/**
+	 * Binds the decoded rows, and requests the others
+	 */
+	private class RowAdapter extends BaseAdapter {
+
+		public int getCount() {
+			return mCount;
+		}
+
+		public Object getItem(int position) {
+			return mRows.get(Integer.valueOf(position));
+		}
+
+		public long getItemId(int position) {
+			return position;
+		}
+
+		public View getView(int position, View convertView, ViewGroup parent) {
+			View view = convertView;
+			if (view == null) {
+				view = LayoutInflater.from(BackupBrowser.this).inflate(R.layout.browse_row,
+						parent, false);
+			}
+			TextView name = (TextView) view.findViewById(R.id.browse_name);
+			TextView detail = (TextView) view.findViewById(R.id.browse_detail);
+			ImageView photo = (ImageView) view.findViewById(R.id.browse_photo);
+
+			Integer key = Integer.valueOf(position);
+			Row row = mRows.get(key);
+			if (row == null) {
+				name.setText(R.string.browse_loading);
+				detail.setText("");
+				photo.setImageBitmap(null);
+				if (mPending.add(key)) {
+					/* the latest request first: that is where the user looks */
+					mLoader.sendMessageAtFrontOfQueue(mLoader.obtainMessage(MSG_ROW, position, 0));
+				}
+			} else {
+				name.setText(row.name);
+				detail.setText(row.detail);
+				photo.setImageBitmap(row.photo);
+			}
+			return view;
+		}
+
+	}
+
+}
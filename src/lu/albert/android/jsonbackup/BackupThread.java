@@ -5,25 +5,35 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 
-import lu.albert.android.jsonbackup.schema.ContactColumns;
-import lu.albert.android.jsonbackup.schema.ContactColumns.OrganizationColumns;
+import lu.albert.android.jsonbackup.format.BackupMetadata;
+import lu.albert.android.jsonbackup.format.BinaryContactWriter;
+import lu.albert.android.jsonbackup.format.ChangeLog;
+import lu.albert.android.jsonbackup.format.ChangeLogWriter;
+import lu.albert.android.jsonbackup.format.ChunkStore;
+import lu.albert.android.jsonbackup.format.ContactWriter;
+import lu.albert.android.jsonbackup.format.Fingerprints;
+import lu.albert.android.jsonbackup.format.JsonContactWriter;
+import lu.albert.android.jsonbackup.format.MembershipFilter;
+import lu.albert.android.jsonbackup.format.RecordIndex;
+import lu.albert.android.jsonbackup.format.SearchIndex;
+import lu.albert.android.jsonbackup.format.ShardManifest;
+import lu.albert.android.jsonbackup.format.ShardedContactWriter;
+import lu.albert.android.jsonbackup.format.SourceIndex;
+import lu.albert.android.jsonbackup.format.SpliceableWriter;
+import lu.albert.android.jsonbackup.schema.ContactRecord;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
+import android.content.ContentResolver;
+import android.content.Context;
 import android.database.Cursor;
+import android.os.Build;
 import android.os.Bundle;
-import android.os.Environment;
 import android.os.Handler;
 import android.os.Message;
-import android.provider.Contacts.ContactMethods;
-import android.provider.Contacts.Organizations;
-import android.provider.Contacts.People;
-import android.provider.Contacts.Phones;
-import android.provider.Contacts.Photos;
+import android.os.SystemClock;
+import android.util.Log;
 
 /**
  * The thread which stores the contacts into a text-file on-disk
@@ -37,380 +47,485 @@ public class BackupThread extends Thread {
 	final static int STATE_RUNNING = 1;
 	int mState;
 	int total;
-	JsonBackup mParent;
+	Context mParent;
 	private boolean mKeepRunning;
+	private boolean mForceIncremental;
+	private String mDigest;
+	
+	/** Re-used for every contact */
+	private final ContactRecord mRecord = new ContactRecord();
+	private ContactExporter mExporter;
 
 	/**
 	 * Constructor
 	 * 
-	 * @param dialog_handler A handler which is used to communicate with the progress dialog
-	 * @param parent The main Activity (UI) class
+	 * @param dialog_handler A handler which is used to communicate with the
+	 *            progress dialog, null for background backups
+	 * @param parent The main Activity (UI) class, or the background service
 	 */
-	BackupThread(Handler dialog_handler, JsonBackup parent) {
+	BackupThread(Handler dialog_handler, Context parent) {
 		mHandler = dialog_handler;
 		mParent = parent;
 		mKeepRunning = true;
 	}
 
+	/**
+	 * Append to the change log even if incremental backups are not enabled
+	 * in the settings. Used by the {@link BackgroundBackupService}.
+	 * 
+	 * @param incremental true to force an incremental backup
+	 */
+	void setIncremental(boolean incremental) {
+		mForceIncremental = incremental;
+	}
+
+	/**
+	 * @param digest The {@link ContactsDigest} of the contacts, if already
+	 *            known. It is stored once the backup is complete.
+	 */
+	void setDigest(String digest) {
+		mDigest = digest;
+	}
+
 	public void run() {
+		/* the background service and the UI must not write the same file */
+		synchronized (BackupThread.class) {
+			backup();
+		}
+	}
+
+	private void backup() {
 		// TODO: create a temporary file and move it to the destination file on success. To prevent data corruption
-		Cursor managedCursor = mParent.managedQuery(People.CONTENT_URI, null,
-				null,
-				null,
-				People._ID + " ASC");
+		ContentResolver resolver = mParent.getContentResolver();
+		mExporter = new ContactExporter(resolver);
 		
 		File backup_file = null;
 		try {
-			backup_file = new File( mParent.getStorageFolder(), JsonBackup.FILE_NAME );
+			backup_file = JsonBackup.getBackupFile(mParent);
+			/* a compaction may have been interrupted, before anything is created */
+			ChangeLog.recover(backup_file);
 			backup_file.createNewFile();
 		} catch (IOException e) {
 			// TODO: user-friendly error message
 			return;
 		}
 		FileOutputStream file_stream = null;
-		try {
-			file_stream = new FileOutputStream(backup_file);
-		} catch (FileNotFoundException e2) {
-			// file has just been successfully created. It's there alright!
-		}
-		
-		BufferedOutputStream stream_buffer = new BufferedOutputStream(file_stream, 1000*managedCursor.getCount());
-		OutputStreamWriter writer = new OutputStreamWriter(stream_buffer);
+		BufferedOutputStream stream_buffer = null;
 
 		/*
-		 * We don't construct the whole list in memory. Instead we write to
-		 * disk after each contact, which should keep memory consumption
-		 * low. This means, we cannot create the "root" JSONArray. But
-		 * that's nothing more that printing out an opeing "[", some commas,
-		 * and a closing "]"
+		 * The writer only ever sees one contact at a time, which keeps
+		 * memory consumption low.
 		 */
-		try {
-			/* The opening "[" */
-			writer.write("[\n");
-		} catch (IOException e) {
-			// TODO User-friendly error message
-			return;
+		ContactWriter writer = null;
+		RecordIndex.Writer index = null;
+		ChangeLogWriter changes = null;
+		RecordReuse reuse = null;
+		/* where the backup is written, if not in place */
+		File target = backup_file;
+		int shardSize = Settings.getShardSize(mParent);
+		boolean incremental = shardSize <= 0
+				&& ( mForceIncremental || Settings.isIncrementalBackup(mParent) );
+		SourceIndex previous = incremental ? ChangeLogWriter.readContacts(backup_file) : null;
+		/* tells which contacts changed since the previous incremental backup */
+		Fingerprints digests = incremental ? ContactsDigest.computePersons(resolver) : null;
+		if ( previous != null ) {
+			/* the snapshot is kept as it is, only the changes are appended */
+			try {
+				changes = new ChangeLogWriter(backup_file, previous, digests);
+			} catch (IOException e) {
+				Log.e(JsonBackup.TAG, "Unable to open the change log: " + e.getMessage());
+			}
 		}
-		
-		int start = 0;
-		int limit = managedCursor.getCount();
-		
-		if (managedCursor.moveToPosition(start)) {
-
-			/*
-			 * get the column indexes before the loop to prevent unnecessary
-			 * method calls
-			 */
-			int idColumn = managedCursor.getColumnIndex(People._ID);
-			int ringToneColumn = managedCursor
-					.getColumnIndex(People.CUSTOM_RINGTONE);
-			int displayNameColumn = managedCursor
-					.getColumnIndex(People.DISPLAY_NAME);
-			int lastTimeContactedColumn = managedCursor
-					.getColumnIndex(People.LAST_TIME_CONTACTED);
-			int nameColumn = managedCursor.getColumnIndex(People.NAME);
-			int notesColumn = managedCursor.getColumnIndex(People.NOTES);
-			int phoneticNameColumn = managedCursor
-					.getColumnIndex(People.PHONETIC_NAME);
-//			int photoVersionColumn = managedCursor
-//					.getColumnIndex(People.PHOTO_VERSION);
-			int sendToVoiceMailColumn = managedCursor
-					.getColumnIndex(People.SEND_TO_VOICEMAIL);
-			int starredColumn = managedCursor
-					.getColumnIndex(People.STARRED);
-			int timesContactedColumn = managedCursor
-					.getColumnIndex(People.TIMES_CONTACTED);
-
-			do {
-				int id = managedCursor.getInt(idColumn);
-//				Log.i(JsonBackup.TAG, String.format(
-//						"Dumping %s",
-//						managedCursor.getString(displayNameColumn)));
-
-				JSONObject contact = new JSONObject();
+		if ( changes != null ) {
+			writer = changes;
+		} else if ( shardSize > 0 ) {
+			/* every shard is indexed by the sharded writer itself */
+			writer = new ShardedContactWriter(backup_file, Settings.isBinaryFormat(mParent),
+					shardSize, ShardedContactWriter.DEFAULT_MAX_BYTES);
+		} else {
+			if ( !incremental && Settings.isReuseRecords(mParent) ) {
+				reuse = new RecordReuse(resolver, backup_file, Settings.isBinaryFormat(mParent));
+				if ( reuse.canCopy() ) {
+					/* the previous backup is read while the new one is written */
+					target = new File(backup_file.getParentFile(), backup_file.getName() + ".tmp");
+				}
+			}
+			try {
+				file_stream = new FileOutputStream(target);
+			} catch (FileNotFoundException e2) {
+				// file has just been successfully created. It's there alright!
+				// TODO: User friendly error
+				return;
+			}
+			
+			stream_buffer = new BufferedOutputStream(file_stream, 64 * 1024);
+			SpliceableWriter single;
+			try {
+				if ( Settings.isBinaryFormat(mParent) ) {
+					single = new BinaryContactWriter(stream_buffer);
+				} else {
+					single = new JsonContactWriter(stream_buffer);
+				}
+			} catch (IOException e) {
+				// TODO User-friendly error message
+				return;
+			}
+			writer = single;
+			double falsePositives = Settings.getFilterFalsePositives(mParent);
+			if ( falsePositives > 0 && !incremental ) {
+				/* a change log would make it stale, it is not used then */
+				MembershipFilter.Builder filter = new MembershipFilter.Builder(falsePositives,
+						Settings.isFilterEmails(mParent));
+				single.setFilter(filter);
+				if ( reuse != null ) {
+					reuse.setFilter(filter);
+				}
+			}
+			if ( reuse != null ) {
 				try {
-					contact.put(ContactColumns.ID, id);
-					contact.put(ContactColumns.NAME,
-							managedCursor.getString(nameColumn));
-					contact.put(ContactColumns.CUSTOM_RING_TONE, managedCursor
-							.getString(ringToneColumn));
-					contact.put(ContactColumns.DISPLAY_NAME, managedCursor
-							.getString(displayNameColumn));
-					contact.put(ContactColumns.LAST_TIME_CONTACTED, managedCursor
-							.getString(lastTimeContactedColumn));
-					contact.put(ContactColumns.NOTES, managedCursor
-							.getString(notesColumn));
-					contact.put(ContactColumns.PHONETIC_NAME, managedCursor
-							.getString(phoneticNameColumn));
-					contact.put(ContactColumns.SEND_TO_VOICEMAIL, managedCursor
-							.getString(sendToVoiceMailColumn));
-					contact.put(ContactColumns.STARRED, managedCursor
-							.getString(starredColumn));
-					contact.put(ContactColumns.TIMES_CONTACTED, managedCursor
-							.getString(timesContactedColumn));
-//       Seems buggy...
-//					try {
-//						contact.put(ContactColumns.PHOTO_VERSION, managedCursor
-//								.getString(photoVersionColumn));
-//					} catch (IllegalStateException e) {
-//						contact.put(ContactColumns.PHOTO_VERSION, null);
-//						Log.e(JsonBackup.TAG, 
-//								"Unable to retrieve photo_version for contact #"
-//										+ id);
-//					}
-
-					this.appendContactMethods(contact);
-					this.appendPhotos(contact);
-					this.appendPhoneNumbers(contact);
-					this.appendOrganizations(contact);
-					
-					writer.write(contact.toString(3));
-					
-					/* Add commas (JSON array grammar) */
-					if (managedCursor.getPosition() < limit - 1) {
-						writer.write(",\n");
-					}
-
-					/*
-					 * we flush after each contact. That should keep memory
-					 * consumption to a minimum.
-					 */
-					writer.flush();
-				} catch (JSONException e1) {
-//					Log.e(JsonBackup.TAG, String.format(
-//							"Unable to encode JSON for contact #%d (%s)", id, e1.getMessage()));
+					reuse.setWriter(single, file_stream.getChannel());
 				} catch (IOException e) {
-					// TODO: User friendly error
+					/* every contact is exported then */
+					Log.e(JsonBackup.TAG, "Unable to read the previous backup: " + e.getMessage());
 				}
-
-				Message msg = mHandler.obtainMessage();
-				Bundle b = new Bundle();
-				b.putInt("position", managedCursor.getPosition() + 1);
-				b.putInt("total", limit);
-				msg.setData(b);
-				mHandler.sendMessage(msg);
-
-			} while (mKeepRunning && managedCursor.getPosition() < limit && managedCursor.moveToNext());
-
+			}
+			
+			/*
+			 * The index is a nice-to-have. If it cannot be written, the backup
+			 * still is.
+			 */
+			try {
+				index = new RecordIndex.Writer(RecordIndex.indexFileFor(target));
+				writer.setIndex(index);
+			} catch (IOException e) {
+				RecordIndex.indexFileFor(target).delete();
+			}
+			
+			/* a new snapshot, the next backups will append to it */
+			if ( incremental ) {
+				changes = new ChangeLogWriter(backup_file, writer, digests);
+				writer = changes;
+			} else if ( target == backup_file ) {
+				ChangeLog.delete(backup_file);
+			}
+		}
+		writer.getMetadata().setDevice(Build.MODEL + " (Android " + Build.VERSION.RELEASE + ")");
+		
+		if ( mDigest == null && Settings.isBackgroundBackup(mParent) ) {
+			/* lets the background service skip the next check */
+			mDigest = ContactsDigest.compute(resolver);
+		}
+		final int limit = PeoplePager.count(resolver);
+		boolean complete = true;
+		long start = SystemClock.elapsedRealtime();
+		int threads = Settings.getExportThreads(mParent);
+		boolean appending = changes != null && changes.isAppending();
+		/*
+		 * the records are copied, and the unchanged contacts of an incremental
+		 * backup skipped, in ID order on this thread
+		 */
+		if (threads > 1 && reuse == null && !appending) {
+			PartitionedExport export = new PartitionedExport(resolver, threads,
+					Settings.getPageSize(mParent), backup_file.getParentFile(),
+					new PartitionedExport.Callback() {
+						public boolean isCancelled() {
+							return !mKeepRunning;
+						}
+
+						public void onExported(int count) {
+							notifyProgress(count, limit);
+						}
+					});
+			try {
+				export.run(writer);
+			} catch (IOException e) {
+				// TODO: User friendly error
+				complete = false;
+			}
+		} else {
+			complete = exportSerial(resolver, writer, reuse, appending ? changes : null, limit);
+		}
+		complete &= mKeepRunning;
+		if ( reuse != null ) {
+			Log.i(JsonBackup.TAG, "Copied " + reuse.getCopiedCount() + " unchanged contacts of "
+					+ limit + ", took " + (SystemClock.elapsedRealtime() - start) + "ms");
 		}
 		
 		try {
-			/* Add the closing "]" (JSON array grammar) */
-			writer.write("]\n");
-			writer.close();
-			stream_buffer.close();
-			file_stream.close();
+			if ( changes != null && !complete ) {
+				/* the contacts not exported yet must not be logged as deleted */
+				changes.abort();
+			} else {
+				writer.close();
+			}
+			if ( stream_buffer != null ) {
+				stream_buffer.close();
+				file_stream.close();
+			}
+			if ( index != null ) {
+				index.close(target.length());
+			}
 		} catch (IOException e) {
 			// TODO: User friendly error
 //			Log.e(JsonBackup.TAG, "ERROR: " + e.getMessage());
+			complete = false;
+			if ( index != null ) {
+				index.abort();
+				RecordIndex.indexFileFor(target).delete();
+			}
+		}
+		if ( target != backup_file ) {
+			complete = replaceBackup(target, backup_file, complete);
+		}
+		if ( reuse != null && complete ) {
+			try {
+				reuse.finish(backup_file);
+			} catch (IOException e) {
+				/* the next backup exports every contact */
+				SourceIndex.delete(backup_file);
+			}
+		}
+		
+		if ( changes != null && changes.isAppending() && complete ) {
+			compactLog(backup_file, changes);
 		}
+		if ( complete ) {
+			writeSearchIndex(backup_file);
+		}
+		if ( complete ) {
+			addToHistory(backup_file);
+		}
+		if ( complete && mDigest != null ) {
+			ContactsDigest.save(mParent, mDigest);
+		}
+		if ( complete && mHandler != null ) {
+			/* backing up by hand accepts the contacts as they are */
+			RestoreThread.setIncomplete(mParent, false);
+		}
+		
+		if ( mHandler == null ) {
+			return;
+		}
+		/* Close the progress dialog, even if the address book was empty */
+		Message msg = mHandler.obtainMessage();
+		Bundle b = new Bundle();
+		b.putInt("position", limit);
+		b.putInt("total", limit);
+		msg.setData(b);
+		mHandler.sendMessage(msg);
 
 	}
 
 	/**
-	 * sets the current state for the thread, used to stop the thread
+	 * Export the contacts on this thread. The people are read one page at a
+	 * time (see PeoplePager), so only a page worth of rows is held in
+	 * memory, however large the address book is.
 	 * 
-	 * @param state The new state
+	 * @param resolver Used to query the contacts
+	 * @param writer Receives the contacts
+	 * @param reuse Copies the unchanged contacts from the previous backup,
+	 *            may be null
+	 * @param changes Keeps the unchanged contacts of an incremental backup,
+	 *            may be null
+	 * @param limit The number of contacts, for the progress
+	 * @return false if the previous backup could not be copied
 	 */
-	public void setState(int state) {
-		mState = state;
+	private boolean exportSerial(ContentResolver resolver, ContactWriter writer,
+			RecordReuse reuse, ChangeLogWriter changes, int limit) {
+		int position = 0;
+		PeoplePager pager = new PeoplePager(resolver, Settings.getPageSize(mParent));
+		try {
+			Cursor page;
+			while (mKeepRunning && (page = pager.next()) != null) {
+				try {
+					while (mKeepRunning && page.moveToNext()) {
+						long id = page.getLong(PeoplePager.COLUMN_ID);
+						if ( changes != null && changes.skip(id) ) {
+							/* not even read: it is in the backup already */
+						} else if ( reuse == null ) {
+							dumpContact(page, writer);
+						} else if ( !reuse.copy(id) && dumpContact(page, writer) ) {
+							reuse.written(mRecord);
+						}
+						position++;
+						notifyProgress(position, limit);
+					}
+				} finally {
+					page.close();
+				}
+			}
+		} catch (IOException e) {
+			Log.e(JsonBackup.TAG, "Unable to copy from the previous backup: " + e.getMessage());
+			return false;
+		} finally {
+			pager.close();
+		}
+		return true;
 	}
 
 	/**
-	 * Append photos as Base64 encoded strings to the given contact. This is
-	 * an in-place modification of the "contact" object
+	 * Write the search index of a complete backup, or drop the one of the
+	 * previous backup if searching is disabled
 	 * 
-	 * @param contact
-	 *            A JSON object representing a contact. It must have at
-	 *            least a key named "id" representing the internal
-	 *            contact-ID
-	 * @throws JSONException
-	 *             Thrown when data could not be successfully encoded to
-	 *             JSON
+	 * @param backup_file The backup file (or shard manifest) just written
 	 */
-	private void appendPhotos(JSONObject contact) throws JSONException {
-		String where = Photos.PERSON_ID + "=" + contact.getInt( ContactColumns.ID );
-		Cursor cursor = mParent.managedQuery(Photos.CONTENT_URI, null, where, null,
-				null);
-
-		JSONArray photos = new JSONArray();
-
-		if ( cursor != null ) {
-			
-			int dataColumn = cursor.getColumnIndex(Photos.DATA);
-	
-			if (cursor.moveToFirst()) {
-				do {
-					if (cursor.getBlob(dataColumn) != null) {
-						photos.put(Base64.encodeBytes(cursor
-								.getBlob(dataColumn)));
-					}
-				} while (cursor.moveToNext());
+	private void writeSearchIndex(File backup_file) {
+		if ( !Settings.isSearchIndex(mParent) ) {
+			SearchIndex.delete(backup_file);
+			return;
+		}
+		long start = SystemClock.elapsedRealtime();
+		try {
+			if ( SearchIndex.build(backup_file) ) {
+				Log.i(JsonBackup.TAG, "Search index written in "
+						+ (SystemClock.elapsedRealtime() - start) + "ms");
 			}
+		} catch (IOException e) {
+			/* the backup just cannot be searched */
+			SearchIndex.delete(backup_file);
+			Log.e(JsonBackup.TAG, "Unable to write the search index: " + e.getMessage());
 		}
-		
-		contact.put( ContactColumns.PHOTOS, photos);
-		
-		cursor.close();
-		
 	}
-	
+
 	/**
-	 * Append all non-phone contact methods to the contact
+	 * Move a backup written to a temporary file over the previous one,
+	 * with its index. An incomplete backup is dropped, which keeps the
+	 * previous one.
 	 * 
-	 * @param contact
-	 *            A JSON object representing a contact. It must have at
-	 *            least a key named "id" representing the internal
-	 *            contact-ID
-	 * @throws JSONException
-	 *             Thrown when data could not be successfully encoded to
-	 *             JSON
+	 * @param temp The new backup
+	 * @param backup_file The previous backup
+	 * @param complete true if the new backup is complete
+	 * @return true if the backup file is the new backup
 	 */
-	private void appendContactMethods( JSONObject contact ) throws JSONException{
-		
-		String where = ContactMethods.PERSON_ID + "=" + contact.getInt( ContactColumns.ID );
-		Cursor cursor = mParent.managedQuery(ContactMethods.CONTENT_URI, null, where, null,
-				null);
-		
-		JSONArray contactMethods = new JSONArray();
-
-		if ( cursor != null ) {
-		
-			int auxDataColumn = cursor.getColumnIndex(ContactMethods.AUX_DATA);
-			int dataColumn = cursor.getColumnIndex(ContactMethods.DATA);
-			int isPrimaryColumn = cursor.getColumnIndex(ContactMethods.ISPRIMARY);
-			int kindColumn = cursor.getColumnIndex(ContactMethods.KIND);
-			int labelColumn = cursor.getColumnIndex(ContactMethods.LABEL);
-			int typeColumn = cursor.getColumnIndex(ContactMethods.TYPE);
-			
-	
-			if (cursor.moveToFirst()) {
-				do {
-					JSONObject method = new JSONObject();
-					method.put(ContactColumns.ContactMethodColumns.IS_PRIMARY,
-							(cursor.getInt(isPrimaryColumn) != 0));
-					method.put(ContactColumns.ContactMethodColumns.LABEL,
-							cursor.getString(labelColumn));
-					method.put(ContactColumns.ContactMethodColumns.TYPE,
-							cursor.getString(typeColumn));
-					method.put(ContactColumns.ContactMethodColumns.AUX_DATA,
-							cursor.getString(auxDataColumn));
-					method.put(ContactColumns.ContactMethodColumns.DATA,
-							cursor.getString(dataColumn));
-					method.put(ContactColumns.ContactMethodColumns.KIND,
-							cursor.getString(kindColumn));
-					contactMethods.put(method);
-				} while (cursor.moveToNext());
+	private boolean replaceBackup(File temp, File backup_file, boolean complete) {
+		File tempIndex = RecordIndex.indexFileFor(temp);
+		if ( complete ) {
+			File index = RecordIndex.indexFileFor(backup_file);
+			index.delete();
+			if ( temp.renameTo(backup_file) ) {
+				tempIndex.renameTo(index);
+				ChangeLog.delete(backup_file);
+				return true;
 			}
+			Log.e(JsonBackup.TAG, "Unable to replace " + backup_file);
 		}
-		
-		contact.put(ContactColumns.CONTACT_METHODS, contactMethods);
-		
-		cursor.close();
-
+		tempIndex.delete();
+		temp.delete();
+		return false;
 	}
 
 	/**
-	 * Append a list of phone numbers to the given contact This is an
-	 * in-place modification of the "contact" object
+	 * Log the outcome of an incremental backup, and merge the change log
+	 * into a new snapshot once it has grown too large. Replaying a long log
+	 * would slow down every restore.
 	 * 
-	 * @param contact
-	 *            A JSON object representing a contact. It must have at
-	 *            least a key named "id" representing the internal
-	 *            contact-ID
-	 * @throws JSONException
-	 *             Thrown when data could not be successfully encoded to
-	 *             JSON
+	 * @param backup_file The snapshot
+	 * @param changes The writer which has just been closed
 	 */
-	private void appendPhoneNumbers(JSONObject contact)
-		throws JSONException {
-
-		String where = Phones.PERSON_ID + "=" + contact.getInt( ContactColumns.ID );
-		Cursor cursor = mParent.managedQuery(Phones.CONTENT_URI, null, where, null,
-				null);
-		JSONArray phonenumbers = new JSONArray();
-
-		if ( cursor != null ) {
+	private void compactLog(File backup_file, ChangeLogWriter changes) {
+		Log.i(JsonBackup.TAG, "Incremental backup: " + changes.getChangeCount()
+				+ " changes appended, " + changes.getDeleteCount() + " of them deletions");
+		if ( !ChangeLog.hasLog(backup_file) || !ChangeLog.needsCompaction(backup_file) ) {
+			return;
+		}
+		long start = SystemClock.elapsedRealtime();
+		try {
+			ChangeLog.compact(backup_file);
+			Log.i(JsonBackup.TAG, "Compacted the change log in "
+					+ (SystemClock.elapsedRealtime() - start) + "ms");
+		} catch (IOException e) {
+			/* the log is still valid, we try again next time */
+			Log.e(JsonBackup.TAG, "Unable to compact the change log: " + e.getMessage());
+		}
+	}
 
-			int isPrimaryColumn = cursor.getColumnIndex(Phones.ISPRIMARY);
-			int labelColumn = cursor.getColumnIndex(Phones.LABEL);
-			int numberColumn = cursor.getColumnIndex(Phones.NUMBER);
-			int numberKeyColumn = cursor.getColumnIndex(Phones.NUMBER_KEY);
-			int typeColumn = cursor.getColumnIndex(Phones.TYPE);
-	
-			if (cursor.moveToFirst()) {
-				do {
-					JSONObject number = new JSONObject();
-					number.put(ContactColumns.PhoneColumns.IS_PRIMARY,
-							(cursor.getInt(isPrimaryColumn) != 0));
-					number.put(ContactColumns.PhoneColumns.LABEL,
-							cursor.getString(labelColumn));
-					number.put(ContactColumns.PhoneColumns.NUMBER,
-							cursor.getString(numberColumn));
-					number.put(ContactColumns.PhoneColumns.NUMBER_KEY,
-							cursor.getString(numberKeyColumn));
-					number.put(ContactColumns.PhoneColumns.TYPE,
-							cursor.getString(typeColumn));
-					phonenumbers.put(number);
-				} while (cursor.moveToNext());
+	/**
+	 * Keep a copy of the new backup in the history, if enabled, and forget
+	 * the backups which are too old. Only called for a complete backup, so a
+	 * failed run never pushes a good generation out. Only the chunks which
+	 * changed since the previous backups take space.
+	 * 
+	 * @param backup_file The backup file (or shard manifest) just written
+	 */
+	private void addToHistory(File backup_file) {
+		int keep = Settings.getKeepGenerations(mParent);
+		if ( keep <= 0 ) {
+			return;
+		}
+		long start = SystemClock.elapsedRealtime();
+		try {
+			File[] files;
+			if ( ShardManifest.isManifest(backup_file) ) {
+				files = ShardManifest.read(backup_file).getFiles();
+			} else if ( ChangeLog.hasLog(backup_file) ) {
+				files = new File[] { backup_file, ChangeLog.logFileFor(backup_file) };
+			} else {
+				files = new File[] { backup_file };
 			}
+			ChunkStore store = new ChunkStore(JsonBackup.getHistoryFolder());
+			store.add(files, BackupMetadata.read(backup_file));
+			long added = store.getAddedBytes();
+			store.retain(keep);
+			long freed = store.prune();
+			Log.i(JsonBackup.TAG, "History: stored " + added + " new bytes, freed "
+					+ freed + ", " + store.getSize() + " bytes in total, took "
+					+ (SystemClock.elapsedRealtime() - start) + "ms");
+		} catch (IOException e) {
+			/* the backup itself is fine */
+			Log.e(JsonBackup.TAG, "Unable to add the backup to the history: " + e.getMessage());
 		}
-		contact.put(ContactColumns.PHONE_NUMBERS, phonenumbers);
-
-		cursor.close();
-
 	}
 
 	/**
-	 * Append a list of organizations to the given contact This is an
-	 * in-place modification of the "contact" object
+	 * Update the progress dialog
 	 * 
-	 * @param contact
-	 *            A JSON object representing a contact. It must have at
-	 *            least a key named "id" representing the internal
-	 *            contact-ID
-	 * @throws JSONException
-	 *             Thrown when data could not be successfully encoded to
-	 *             JSON
+	 * @param position The number of contacts exported
+	 * @param limit The number of contacts
 	 */
-	private void appendOrganizations(JSONObject contact)
-		throws JSONException {
-
-		String where = Organizations.PERSON_ID + "=" + contact.getInt( ContactColumns.ID );
-		Cursor cursor = mParent.managedQuery(Organizations.CONTENT_URI, null, where, null,
-				null);
-
-		JSONArray organizations = new JSONArray();
-		
-		if ( cursor != null ) {
-			int isPrimaryColumn = cursor.getColumnIndex(Organizations.ISPRIMARY);
-			int labelColumn = cursor.getColumnIndex(Organizations.LABEL);
-			int typeColumn = cursor.getColumnIndex(Organizations.TYPE);
-			int companyColumn = cursor.getColumnIndex(Organizations.COMPANY);
-			int titleColumn = cursor.getColumnIndex(Organizations.TITLE);
-	
-			if (cursor.moveToFirst()) {
-				do {
-					JSONObject org = new JSONObject();
-					org.put(OrganizationColumns.IS_PRIMARY,
-							(cursor.getInt(isPrimaryColumn) != 0));
-					org.put(OrganizationColumns.LABEL,
-							cursor.getString(labelColumn));
-					org.put(OrganizationColumns.TITLE,
-							cursor.getString(titleColumn));
-					org.put(OrganizationColumns.COMPANY,
-							cursor.getString(companyColumn));
-					org.put(OrganizationColumns.TYPE,
-							cursor.getString(typeColumn));
-					organizations.put(org);
-				} while (cursor.moveToNext());
-			}
+	private void notifyProgress(int position, int limit) {
+		if ( mHandler == null ) {
+			return;
 		}
-		
-		contact.put(ContactColumns.ORGANIZATIONS, organizations);
+		Message msg = mHandler.obtainMessage();
+		Bundle b = new Bundle();
+		/* contacts added meanwhile must not end the progress early */
+		b.putInt("position", Math.min(position, limit - 1));
+		b.putInt("total", limit);
+		msg.setData(b);
+		mHandler.sendMessage(msg);
+	}
 
-		cursor.close();
+	/**
+	 * Serialize the person the page is positioned on, with all its details
+	 * 
+	 * @param page A page of {@link PeoplePager}
+	 * @param writer Receives the contact
+	 * @return false if the contact could not be written
+	 */
+	private boolean dumpContact(Cursor page, ContactWriter writer) {
+		mExporter.read(page, mRecord);
+//		Log.i(JsonBackup.TAG, String.format(
+//				"Dumping %s",
+//				mRecord.getName()));
+		try {
+			writer.write(mRecord);
+			return true;
+		} catch (JSONException e1) {
+//			Log.e(JsonBackup.TAG, String.format(
+//					"Unable to encode JSON for contact #%d (%s)", id, e1.getMessage()));
+		} catch (IOException e) {
+			// TODO: User friendly error
+		}
+		return false;
+	}
 
+	/**
+	 * sets the current state for the thread, used to stop the thread
+	 * 
+	 * @param state The new state
+	 */
+	public void setState(int state) {
+		mState = state;
 	}
 
 	/**
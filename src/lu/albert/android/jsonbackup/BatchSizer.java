@@ -0,0 +1,176 @@
+package lu.albert.android.jsonbackup;
+
+import java.util.Map;
+
+import android.content.ContentValues;
+import android.util.Log;
+
+/**
+ * Chooses how many rows go into one write to the contacts provider.
+ *
+ * Small batches waste a round trip to the provider for a few rows. Large
+ * batches hold the provider's database (and with it, the contacts
+ * application) for a long time, and can hit the size limit of a binder
+ * transaction. The sizer measures every batch and steers the size towards
+ * {@link #TARGET_MS} per batch, without letting a batch grow beyond
+ * {@link #MAX_BYTES}.
+ *
+ * The decisions are logged, and the totals can be read back for a summary.
+ */
+class BatchSizer {
+
+	/** The time one batch should take */
+	static final long TARGET_MS = 250;
+
+	/** Stay well below the 1MB limit of a binder transaction */
+	static final long MAX_BYTES = 256 * 1024;
+
+	static final int MIN_SIZE = 10;
+	static final int MAX_SIZE = 500;
+
+	/** The size never grows faster than this from one batch to the next */
+	private static final int MAX_GROWTH = 2;
+
+	private final String mName;
+	private int mSize;
+
+	/* metrics */
+	private int mBatches;
+	private long mRows;
+	private long mBytes;
+	private long mElapsed;
+	private int mSmallest = Integer.MAX_VALUE;
+	private int mLargest;
+	private int mGrown;
+	private int mShrunk;
+
+	/**
+	 * Constructor
+	 *
+	 * @param name The name of the table written, for the log
+	 * @param initialSize The size of the first batch
+	 */
+	BatchSizer(String name, int initialSize) {
+		mName = name;
+		mSize = clamp(initialSize);
+	}
+
+	/**
+	 * @return The number of rows to put into the next batch
+	 */
+	int getSize() {
+		return mSize;
+	}
+
+	/**
+	 * Account a batch which has just been written, and choose the size of
+	 * the next one.
+	 *
+	 * @param rows The number of rows in the batch
+	 * @param bytes The estimated size of the batch (see {@link #sizeOf})
+	 * @param elapsed The time the write took, in ms
+	 */
+	void record(int rows, long bytes, long elapsed) {
+		if (rows <= 0) {
+			return;
+		}
+		mBatches++;
+		mRows += rows;
+		mBytes += bytes;
+		mElapsed += elapsed;
+		mSmallest = Math.min(mSmallest, rows);
+		mLargest = Math.max(mLargest, rows);
+
+		/* the last batch of a pass is usually short, and tells little */
+		if (rows < mSize / 2) {
+			return;
+		}
+
+		int size;
+		if (elapsed > 2 * TARGET_MS) {
+			/* way too slow: back off right away */
+			size = mSize / 2;
+		} else {
+			/* move half-way to the size which would have hit the target */
+			double msPerRow = Math.max(elapsed, 1) / (double) rows;
+			int ideal = (int) Math.min(TARGET_MS / msPerRow, Integer.MAX_VALUE);
+			size = (mSize + Math.min(ideal, mSize * MAX_GROWTH)) / 2;
+		}
+		long bytesPerRow = Math.max(bytes / rows, 1);
+		size = (int) Math.min(size, MAX_BYTES / bytesPerRow);
+		size = clamp(size);
+
+		if (size != mSize) {
+			if (size > mSize) {
+				mGrown++;
+			} else {
+				mShrunk++;
+			}
+			Log.d(JsonBackup.TAG, mName + ": " + rows + " rows, " + bytes + " bytes in "
+					+ elapsed + "ms, batch size " + mSize + " -> " + size);
+			mSize = size;
+		}
+	}
+
+	private static int clamp(int size) {
+		return Math.max(MIN_SIZE, Math.min(MAX_SIZE, size));
+	}
+
+	/** @return The number of batches written */
+	int getBatches() {
+		return mBatches;
+	}
+
+	/** @return The number of rows written */
+	long getRows() {
+		return mRows;
+	}
+
+	/** @return The time spent writing, in ms */
+	long getElapsed() {
+		return mElapsed;
+	}
+
+	/** @return The rows written per second, over all batches */
+	long getRowsPerSecond() {
+		return mElapsed == 0 ? 0 : mRows * 1000 / mElapsed;
+	}
+
+	/**
+	 * @return A one-line summary of the metrics
+	 */
+	@Override
+	public String toString() {
+		if (mBatches == 0) {
+			return mName + ": nothing written";
+		}
+		return mName + ": " + mRows + " rows (" + mBytes + " bytes) in " + mBatches
+				+ " batches of " + mSmallest + " to " + mLargest + " rows, "
+				+ mElapsed / mBatches + "ms per batch, " + getRowsPerSecond()
+				+ " rows/s, grown " + mGrown + "x, shrunk " + mShrunk
+				+ "x, final size " + mSize;
+	}
+
+	/**
+	 * Estimate the size of some values once sent to the provider
+	 *
+	 * @param values The values of one row
+	 * @return The estimated size, in bytes
+	 */
+	static long sizeOf(ContentValues values) {
+		long size = 0;
+		for (Map.Entry<String, Object> entry : values.valueSet()) {
+			size += 2 * entry.getKey().length();
+			Object value = entry.getValue();
+			if (value instanceof String) {
+				size += 2 * ((String) value).length();
+			} else if (value instanceof byte[]) {
+				size += ((byte[]) value).length;
+			} else {
+				size += 8;
+			}
+		}
+		return size;
+	}
+
+}
@@ -0,0 +1,18 @@
+package lu.albert.android.jsonbackup;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Starts the {@link BackgroundBackupService} when the phone boots, if
+ * background backups are enabled.
+ */
+public class BootReceiver extends BroadcastReceiver {
+
+	@Override
+	public void onReceive(Context context, Intent intent) {
+		BackgroundBackupService.update(context);
+	}
+
+}
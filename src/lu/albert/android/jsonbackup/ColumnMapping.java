@@ -0,0 +1,210 @@
+package lu.albert.android.jsonbackup;
+
+import lu.albert.android.jsonbackup.schema.ContactRecord;
+import lu.albert.android.jsonbackup.schema.ContactSchema;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.provider.Contacts.ContactMethods;
+import android.provider.Contacts.Organizations;
+import android.provider.Contacts.People;
+import android.provider.Contacts.Phones;
+import android.provider.ContactsContract;
+
+/**
+ * Maps the fields of a {@link ContactSchema} group to the columns of a
+ * provider table.
+ *
+ * The JSON key and the type of each field are defined by the schema. This
+ * table adds the provider column, and whether the column is read during a
+ * backup, written during a restore, or both. From that, it builds the
+ * projection of the backup queries, and it copies the values in both
+ * directions with the accessor matching the type of the field.
+ *
+ * Columns which need special treatment (like the name of a person, which is
+ * rewritten on restore) are only mapped in the direction where they don't.
+ */
+final class ColumnMapping {
+
+	/** The column is read from the provider during a backup */
+	static final int READ = 1;
+
+	/** The column is written to the provider during a restore */
+	static final int WRITE = 2;
+
+	static final int BOTH = READ | WRITE;
+
+	/** The People table */
+	static final ColumnMapping PERSON = new ColumnMapping(ContactSchema.PERSON, new Object[] {
+			ContactSchema.ID, People._ID, BOTH,
+			ContactSchema.NAME, People.NAME, READ,
+			ContactSchema.DISPLAY_NAME, People.DISPLAY_NAME, READ,
+			ContactSchema.PHONETIC_NAME, People.PHONETIC_NAME, BOTH,
+			ContactSchema.NOTES, People.NOTES, BOTH,
+			ContactSchema.CUSTOM_RING_TONE, People.CUSTOM_RINGTONE, BOTH,
+			ContactSchema.STARRED, People.STARRED, BOTH,
+			ContactSchema.TIMES_CONTACTED, People.TIMES_CONTACTED, BOTH,
+			ContactSchema.LAST_TIME_CONTACTED, People.LAST_TIME_CONTACTED, BOTH,
+			ContactSchema.SEND_TO_VOICEMAIL, People.SEND_TO_VOICEMAIL, BOTH,
+			/* reading it seems buggy on some devices */
+			ContactSchema.PHOTO_VERSION, People.PHOTO_VERSION, WRITE,
+		});
+
+	/** The Phones table */
+	static final ColumnMapping PHONE = new ColumnMapping(ContactSchema.PHONE, new Object[] {
+			ContactSchema.PHONE_IS_PRIMARY, Phones.ISPRIMARY, BOTH,
+			ContactSchema.PHONE_TYPE, Phones.TYPE, BOTH,
+			ContactSchema.PHONE_LABEL, Phones.LABEL, BOTH,
+			ContactSchema.PHONE_NUMBER, Phones.NUMBER, BOTH,
+			ContactSchema.PHONE_NUMBER_KEY, Phones.NUMBER_KEY, BOTH,
+		});
+
+	/** The ContactMethods table */
+	static final ColumnMapping METHOD = new ColumnMapping(ContactSchema.METHOD, new Object[] {
+			ContactSchema.METHOD_IS_PRIMARY, ContactMethods.ISPRIMARY, BOTH,
+			ContactSchema.METHOD_KIND, ContactMethods.KIND, BOTH,
+			ContactSchema.METHOD_TYPE, ContactMethods.TYPE, BOTH,
+			ContactSchema.METHOD_LABEL, ContactMethods.LABEL, BOTH,
+			ContactSchema.METHOD_DATA, ContactMethods.DATA, BOTH,
+			ContactSchema.METHOD_AUX_DATA, ContactMethods.AUX_DATA, BOTH,
+		});
+
+	/** The Organizations table, which is only read */
+	static final ColumnMapping ORGANIZATION = new ColumnMapping(ContactSchema.ORGANIZATION, new Object[] {
+			ContactSchema.ORGANIZATION_IS_PRIMARY, Organizations.ISPRIMARY, READ,
+			ContactSchema.ORGANIZATION_TYPE, Organizations.TYPE, READ,
+			ContactSchema.ORGANIZATION_LABEL, Organizations.LABEL, READ,
+			ContactSchema.ORGANIZATION_COMPANY, Organizations.COMPANY, READ,
+			ContactSchema.ORGANIZATION_TITLE, Organizations.TITLE, READ,
+		});
+
+	/**
+	 * Organizations are restored as data rows of the new API. The title is
+	 * handled by {@link ContactValues#organization}.
+	 */
+	static final ColumnMapping ORGANIZATION_DATA = new ColumnMapping(ContactSchema.ORGANIZATION, new Object[] {
+			ContactSchema.ORGANIZATION_TYPE, ContactsContract.CommonDataKinds.Organization.TYPE, WRITE,
+			ContactSchema.ORGANIZATION_LABEL, ContactsContract.CommonDataKinds.Organization.LABEL, WRITE,
+			ContactSchema.ORGANIZATION_COMPANY, ContactsContract.CommonDataKinds.Organization.COMPANY, WRITE,
+		});
+
+	private final ContactSchema.Group mGroup;
+
+	/** The fields and columns read, in the order of the projection */
+	private final int[] mReadFields;
+	private final String[] mProjection;
+
+	/** The fields and columns written */
+	private final int[] mWriteFields;
+	private final String[] mWriteColumns;
+
+	/**
+	 * Constructor
+	 *
+	 * @param group The schema group of the table
+	 * @param table Triplets of field number, column name and direction
+	 */
+	private ColumnMapping(ContactSchema.Group group, Object[] table) {
+		mGroup = group;
+		int reads = 0;
+		int writes = 0;
+		for (int i = 0; i < table.length; i += 3) {
+			int direction = (Integer) table[i + 2];
+			reads += (direction & READ) != 0 ? 1 : 0;
+			writes += (direction & WRITE) != 0 ? 1 : 0;
+		}
+		mReadFields = new int[reads];
+		mProjection = new String[reads];
+		mWriteFields = new int[writes];
+		mWriteColumns = new String[writes];
+		reads = 0;
+		writes = 0;
+		for (int i = 0; i < table.length; i += 3) {
+			int field = (Integer) table[i];
+			String column = (String) table[i + 1];
+			int direction = (Integer) table[i + 2];
+			if ((direction & READ) != 0) {
+				mReadFields[reads] = field;
+				mProjection[reads++] = column;
+			}
+			if ((direction & WRITE) != 0) {
+				mWriteFields[writes] = field;
+				mWriteColumns[writes++] = column;
+			}
+		}
+	}
+
+	/**
+	 * @return The columns to query for a backup. Do not modify.
+	 */
+	String[] getProjection() {
+		return mProjection;
+	}
+
+	/**
+	 * @param field A field of the group
+	 * @return The position of the field in the projection, -1 if not read
+	 */
+	int indexOf(int field) {
+		for (int i = 0; i < mReadFields.length; i++) {
+			if (mReadFields[i] == field) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Copy the current row of a cursor into a record row. NULL columns are
+	 * left out.
+	 *
+	 * @param cursor A cursor created with {@link #getProjection()}
+	 * @param row The row of the record, which must be of the same group
+	 */
+	void read(Cursor cursor, ContactRecord.Row row) {
+		for (int i = 0; i < mReadFields.length; i++) {
+			if (cursor.isNull(i)) {
+				continue;
+			}
+			int field = mReadFields[i];
+			switch (mGroup.getType(field)) {
+			case ContactSchema.TYPE_INTEGER:
+				row.setLong(field, cursor.getLong(i));
+				break;
+			case ContactSchema.TYPE_BOOLEAN:
+				row.setBoolean(field, cursor.getInt(i) != 0);
+				break;
+			default:
+				row.setString(field, cursor.getString(i));
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Add the fields of a record row to the values written on restore.
+	 * Missing fields are left out.
+	 *
+	 * @param row The row of the record
+	 * @param values Receives the columns
+	 */
+	void write(ContactRecord.Row row, ContentValues values) {
+		for (int i = 0; i < mWriteFields.length; i++) {
+			int field = mWriteFields[i];
+			if (!row.has(field)) {
+				continue;
+			}
+			switch (mGroup.getType(field)) {
+			case ContactSchema.TYPE_INTEGER:
+				values.put(mWriteColumns[i], row.getLong(field));
+				break;
+			case ContactSchema.TYPE_BOOLEAN:
+				values.put(mWriteColumns[i], row.getBoolean(field) ? 1 : 0);
+				break;
+			default:
+				values.put(mWriteColumns[i], row.getString(field));
+				break;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,106 @@
+package lu.albert.android.jsonbackup;
+
+import lu.albert.android.jsonbackup.schema.ContactRecord;
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.Contacts.ContactMethods;
+import android.provider.Contacts.Organizations;
+import android.provider.Contacts.Phones;
+import android.provider.Contacts.Photos;
+
+/**
+ * Reads a person and all its details from the contacts provider into a
+ * {@link ContactRecord}. Only the columns of the {@link ColumnMapping}s are
+ * queried.
+ *
+ * An exporter holds no state besides the resolver, so each thread of a
+ * backup can have its own.
+ */
+class ContactExporter {
+
+	private static final String[] PHOTO_PROJECTION = new String[] { Photos.DATA };
+
+	private final ContentResolver mResolver;
+
+	/**
+	 * Constructor
+	 *
+	 * @param resolver Used to query the details
+	 */
+	ContactExporter(ContentResolver resolver) {
+		mResolver = resolver;
+	}
+
+	/**
+	 * Read the person a page is positioned on, with all its details
+	 *
+	 * @param page A page of {@link PeoplePager}
+	 * @param contact Receives the contact. It is cleared first.
+	 */
+	void read(Cursor page, ContactRecord contact) {
+		contact.clear();
+		ColumnMapping.PERSON.read(page, contact.person);
+		long id = page.getLong(PeoplePager.COLUMN_ID);
+
+		readRows(ContactMethods.CONTENT_URI, ContactMethods.PERSON_ID, id,
+				ColumnMapping.METHOD, contact.methods);
+		readPhotos(id, contact.photos);
+		readRows(Phones.CONTENT_URI, Phones.PERSON_ID, id,
+				ColumnMapping.PHONE, contact.phones);
+		readRows(Organizations.CONTENT_URI, Organizations.PERSON_ID, id,
+				ColumnMapping.ORGANIZATION, contact.organizations);
+	}
+
+	/**
+	 * Read the photos of a person. Only the data column is queried.
+	 *
+	 * @param personId The ID of the person
+	 * @param photos Receives the photos
+	 */
+	private void readPhotos(long personId, ContactRecord.PhotoList photos) {
+		Cursor cursor = mResolver.query(Photos.CONTENT_URI,
+				PHOTO_PROJECTION, Photos.PERSON_ID + "=" + personId, null, null);
+		if ( cursor == null ) {
+			return;
+		}
+		try {
+			while (cursor.moveToNext()) {
+				byte[] data = cursor.getBlob(0);
+				if (data != null) {
+					System.arraycopy(data, 0, photos.prepare(data.length), 0, data.length);
+					photos.add(data.length);
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Read the rows of a child table belonging to a person. Only the columns
+	 * of the mapping are queried.
+	 *
+	 * @param uri The table
+	 * @param personColumn The column holding the ID of the person
+	 * @param personId The ID of the person
+	 * @param mapping The columns of the table
+	 * @param rows Receives the rows
+	 */
+	private void readRows(Uri uri, String personColumn, long personId,
+			ColumnMapping mapping, ContactRecord.RowList rows) {
+		Cursor cursor = mResolver.query(uri,
+				mapping.getProjection(), personColumn + "=" + personId, null, null);
+		if ( cursor == null ) {
+			return;
+		}
+		try {
+			while (cursor.moveToNext()) {
+				mapping.read(cursor, rows.add());
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+
+}
@@ -0,0 +1,82 @@
+package lu.albert.android.jsonbackup;
+
+import lu.albert.android.jsonbackup.schema.ContactRecord;
+import lu.albert.android.jsonbackup.schema.ContactSchema;
+import android.content.ContentValues;
+import android.provider.Contacts.People;
+import android.provider.ContactsContract;
+
+/**
+ * Converts the rows of a {@link ContactRecord} into the values written to
+ * the contacts provider. Missing fields are simply left out. The plain
+ * columns come from {@link ColumnMapping}; this class adds the special
+ * cases.
+ *
+ * All methods add to the given values without clearing them first, so
+ * callers can re-use a single instance and add their own columns (like the
+ * ID of the person a row belongs to).
+ */
+final class ContactValues {
+
+	private ContactValues() {
+		// static helpers only
+	}
+
+	/**
+	 * @param contact The contact
+	 * @param values Receives the columns of the People table
+	 */
+	static void person(ContactRecord contact, ContentValues values) {
+		ColumnMapping.PERSON.write(contact.person, values);
+
+		//handle name differently
+		String name = contact.getName();
+		if (name.length() > 0 && name.contains(",")) {
+			String[] nameParts = name.split(",");
+			if (nameParts.length == 2) {
+				name = nameParts[1].trim() + " " + nameParts[0].trim();
+			}
+		}
+		values.put(People.NAME, name);
+	}
+
+	/**
+	 * @param phone A row of {@link ContactRecord#phones}
+	 * @param values Receives the columns of the Phones table
+	 */
+	static void phone(ContactRecord.Row phone, ContentValues values) {
+		ColumnMapping.PHONE.write(phone, values);
+	}
+
+	/**
+	 * @param method A row of {@link ContactRecord#methods}
+	 * @param values Receives the columns of the ContactMethods table
+	 */
+	static void method(ContactRecord.Row method, ContentValues values) {
+		ColumnMapping.METHOD.write(method, values);
+	}
+
+	/**
+	 * Organizations are written through the new API, as data rows of the
+	 * raw contact.
+	 *
+	 * @param orga A row of {@link ContactRecord#organizations}
+	 * @param rawContactId The raw contact the organization belongs to
+	 * @param values Receives the columns of the Data table
+	 */
+	static void organization(ContactRecord.Row orga, long rawContactId, ContentValues values) {
+		ColumnMapping.ORGANIZATION_DATA.write(orga, values);
+
+		//title needs special treatment. if we only set a company, contacts app won't show it at all (at least in 2.1)... title is a must!
+		String value = orga.getString(ContactSchema.ORGANIZATION_TITLE);
+		if (null == value || value.length() == 0) {
+			value = "N/A";
+		}
+		values.put(ContactsContract.CommonDataKinds.Organization.TITLE, value);
+
+		//this only works if contact and rawcontact have the same id!
+		values.put(ContactsContract.CommonDataKinds.Organization.RAW_CONTACT_ID, rawContactId);
+		values.put(ContactsContract.CommonDataKinds.Organization.MIMETYPE, ContactsContract.CommonDataKinds.Organization.CONTENT_ITEM_TYPE);
+	}
+
+}
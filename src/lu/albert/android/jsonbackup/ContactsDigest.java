@@ -0,0 +1,259 @@
+package lu.albert.android.jsonbackup;
+
+import java.io.UnsupportedEncodingException;
+import java.util.zip.CRC32;
+
+import lu.albert.android.jsonbackup.format.Fingerprints;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.provider.Contacts.ContactMethods;
+import android.provider.Contacts.Organizations;
+import android.provider.Contacts.People;
+import android.provider.Contacts.Phones;
+import android.provider.Contacts.Photos;
+import android.provider.ContactsContract.RawContacts;
+
+/**
+ * A cheap fingerprint of the whole contacts database, used to skip backups
+ * when nothing changed.
+ *
+ * Every table is summarized by its number of rows and its highest _ID,
+ * which only reads the _ID column. The old contacts API keeps no
+ * modification time, but the raw contacts behind it have a version which
+ * the provider bumps whenever one of their rows changes, so the sum of the
+ * versions catches the edits. No data and no photo is read, while a backup
+ * takes four queries per contact.
+ *
+ * Which contacts changed since the previous backup is told by the CRC32s of
+ * their rows, over the columns which are backed up, summed per person (see
+ * {@link #computePersons(ContentResolver)}). That reads every row and photo,
+ * so it is only done by the backup itself.
+ */
+final class ContactsDigest {
+
+	/** The digest of the contacts as of the last complete backup */
+	private static final String KEY_DIGEST = "backupDigest";
+
+	private static final String[] PHOTO_PROJECTION = {
+		Photos._ID, Photos.PERSON_ID, Photos.DATA };
+
+	/** The only blob column, in PHOTO_PROJECTION */
+	private static final int PHOTO_DATA_COLUMN = 2;
+
+	private static final String[] ID_PROJECTION = { BaseColumns._ID };
+
+	private static final String[] VERSION_PROJECTION = {
+		RawContacts._ID, RawContacts.VERSION };
+
+	/**
+	 * Multiply the row checksums of each child table, so that a row moving
+	 * from one table to another changes the digest of the person
+	 */
+	private static final int PHONE_FACTOR = 0x9E3779B1;
+	private static final int METHOD_FACTOR = 0x85EBCA77;
+	private static final int ORGANIZATION_FACTOR = 0xC2B2AE3D;
+	private static final int PHOTO_FACTOR = 0x27D4EB2F;
+
+	private ContactsDigest() {
+		// static helpers only
+	}
+
+	/**
+	 * @param resolver Used to query the contacts
+	 * @return The digest of the current contacts, to be compared with
+	 *         {@link #getLast(Context)}
+	 */
+	static String compute(ContentResolver resolver) {
+		StringBuilder digest = new StringBuilder();
+		appendTable(digest, resolver, People.CONTENT_URI, ID_PROJECTION);
+		appendTable(digest, resolver, Phones.CONTENT_URI, ID_PROJECTION);
+		appendTable(digest, resolver, ContactMethods.CONTENT_URI, ID_PROJECTION);
+		appendTable(digest, resolver, Organizations.CONTENT_URI, ID_PROJECTION);
+		appendTable(digest, resolver, Photos.CONTENT_URI, ID_PROJECTION);
+		appendTable(digest, resolver, RawContacts.CONTENT_URI, VERSION_PROJECTION);
+		return digest.toString();
+	}
+
+	/**
+	 * Compute a digest of the rows of every person: the checksum of its
+	 * People row plus the checksums of its child rows. This takes one query
+	 * per table, not per person.
+	 * 
+	 * @param resolver Used to query the contacts
+	 * @return The digest of every person, by _ID
+	 */
+	static Fingerprints computePersons(ContentResolver resolver) {
+		Fingerprints result = new Fingerprints();
+		CRC32 crc = new CRC32();
+		String[] projection = ColumnMapping.PERSON.getProjection();
+		Cursor people = resolver.query(People.CONTENT_URI, projection, null, null,
+				People._ID + " ASC");
+		if (people != null) {
+			try {
+				while (people.moveToNext()) {
+					result.add(people.getLong(PeoplePager.COLUMN_ID),
+							(int) rowCrc(crc, people, projection.length, -1));
+				}
+			} finally {
+				people.close();
+			}
+		}
+		addChildren(result, crc, resolver, Phones.CONTENT_URI, phoneProjection(), -1,
+				PHONE_FACTOR);
+		addChildren(result, crc, resolver, ContactMethods.CONTENT_URI, methodProjection(),
+				-1, METHOD_FACTOR);
+		addChildren(result, crc, resolver, Organizations.CONTENT_URI,
+				organizationProjection(), -1, ORGANIZATION_FACTOR);
+		addChildren(result, crc, resolver, Photos.CONTENT_URI, PHOTO_PROJECTION,
+				PHOTO_DATA_COLUMN, PHOTO_FACTOR);
+		return result;
+	}
+
+	/**
+	 * @param context The context used to access the preferences
+	 * @return The digest stored by the last complete backup, null if unknown
+	 */
+	static String getLast(Context context) {
+		return Settings.getPreferences(context).getString(KEY_DIGEST, null);
+	}
+
+	/**
+	 * @param context The context used to access the preferences
+	 * @param digest The digest of the contacts which were just backed up
+	 */
+	static void save(Context context, String digest) {
+		Settings.getPreferences(context).edit().putString(KEY_DIGEST, digest).commit();
+	}
+
+	/**
+	 * Append "rows/highest _ID/sum of the second column;" for a table
+	 *
+	 * @param digest Receives the summary
+	 * @param resolver Used to query the table
+	 * @param uri The table
+	 * @param projection _ID, and optionally a number which changes with the
+	 *            row
+	 */
+	private static void appendTable(StringBuilder digest, ContentResolver resolver,
+			Uri uri, String[] projection) {
+		Cursor cursor = resolver.query(uri, projection, null, null, null);
+		if (cursor == null) {
+			digest.append("-;");
+			return;
+		}
+		long maxId = -1;
+		long sum = 0;
+		try {
+			while (cursor.moveToNext()) {
+				maxId = Math.max(maxId, cursor.getLong(0));
+				if (projection.length > 1) {
+					sum += cursor.getLong(1);
+				}
+			}
+			digest.append(cursor.getCount()).append('/').append(maxId).append('/')
+					.append(sum).append(';');
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Add the checksums of the rows of a child table to the digests of
+	 * their persons. Rows of unknown persons are ignored.
+	 * 
+	 * @param digests The digests of the persons
+	 * @param crc Re-used
+	 * @param resolver Used to query the table
+	 * @param uri The table
+	 * @param projection The columns, starting with _ID and the person
+	 * @param blobColumn The column holding a blob, -1 if none
+	 * @param factor Applied to the checksums of this table
+	 */
+	private static void addChildren(Fingerprints digests, CRC32 crc,
+			ContentResolver resolver, Uri uri, String[] projection, int blobColumn,
+			int factor) {
+		Cursor cursor = resolver.query(uri, projection, null, null, null);
+		if (cursor == null) {
+			return;
+		}
+		try {
+			while (cursor.moveToNext()) {
+				int index = digests.indexOf(cursor.getLong(1));
+				if (index >= 0) {
+					int row = (int) rowCrc(crc, cursor, projection.length, blobColumn);
+					digests.setCrc(index, digests.getCrc(index) + row * factor);
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * @param crc Re-used
+	 * @param cursor Positioned on a row
+	 * @param columns The number of columns
+	 * @param blobColumn The column holding a blob, -1 if none
+	 * @return The checksum of the row
+	 */
+	private static long rowCrc(CRC32 crc, Cursor cursor, int columns, int blobColumn) {
+		crc.reset();
+		for (int i = 0; i < columns; i++) {
+			byte[] value;
+			if (i == blobColumn) {
+				value = cursor.getBlob(i);
+			} else {
+				String text = cursor.getString(i);
+				value = text == null ? null : toBytes(text);
+			}
+			if (value != null) {
+				crc.update(value);
+			}
+			/* keeps "ab", null and "a", "b" apart */
+			crc.update(value == null ? 0 : 1);
+		}
+		return crc.getValue();
+	}
+
+	private static String[] phoneProjection() {
+		return withIds(ColumnMapping.PHONE.getProjection(), Phones._ID, Phones.PERSON_ID);
+	}
+
+	private static String[] methodProjection() {
+		return withIds(ColumnMapping.METHOD.getProjection(), ContactMethods._ID,
+				ContactMethods.PERSON_ID);
+	}
+
+	private static String[] organizationProjection() {
+		return withIds(ColumnMapping.ORGANIZATION.getProjection(), Organizations._ID,
+				Organizations.PERSON_ID);
+	}
+
+	/**
+	 * @param projection The columns of a child table
+	 * @param id The _ID column
+	 * @param personId The column referencing the person
+	 * @return The projection, with both IDs in front
+	 */
+	private static String[] withIds(String[] projection, String id, String personId) {
+		String[] result = new String[projection.length + 2];
+		result[0] = id;
+		result[1] = personId;
+		System.arraycopy(projection, 0, result, 2, projection.length);
+		return result;
+	}
+
+	private static byte[] toBytes(String value) {
+		try {
+			return value.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			/* UTF-8 is always supported */
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+
+}
@@ -3,11 +3,32 @@ package lu.albert.android.jsonbackup;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import lu.albert.android.jsonbackup.format.BackupDiff;
+import lu.albert.android.jsonbackup.format.BackupVerifier;
+import lu.albert.android.jsonbackup.format.BinaryFormat;
+import lu.albert.android.jsonbackup.format.ChangeLog;
+import lu.albert.android.jsonbackup.format.ChangeLogWriter;
+import lu.albert.android.jsonbackup.format.ChunkStore;
+import lu.albert.android.jsonbackup.format.ContactFilter;
+import lu.albert.android.jsonbackup.format.ContactReaders;
+import lu.albert.android.jsonbackup.format.ContactScanner;
+import lu.albert.android.jsonbackup.format.MembershipFilter;
+import lu.albert.android.jsonbackup.format.RecordIndex;
+import lu.albert.android.jsonbackup.format.SearchIndex;
+import lu.albert.android.jsonbackup.format.ShardManifest;
+import lu.albert.android.jsonbackup.format.SourceIndex;
+import lu.albert.android.jsonbackup.schema.ContactRecord;
 
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.ProgressDialog;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
@@ -16,11 +37,15 @@ import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.Message;
+import android.util.Log;
+import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.EditText;
 import android.widget.Toast;
 
 /**
@@ -36,12 +61,38 @@ public class JsonBackup extends Activity {
 	/** The filename that will be stored on disk */
 	public static final String FILE_NAME = "contacts.json";
 	
+	/** The filename used for backups in the compact binary format */
+	public static final String BINARY_FILE_NAME = "contacts" + BinaryFormat.FILE_EXTENSION;
+	
+	/** The manifest of a backup split into shards */
+	public static final String MANIFEST_FILE_NAME = "contacts" + ShardManifest.FILE_EXTENSION;
+	
 	/** The folder containing the data files */
 	public static final String DATA_FOLDER = "jsonBackup";
 	
+	/** The folder inside DATA_FOLDER which keeps the older backups */
+	public static final String HISTORY_FOLDER = "history";
+	
+	/** The folder inside DATA_FOLDER an older backup is extracted to, to compare it */
+	private static final String COMPARE_FOLDER = "compare";
+	
 	private static final int MENU_EULA = Menu.FIRST;
 	private static final int MENU_LICENSE = Menu.FIRST + 1;
 	private static final int MENU_USAGE = Menu.FIRST + 2;
+	private static final int MENU_SETTINGS = Menu.FIRST + 3;
+	private static final int MENU_VERIFY = Menu.FIRST + 4;
+	private static final int MENU_HISTORY = Menu.FIRST + 5;
+	private static final int MENU_PLAN = Menu.FIRST + 6;
+	private static final int MENU_SELECTIVE = Menu.FIRST + 7;
+	private static final int MENU_SEARCH = Menu.FIRST + 8;
+	private static final int MENU_BROWSE = Menu.FIRST + 9;
+	private static final int MENU_COMPARE = Menu.FIRST + 10;
+	
+	/** The most contacts listed by a search */
+	private static final int MAX_SEARCH_RESULTS = 100;
+	
+	/** The most contacts listed when comparing backups */
+	private static final int MAX_COMPARE_RESULTS = 100;
 	
 	private static final int DIALOG_CONFIRM_OVERWRITE = 0;
 	private static final int DIALOG_CANCELLED = 1;
@@ -59,6 +110,25 @@ public class JsonBackup extends Activity {
 	protected static final int RESTORE_MSG_PROGRESS = 0;
 	protected static final int RESTORE_MSG_INFO = 1;
 	
+	/**
+	 * A handler message type for errors which prevent the restore from
+	 * starting. The progress dialog is closed and the message (with the key
+	 * "message") is displayed.
+	 */
+	protected static final int RESTORE_MSG_FAILED = 3;
+
+	/**
+	 * A handler message type sent while the backup file is checked, before
+	 * the contacts are touched.
+	 */
+	protected static final int RESTORE_MSG_VERIFYING = 4;
+
+	/**
+	 * A handler message type which replaces the text of the progress
+	 * dialog. The text is stored with the key "message".
+	 */
+	protected static final int RESTORE_MSG_STATUS = 5;
+	
 	/** 
 	 * A handler message type for errors. If a message of this kind is
 	 * received, an error message will popup. The message must also contain
@@ -78,6 +148,8 @@ public class JsonBackup extends Activity {
 	private Button mDeleteButton;
 	private BackupThread mProgressThread;
 	private RestoreThread mRestoreThread;
+	/** The contacts picked for the next restore, null to restore all of them */
+	private ContactFilter mRestoreFilter;
 	private ProgressDialog mProgressDialog;
 	private AlertDialog mErrorDialog;
 
@@ -125,9 +197,26 @@ public class JsonBackup extends Activity {
 				mErrorDialog.setMessage(message);
 				showDialog(DIALOG_ERROR);
 				break;
+			case RESTORE_MSG_FAILED:
+				removeDialog(DIALOG_RESTORE_PROGRESS);
+				mErrorDialog.setMessage(msg.getData().getString("message"));
+				showDialog(DIALOG_ERROR);
+				break;
+			case RESTORE_MSG_VERIFYING:
+				mProgressDialog.setMessage( getString( R.string.verifying ) );
+				break;
+			case RESTORE_MSG_STATUS:
+				mProgressDialog.setMessage( msg.getData().getString("message") );
+				break;
 			case RESTORE_MSG_INFO:
 				String name = msg.getData().getString("name");
-				mProgressDialog.setMessage( getString( R.string.restored_s, name ) );
+				int count = msg.getData().getInt("total", 0);
+				if ( count > 0 ) {
+					mProgressDialog.setMessage( getString( R.string.restored_s_n_of_n,
+							name, msg.getData().getInt("position"), count ) );
+				} else {
+					mProgressDialog.setMessage( getString( R.string.restored_s, name ) );
+				}
 				break;
 			default:
 				// do nothing
@@ -136,6 +225,116 @@ public class JsonBackup extends Activity {
 		}
 	};
 
+	/**
+	 * Receives the result of a backup verification started from the menu.
+	 * The message contains either "count" or "message" (the error).
+	 */
+	final Handler verifyHandler = new Handler() {
+		public void handleMessage(Message msg) {
+			String error = msg.getData().getString("message");
+			if ( error == null ) {
+				Toast.makeText(JsonBackup.this,
+						getString(R.string.verify_ok, msg.getData().getInt("count")),
+						Toast.LENGTH_LONG).show();
+			} else {
+				mErrorDialog.setMessage(getString(R.string.verify_failed, error));
+				showDialog(DIALOG_ERROR);
+			}
+		}
+	};
+
+	/**
+	 * Receives the plan of a restore started from the menu. The message
+	 * contains either "plan" or "message" (the error).
+	 */
+	final Handler planHandler = new Handler() {
+		public void handleMessage(Message msg) {
+			String error = msg.getData().getString("message");
+			if ( error == null ) {
+				new AlertDialog.Builder(JsonBackup.this)
+						.setTitle(R.string.restore_preview)
+						.setMessage(msg.getData().getString("plan"))
+						.setPositiveButton(getString(android.R.string.ok), null)
+						.show();
+			} else {
+				mErrorDialog.setMessage(getString(R.string.incompatible_backup, error));
+				showDialog(DIALOG_ERROR);
+			}
+		}
+	};
+
+	/**
+	 * Receives the result of a search started from the menu. The message
+	 * contains either "names" and "count" or "message" (the error).
+	 */
+	final Handler searchHandler = new Handler() {
+		public void handleMessage(Message msg) {
+			String error = msg.getData().getString("message");
+			String[] names = msg.getData().getStringArray("names");
+			if ( error != null ) {
+				mErrorDialog.setMessage(error);
+				showDialog(DIALOG_ERROR);
+			} else if ( names.length == 0 ) {
+				Toast.makeText(JsonBackup.this, R.string.no_contact_found,
+						Toast.LENGTH_SHORT).show();
+			} else {
+				new AlertDialog.Builder(JsonBackup.this)
+						.setTitle(getString(R.string.n_contacts_found, msg.getData().getInt("count")))
+						.setItems(names, null)
+						.show();
+			}
+		}
+	};
+
+	/**
+	 * Receives the result of comparing an older backup with the current one.
+	 * The message contains either "created", "added", "removed", "changed"
+	 * and "names", or "message" (the error).
+	 */
+	final Handler compareHandler = new Handler() {
+		public void handleMessage(Message msg) {
+			String error = msg.getData().getString("message");
+			if ( error != null ) {
+				mErrorDialog.setMessage(error);
+				showDialog(DIALOG_ERROR);
+				return;
+			}
+			Bundle b = msg.getData();
+			String created = DateFormat.getDateTimeInstance().format(new Date(b.getLong("created")));
+			String[] names = b.getStringArray("names");
+			AlertDialog.Builder builder = new AlertDialog.Builder(JsonBackup.this)
+					.setTitle(getString(R.string.compare_result, created, b.getInt("added"),
+							b.getInt("removed"), b.getInt("changed")))
+					.setPositiveButton(getString(android.R.string.ok), null);
+			if ( names.length == 0 ) {
+				builder.setMessage(R.string.no_differences);
+			} else {
+				builder.setItems(names, null);
+			}
+			builder.show();
+		}
+	};
+
+	/**
+	 * Receives the result of extracting an older backup from the history.
+	 * The message contains either "created" or "message" (the error).
+	 */
+	final Handler historyHandler = new Handler() {
+		public void handleMessage(Message msg) {
+			String error = msg.getData().getString("message");
+			if ( error == null ) {
+				String created = DateFormat.getDateTimeInstance().format(
+						new Date(msg.getData().getLong("created")));
+				Toast.makeText(JsonBackup.this,
+						getString(R.string.generation_extracted, created),
+						Toast.LENGTH_LONG).show();
+			} else {
+				mErrorDialog.setMessage(error);
+				showDialog(DIALOG_ERROR);
+			}
+		}
+	};
+
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
 	    menu.add(0, MENU_EULA, 0, "EULA")
@@ -144,6 +343,22 @@ public class JsonBackup extends Activity {
 		.setIcon(android.R.drawable.ic_menu_help);
 	    menu.add(0, MENU_LICENSE, 0, "License")
 	    	.setIcon(android.R.drawable.ic_menu_agenda);
+	    menu.add(0, MENU_SETTINGS, 0, getString(R.string.settings))
+	    	.setIcon(android.R.drawable.ic_menu_preferences);
+	    menu.add(0, MENU_VERIFY, 0, getString(R.string.verify_backup))
+	    	.setIcon(android.R.drawable.ic_menu_search);
+	    menu.add(0, MENU_HISTORY, 0, getString(R.string.backup_history))
+	    	.setIcon(android.R.drawable.ic_menu_recent_history);
+	    menu.add(0, MENU_PLAN, 0, getString(R.string.restore_preview))
+	    	.setIcon(android.R.drawable.ic_menu_info_details);
+	    menu.add(0, MENU_SELECTIVE, 0, getString(R.string.restore_selected))
+	    	.setIcon(android.R.drawable.ic_menu_revert);
+	    menu.add(0, MENU_SEARCH, 0, getString(R.string.search_backup))
+	    	.setIcon(android.R.drawable.ic_menu_search);
+	    menu.add(0, MENU_BROWSE, 0, getString(R.string.browse_backup))
+	    	.setIcon(android.R.drawable.ic_menu_view);
+	    menu.add(0, MENU_COMPARE, 0, getString(R.string.compare_backups))
+	    	.setIcon(android.R.drawable.ic_menu_recent_history);
 	    return true;
 	}
 
@@ -164,6 +379,30 @@ public class JsonBackup extends Activity {
 	    	intent.putExtra(HtmlView.KEY_DOC_ID, R.raw.usage);
 	    	startActivityForResult(intent, ACTIVITY_VIEW_LICENSE );
 	        return true;
+	    case MENU_SETTINGS:
+	    	startActivity(new Intent(this, Settings.class));
+	        return true;
+	    case MENU_VERIFY:
+	    	verifyBackup();
+	        return true;
+	    case MENU_HISTORY:
+	    	showHistory(false);
+	        return true;
+	    case MENU_PLAN:
+	    	previewRestore();
+	        return true;
+	    case MENU_SELECTIVE:
+	    	selectContacts();
+	        return true;
+	    case MENU_SEARCH:
+	    	searchBackup();
+	        return true;
+	    case MENU_BROWSE:
+	    	browseBackup();
+	        return true;
+	    case MENU_COMPARE:
+	    	showHistory(true);
+	        return true;
 	    }
 	    return false;
 	}
@@ -194,10 +433,63 @@ public class JsonBackup extends Activity {
 		}
 	}
 	
-	protected File getStorageFolder(){
+	protected static File getStorageFolder(){
 		return new File( Environment.getExternalStorageDirectory(), DATA_FOLDER );
 	}
 	
+	/**
+	 * @return The folder holding the older backups (see {@link ChunkStore})
+	 */
+	protected static File getHistoryFolder(){
+		return new File( getStorageFolder(), HISTORY_FOLDER );
+	}
+	
+	/**
+	 * @return The file new backups are written to. This depends on the
+	 *         format selected in the settings. For sharded backups, this is
+	 *         the manifest.
+	 */
+	protected File getBackupFile(){
+		return getBackupFile(this);
+	}
+	
+	/**
+	 * @param context The context used to access the preferences
+	 * @return The file new backups are written to, see {@link #getBackupFile()}
+	 */
+	static File getBackupFile(Context context){
+		if ( Settings.getShardSize(context) > 0 ){
+			return new File( getStorageFolder(), MANIFEST_FILE_NAME );
+		}
+		String name = Settings.isBinaryFormat(context) ? BINARY_FILE_NAME : FILE_NAME;
+		return new File( getStorageFolder(), name );
+	}
+	
+	/**
+	 * @return The most recent backup file, regardless of its format. If no
+	 *         backup exists, this is the same as {@link #getBackupFile()}
+	 */
+	protected File findBackupFile(){
+		File newest = null;
+		String[] names = { FILE_NAME, BINARY_FILE_NAME, MANIFEST_FILE_NAME };
+		for ( String name : names ){
+			File file = new File( getStorageFolder(), name );
+			if ( file.exists() && ( newest == null || lastModified(file) > lastModified(newest) ) ){
+				newest = file;
+			}
+		}
+		return newest != null ? newest : getBackupFile();
+	}
+	
+	/**
+	 * @param backup A backup file
+	 * @return When the backup was last written to. Incremental backups only
+	 *         append to their change log.
+	 */
+	private static long lastModified(File backup){
+		return Math.max(backup.lastModified(), ChangeLog.logFileFor(backup).lastModified());
+	}
+	
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
@@ -215,7 +507,6 @@ public class JsonBackup extends Activity {
 		mRestoreButton = (Button)findViewById(R.id.restore_button);
 		mRestoreButton.setOnClickListener( new RestoreListener() );
 		mDeleteButton = (Button)findViewById(R.id.delete_button);
-		mDeleteButton.setText(getString(R.string.delete_button, FILE_NAME));
 		mDeleteButton.setOnClickListener( new OnClickListener() {
 			
 			@Override
@@ -238,6 +529,11 @@ public class JsonBackup extends Activity {
 					});
 		mErrorDialog = builder.create();
 
+		/* Resume restoring photos if the application was stopped meanwhile */
+		if ( PhotoQueue.isPending(this) ) {
+			PhotoRestoreService.start(this);
+		}
+
 	}
 	
 	@Override
@@ -253,15 +549,15 @@ public class JsonBackup extends Activity {
 			 * deleted
 			 */
 			builder = new AlertDialog.Builder(this);
-			builder.setMessage(getString(R.string.confirm_delete_contacts_dump, FILE_NAME))
+			builder.setMessage(getString(R.string.confirm_delete_contacts_dump, getBackupFile().getName()))
 					.setCancelable(false)
 					.setPositiveButton(getString(android.R.string.yes),
 						new DialogInterface.OnClickListener() {
 							public void onClick(DialogInterface dialog,
 									int id) {
-								File file1 = null;
-								file1 = new File(getStorageFolder(), FILE_NAME);
+								File file1 = getBackupFile();
 								if (file1.exists()) {
+									RecordIndex.indexFileFor(file1).delete();
 									if ( file1.delete() ){
 										Toast.makeText(JsonBackup.this,
 												R.string.file_successfully_deleted,
@@ -293,8 +589,7 @@ public class JsonBackup extends Activity {
 						new DialogInterface.OnClickListener() {
 							public void onClick(DialogInterface dialog,
 									int id) {
-								File file1 = null;
-								file1 = new File(getStorageFolder(), FILE_NAME);
+								File file1 = findBackupFile();
 								if (file1.exists()) {
 									showDialog(DIALOG_RESTORE_PROGRESS);
 								}
@@ -321,7 +616,7 @@ public class JsonBackup extends Activity {
 			builder = new AlertDialog.Builder(this);
 			
 			builder.setMessage(
-					String.format(getString(R.string.file_exists), FILE_NAME))
+					String.format(getString(R.string.file_exists), getBackupFile().getName()))
 					.setCancelable(false)
 					.setPositiveButton(getString(android.R.string.yes),
 						new DialogInterface.OnClickListener() {
@@ -396,6 +691,8 @@ public class JsonBackup extends Activity {
 			mProgressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
 			mProgressDialog.setMessage(getString(R.string.restoring));
 			mRestoreThread = new RestoreThread(restore_handler, this);
+			mRestoreThread.setFilter(mRestoreFilter);
+			mRestoreFilter = null;
 			mProgressDialog.setIndeterminate(true);
 			mRestoreThread.start();
 			dialog = mProgressDialog;
@@ -463,6 +760,36 @@ public class JsonBackup extends Activity {
 		return dialog;
 	}
 	
+	@Override
+	protected void onPrepareDialog(int id, Dialog dialog) {
+		super.onPrepareDialog(id, dialog);
+		/* 
+		 * Dialogs are cached, but the file name depends on the current
+		 * settings
+		 */
+		switch (id) {
+		case DIALOG_CONFIRM_DELETE:
+			((AlertDialog)dialog).setMessage(getString(
+					R.string.confirm_delete_contacts_dump, getBackupFile().getName()));
+			break;
+		case DIALOG_CONFIRM_OVERWRITE:
+			((AlertDialog)dialog).setMessage(String.format(
+					getString(R.string.file_exists), getBackupFile().getName()));
+			break;
+		default:
+			break;
+		}
+	}
+	
+	@Override
+	protected void onResume() {
+		super.onResume();
+		/* The backup format may have been changed in the settings */
+		mDeleteButton.setText(getString(R.string.delete_button, getBackupFile().getName()));
+		/* and background backups enabled or disabled */
+		BackgroundBackupService.update(this);
+	}
+	
 	@Override
 	protected void onPause() {
 		try {
@@ -484,10 +811,364 @@ public class JsonBackup extends Activity {
 	 * Delete the dump file
 	 */
 	protected void deleteDump() {
-		File fp = new File(getStorageFolder(), FILE_NAME);
+		File fp = getBackupFile();
+		if ( ShardManifest.isManifest(fp) ){
+			ShardManifest.delete(fp);
+			return;
+		}
+		RecordIndex.indexFileFor(fp).delete();
+		SourceIndex.delete(fp);
+		SearchIndex.delete(fp);
+		ChangeLog.delete(fp);
 		fp.delete();
 	}
 
+	/**
+	 * Check the most recent backup file in the background and report the
+	 * result.
+	 */
+	private void verifyBackup() {
+		final File backupFile = findBackupFile();
+		if ( !backupFile.exists() ){
+			Toast.makeText(this, R.string.file_not_found, Toast.LENGTH_SHORT).show();
+			return;
+		}
+		Toast.makeText(this, R.string.verifying, Toast.LENGTH_SHORT).show();
+		new Thread() {
+			public void run() {
+				Message msg = verifyHandler.obtainMessage();
+				Bundle b = new Bundle();
+				try {
+					b.putInt("count", BackupVerifier.verify(backupFile));
+				} catch (IOException e) {
+					b.putString("message", e.getMessage());
+				}
+				msg.setData(b);
+				verifyHandler.sendMessage(msg);
+			}
+		}.start();
+	}
+
+	/**
+	 * Work out what restoring the most recent backup would do, in the
+	 * background, and show it. Nothing is written.
+	 */
+	private void previewRestore() {
+		final File backupFile = findBackupFile();
+		if ( !backupFile.exists() ){
+			Toast.makeText(this, R.string.file_not_found, Toast.LENGTH_SHORT).show();
+			return;
+		}
+		Toast.makeText(this, R.string.planning_restore, Toast.LENGTH_SHORT).show();
+		new Thread() {
+			public void run() {
+				Message msg = planHandler.obtainMessage();
+				Bundle b = new Bundle();
+				try {
+					RestorePlan plan = RestorePlan.create(backupFile, getContentResolver(),
+							RestoreCosts.load(JsonBackup.this),
+							Settings.isBackgroundPhotos(JsonBackup.this));
+					Log.i(TAG, "Restore plan: " + plan);
+					b.putString("plan", plan.describe(JsonBackup.this));
+				} catch (IOException e) {
+					b.putString("message", e.getMessage());
+				}
+				msg.setData(b);
+				planHandler.sendMessage(msg);
+			}
+		}.start();
+	}
+
+	/**
+	 * List the contacts of the most recent backup, see {@link BackupBrowser}
+	 */
+	private void browseBackup() {
+		File backupFile = findBackupFile();
+		if ( !backupFile.exists() ){
+			Toast.makeText(this, R.string.file_not_found, Toast.LENGTH_SHORT).show();
+			return;
+		}
+		Intent intent = new Intent(this, BackupBrowser.class);
+		intent.putExtra(BackupBrowser.KEY_FILE, backupFile.getAbsolutePath());
+		startActivity(intent);
+	}
+
+	/**
+	 * Ask what to look for, and list the matching contacts of the most
+	 * recent backup. Only the search index and the matching records are
+	 * read.
+	 */
+	private void searchBackup() {
+		final File backupFile = findBackupFile();
+		if ( !backupFile.exists() ){
+			Toast.makeText(this, R.string.file_not_found, Toast.LENGTH_SHORT).show();
+			return;
+		}
+		final EditText query = new EditText(this);
+		query.setSingleLine(true);
+		new AlertDialog.Builder(this)
+				.setTitle(R.string.search_backup)
+				.setView(query)
+				.setPositiveButton(getString(android.R.string.ok),
+					new DialogInterface.OnClickListener() {
+						public void onClick(DialogInterface dialog, int id) {
+							Toast.makeText(JsonBackup.this, R.string.searching_backup,
+									Toast.LENGTH_SHORT).show();
+							search(backupFile, query.getText().toString());
+						}
+					})
+				.setNegativeButton(getString(android.R.string.cancel), null)
+				.show();
+	}
+
+	/**
+	 * Search a backup in the background, and list the names of the matching
+	 * contacts
+	 * 
+	 * @param backupFile The backup
+	 * @param query What the user typed
+	 */
+	private void search(final File backupFile, final String query) {
+		new Thread() {
+			public void run() {
+				Message msg = searchHandler.obtainMessage();
+				Bundle b = new Bundle();
+				SearchIndex index = null;
+				ContactScanner scanner = null;
+				try {
+					/* the filter in the footer rules most unknown numbers out at once */
+					String text = query.trim();
+					if ( SearchIndex.isPhoneNumber(text) ) {
+						MembershipFilter filter = MembershipFilter.read(backupFile);
+						if ( filter != null && !filter.mightContainPhone(text) ) {
+							b.putStringArray("names", new String[0]);
+							b.putInt("count", 0);
+							msg.setData(b);
+							searchHandler.sendMessage(msg);
+							return;
+						}
+					}
+					index = SearchIndex.open(backupFile);
+					if ( index == null ) {
+						throw new IOException(getString(R.string.no_search_index));
+					}
+					long start = System.currentTimeMillis();
+					SearchIndex.Hits hits = index.search(query);
+					Log.i(TAG, "Found " + hits.size() + " contacts in "
+							+ (System.currentTimeMillis() - start) + "ms");
+					String[] names = new String[Math.min(hits.size(), MAX_SEARCH_RESULTS)];
+					scanner = ContactReaders.scan(backupFile);
+					ContactRecord contact = new ContactRecord();
+					for ( int i = 0; i < names.length; i++ ) {
+						scanner.seek(hits.getOffset(i), hits.getLength(i));
+						scanner.read(contact);
+						names[i] = contact.getName();
+					}
+					b.putStringArray("names", names);
+					b.putInt("count", hits.size());
+				} catch (IOException e) {
+					b.putString("message", e.getMessage());
+				} finally {
+					if ( scanner != null ) {
+						scanner.close();
+					}
+					if ( index != null ) {
+						index.close();
+					}
+				}
+				msg.setData(b);
+				searchHandler.sendMessage(msg);
+			}
+		}.start();
+	}
+
+	/**
+	 * Ask which contacts to restore, then restore them. The other contacts
+	 * on the phone are kept.
+	 */
+	private void selectContacts() {
+		if ( !getSharedPreferences(PREFS_NAME, 0).getBoolean("eulaAccepted", false) ){
+			/* EULA not accepted. Bail out! */
+			mErrorDialog.setMessage("You did not accept the EULA! You can access and accept it via the Menu button.");
+			showDialog(DIALOG_ERROR);
+			return;
+		}
+		if ( !findBackupFile().exists() ){
+			Toast.makeText(this, R.string.file_not_found, Toast.LENGTH_SHORT).show();
+			return;
+		}
+		final View view = LayoutInflater.from(this).inflate(R.layout.restore_filter, null);
+		new AlertDialog.Builder(this)
+				.setTitle(R.string.restore_selected)
+				.setView(view)
+				.setPositiveButton(getString(android.R.string.ok),
+					new DialogInterface.OnClickListener() {
+						public void onClick(DialogInterface dialog, int id) {
+							ContactFilter filter = new ContactFilter();
+							filter.setNamePrefix(getText(view, R.id.filter_name));
+							filter.setCompanyPrefix(getText(view, R.id.filter_company));
+							String days = getText(view, R.id.filter_contacted_days);
+							try {
+								filter.addIds(getText(view, R.id.filter_ids));
+								if ( days.length() > 0 ) {
+									filter.setContactedSince(System.currentTimeMillis()
+											- Integer.parseInt(days) * 24L * 60 * 60 * 1000);
+								}
+							} catch (IllegalArgumentException e) {
+								/* NumberFormatException included */
+								Toast.makeText(JsonBackup.this, R.string.invalid_filter,
+										Toast.LENGTH_LONG).show();
+								return;
+							}
+							filter.setStarred(
+									((CheckBox) view.findViewById(R.id.filter_starred)).isChecked());
+							filter.setWithPhone(
+									((CheckBox) view.findViewById(R.id.filter_with_phone)).isChecked());
+							mRestoreFilter = filter;
+							showDialog(DIALOG_RESTORE_PROGRESS);
+						}
+					})
+				.setNegativeButton(getString(android.R.string.cancel), null)
+				.show();
+	}
+
+	/**
+	 * @param view The view holding the field
+	 * @param id The ID of an EditText
+	 * @return Its text, without surrounding spaces
+	 */
+	private static String getText(View view, int id) {
+		return ((EditText) view.findViewById(id)).getText().toString().trim();
+	}
+
+	/**
+	 * List the backups kept in the history. The one picked by the user
+	 * becomes the current backup file, so it can be verified and restored
+	 * as usual, or is compared with the current backup.
+	 * 
+	 * @param compare true to compare the backup picked, false to extract it
+	 */
+	private void showHistory(final boolean compare) {
+		final List<ChunkStore.Generation> generations =
+				new ChunkStore( getHistoryFolder() ).getGenerations();
+		if ( generations.isEmpty() ){
+			Toast.makeText(this, R.string.no_backup_history, Toast.LENGTH_LONG).show();
+			return;
+		}
+		DateFormat format = DateFormat.getDateTimeInstance();
+		String[] items = new String[generations.size()];
+		for ( int i = 0; i < items.length; i++ ){
+			ChunkStore.Generation generation = generations.get(i);
+			items[i] = getString(R.string.generation_s_n_contacts,
+					format.format(new Date(generation.getCreated())),
+					generation.getContactCount());
+		}
+		new AlertDialog.Builder(this)
+				.setTitle(compare ? R.string.compare_backups : R.string.backup_history)
+				.setItems(items, new DialogInterface.OnClickListener() {
+					public void onClick(DialogInterface dialog, int which) {
+						if ( compare ){
+							compareGeneration(generations.get(which));
+						} else {
+							extractGeneration(generations.get(which));
+						}
+					}
+				})
+				.show();
+	}
+
+	/**
+	 * Write an older backup over the current backup file in the background
+	 * 
+	 * @param generation The backup to extract
+	 */
+	private void extractGeneration(final ChunkStore.Generation generation) {
+		Toast.makeText(this, R.string.extracting_backup, Toast.LENGTH_SHORT).show();
+		new Thread() {
+			public void run() {
+				Message msg = historyHandler.obtainMessage();
+				Bundle b = new Bundle();
+				try {
+					new ChunkStore( getHistoryFolder() ).extract(generation, getStorageFolder());
+					b.putLong("created", generation.getCreated());
+				} catch (IOException e) {
+					b.putString("message", e.getMessage());
+				}
+				msg.setData(b);
+				historyHandler.sendMessage(msg);
+			}
+		}.start();
+	}
+
+	/**
+	 * Extract an older backup to a temporary folder and compare it with the
+	 * current backup in the background, see {@link BackupDiff}
+	 * 
+	 * @param generation The older backup
+	 */
+	private void compareGeneration(final ChunkStore.Generation generation) {
+		final File backupFile = findBackupFile();
+		if ( !backupFile.exists() ){
+			Toast.makeText(this, R.string.file_not_found, Toast.LENGTH_SHORT).show();
+			return;
+		}
+		Toast.makeText(this, R.string.comparing_backups, Toast.LENGTH_SHORT).show();
+		new Thread() {
+			public void run() {
+				Message msg = compareHandler.obtainMessage();
+				Bundle b = new Bundle();
+				File folder = new File( getStorageFolder(), COMPARE_FOLDER );
+				try {
+					folder.mkdirs();
+					new ChunkStore( getHistoryFolder() ).extract(generation, folder);
+					final List<String> names = new ArrayList<String>();
+					BackupDiff diff = new BackupDiff(
+							new File( folder, generation.getFileNames()[0] ), backupFile);
+					diff.run(new BackupDiff.Listener() {
+						public void added(ContactRecord record) {
+							add("+ " + record.getName());
+						}
+
+						public void removed(ContactRecord record) {
+							add("- " + record.getName());
+						}
+
+						public void changed(ContactRecord before, ContactRecord after) {
+							add("~ " + after.getName());
+						}
+
+						public void fieldChanged(long id, String field, String before, String after) {
+							// only the contacts are listed
+						}
+
+						private void add(String name) {
+							if ( names.size() < MAX_COMPARE_RESULTS ){
+								names.add(name);
+							}
+						}
+					});
+					Log.i(TAG, "Compared " + generation.getFileNames()[0] + " with " + backupFile
+							+ (diff.isMerged() ? "" : ", out of order"));
+					b.putLong("created", generation.getCreated());
+					b.putInt("added", diff.getAdded());
+					b.putInt("removed", diff.getRemoved());
+					b.putInt("changed", diff.getChanged());
+					b.putStringArray("names", names.toArray(new String[names.size()]));
+				} catch (IOException e) {
+					b.putString("message", e.getMessage());
+				} finally {
+					File[] files = folder.listFiles();
+					for ( int i = 0; files != null && i < files.length; i++ ){
+						files[i].delete();
+					}
+					folder.delete();
+				}
+				msg.setData(b);
+				compareHandler.sendMessage(msg);
+			}
+		}.start();
+	}
+
 	/**
 	 * @return The text contained in res/raw/eula.txt
 	 */
@@ -545,9 +1226,11 @@ public class JsonBackup extends Activity {
 				return;
 			}
 
-			File file1 = null;
-			file1 = new File(getStorageFolder(), FILE_NAME);
-			if (file1.exists()) {
+			File file1 = getBackupFile();
+			/* an incremental backup keeps the file and appends the changes */
+			boolean append = Settings.isIncrementalBackup(JsonBackup.this)
+					&& ChangeLogWriter.readContacts(file1) != null;
+			if (file1.exists() && !append) {
 				showDialog(DIALOG_CONFIRM_OVERWRITE);
 			} else {
 				showDialog(DIALOG_BACKUP_PROGRESS);
@@ -573,7 +1256,7 @@ public class JsonBackup extends Activity {
 				return;
 			}
 			
-			File backupFile = new File( getStorageFolder(), FILE_NAME );
+			File backupFile = findBackupFile();
 			if ( !backupFile.exists() ){
 				Toast.makeText(JsonBackup.this, R.string.file_not_found, Toast.LENGTH_SHORT).show();
 				return;
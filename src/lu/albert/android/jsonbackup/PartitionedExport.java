@@ -0,0 +1,224 @@
+package lu.albert.android.jsonbackup;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import lu.albert.android.jsonbackup.format.BinaryContactWriter;
+import lu.albert.android.jsonbackup.format.ContactReader;
+import lu.albert.android.jsonbackup.format.ContactReaders;
+import lu.albert.android.jsonbackup.format.ContactWriter;
+import lu.albert.android.jsonbackup.schema.ContactRecord;
+
+import org.json.JSONException;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.provider.Contacts.People;
+import android.util.Log;
+
+/**
+ * Exports the contacts with several threads.
+ *
+ * Most of the time of a backup is spent waiting for the provider: every
+ * person needs four more queries for its details. Here, the _ID space is
+ * split into ranges holding about the same number of people, and each range
+ * is exported by its own worker into a temporary shard in the binary
+ * format. The ranges don't overlap and each shard is sorted, so appending
+ * the shards in range order gives the contacts in _ID order. The shards are
+ * then copied into the real backup, and deleted.
+ */
+class PartitionedExport {
+
+	/**
+	 * Receives progress reports and tells whether to stop
+	 */
+	interface Callback {
+
+		/** @return true if the export should stop as soon as possible */
+		boolean isCancelled();
+
+		/**
+		 * A contact was exported. Called from the worker threads.
+		 *
+		 * @param count The number of contacts exported so far, by all
+		 *            workers
+		 */
+		void onExported(int count);
+
+	}
+
+	private final ContentResolver mResolver;
+	private final int mThreads;
+	private final int mPageSize;
+	private final File mDirectory;
+	private final Callback mCallback;
+	private int mExported;
+
+	/**
+	 * Constructor
+	 *
+	 * @param resolver Used to query the contacts
+	 * @param threads The number of workers
+	 * @param pageSize The page size of each worker (see {@link PeoplePager})
+	 * @param directory Where the temporary shards are written
+	 * @param callback Receives the progress
+	 */
+	PartitionedExport(ContentResolver resolver, int threads, int pageSize,
+			File directory, Callback callback) {
+		mResolver = resolver;
+		mThreads = Math.max(threads, 1);
+		mPageSize = pageSize;
+		mDirectory = directory;
+		mCallback = callback;
+	}
+
+	/**
+	 * Export all contacts
+	 *
+	 * @param writer Receives the contacts, in _ID order
+	 * @throws IOException when a shard cannot be written or read
+	 */
+	void run(ContactWriter writer) throws IOException {
+		long start = SystemClock.elapsedRealtime();
+		long[] bounds = partition();
+		int ranges = bounds.length - 1;
+
+		ExecutorService executor = Executors.newFixedThreadPool(ranges);
+		List<Future<File>> shards = new ArrayList<Future<File>>(ranges);
+		for (int i = 0; i < ranges; i++) {
+			shards.add(executor.submit(new Worker(i, bounds[i], bounds[i + 1])));
+		}
+		executor.shutdown();
+
+		IOException failure = null;
+		File[] files = new File[ranges];
+		for (int i = 0; i < ranges; i++) {
+			try {
+				files[i] = shards.get(i).get();
+			} catch (InterruptedException e) {
+				failure = new IOException("Export interrupted");
+			} catch (ExecutionException e) {
+				failure = e.getCause() instanceof IOException ? (IOException) e.getCause()
+						: new IOException(String.valueOf(e.getCause()));
+			}
+		}
+		Log.i(JsonBackup.TAG, "Exported " + mExported + " contacts with " + ranges
+				+ " threads in " + (SystemClock.elapsedRealtime() - start) + "ms");
+
+		try {
+			if (failure != null) {
+				throw failure;
+			}
+			ContactRecord contact = new ContactRecord();
+			for (int i = 0; i < ranges && !mCallback.isCancelled(); i++) {
+				ContactReader reader = ContactReaders.open(files[i]);
+				try {
+					while (reader.read(contact)) {
+						writer.write(contact);
+					}
+				} catch (JSONException e) {
+					throw new IOException(e.getMessage());
+				} finally {
+					reader.close();
+				}
+			}
+		} finally {
+			for (int i = 0; i < ranges; i++) {
+				shardFile(i).delete();
+			}
+		}
+	}
+
+	/**
+	 * Split the _ID space into ranges of about the same number of people.
+	 * Only the _ID column is read.
+	 *
+	 * @return The bounds of the ranges. Range i holds the IDs above bounds[i]
+	 *         up to bounds[i + 1].
+	 */
+	private long[] partition() {
+		Cursor cursor = mResolver.query(People.CONTENT_URI,
+				new String[] { People._ID }, null, null, People._ID + " ASC");
+		int count = cursor == null ? 0 : cursor.getCount();
+		int ranges = Math.max(1, Math.min(mThreads, count / mPageSize + 1));
+		long[] bounds = new long[ranges + 1];
+		bounds[0] = -1;
+		bounds[ranges] = Long.MAX_VALUE;
+		try {
+			for (int i = 1; i < ranges; i++) {
+				cursor.moveToPosition(i * count / ranges - 1);
+				bounds[i] = cursor.getLong(0);
+			}
+		} finally {
+			if (cursor != null) {
+				cursor.close();
+			}
+		}
+		return bounds;
+	}
+
+	private File shardFile(int number) {
+		return new File(mDirectory, ".export-" + number + ".tmp");
+	}
+
+	private synchronized int exported() {
+		return ++mExported;
+	}
+
+	/**
+	 * Exports one range of IDs into a shard
+	 */
+	private class Worker implements Callable<File> {
+
+		private final int mNumber;
+		private final long mAfterId;
+		private final long mLastId;
+
+		Worker(int number, long afterId, long lastId) {
+			mNumber = number;
+			mAfterId = afterId;
+			mLastId = lastId;
+		}
+
+		public File call() throws IOException, JSONException {
+			File file = shardFile(mNumber);
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+			ContactExporter exporter = new ContactExporter(mResolver);
+			ContactRecord contact = new ContactRecord();
+			PeoplePager pager = new PeoplePager(mResolver, mPageSize, mAfterId, mLastId);
+			try {
+				ContactWriter shard = new BinaryContactWriter(out);
+				Cursor page;
+				while (!mCallback.isCancelled() && (page = pager.next()) != null) {
+					try {
+						while (!mCallback.isCancelled() && page.moveToNext()) {
+							exporter.read(page, contact);
+							shard.write(contact);
+							mCallback.onExported(exported());
+						}
+					} finally {
+						page.close();
+					}
+				}
+				shard.close();
+			} finally {
+				pager.close();
+				out.close();
+			}
+			return file;
+		}
+
+	}
+
+}
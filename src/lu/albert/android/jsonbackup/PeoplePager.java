@@ -0,0 +1,165 @@
+package lu.albert.android.jsonbackup;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import lu.albert.android.jsonbackup.schema.ContactSchema;
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.provider.Contacts.People;
+
+/**
+ * Reads the People table one page at a time, in ascending _ID order.
+ *
+ * Every page is a separate query for the next n people with an _ID above
+ * the last one seen. Only one page (plus the one being prefetched) is open
+ * at any time, so the memory used by the cursor windows does not grow with
+ * the address book. While the caller serializes a page, the next one is
+ * already queried on a background thread.
+ *
+ * The contacts provider has no LIMIT argument, but it passes the sort order
+ * on to SQLite, so the limit is appended to it.
+ */
+class PeoplePager {
+
+	/** The page size used when none is configured */
+	static final int DEFAULT_PAGE_SIZE = 200;
+
+	/** The columns read from the People table */
+	static final String[] PROJECTION = ColumnMapping.PERSON.getProjection();
+
+	/** The position of the _ID column in PROJECTION */
+	static final int COLUMN_ID = ColumnMapping.PERSON.indexOf(ContactSchema.ID);
+
+	private final ContentResolver mResolver;
+	private final int mPageSize;
+	private final long mLastId;
+	private final ExecutorService mExecutor;
+
+	/** The page being queried in the background, null once done */
+	private Future<Cursor> mNext;
+
+	/**
+	 * Constructor. The first page is queried right away.
+	 *
+	 * @param resolver Used to query the contacts
+	 * @param pageSize The number of people per page
+	 */
+	PeoplePager(ContentResolver resolver, int pageSize) {
+		this(resolver, pageSize, -1, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Constructor for a range of IDs. The first page is queried right away.
+	 *
+	 * @param resolver Used to query the contacts
+	 * @param pageSize The number of people per page
+	 * @param afterId Only people with a larger _ID are read
+	 * @param lastId Only people with this _ID or a smaller one are read
+	 */
+	PeoplePager(ContentResolver resolver, int pageSize, long afterId, long lastId) {
+		mResolver = resolver;
+		mPageSize = Math.max(pageSize, 1);
+		mLastId = lastId;
+		mExecutor = Executors.newSingleThreadExecutor();
+		mNext = fetch(afterId);
+	}
+
+	/**
+	 * @param resolver Used to query the contacts
+	 * @return The number of people, using a query for the _ID column only
+	 */
+	static int count(ContentResolver resolver) {
+		Cursor cursor = resolver.query(People.CONTENT_URI,
+				new String[] { People._ID }, null, null, null);
+		if (cursor == null) {
+			return 0;
+		}
+		try {
+			return cursor.getCount();
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Return the next page, and start querying the one after it. The caller
+	 * must close the page.
+	 *
+	 * @return The next page, positioned before its first row, or null once
+	 *         all people have been read
+	 */
+	Cursor next() {
+		if (mNext == null) {
+			return null;
+		}
+		Cursor page;
+		try {
+			page = mNext.get();
+		} catch (InterruptedException e) {
+			page = null;
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		mNext = null;
+		if (page == null) {
+			return null;
+		}
+		if (page.getCount() == 0) {
+			page.close();
+			return null;
+		}
+		if (page.getCount() == mPageSize && page.moveToLast()) {
+			mNext = fetch(page.getLong(COLUMN_ID));
+		}
+		page.moveToPosition(-1);
+		return page;
+	}
+
+	/**
+	 * Stop the background query. A page which was prefetched but not
+	 * returned is closed.
+	 */
+	void close() {
+		if (mNext != null) {
+			try {
+				Cursor page = mNext.get();
+				if (page != null) {
+					page.close();
+				}
+			} catch (InterruptedException e) {
+				// nothing left to close
+			} catch (ExecutionException e) {
+				// nothing left to close
+			}
+			mNext = null;
+		}
+		mExecutor.shutdown();
+	}
+
+	/**
+	 * Query a page in the background. The rows are counted there too, which
+	 * fills the cursor window off the caller's thread.
+	 *
+	 * @param afterId The last _ID of the previous page
+	 * @return The pending page
+	 */
+	private Future<Cursor> fetch(final long afterId) {
+		return mExecutor.submit(new Callable<Cursor>() {
+			public Cursor call() {
+				Cursor page = mResolver.query(People.CONTENT_URI, PROJECTION,
+						People._ID + " > ? AND " + People._ID + " <= ?",
+						new String[] { String.valueOf(afterId), String.valueOf(mLastId) },
+						People._ID + " ASC LIMIT " + mPageSize);
+				if (page != null) {
+					page.getCount();
+				}
+				return page;
+			}
+		});
+	}
+
+}
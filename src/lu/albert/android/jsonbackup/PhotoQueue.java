@@ -0,0 +1,188 @@
+package lu.albert.android.jsonbackup;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * The photos which still have to be restored in the background (see
+ * {@link PhotoRestoreService}).
+ *
+ * The queue is made of the backup file, plus a file holding the new ID of
+ * every restored person, in the order of the backup. The position of the
+ * background pass is saved in the preferences, so it can be resumed after
+ * the application was stopped.
+ */
+final class PhotoQueue {
+
+	private static final String IDS_FILE = "photo_ids";
+	private static final String KEY_BACKUP = "photoQueueBackup";
+	private static final String KEY_BACKUP_LENGTH = "photoQueueBackupLength";
+	private static final String KEY_BACKUP_MODIFIED = "photoQueueBackupModified";
+	private static final String KEY_POSITION = "photoQueuePosition";
+
+	private PhotoQueue() {
+		// static helpers only
+	}
+
+	/**
+	 * Collects the new IDs while the text data is restored
+	 */
+	static class Writer {
+
+		private final Context mContext;
+		private final File mBackup;
+		private final DataOutputStream mOutput;
+		private boolean mHasPhotos;
+
+		private Writer(Context context, File backup) throws IOException {
+			mContext = context;
+			mBackup = backup;
+			mOutput = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(idsFile(context))));
+		}
+
+		/**
+		 * Add the next person of the backup
+		 *
+		 * @param id The new ID of the person, -1 if it was not created
+		 * @param hasPhoto true if the backup contains a photo for the person
+		 * @throws IOException when the file cannot be written
+		 */
+		void add(long id, boolean hasPhoto) throws IOException {
+			mOutput.writeLong(id);
+			mHasPhotos |= hasPhoto && id != -1;
+		}
+
+		/**
+		 * Make the queue available to the background pass
+		 *
+		 * @return true if there is at least one photo to restore
+		 * @throws IOException when the file cannot be written
+		 */
+		boolean commit() throws IOException {
+			mOutput.close();
+			if (!mHasPhotos) {
+				clear(mContext);
+				return false;
+			}
+			Settings.getPreferences(mContext).edit()
+					.putString(KEY_BACKUP, mBackup.getAbsolutePath())
+					.putLong(KEY_BACKUP_LENGTH, mBackup.length())
+					.putLong(KEY_BACKUP_MODIFIED, mBackup.lastModified())
+					.putInt(KEY_POSITION, 0)
+					.commit();
+			return true;
+		}
+
+		/**
+		 * Drop the queue, for example if the restore failed
+		 */
+		void abort() {
+			try {
+				mOutput.close();
+			} catch (IOException e) {
+				// we're deleting it anyway
+			}
+			clear(mContext);
+		}
+
+	}
+
+	/**
+	 * Start a new queue. Any pending queue is dropped.
+	 *
+	 * @param context The context used to store the queue
+	 * @param backup The backup file being restored
+	 * @return The writer for the new IDs
+	 * @throws IOException when the file cannot be created
+	 */
+	static Writer begin(Context context, File backup) throws IOException {
+		clear(context);
+		return new Writer(context, backup);
+	}
+
+	/**
+	 * @param context The context used to access the queue
+	 * @return The file holding the new IDs
+	 */
+	static File idsFile(Context context) {
+		return new File(context.getFilesDir(), IDS_FILE);
+	}
+
+	/**
+	 * Return the backup of the pending queue. If the backup was changed or
+	 * removed since, the queue is dropped.
+	 *
+	 * @param context The context used to access the queue
+	 * @return The backup file, or null if nothing is pending
+	 */
+	static File getBackup(Context context) {
+		SharedPreferences prefs = Settings.getPreferences(context);
+		String path = prefs.getString(KEY_BACKUP, null);
+		if (path == null) {
+			return null;
+		}
+		File backup = new File(path);
+		if (!backup.exists() || !idsFile(context).exists()
+				|| backup.length() != prefs.getLong(KEY_BACKUP_LENGTH, -1)
+				|| backup.lastModified() != prefs.getLong(KEY_BACKUP_MODIFIED, -1)) {
+			clear(context);
+			return null;
+		}
+		return backup;
+	}
+
+	/**
+	 * @param context The context used to access the queue
+	 * @return true if photos are waiting to be restored
+	 */
+	static boolean isPending(Context context) {
+		return getBackup(context) != null;
+	}
+
+	/**
+	 * @param context The context used to access the queue
+	 * @return The number of persons already handled by the background pass
+	 */
+	static int getPosition(Context context) {
+		return Settings.getPreferences(context).getInt(KEY_POSITION, 0);
+	}
+
+	/**
+	 * Remember how far the background pass got
+	 *
+	 * @param context The context used to access the queue
+	 * @param position The number of persons handled so far
+	 * @return false if the queue was dropped in the meantime
+	 */
+	static boolean setPosition(Context context, int position) {
+		SharedPreferences prefs = Settings.getPreferences(context);
+		if (!prefs.contains(KEY_BACKUP)) {
+			return false;
+		}
+		prefs.edit().putInt(KEY_POSITION, position).commit();
+		return true;
+	}
+
+	/**
+	 * Drop the pending queue
+	 *
+	 * @param context The context used to access the queue
+	 */
+	static void clear(Context context) {
+		Settings.getPreferences(context).edit()
+				.remove(KEY_BACKUP)
+				.remove(KEY_BACKUP_LENGTH)
+				.remove(KEY_BACKUP_MODIFIED)
+				.remove(KEY_POSITION)
+				.commit();
+		idsFile(context).delete();
+	}
+
+}
@@ -0,0 +1,208 @@
+package lu.albert.android.jsonbackup;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import lu.albert.android.jsonbackup.format.ContactReader;
+import lu.albert.android.jsonbackup.format.ContactReaders;
+import lu.albert.android.jsonbackup.schema.ContactRecord;
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.content.Intent;
+import android.os.IBinder;
+import android.os.Process;
+import android.os.SystemClock;
+import android.provider.Contacts.People;
+import android.util.Log;
+
+/**
+ * Restores the photos of a {@link PhotoQueue} once the names and numbers are
+ * back. Writing a photo is slow, so with "Restore photos in the background"
+ * enabled, the contacts are usable long before all photos are there.
+ *
+ * The photos are written by a low-priority thread, which pauses after each
+ * one. The position is saved regularly, so an interrupted pass is resumed
+ * the next time the application starts. The progress is shown in a
+ * notification.
+ */
+public class PhotoRestoreService extends Service {
+
+	/** Pause after every photo, leaving the provider to the foreground */
+	static final long THROTTLE_MS = 50;
+
+	/** Save the position and update the notification every n persons */
+	private static final int SAVE_INTERVAL = 20;
+
+	private static final int NOTIFICATION_ID = 1;
+
+	private Worker mWorker;
+	private NotificationManager mNotificationManager;
+
+	/**
+	 * Start (or resume) the background pass
+	 *
+	 * @param context The context used to start the service
+	 */
+	static void start(Context context) {
+		context.startService(new Intent(context, PhotoRestoreService.class));
+	}
+
+	/**
+	 * Stop the background pass and drop the pending photos. Used when the
+	 * contacts they belong to are about to be deleted.
+	 *
+	 * @param context The context used to stop the service
+	 */
+	static void cancel(Context context) {
+		PhotoQueue.clear(context);
+		context.stopService(new Intent(context, PhotoRestoreService.class));
+	}
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+	}
+
+	@Override
+	public void onStart(Intent intent, int startId) {
+		super.onStart(intent, startId);
+		if (mWorker == null || !mWorker.isAlive()) {
+			mWorker = new Worker();
+			mWorker.start();
+		}
+	}
+
+	@Override
+	public void onDestroy() {
+		if (mWorker != null && mWorker.isAlive()) {
+			mWorker.finish();
+			try {
+				mWorker.join();
+			} catch (InterruptedException e) {
+				// the worker saves its position on its own
+			}
+		}
+		mNotificationManager.cancel(NOTIFICATION_ID);
+		super.onDestroy();
+	}
+
+	@Override
+	public IBinder onBind(Intent intent) {
+		return null;
+	}
+
+	/**
+	 * @param position The number of persons handled
+	 * @param total The number of persons in the queue
+	 */
+	private void showProgress(int position, int total) {
+		String text = getString(R.string.restoring_photos_n_of_n, position, total);
+		Notification notification = new Notification(R.drawable.icon, null,
+				System.currentTimeMillis());
+		notification.flags |= Notification.FLAG_ONGOING_EVENT;
+		PendingIntent intent = PendingIntent.getActivity(this, 0,
+				new Intent(this, JsonBackup.class), 0);
+		notification.setLatestEventInfo(this, getString(R.string.app_name), text, intent);
+		mNotificationManager.notify(NOTIFICATION_ID, notification);
+	}
+
+	/**
+	 * The thread writing the photos
+	 */
+	private class Worker extends Thread {
+
+		private volatile boolean mKeepRunning = true;
+
+		/**
+		 * Save the position and stop after the current photo
+		 */
+		void finish() {
+			mKeepRunning = false;
+		}
+
+		@Override
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+			long start = SystemClock.elapsedRealtime();
+			try {
+				restorePhotos();
+			} catch (IOException e) {
+				Log.e(JsonBackup.TAG, "Background photo restore failed: " + e.getMessage());
+				PhotoQueue.clear(PhotoRestoreService.this);
+			}
+			Log.i(JsonBackup.TAG, "Background photo restore ran for "
+					+ (SystemClock.elapsedRealtime() - start) + "ms");
+			if (mKeepRunning) {
+				stopSelf();
+			}
+		}
+
+		/**
+		 * Walk the backup and the IDs side by side. Persons before the saved
+		 * position are skipped.
+		 */
+		private void restorePhotos() throws IOException {
+			Context context = PhotoRestoreService.this;
+			File backup = PhotoQueue.getBackup(context);
+			if (backup == null) {
+				return;
+			}
+			File idsFile = PhotoQueue.idsFile(context);
+			int total = (int) (idsFile.length() / 8);
+			int position = PhotoQueue.getPosition(context);
+			ContentResolver cr = getContentResolver();
+			ContactRecord record = new ContactRecord();
+
+			DataInputStream ids = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(idsFile)));
+			ContactReader reader = null;
+			try {
+				reader = ContactReaders.open(backup);
+				int i;
+				for (i = 0; i < total && mKeepRunning && reader.read(record); i++) {
+					long id = ids.readLong();
+					if (i < position) {
+						continue;
+					}
+					if (id != -1 && record.photos.size() > 0) {
+						People.setPhotoData(cr, ContentUris.withAppendedId(People.CONTENT_URI, id),
+								record.photos.toByteArray(0));
+						SystemClock.sleep(THROTTLE_MS);
+					}
+					if ((i + 1) % SAVE_INTERVAL == 0) {
+						if (!PhotoQueue.setPosition(context, i + 1)) {
+							/* cancelled while we were writing */
+							return;
+						}
+						showProgress(i + 1, total);
+					}
+				}
+				if (mKeepRunning) {
+					PhotoQueue.clear(context);
+				} else {
+					PhotoQueue.setPosition(context, i);
+				}
+			} finally {
+				try {
+					ids.close();
+				} catch (IOException e) {
+					// nothing was written
+				}
+				if (reader != null) {
+					reader.close();
+				}
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,224 @@
+package lu.albert.android.jsonbackup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import lu.albert.android.jsonbackup.format.BackupMetadata;
+import lu.albert.android.jsonbackup.format.BinaryFormat;
+import lu.albert.android.jsonbackup.format.Fingerprints;
+import lu.albert.android.jsonbackup.format.MembershipFilter;
+import lu.albert.android.jsonbackup.format.RecordIndex;
+import lu.albert.android.jsonbackup.format.SourceIndex;
+import lu.albert.android.jsonbackup.format.SpliceableWriter;
+import lu.albert.android.jsonbackup.schema.ContactRecord;
+import lu.albert.android.jsonbackup.schema.ContactSchema;
+
+import android.content.ContentResolver;
+
+/**
+ * Copies the records of the contacts which did not change from the previous
+ * backup, instead of reading them from the provider and encoding them
+ * again.
+ *
+ * The provider keeps no modification time, so a digest of the rows of every
+ * person is computed up front ({@link ContactsDigest#computePersons}) and
+ * compared with the one stored in the {@link SourceIndex} of the previous
+ * backup. The {@link RecordIndex} of the previous backup tells where the
+ * record is. Every backup writes a new source index, so the next one can
+ * copy from it.
+ */
+final class RecordReuse {
+
+	private final File mPrevious;
+	private final Fingerprints mDigests;
+	private final SourceIndex mSources;
+
+	/** The source index of the previous backup, null if nothing can be copied */
+	private SourceIndex mPreviousSources;
+
+	/** The record index of the previous backup, in ID order */
+	private long[] mIds;
+	private long[] mOffsets;
+	private int[] mLengths;
+	private int[] mCrcs;
+
+	private SpliceableWriter mWriter;
+	private MembershipFilter.Builder mFilter;
+	private int mCopied;
+
+	/**
+	 * Constructor. Computes the digests of the current contacts.
+	 *
+	 * @param resolver Used to query the contacts
+	 * @param previous The previous backup
+	 * @param binary true if the new backup is written in the binary format
+	 */
+	RecordReuse(ContentResolver resolver, File previous, boolean binary) {
+		mPrevious = previous;
+		mDigests = ContactsDigest.computePersons(resolver);
+		mSources = new SourceIndex();
+		if (previous.length() > 0 && BinaryFormat.isBinary(previous) == binary) {
+			mPreviousSources = SourceIndex.read(previous);
+			if (mPreviousSources != null && !readIndex(previous)) {
+				mPreviousSources = null;
+			}
+		}
+	}
+
+	/**
+	 * @return true if records can be copied from the previous backup. The
+	 *         new backup must then be written to another file.
+	 */
+	boolean canCopy() {
+		return mPreviousSources != null;
+	}
+
+	/**
+	 * Start copying into a writer. Nothing is copied if the previous backup
+	 * has another version of the format.
+	 *
+	 * @param writer The writer of the new backup
+	 * @param target The channel of the file it writes
+	 * @throws IOException when the previous backup cannot be opened
+	 */
+	void setWriter(SpliceableWriter writer, FileChannel target) throws IOException {
+		if (!canCopy()) {
+			return;
+		}
+		BackupMetadata old = BackupMetadata.read(mPrevious);
+		if (old == null || old.getVersion() != writer.getMetadata().getVersion()) {
+			mPreviousSources = null;
+			return;
+		}
+		writer.setSpliceSource(mPrevious, target);
+		mWriter = writer;
+	}
+
+	/**
+	 * @param filter Receives the keys of the records copied, as the writer
+	 *            does not see them
+	 */
+	void setFilter(MembershipFilter.Builder filter) {
+		mFilter = filter;
+	}
+
+	/**
+	 * Copy the record of a contact from the previous backup, if the contact
+	 * did not change
+	 *
+	 * @param id The ID of the contact
+	 * @return false if the contact has to be exported
+	 * @throws IOException when the record cannot be copied
+	 */
+	boolean copy(long id) throws IOException {
+		if (mWriter == null) {
+			return false;
+		}
+		int digest = mDigests.indexOf(id);
+		int source = mPreviousSources.indexOf(id);
+		if (digest < 0 || source < 0
+				|| mDigests.getCrc(digest) != mPreviousSources.getDigest(source)) {
+			return false;
+		}
+		int record = Arrays.binarySearch(mIds, id);
+		if (record < 0) {
+			return false;
+		}
+		mWriter.splice(id, mOffsets[record], mLengths[record], mCrcs[record]);
+		SourceIndex old = mPreviousSources;
+		mWriter.getMetadata().account(old.getPhoneCount(source), old.getMethodCount(source),
+				old.getOrganizationCount(source), old.getPhotoCount(source),
+				old.getPhotoBytes(source), mLengths[record]);
+		int[] keys = old.getKeys(source);
+		if (mFilter != null) {
+			mFilter.add(keys);
+		}
+		mSources.add(id, mDigests.getCrc(digest), old.getPhoneCount(source),
+				old.getMethodCount(source), old.getOrganizationCount(source),
+				old.getPhotoCount(source), old.getPhotoBytes(source), keys);
+		mCopied++;
+		return true;
+	}
+
+	/**
+	 * Note a contact which has just been exported. Contacts added after the
+	 * digests were computed are left out, so the next backup exports them
+	 * again.
+	 *
+	 * @param record The contact
+	 */
+	void written(ContactRecord record) {
+		if (!record.person.has(ContactSchema.ID)) {
+			return;
+		}
+		long id = record.person.getLong(ContactSchema.ID);
+		int digest = mDigests.indexOf(id);
+		if (digest < 0) {
+			return;
+		}
+		long photoBytes = 0;
+		for (int i = 0; i < record.photos.size(); i++) {
+			photoBytes += record.photos.getLength(i);
+		}
+		mSources.add(id, mDigests.getCrc(digest), record.phones.size(),
+				record.methods.size(), record.organizations.size(), record.photos.size(),
+				photoBytes, MembershipFilter.hashes(record));
+	}
+
+	/**
+	 * @return The number of records copied
+	 */
+	int getCopiedCount() {
+		return mCopied;
+	}
+
+	/**
+	 * Write the source index of the new backup
+	 *
+	 * @param backup The new backup, complete and in its final place
+	 * @throws IOException when the index cannot be written
+	 */
+	void finish(File backup) throws IOException {
+		mSources.write(backup);
+	}
+
+	/**
+	 * Load the record index of the previous backup
+	 *
+	 * @param previous The previous backup
+	 * @return false if there is no valid index, or it is not in ID order
+	 */
+	private boolean readIndex(File previous) {
+		RecordIndex.Reader index = RecordIndex.open(previous);
+		if (index == null) {
+			return false;
+		}
+		try {
+			int count = index.getCount();
+			mIds = new long[count];
+			mOffsets = new long[count];
+			mLengths = new int[count];
+			mCrcs = new int[count];
+			for (int i = 0; i < count; i++) {
+				if (!index.next()) {
+					return false;
+				}
+				mIds[i] = index.getId();
+				mOffsets[i] = index.getOffset();
+				mLengths[i] = index.getLength();
+				mCrcs[i] = index.getCrc();
+				if (i > 0 && mIds[i] <= mIds[i - 1]) {
+					return false;
+				}
+			}
+			return true;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			index.close();
+		}
+	}
+
+}
@@ -0,0 +1,110 @@
+package lu.albert.android.jsonbackup;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * How long the contacts provider takes to restore a contact, a child row
+ * and a kilobyte of photo, as measured by the previous restores. Used to
+ * estimate the duration of a restore (see {@link RestorePlan}).
+ *
+ * Every measurement is mixed into the stored cost, so a single odd restore
+ * does not throw the estimates off.
+ */
+final class RestoreCosts {
+
+	static final int CONTACT = 0;
+	static final int ROW = 1;
+	static final int PHOTO_KB = 2;
+
+	private static final String[] KEYS = {
+		"restoreCostContact", "restoreCostRow", "restoreCostPhotoKb" };
+
+	/**
+	 * Rough costs on a first generation phone, in microseconds, used until
+	 * something has been measured
+	 */
+	private static final float[] DEFAULTS = { 30000f, 6000f, 1500f };
+
+	/** The weight of a new measurement */
+	private static final float WEIGHT = 0.5f;
+
+	private final float[] mMicros = new float[KEYS.length];
+
+	private RestoreCosts() {
+		// see load()
+	}
+
+	/**
+	 * @param context The context used to access the preferences
+	 * @return The costs measured so far
+	 */
+	static RestoreCosts load(Context context) {
+		SharedPreferences preferences = Settings.getPreferences(context);
+		RestoreCosts costs = new RestoreCosts();
+		for (int i = 0; i < KEYS.length; i++) {
+			costs.mMicros[i] = preferences.getFloat(KEYS[i], DEFAULTS[i]);
+		}
+		return costs;
+	}
+
+	/**
+	 * @param context The context used to access the preferences
+	 */
+	void save(Context context) {
+		SharedPreferences.Editor editor = Settings.getPreferences(context).edit();
+		for (int i = 0; i < KEYS.length; i++) {
+			editor.putFloat(KEYS[i], mMicros[i]);
+		}
+		editor.commit();
+	}
+
+	/**
+	 * @param contacts The number of contacts
+	 * @param rows The number of child rows (phones, contact methods,
+	 *            organizations)
+	 * @param photoBytes The size of the photos, 0 if they are not restored
+	 * @return The estimated duration of the restore, in ms
+	 */
+	long estimate(long contacts, long rows, long photoBytes) {
+		double micros = contacts * (double) mMicros[CONTACT] + rows * (double) mMicros[ROW]
+				+ photoBytes / 1024.0 * mMicros[PHOTO_KB];
+		return (long) (micros / 1000);
+	}
+
+	/**
+	 * Account a pass which only wrote one kind of data
+	 *
+	 * @param kind {@link #CONTACT}, {@link #ROW} or {@link #PHOTO_KB}
+	 * @param count The number of contacts, rows or kilobytes written
+	 * @param elapsed The time the pass took, in ms
+	 */
+	void measure(int kind, long count, long elapsed) {
+		if (count <= 0 || elapsed <= 0) {
+			return;
+		}
+		mix(kind, elapsed * 1000f / count);
+	}
+
+	/**
+	 * Account a restore which wrote everything at once. The costs keep their
+	 * proportions and are scaled to match the duration.
+	 *
+	 * @param estimated The duration estimated before, in ms
+	 * @param elapsed The time the restore took, in ms
+	 */
+	void scale(long estimated, long elapsed) {
+		if (estimated <= 0 || elapsed <= 0) {
+			return;
+		}
+		float ratio = elapsed / (float) estimated;
+		for (int i = 0; i < mMicros.length; i++) {
+			mix(i, mMicros[i] * ratio);
+		}
+	}
+
+	private void mix(int kind, float micros) {
+		mMicros[kind] += (micros - mMicros[kind]) * WEIGHT;
+	}
+
+}
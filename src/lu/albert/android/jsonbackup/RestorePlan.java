@@ -0,0 +1,188 @@
+package lu.albert.android.jsonbackup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import lu.albert.android.jsonbackup.format.BackupMetadata;
+import lu.albert.android.jsonbackup.format.ContactReader;
+import lu.albert.android.jsonbackup.format.ContactReaders;
+import lu.albert.android.jsonbackup.schema.ContactRecord;
+import lu.albert.android.jsonbackup.schema.ContactSchema;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.provider.Contacts.People;
+
+/**
+ * What a restore of a backup would do, worked out without writing anything.
+ *
+ * The backup is streamed once and compared with the _IDs of the contacts on
+ * the phone: contacts of the backup which are on the phone are replaced,
+ * the others are added, and the contacts of the phone which are not in the
+ * backup are lost. The child rows and photos are taken from the metadata,
+ * so only the person rows have to be decoded (see
+ * {@link lu.albert.android.jsonbackup.format.ContactScanner}). Old backups
+ * without metadata are read in full. Either way a single record is held in
+ * memory, and the _IDs of the phone.
+ *
+ * The duration is estimated with the {@link RestoreCosts} measured by the
+ * previous restores.
+ */
+final class RestorePlan {
+
+	private int mContacts;
+	private int mUpdates;
+	private int mDeletes;
+	private long mPhones;
+	private long mMethods;
+	private long mOrganizations;
+	private long mPhotos;
+	private long mPhotoBytes;
+	private boolean mPhotosLater;
+	private long mEstimatedMs;
+
+	private RestorePlan() {
+		// see create()
+	}
+
+	/**
+	 * Plan the restore of a backup
+	 *
+	 * @param file The backup file
+	 * @param resolver Used to read the _IDs of the current contacts
+	 * @param costs The measured costs
+	 * @param photosLater true if the photos are restored in the background,
+	 *            after the restore itself
+	 * @return The plan
+	 * @throws IOException when the backup cannot be read
+	 */
+	static RestorePlan create(File file, ContentResolver resolver, RestoreCosts costs,
+			boolean photosLater) throws IOException {
+		RestorePlan plan = new RestorePlan();
+		long[] live = readIds(resolver);
+		BitSet kept = new BitSet(live.length);
+
+		BackupMetadata metadata = BackupMetadata.read(file);
+		boolean counted = metadata != null;
+		ContactRecord record = new ContactRecord();
+		ContactReader reader = counted ? ContactReaders.scan(file) : ContactReaders.open(file);
+		try {
+			while (reader.read(record)) {
+				plan.mContacts++;
+				int index = record.person.has(ContactSchema.ID)
+						? Arrays.binarySearch(live, record.person.getLong(ContactSchema.ID)) : -1;
+				if (index >= 0) {
+					plan.mUpdates++;
+					kept.set(index);
+				}
+				if (!counted) {
+					plan.mPhones += record.phones.size();
+					plan.mMethods += record.methods.size();
+					plan.mOrganizations += record.organizations.size();
+					plan.mPhotos += record.photos.size();
+					for (int i = 0; i < record.photos.size(); i++) {
+						plan.mPhotoBytes += record.photos.getLength(i);
+					}
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		if (counted) {
+			plan.mPhones = metadata.getPhoneCount();
+			plan.mMethods = metadata.getMethodCount();
+			plan.mOrganizations = metadata.getOrganizationCount();
+			plan.mPhotos = metadata.getPhotoCount();
+			plan.mPhotoBytes = metadata.getPhotoBytes();
+		}
+		plan.mDeletes = live.length - kept.cardinality();
+		plan.mPhotosLater = photosLater;
+		plan.mEstimatedMs = costs.estimate(plan.mContacts,
+				plan.mPhones + plan.mMethods + plan.mOrganizations,
+				photosLater ? 0 : plan.mPhotoBytes);
+		return plan;
+	}
+
+	/**
+	 * @param resolver Used to query the contacts
+	 * @return The _IDs of the current contacts, sorted
+	 */
+	private static long[] readIds(ContentResolver resolver) {
+		Cursor cursor = resolver.query(People.CONTENT_URI, new String[] { People._ID },
+				null, null, null);
+		if (cursor == null) {
+			return new long[0];
+		}
+		try {
+			long[] ids = new long[cursor.getCount()];
+			int count = 0;
+			while (cursor.moveToNext() && count < ids.length) {
+				ids[count++] = cursor.getLong(0);
+			}
+			if (count < ids.length) {
+				long[] shorter = new long[count];
+				System.arraycopy(ids, 0, shorter, 0, count);
+				ids = shorter;
+			}
+			Arrays.sort(ids);
+			return ids;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/** @return The number of contacts in the backup */
+	int getContactCount() {
+		return mContacts;
+	}
+
+	/** @return The contacts of the backup which replace one on the phone */
+	int getUpdateCount() {
+		return mUpdates;
+	}
+
+	/** @return The contacts of the backup which are not on the phone */
+	int getInsertCount() {
+		return mContacts - mUpdates;
+	}
+
+	/** @return The contacts of the phone which are not in the backup */
+	int getDeleteCount() {
+		return mDeletes;
+	}
+
+	/** @return The estimated duration, in ms */
+	long getEstimatedMs() {
+		return mEstimatedMs;
+	}
+
+	/**
+	 * @param context Used to get the strings
+	 * @return The plan, as shown to the user
+	 */
+	String describe(Context context) {
+		long seconds = (mEstimatedMs + 999) / 1000;
+		String duration = seconds < 120
+				? context.getString(R.string.duration_seconds, seconds)
+				: context.getString(R.string.duration_minutes, (seconds + 59) / 60);
+		String text = context.getString(R.string.restore_plan, mContacts, mPhones, mMethods,
+				mOrganizations, mPhotos, mPhotoBytes / 1024, mUpdates, getInsertCount(),
+				mDeletes, duration);
+		if (mPhotosLater && mPhotos > 0) {
+			text += " " + context.getString(R.string.restore_plan_photos_later);
+		}
+		return text;
+	}
+
+	@Override
+	public String toString() {
+		return mContacts + " contacts (" + mUpdates + " replaced, " + getInsertCount()
+				+ " added), " + mDeletes + " deleted, " + mPhones + " phones, " + mMethods
+				+ " methods, " + mOrganizations + " organizations, " + mPhotos + " photos ("
+				+ mPhotoBytes + " bytes), about " + mEstimatedMs + "ms";
+	}
+
+}
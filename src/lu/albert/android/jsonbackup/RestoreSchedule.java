@@ -0,0 +1,219 @@
+package lu.albert.android.jsonbackup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import lu.albert.android.jsonbackup.format.ContactReaders;
+import lu.albert.android.jsonbackup.format.ContactScanner;
+import lu.albert.android.jsonbackup.schema.ContactRecord;
+import lu.albert.android.jsonbackup.schema.ContactSchema;
+
+/**
+ * Decides in which order the contacts of a backup are restored, so the ones
+ * people actually use are back first.
+ *
+ * A quick scan of the backup, which skips the details and photos of the
+ * contacts (see {@link ContactScanner}), gives every contact a score from
+ * its starred flag, how often it was contacted, and how recently. The
+ * contacts are then split into tiers: the best {@link #FIRST_TIER}
+ * contacts, four times as many for the next tier, and so on. The restore
+ * reads the backup once per tier, in file order, and only writes the
+ * contacts of that tier. This keeps a single record in memory, at the
+ * cost of a few extra (cheap) reads of the backup.
+ *
+ * The scan also notes where each record is stored, so a pass can seek
+ * straight to the records of its tier and decode only these. Sharded
+ * backups and backups with a change log report no positions: their passes
+ * decode every record and drop the ones of the other tiers.
+ */
+class RestoreSchedule {
+
+	/** The number of contacts in the first tier */
+	static final int FIRST_TIER = 250;
+
+	/** Each tier is this many times larger than the previous one */
+	private static final int TIER_GROWTH = 4;
+
+	/** Starred contacts always come before the others */
+	private static final float STARRED_SCORE = 1000000f;
+
+	/** A contact called today scores this much, decreasing over the weeks */
+	private static final float RECENT_SCORE = 100f;
+
+	private static final long DAY_MS = 24L * 60 * 60 * 1000;
+
+	private final byte[] mTiers;
+	private final int mCount;
+	private final int mTierCount;
+
+	/** Where the records are, null if the backup cannot seek */
+	private final long[] mOffsets;
+	private final int[] mLengths;
+
+	private RestoreSchedule(byte[] tiers, int count, int tierCount, long[] offsets,
+			int[] lengths) {
+		mTiers = tiers;
+		mCount = count;
+		mTierCount = tierCount;
+		mOffsets = offsets;
+		mLengths = lengths;
+	}
+
+	/**
+	 * Scan a backup and build its schedule
+	 *
+	 * @param file The backup file
+	 * @param now The current time, in ms since the epoch
+	 * @return The schedule
+	 * @throws IOException when the backup cannot be read
+	 */
+	static RestoreSchedule scan(File file, long now) throws IOException {
+		float[] scores = new float[256];
+		long[] offsets = new long[256];
+		int[] lengths = new int[256];
+		int count = 0;
+		ContactRecord record = new ContactRecord();
+		ContactScanner reader = ContactReaders.scan(file);
+		try {
+			while (reader.read(record)) {
+				if (count == scores.length) {
+					float[] grown = new float[scores.length * 2];
+					System.arraycopy(scores, 0, grown, 0, count);
+					scores = grown;
+					if (offsets != null) {
+						long[] grownOffsets = new long[count * 2];
+						int[] grownLengths = new int[count * 2];
+						System.arraycopy(offsets, 0, grownOffsets, 0, count);
+						System.arraycopy(lengths, 0, grownLengths, 0, count);
+						offsets = grownOffsets;
+						lengths = grownLengths;
+					}
+				}
+				if (offsets != null) {
+					offsets[count] = reader.getRecordOffset();
+					lengths[count] = reader.getRecordLength();
+					if (offsets[count] < 0) {
+						offsets = null;
+						lengths = null;
+					}
+				}
+				scores[count++] = score(record.person, now);
+			}
+		} finally {
+			reader.close();
+		}
+
+		/*
+		 * Sort the contacts by descending score, and by position for equal
+		 * scores. Scores are never negative, so the bits of the float sort
+		 * like the float itself. The position goes in the low bits.
+		 */
+		long[] order = new long[count];
+		for (int i = 0; i < count; i++) {
+			long bits = Integer.MAX_VALUE - Float.floatToIntBits(scores[i]);
+			order[i] = (bits << 32) | i;
+		}
+		Arrays.sort(order);
+
+		byte[] tiers = new byte[count];
+		int tierCount = 0;
+		int size = FIRST_TIER;
+		int start = 0;
+		while (start < count) {
+			int end = (int) Math.min((long) start + size, count);
+			for (int i = start; i < end; i++) {
+				tiers[(int) order[i]] = (byte) tierCount;
+			}
+			start = end;
+			tierCount++;
+			size *= TIER_GROWTH;
+		}
+		return new RestoreSchedule(tiers, count, tierCount, offsets, lengths);
+	}
+
+	/**
+	 * @param person The person row of a contact
+	 * @param now The current time, in ms since the epoch
+	 * @return How important it is to restore the contact early
+	 */
+	static float score(ContactRecord.Row person, long now) {
+		float score = 0;
+		if (person.has(ContactSchema.STARRED) && person.getLong(ContactSchema.STARRED) != 0) {
+			score += STARRED_SCORE;
+		}
+		if (person.has(ContactSchema.TIMES_CONTACTED)) {
+			score += Math.max(person.getLong(ContactSchema.TIMES_CONTACTED), 0);
+		}
+		if (person.has(ContactSchema.LAST_TIME_CONTACTED)) {
+			long last = person.getLong(ContactSchema.LAST_TIME_CONTACTED);
+			if (last > 0) {
+				float days = Math.max(now - last, 0) / (float) DAY_MS;
+				score += RECENT_SCORE / (1 + days / 7);
+			}
+		}
+		return score;
+	}
+
+	/**
+	 * @return The number of contacts in the backup
+	 */
+	int getCount() {
+		return mCount;
+	}
+
+	/**
+	 * @return The number of tiers, hence of passes over the backup
+	 */
+	int getTierCount() {
+		return mTierCount;
+	}
+
+	/**
+	 * @param ordinal The position of a contact in the backup
+	 * @return The tier of the contact, 0 being restored first
+	 */
+	int getTier(int ordinal) {
+		return ordinal < mCount ? mTiers[ordinal] : mTierCount - 1;
+	}
+
+	/**
+	 * @return true if the positions of the records are known, see
+	 *         {@link #getOffset(int)}
+	 */
+	boolean isSeekable() {
+		return mOffsets != null;
+	}
+
+	/**
+	 * @param ordinal The position of a contact in the backup
+	 * @param tier A tier
+	 * @return The position of the first contact of the tier at or after
+	 *         the given one, or -1 if there is none
+	 */
+	int nextInTier(int ordinal, int tier) {
+		for (int i = ordinal; i < mCount; i++) {
+			if (mTiers[i] == tier) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param ordinal The position of a contact in the backup
+	 * @return The offset of its record, for {@link ContactScanner#seek}
+	 */
+	long getOffset(int ordinal) {
+		return mOffsets[ordinal];
+	}
+
+	/**
+	 * @param ordinal The position of a contact in the backup
+	 * @return The length of its record, for {@link ContactScanner#seek}
+	 */
+	int getLength(int ordinal) {
+		return mLengths[ordinal];
+	}
+
+}
@@ -1,23 +1,20 @@
 package lu.albert.android.jsonbackup;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.nio.charset.Charset;
-import java.util.ArrayList;
-import java.util.Date;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import lu.albert.android.jsonbackup.format.BackupMetadata;
+import lu.albert.android.jsonbackup.format.BackupVerifier;
+import lu.albert.android.jsonbackup.format.ChangeLog;
+import lu.albert.android.jsonbackup.format.ContactFilter;
+import lu.albert.android.jsonbackup.format.ContactReader;
+import lu.albert.android.jsonbackup.format.ContactReaders;
+import lu.albert.android.jsonbackup.format.ContactScanner;
+import lu.albert.android.jsonbackup.schema.ContactRecord;
+import lu.albert.android.jsonbackup.schema.ContactSchema;
 
-import lu.albert.android.jsonbackup.schema.ContactColumns;
-
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import android.content.ContentProviderOperation;
-import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
@@ -25,20 +22,16 @@ import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
-import android.os.Environment;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.provider.Contacts;
 import android.provider.ContactsContract;
 import android.provider.Contacts.GroupMembership;
 import android.provider.Contacts.Groups;
-import android.provider.Contacts.Organizations;
 import android.provider.Contacts.People;
-import android.provider.ContactsContract.RawContacts;
-import android.provider.ContactsContract.CommonDataKinds.Organization;
-import android.provider.ContactsContract.CommonDataKinds.Phone;
-import android.provider.ContactsContract.CommonDataKinds.StructuredName;
 import android.provider.ContactsContract.Data;
+import android.util.Log;
 
 /**
  * The thread which reads the input file and restores the contacts.
@@ -63,6 +56,28 @@ public class RestoreThread extends Thread{
 	int total;
 	private JsonBackup mParent;
 	private boolean mKeepRunning;
+	
+	/** The metadata of the file being restored. May be null for old files */
+	private BackupMetadata mMetadata;
+	
+	/** The number of contacts restored so far */
+	private int mRestored;
+	
+	/** The number of contacts in the file, 0 if unknown */
+	private int mTotal;
+	
+	/** The number of shards decoded at the same time while restoring */
+	private static final int SHARD_THREADS =
+			Math.min(4, Runtime.getRuntime().availableProcessors() + 1);
+	
+	/** Re-used for every row written to the provider */
+	private final ContentValues mValues = new ContentValues();
+	
+	/** Selects the contacts to restore, null to restore the whole backup */
+	private ContactFilter mFilter;
+	
+	/** Set while a full restore runs, and left set if it does not finish */
+	private static final String KEY_INCOMPLETE = "restoreIncomplete";
 
 	/**
 	 * Constructor
@@ -84,197 +99,426 @@ public class RestoreThread extends Thread{
 		mState = state;
 	}
 	
+	/**
+	 * Only restore some contacts. Must be called before the thread is
+	 * started.
+	 * 
+	 * @param filter Selects the contacts, null to restore the whole backup
+	 */
+	void setFilter(ContactFilter filter) {
+		mFilter = filter;
+	}
+	
+	/**
+	 * @param context The context used to access the preferences
+	 * @return true if a restore is running, did not finish, or still has
+	 *         photos to restore: the contacts on the device are not a
+	 *         complete copy of the backup then
+	 */
+	static boolean isIncomplete(Context context) {
+		return Settings.getPreferences(context).getBoolean(KEY_INCOMPLETE, false)
+				|| PhotoQueue.isPending(context);
+	}
+	
+	/**
+	 * @param context The context used to access the preferences
+	 * @param incomplete true while the contacts are being replaced
+	 */
+	static void setIncomplete(Context context, boolean incomplete) {
+		Settings.getPreferences(context).edit().putBoolean(KEY_INCOMPLETE, incomplete).commit();
+	}
+	
 	public void run() {
+		/* no backup may read the contacts, or write the files, meanwhile */
+		synchronized (BackupThread.class) {
+			restore();
+		}
+	}
+	
+	private void restore() {
+		/* a compaction may have been interrupted */
+		ChangeLog.recover(new File( JsonBackup.getStorageFolder(), JsonBackup.FILE_NAME ));
+		ChangeLog.recover(new File( JsonBackup.getStorageFolder(), JsonBackup.BINARY_FILE_NAME ));
 
+		File file1 = mParent.findBackupFile();
+		
+		/*
+		 * Make sure we can actually read the file before deleting anything.
+		 */
+		try {
+			mMetadata = BackupMetadata.read(file1);
+		} catch (IOException e) {
+			fail(mParent.getString(R.string.incompatible_backup, e.getMessage()));
+			mState = STATE_DONE;
+			return;
+		}
+		
+		/*
+		 * Nothing is deleted up front, so there is no need to verify the
+		 * whole file first: the selected records are checked as they are
+		 * decoded.
+		 */
+		if ( mFilter != null ) {
+			this.restoreSelected(file1);
+			mState = STATE_DONE;
+			return;
+		}
+
+		/*
+		 * A damaged record would otherwise only be noticed after all
+		 * existing contacts are gone. Checking the file is a single pass at
+		 * disk speed.
+		 */
+		mRestoreHandler.sendEmptyMessage(JsonBackup.RESTORE_MSG_VERIFYING);
+		try {
+			BackupVerifier.verify(file1);
+		} catch (IOException e) {
+			fail(mParent.getString(R.string.corrupt_backup, e.getMessage()));
+			mState = STATE_DONE;
+			return;
+		}
+		mRestored = 0;
+		mTotal = mMetadata == null ? 0 : mMetadata.getContactCount();
+
+		/* The photos of a previous restore belong to the contacts deleted here */
+		PhotoRestoreService.cancel(mParent);
+		/* until the restore completes, the background backups are skipped */
+		setIncomplete(mParent, true);
 		mParent.getContentResolver().delete(People.CONTENT_URI, null, null);
-		File file1 = null;
-		file1 = new File( mParent.getStorageFolder(), JsonBackup.FILE_NAME );
 		
-		this.readStream(file1);
+		/* the durations measured here make the next restore plans more accurate */
+		RestoreCosts costs = RestoreCosts.load(mParent);
+		long start = SystemClock.elapsedRealtime();
+		boolean complete;
+		if ( Settings.isPhasedRestore(mParent) ) {
+			complete = this.restorePhased(file1, costs);
+		} else {
+			long estimated = mMetadata == null ? 0 : costs.estimate(mMetadata.getContactCount(),
+					mMetadata.getPhoneCount() + mMetadata.getMethodCount()
+							+ mMetadata.getOrganizationCount(),
+					Settings.isBackgroundPhotos(mParent) ? 0 : mMetadata.getPhotoBytes());
+			complete = this.readBackup(file1);
+			if ( mKeepRunning ) {
+				costs.scale(estimated, SystemClock.elapsedRealtime() - start);
+			}
+		}
+		Log.i(JsonBackup.TAG, "Restore took " + (SystemClock.elapsedRealtime() - start) + "ms");
+		if ( mKeepRunning ) {
+			costs.save(mParent);
+		}
+		if ( complete ) {
+			setIncomplete(mParent, false);
+		}
 		
 		mState = STATE_DONE;
 	}
 
 	/**
-	 * Read the on-disk data by streaming it without creating a complete JSONArray in memory
+	 * Read the on-disk data by streaming it. Only a single contact is held in
+	 * memory at any time, and the same record is re-used for all of them.
+	 * 
+	 * With "Restore favourites first", the file is read once per tier of a
+	 * {@link RestoreSchedule}, and each pass only restores the contacts of
+	 * its tier. Where the schedule knows the positions of the records, a
+	 * pass seeks over the contacts of the other tiers instead of decoding
+	 * them.
 	 * 
 	 * @param in_file The input file
+	 * @return true if every contact was restored
 	 */
-	private void readStream(File in_file) {
-		
-		StringBuilder data = new StringBuilder();
-		FileInputStream file_stream = null;
-		JSONObject contact = null;
-		
+	private boolean readBackup(File in_file) {
+		ContactRecord contact = new ContactRecord();
+		ContactReader reader = null;
+		PhotoQueue.Writer photos = null;
+		RestoreSchedule schedule = null;
+		long[] ids = null;
+		BitSet hasPhoto = null;
+		int count = 0;
+		boolean complete = false;
 		try {
-			file_stream = new FileInputStream(in_file);
-			BufferedInputStream stream_buffer = new BufferedInputStream(file_stream);
-			InputStreamReader reader = new InputStreamReader(stream_buffer, Charset.forName("UTF-8"));
-			
-			int data_available = reader.read();
-			int braceDepth = 0; // used to trigger JSON decoding
-			boolean contactOpen = false; // used to trigger JSON decoding
-			long count = 0; // characters read
-			
-			while( data_available != -1 ) {
-				char theChar = (char) data_available;
-				
-				/*
-				 * When a new object opens on the root level, then we have the
-				 * beginning of a new contact. Set the appropriate flag and
-				 * empty the buffer (create a new one)
-				 */
-				if (theChar == '{') {
-					if (braceDepth == 0) {
-						contactOpen = true;
-						if ( !mKeepRunning ){
-							break;
+			if ( Settings.isPriorityRestore(mParent) ) {
+				notifyStatus( mParent.getString(R.string.sorting_contacts) );
+				schedule = RestoreSchedule.scan(in_file, System.currentTimeMillis());
+				mTotal = schedule.getCount();
+			}
+			if ( Settings.isBackgroundPhotos(mParent) ) {
+				photos = PhotoQueue.begin(mParent, in_file);
+				/* the queue is in file order, which the tiers are not */
+				ids = grow( new long[0], schedule == null ? 0 : schedule.getCount() );
+				hasPhoto = new BitSet();
+			}
+			int passes = schedule == null ? 1 : schedule.getTierCount();
+			for ( int pass = 0; pass < passes && mKeepRunning; pass++ ) {
+				if ( schedule != null && schedule.isSeekable() ) {
+					reader = ContactReaders.scan(in_file);
+					((ContactScanner) reader).setPersonOnly(false);
+				} else {
+					/* the shards of a sharded backup are decoded ahead, in parallel */
+					reader = ContactReaders.open(in_file, schedule == null ? SHARD_THREADS : 1);
+				}
+				int ordinal = 0;
+				int next;
+				while ( mKeepRunning
+						&& (next = readNext( reader, schedule, pass, ordinal, contact )) >= 0 ) {
+					ordinal = next;
+					long id = store_contact( contact, photos == null );
+					if ( photos != null ) {
+						if ( ordinal >= ids.length ) {
+							ids = grow( ids, ordinal );
+						}
+						ids[ordinal] = id;
+						if ( contact.photos.size() > 0 ) {
+							hasPhoto.set( ordinal );
 						}
-						data = new StringBuilder();
 					}
-					braceDepth += 1;
-				} else if (theChar == '}') {
-					braceDepth -= 1;
-				}
-				data.append(theChar);
-				
-				/*
-				 * So, the structure depths has been reduced to 0. So we are
-				 * back on the "contacts" level. If we still have a contact
-				 * open, we take that string, parse it and store the
-				 * resulting contact.
-				 * 
-				 *  Additionally, we let the user know that the contact has
-				 *  been restored.
-				 */
-				if (braceDepth == 0 && contactOpen) {
-					try {
-						contact = new JSONObject( data.toString() );
-						store_contact( contact );
-						
-						Message msg = mRestoreHandler.obtainMessage(JsonBackup.RESTORE_MSG_INFO);
-						Bundle b = new Bundle();
-						b.putString("name", contact.getString( ContactColumns.NAME ));
-						msg.setData(b);
-						mRestoreHandler.sendMessage(msg);
-					} catch (JSONException e){
-						showError(e.getMessage());
-						e.printStackTrace();
+					ordinal++;
+					notifyRestored( contact );
+					if ( mTotal <= 0 ) {
+						notifyProgress( reader.getPosition(), in_file.length() );
 					}
-					contactOpen = false;
 				}
-				
-				data_available = reader.read();
-				count += 1;
-				
-				/*
-				 * Update the progress dialog
-				 */
-				if ( count % 100 == 0) {
-					Message msg = mRestoreHandler.obtainMessage(JsonBackup.RESTORE_MSG_PROGRESS);
-					Bundle b = new Bundle();
-					b.putLong("position", count);
-					b.putLong("total", in_file.length());
-					msg.setData(b);
-					mRestoreHandler.sendMessage(msg);
+				reader.close();
+				reader = null;
+				count = Math.max( count, ordinal );
+			}
+			if ( photos != null ) {
+				for ( int i = 0; i < count; i++ ) {
+					photos.add( ids[i], hasPhoto.get( i ) );
 				}
+				startPhotos( photos );
+				photos = null;
+			}
+			complete = mKeepRunning;
+		} catch (IOException e) {
+			showError(e.getMessage());
+			e.printStackTrace();
+		} finally {
+			if ( reader != null ) {
+				reader.close();
+			}
+			if ( photos != null ) {
+				photos.abort();
+			}
+		}
+		
+		/*
+		 * Update the progress dialog, ensuring that it properly triggers
+		 * it's end-of-life ( as we only update the progress every so
+		 * often, it could happen that the value does not meet the EOL
+		 * criteria.
+		 */
+		notifyProgress( in_file.length(), in_file.length() );
+		return complete;
+	}
 
+	/**
+	 * Read the next contact of a pass of {@link #readBackup(File)}
+	 * 
+	 * @param reader The reader of the pass. It is a {@link ContactScanner}
+	 *            if the schedule is seekable.
+	 * @param schedule The schedule, null to read every contact
+	 * @param pass The tier restored by the pass
+	 * @param ordinal The position of the contact after the last one read
+	 * @param contact Receives the contact
+	 * @return The position of the contact read, -1 at the end of the pass
+	 */
+	private static int readNext(ContactReader reader, RestoreSchedule schedule, int pass,
+			int ordinal, ContactRecord contact) throws IOException {
+		if ( schedule == null ) {
+			return reader.read( contact ) ? ordinal : -1;
+		}
+		if ( schedule.isSeekable() ) {
+			int next = schedule.nextInTier( ordinal, pass );
+			if ( next < 0 ) {
+				return -1;
+			}
+			if ( next != ordinal ) {
+				/* the records in between belong to other tiers */
+				((ContactScanner) reader).seek( schedule.getOffset( next ),
+						schedule.getLength( next ) );
+			}
+			return reader.read( contact ) ? next : -1;
+		}
+		while ( reader.read( contact ) ) {
+			if ( schedule.getTier( ordinal ) == pass ) {
+				return ordinal;
+			}
+			ordinal++;
+		}
+		return -1;
+	}
+
+	/**
+	 * Restore the contacts selected by the filter only. The records which
+	 * are not selected are skipped without being decoded (see
+	 * {@link ContactReaders#filter}). Nothing is deleted, except a selected
+	 * contact which is still on the phone with the same _ID and name: it is
+	 * replaced.
+	 * 
+	 * @param in_file The input file
+	 */
+	private void restoreSelected(File in_file) {
+		ContentResolver cr = mParent.getContentResolver();
+		ContactRecord contact = new ContactRecord();
+		ContactReader reader = null;
+		long start = SystemClock.elapsedRealtime();
+		try {
+			reader = ContactReaders.filter(in_file, mFilter);
+			while ( mKeepRunning && reader.read( contact ) ) {
+				String name = contact.person.has(ContactSchema.NAME)
+						? contact.person.getString(ContactSchema.NAME) : null;
+				if ( name != null && contact.person.has(ContactSchema.ID) ) {
+					cr.delete(ContentUris.withAppendedId(People.CONTENT_URI,
+							contact.person.getLong(ContactSchema.ID)),
+							People.NAME + "=?", new String[] { name });
+				}
+				store_contact( contact, true );
+				notifyRestored( contact );
+				notifyProgress( reader.getPosition(), in_file.length() );
 			}
-			
-			/*
-			 * Update the progress dialog, ensuring that it properly triggers
-			 * it's end-of-life ( as we only update the progress every so
-			 * often, it could happen that the value does not meet the EOL
-			 * criteria.
-			 */
-			Message msg = mRestoreHandler.obtainMessage(JsonBackup.RESTORE_MSG_PROGRESS);
-			Bundle b = new Bundle();
-			b.putLong("position", in_file.length());
-			b.putLong("total", in_file.length());
-			msg.setData(b);
-			mRestoreHandler.sendMessage(msg);
-			
-			/*
-			 * Clean up
-			 */
-			reader.close();
-			stream_buffer.close();
-			file_stream.close();
-		} catch (FileNotFoundException e) {
+			Log.i(JsonBackup.TAG, "Restored " + mRestored + " selected contacts (" + reader
+					+ ") in " + (SystemClock.elapsedRealtime() - start) + "ms");
+		} catch (IOException e) {
 			showError(e.getMessage());
 			e.printStackTrace();
+		} finally {
+			if ( reader != null ) {
+				reader.close();
+			}
+		}
+		notifyProgress( in_file.length(), in_file.length() );
+	}
+
+	/**
+	 * @param ids The new IDs of the contacts, by position in the file
+	 * @param index The position which must fit
+	 * @return A larger copy, where the new positions hold -1 (not restored)
+	 */
+	private static long[] grow( long[] ids, int index ) {
+		long[] grown = new long[Math.max(index + 1, ids.length * 2)];
+		System.arraycopy(ids, 0, grown, 0, ids.length);
+		Arrays.fill(grown, ids.length, grown.length, -1);
+		return grown;
+	}
+
+	/**
+	 * Restore the file one table at a time (see {@link PhasedRestore}).
+	 * 
+	 * @param in_file The input file
+	 * @param costs Receives the duration of every pass
+	 * @return true if every contact was restored
+	 */
+	private boolean restorePhased(File in_file, RestoreCosts costs) {
+		PhasedRestore restore = new PhasedRestore(mParent.getContentResolver(),
+				in_file, mMetadata, new PhasedRestore.Callback() {
+					public boolean isCancelled() {
+						return !mKeepRunning;
+					}
+
+					public void onPhase(int message) {
+						notifyStatus( mParent.getString(message) );
+					}
+
+					public void onProgress(long position, long total) {
+						notifyProgress( position, total );
+					}
+				});
+		restore.setCosts(costs);
+		PhotoQueue.Writer photos = null;
+		boolean complete = false;
+		try {
+			if ( Settings.isBackgroundPhotos(mParent) ) {
+				photos = PhotoQueue.begin(mParent, in_file);
+				restore.setPhotoQueue(photos);
+			}
+			restore.run();
+			if ( photos != null ) {
+				startPhotos( photos );
+				photos = null;
+			}
+			complete = mKeepRunning;
 		} catch (IOException e) {
 			showError(e.getMessage());
 			e.printStackTrace();
+		} finally {
+			if ( photos != null ) {
+				photos.abort();
+			}
 		}
+		notifyProgress( in_file.length(), in_file.length() );
+		return complete;
 	}
 
 	/**
-	 * Create a new contact on the device given a JSON object
+	 * The text data is restored, so the contacts can be used. Hand the
+	 * photos over to the background pass.
 	 * 
-	 * @param contact The contact to be created
-	 * @throws JSONException when unable to decode the JSON elements
+	 * @param photos The new IDs of the restored contacts
+	 * @throws IOException when the queue cannot be saved
 	 */
-	private void store_contact_pre2(JSONObject contact) throws JSONException {
-		
-		ContentResolver cr = mParent.getContentResolver();
-		
-		/*
-		 * Store base values
-		 */
-		ContentValues values = new ContentValues();
-		values.put( People._ID, contact.getString( ContactColumns.ID ) );
-		values.put( People.NAME, contact.getString( ContactColumns.NAME ) );
-		values.put( People.TIMES_CONTACTED, contact.getString( ContactColumns.TIMES_CONTACTED ) );
-		// TODO: values.put( People.DISPLAY_NAME, contact.getString(ContactColumns.DISPLAY_NAME) );
-		values.put( People.STARRED, contact.getInt( ContactColumns.STARRED ) );
-		
-		Uri uri = Contacts.People
-		  .createPersonInMyContactsGroup(cr, values);
-		
-		if ( uri == null) {
-			System.err.println("Failed to create contact for " + contact.getString( ContactColumns.NAME ));
-			return;
+	private void startPhotos( PhotoQueue.Writer photos ) throws IOException {
+		if ( photos.commit() ) {
+			PhotoRestoreService.start(mParent);
 		}
-		
-		/*
-		 * Store phone numbers
-		 */
-		JSONArray phones = contact.getJSONArray( ContactColumns.PHONE_NUMBERS );
-		for( int i = 0; i < phones.length(); ++i ){
-			JSONObject phone = phones.getJSONObject(i);
-			if (phone == null ){
-				continue;
-			}
-			
-			Uri phoneUri = null;
-			phoneUri = Uri.withAppendedPath(uri, People.Phones.CONTENT_DIRECTORY);
-			values.clear();
-			values.put(People.Phones.TYPE, phone.getInt( ContactColumns.PhoneColumns.TYPE ));
-			values.put(People.Phones.NUMBER, phone.getString( ContactColumns.PhoneColumns.NUMBER ));
-			values.put(People.Phones.ISPRIMARY, (phone.getBoolean(ContactColumns.PhoneColumns.IS_PRIMARY ) ? 1 : 0));
-			cr.insert(phoneUri, values);
+	}
+
+	/**
+	 * Replace the text of the progress dialog
+	 * 
+	 * @param message The new text
+	 */
+	private void notifyStatus( String message ) {
+		Message msg = mRestoreHandler.obtainMessage(JsonBackup.RESTORE_MSG_STATUS);
+		Bundle b = new Bundle();
+		b.putString("message", message);
+		msg.setData(b);
+		mRestoreHandler.sendMessage(msg);
+	}
+
+	/**
+	 * Let the user know that a contact has been restored. If the file
+	 * contains metadata (or was scanned for a {@link RestoreSchedule}), we
+	 * know the number of contacts, and the progress is
+	 * reported in contacts instead of bytes.
+	 * 
+	 * @param contact The contact which has just been stored
+	 */
+	private void notifyRestored( ContactRecord contact ) {
+		mRestored += 1;
+		Message msg = mRestoreHandler.obtainMessage(JsonBackup.RESTORE_MSG_INFO);
+		Bundle b = new Bundle();
+		b.putString("name", contact.getName());
+		if ( mTotal > 0 ) {
+			b.putInt("position", mRestored);
+			b.putInt("total", mTotal);
 		}
-		phones = null;
+		msg.setData(b);
+		mRestoreHandler.sendMessage(msg);
 		
 		/*
-		 * Store photo
+		 * Stop one short of the total. The final progress message is sent
+		 * once the file has been read completely.
 		 */
-		JSONArray photos = contact.getJSONArray( ContactColumns.PHOTOS );
-		if ( photos.length() > 0 ) {
-			String photo = photos.getString(0);
-			if (photo != null && !photo.equals("") ){
-				try {
-					Contacts.People.setPhotoData(cr, uri, Base64.decode(photo));
-				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-			}
+		if ( mTotal > 0 && mRestored < mTotal ) {
+			notifyProgress( mRestored, mTotal );
 		}
-		photos = null;
 	}
-	
+
+	/**
+	 * Update the progress dialog
+	 * 
+	 * @param position The current position
+	 * @param total The value of position once we're done
+	 */
+	private void notifyProgress( long position, long total ) {
+		Message msg = mRestoreHandler.obtainMessage(JsonBackup.RESTORE_MSG_PROGRESS);
+		Bundle b = new Bundle();
+		b.putLong("position", position);
+		b.putLong("total", total);
+		msg.setData(b);
+		mRestoreHandler.sendMessage(msg);
+	}
+
 	private static final String[] GROUPS_PROJECTION = new String[] {
         Groups._ID,
     };
@@ -373,444 +617,81 @@ public class RestoreThread extends Thread{
     
 
 	/**
-	 * Create a new contact on the device given a JSON object
+	 * Create a new contact on the device given a record read from the backup
 	 * 
 	 * @param contact The contact to be created
-	 * @throws JSONException when unable to decode the JSON elements
+	 * @param withPhoto false if the photo is restored later, in the background
+	 * @return The ID of the new contact, -1 if it could not be created
 	 */
-	private void store_contact_newApi(JSONObject contact) throws JSONException {
+	private long store_contact(ContactRecord contact, boolean withPhoto) {
 		
 		ContentResolver cr = mParent.getContentResolver();
-		ArrayList<ContentProviderOperation> operationList = new ArrayList<ContentProviderOperation>();
-		
-		ContentValues values = new ContentValues();
 		
 		/*
 		 * Store base values
 		 */
-	    // Raw Contact
-	    ContentProviderOperation.Builder builder = ContentProviderOperation.newInsert(RawContacts.CONTENT_URI);
-	    builder.withValue(RawContacts.ACCOUNT_NAME, ACCOUNT_NAME);
-	    builder.withValue(RawContacts.ACCOUNT_TYPE, ACCOUNT_TYPE);
-	    builder.withValue(RawContacts.SYNC1, "new_26_" + new Date().getTime());
-	    builder.withValue(RawContacts.VERSION, 2);
-	    
-		setStringValue(values, ContactsContract.RawContacts.TIMES_CONTACTED, ContactColumns.TIMES_CONTACTED, contact);
-		setIntValue(values, ContactsContract.RawContacts.STARRED, ContactColumns.STARRED, contact);
-		setStringValue(values, ContactsContract.RawContacts.CUSTOM_RINGTONE, ContactColumns.CUSTOM_RING_TONE, contact);
-		setLongValue(values, ContactsContract.RawContacts.LAST_TIME_CONTACTED, ContactColumns.LAST_TIME_CONTACTED, contact);
-		setIntValue(values, ContactsContract.RawContacts.SEND_TO_VOICEMAIL, ContactColumns.SEND_TO_VOICEMAIL, contact);
-		
-	    builder.withValues(values);
-	    operationList.add(builder.build());
-	    values.clear();
-		
-		
-
-		//setStringValue(values, People._ID, ContactColumns.ID, contact);
-		
-	    // Name
-	    builder = ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI);
-	    builder.withValueBackReference(ContactsContract.CommonDataKinds.StructuredName.RAW_CONTACT_ID, 0);
-	    builder.withValue(ContactsContract.Data.MIMETYPE, ContactsContract.CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE);
-
-		//handle name differently
-		String name = contact.optString(ContactColumns.NAME);
-		if (null != name && name.length() > 0 && name.contains(",")) {
-			String[] nameParts = name.split(",");
-			if (nameParts.length == 2) {
-				builder.withValue(ContactsContract.CommonDataKinds.StructuredName.GIVEN_NAME, nameParts[1].trim());
-				builder.withValue(ContactsContract.CommonDataKinds.StructuredName.FAMILY_NAME, nameParts[0].trim());
-			} else {
-				builder.withValue(ContactsContract.CommonDataKinds.StructuredName.DISPLAY_NAME, name);		
-			}
-		}
-		setStringValue(values, ContactsContract.CommonDataKinds.StructuredName.PHONETIC_FAMILY_NAME, ContactColumns.PHONETIC_NAME, contact);
-
-	    operationList.add(builder.build());
-	    values.clear();
-	    
-	    builder = ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI);
-	    builder.withValueBackReference(ContactsContract.CommonDataKinds.Note.RAW_CONTACT_ID, 0);
-	    builder.withValue(ContactsContract.Data.MIMETYPE, ContactsContract.CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE);
-		setStringValue(values, ContactsContract.CommonDataKinds.Note.NOTE, ContactColumns.NOTES, contact);
-		
-		//setStringValue(values, ContactsContract.CommonDataKinds.Photo.PHOTO_VERSION, ContactColumns.PHOTO_VERSION, contact);
+		ContentValues values = mValues;
+		values.clear();
+		ContactValues.person(contact, values);
 
-		
-		
 		//Uri uri = createPersonInMyContactsGroup(cr, values);
 		Uri uri = cr.insert(People.CONTENT_URI, values);
-		long contactId = ContentUris.parseId(uri);
-		
 		if ( uri == null) {
-			System.err.println("Failed to create contact for " + contact.getString( ContactColumns.NAME ));
-			return;
+			System.err.println("Failed to create contact for " + contact.getName());
+			return -1;
 		}
-		
-		//special treatment for display name as it is ignored when set at insert time
-		values.clear();
-		setStringValue(values, ContactsContract.CommonDataKinds.StructuredName.DISPLAY_NAME, ContactColumns.DISPLAY_NAME, contact);
-		String where = ContactsContract.Data.MIMETYPE + " = ? AND "
-			+ ContactsContract.CommonDataKinds.StructuredName.CONTACT_ID
-			+ " = ?";
-	
-		String[] whereArgs = new String[] {
-			ContactsContract.CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE,
-			Long.toString(contactId) };
-		cr.update(ContactsContract.Data.CONTENT_URI, values, where, whereArgs);
-		
+		long contactId = ContentUris.parseId(uri);
 		
 		/*
 		 * Store phone numbers
 		 */
-		JSONArray phones = contact.getJSONArray( ContactColumns.PHONE_NUMBERS );
-		for( int i = 0; i < phones.length(); ++i ){
-			JSONObject phone = phones.getJSONObject(i);
-			if (phone == null ){
-				continue;
-			}
-			
-			Uri phoneUri = null;
-			phoneUri = Uri.withAppendedPath(uri, People.Phones.CONTENT_DIRECTORY);
+		Uri phoneUri = Uri.withAppendedPath(uri, People.Phones.CONTENT_DIRECTORY);
+		for( int i = 0; i < contact.phones.size(); ++i ){
 			values.clear();
-			setIntValue(values, People.Phones.TYPE, ContactColumns.PhoneColumns.TYPE, phone);
-			setStringValue(values, People.Phones.NUMBER, ContactColumns.PhoneColumns.NUMBER, phone);
-			setBooleanValue(values, People.Phones.ISPRIMARY, ContactColumns.PhoneColumns.IS_PRIMARY, phone);
-			setStringValue(values, People.Phones.LABEL, ContactColumns.PhoneColumns.LABEL, phone);
-			setStringValue(values, People.Phones.NUMBER_KEY, ContactColumns.PhoneColumns.NUMBER_KEY, phone);
-			
+			ContactValues.phone(contact.phones.get(i), values);
 			cr.insert(phoneUri, values);
 		}
-		phones = null;
 		
 		/*
 		 * Store photo
 		 */
-		JSONArray photos = contact.getJSONArray( ContactColumns.PHOTOS );
-		if ( photos.length() > 0 ) {
-			String photo = photos.getString(0);
-			if (photo != null && !photo.equals("") ){
-				try {
-					Contacts.People.setPhotoData(cr, uri, Base64.decode(photo));
-				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-			}
+		if ( withPhoto && contact.photos.size() > 0 ) {
+			Contacts.People.setPhotoData(cr, uri, contact.photos.toByteArray(0));
 		}
-		photos = null;
 		
 		/*
 		 * Store addresses
 		 */
-		JSONArray addresses = contact.getJSONArray( ContactColumns.CONTACT_METHODS );
-		for( int i = 0; i < addresses.length(); ++i ){
-			JSONObject address = addresses.getJSONObject(i);
-			if (address == null ){
-				continue;
-			}
-			
-			Uri addressUri = null;
-			addressUri = Uri.withAppendedPath(uri, People.ContactMethods.CONTENT_DIRECTORY);
+		Uri addressUri = Uri.withAppendedPath(uri, People.ContactMethods.CONTENT_DIRECTORY);
+		for( int i = 0; i < contact.methods.size(); ++i ){
 			values.clear();
-			setStringValue(values, People.ContactMethods.KIND, ContactColumns.ContactMethodColumns.KIND, address);
-			setStringValue(values, People.ContactMethods.DATA, ContactColumns.ContactMethodColumns.DATA, address);
-			setIntValue(values, People.ContactMethods.TYPE, ContactColumns.ContactMethodColumns.TYPE, address);
-			setBooleanValue(values, People.ContactMethods.ISPRIMARY, ContactColumns.ContactMethodColumns.IS_PRIMARY, address);
-
-			setStringValue(values, People.ContactMethods.AUX_DATA, ContactColumns.ContactMethodColumns.AUX_DATA, address);
-			setStringValue(values, People.ContactMethods.LABEL, ContactColumns.ContactMethodColumns.LABEL, address);
-			
+			ContactValues.method(contact.methods.get(i), values);
 			cr.insert(addressUri, values);
 		}
-		addresses = null;
-	
 		
 		/*
 		 * Store organizations
 		 */
-		JSONArray organisations = contact.getJSONArray( ContactColumns.ORGANIZATIONS );
-		for( int i = 0; i < organisations.length(); ++i ){
-			JSONObject orga = organisations.getJSONObject(i);
-			if (orga == null ){
-				continue;
-			}
-			
-			Uri orgaUri = null;
-			//orgaUri = Uri.withAppendedPath(uri, Contacts.Organizations.CONTENT_DIRECTORY);
-			
-//			values.clear();
-//			setStringValue(values, Contacts.Organizations.COMPANY, ContactColumns.OrganizationColumns.COMPANY, orga);
-//			setBooleanValue(values, Contacts.Organizations.ISPRIMARY, ContactColumns.OrganizationColumns.IS_PRIMARY, orga);
-//			setStringValue(values, Contacts.Organizations.LABEL, ContactColumns.OrganizationColumns.LABEL, orga);
-//			setStringValue(values, Contacts.Organizations.TITLE, ContactColumns.OrganizationColumns.TITLE, orga);
-//			setIntValue(values, Contacts.Organizations.TYPE, ContactColumns.OrganizationColumns.TYPE, orga);
-
-			//cr.insert(orgaUri, values);
-			//setOrganization(uri.getPathSegments().get(1), values);
-
-			
-
-//			Uri.Builder builder = ContactsContract.Contacts.CONTENT_URI.buildUpon();
-			//builder = ContentUris.appendId(builder, contactId);
-//			orgaUri = Uri.withAppendedPath(builder.build(), ContactsContract.Contacts.Data.CONTENT_DIRECTORY);
-			orgaUri = ContactsContract.Data.CONTENT_URI;
-
+		for( int i = 0; i < contact.organizations.size(); ++i ){
 			values.clear();
-			setStringValue(values, ContactsContract.CommonDataKinds.Organization.COMPANY, ContactColumns.OrganizationColumns.COMPANY, orga);
-			setStringValue(values, ContactsContract.CommonDataKinds.Organization.LABEL, ContactColumns.OrganizationColumns.LABEL, orga);
-			setIntValue(values, ContactsContract.CommonDataKinds.Organization.TYPE, ContactColumns.OrganizationColumns.TYPE, orga);
-
-			//title needs special treatment. if we only set a company, contacts app won't show it at all (at least in 2.1)... title is a must!
-			String value = orga.optString(ContactColumns.OrganizationColumns.TITLE);
-			if (null == value || value.length() == 0) {
-				value = "N/A";
-			}
-			values.put(ContactsContract.CommonDataKinds.Organization.TITLE, value);
-			
-			//this only works if contact and rawcontact have the same id!
-			values.put(ContactsContract.CommonDataKinds.Organization.RAW_CONTACT_ID, contactId);
-			values.put(ContactsContract.CommonDataKinds.Organization.MIMETYPE,	ContactsContract.CommonDataKinds.Organization.CONTENT_ITEM_TYPE);
-			cr.insert(orgaUri, values);
-
+			ContactValues.organization(contact.organizations.get(i), contactId, values);
+			cr.insert(ContactsContract.Data.CONTENT_URI, values);
 		}
-		organisations = null;
-		
-		
-	    try {
-	        cr.applyBatch(ContactsContract.AUTHORITY, operationList);
-	    } catch (Exception e) {
-	        e.printStackTrace();
-	    }
 		
+		return contactId;
 	}
-
-    
+	
 	/**
-	 * Create a new contact on the device given a JSON object
+	 * Abort the restore before it even started.
 	 * 
-	 * @param contact The contact to be created
-	 * @throws JSONException when unable to decode the JSON elements
+	 * @param message The message displayed to the user
 	 */
-	private void store_contact(JSONObject contact) throws JSONException {
-		
-		ContentResolver cr = mParent.getContentResolver();
-		
-		/*
-		 * Store base values
-		 */
-		ContentValues values = new ContentValues();
-		setStringValue(values, People._ID, ContactColumns.ID, contact);
-
-		//handle name differently
-		String name = contact.optString(ContactColumns.NAME);
-		String givenName = null;
-		String familyName = null;
-		if (null != name && name.length() > 0 && name.contains(",")) {
-			String[] nameParts = name.split(",");
-			if (nameParts.length == 2) {
-				givenName = nameParts[1].trim();
-				familyName = nameParts[0].trim();
-				name = nameParts[1].trim() + " " + nameParts[0].trim();
-			} else {
-				name = name;
-			}
-		}
-		values.put(People.NAME, name);
-		
-		//setStringValue(values, People.NAME, ContactColumns.NAME, contact);
-		
-		setStringValue(values, People.TIMES_CONTACTED, ContactColumns.TIMES_CONTACTED, contact);
-		setIntValue(values, People.STARRED, ContactColumns.STARRED, contact);
-		
-		setStringValue(values, People.NOTES, ContactColumns.NOTES, contact);
-		setStringValue(values, People.CUSTOM_RINGTONE, ContactColumns.CUSTOM_RING_TONE, contact);
-		setLongValue(values, People.LAST_TIME_CONTACTED, ContactColumns.LAST_TIME_CONTACTED, contact);
-		setStringValue(values, People.PHONETIC_NAME, ContactColumns.PHONETIC_NAME, contact);
-		setStringValue(values, People.PHOTO_VERSION, ContactColumns.PHOTO_VERSION, contact);
-		setIntValue(values, People.SEND_TO_VOICEMAIL, ContactColumns.SEND_TO_VOICEMAIL, contact);
-
-		
-		
-		//Uri uri = createPersonInMyContactsGroup(cr, values);
-		Uri uri = cr.insert(People.CONTENT_URI, values);
-		long contactId = ContentUris.parseId(uri);
-		
-		if ( uri == null) {
-			System.err.println("Failed to create contact for " + contact.getString( ContactColumns.NAME ));
-			return;
-		}
-		
-//		//special treatment for display name as it is ignored when set at insert time
-//		values.clear();
-//		setStringValue(values, ContactsContract.CommonDataKinds.StructuredName.DISPLAY_NAME, ContactColumns.DISPLAY_NAME, contact);
-//		if (givenName != null && givenName.length() > 0) {
-//			values.put(ContactsContract.CommonDataKinds.StructuredName.GIVEN_NAME, givenName);
-//		}
-//		if (familyName != null && familyName.length() > 0) {
-//			values.put(ContactsContract.CommonDataKinds.StructuredName.FAMILY_NAME, familyName);
-//		}
-//		
-//		String where = ContactsContract.Data.MIMETYPE + " = ? AND "
-//			+ ContactsContract.CommonDataKinds.StructuredName.CONTACT_ID
-//			+ " = ?";
-//	
-//		String[] whereArgs = new String[] {
-//			ContactsContract.CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE,
-//			Long.toString(contactId) };
-//		cr.update(ContactsContract.Data.CONTENT_URI, values, where, whereArgs);
-//		
-		
-		/*
-		 * Store phone numbers
-		 */
-		JSONArray phones = contact.getJSONArray( ContactColumns.PHONE_NUMBERS );
-		for( int i = 0; i < phones.length(); ++i ){
-			JSONObject phone = phones.getJSONObject(i);
-			if (phone == null ){
-				continue;
-			}
-			
-			Uri phoneUri = null;
-			phoneUri = Uri.withAppendedPath(uri, People.Phones.CONTENT_DIRECTORY);
-			values.clear();
-			setIntValue(values, People.Phones.TYPE, ContactColumns.PhoneColumns.TYPE, phone);
-			setStringValue(values, People.Phones.NUMBER, ContactColumns.PhoneColumns.NUMBER, phone);
-			setBooleanValue(values, People.Phones.ISPRIMARY, ContactColumns.PhoneColumns.IS_PRIMARY, phone);
-			setStringValue(values, People.Phones.LABEL, ContactColumns.PhoneColumns.LABEL, phone);
-			setStringValue(values, People.Phones.NUMBER_KEY, ContactColumns.PhoneColumns.NUMBER_KEY, phone);
-			
-			cr.insert(phoneUri, values);
-		}
-		phones = null;
-		
-		/*
-		 * Store photo
-		 */
-		JSONArray photos = contact.getJSONArray( ContactColumns.PHOTOS );
-		if ( photos.length() > 0 ) {
-			String photo = photos.getString(0);
-			if (photo != null && !photo.equals("") ){
-				try {
-					Contacts.People.setPhotoData(cr, uri, Base64.decode(photo));
-				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-			}
-		}
-		photos = null;
-		
-		/*
-		 * Store addresses
-		 */
-		JSONArray addresses = contact.getJSONArray( ContactColumns.CONTACT_METHODS );
-		for( int i = 0; i < addresses.length(); ++i ){
-			JSONObject address = addresses.getJSONObject(i);
-			if (address == null ){
-				continue;
-			}
-			
-			Uri addressUri = null;
-			addressUri = Uri.withAppendedPath(uri, People.ContactMethods.CONTENT_DIRECTORY);
-			values.clear();
-			setStringValue(values, People.ContactMethods.KIND, ContactColumns.ContactMethodColumns.KIND, address);
-			setStringValue(values, People.ContactMethods.DATA, ContactColumns.ContactMethodColumns.DATA, address);
-			setIntValue(values, People.ContactMethods.TYPE, ContactColumns.ContactMethodColumns.TYPE, address);
-			setBooleanValue(values, People.ContactMethods.ISPRIMARY, ContactColumns.ContactMethodColumns.IS_PRIMARY, address);
-
-			setStringValue(values, People.ContactMethods.AUX_DATA, ContactColumns.ContactMethodColumns.AUX_DATA, address);
-			setStringValue(values, People.ContactMethods.LABEL, ContactColumns.ContactMethodColumns.LABEL, address);
-			
-			cr.insert(addressUri, values);
-		}
-		addresses = null;
-	
-		
-		/*
-		 * Store organizations
-		 */
-		JSONArray organisations = contact.getJSONArray( ContactColumns.ORGANIZATIONS );
-		for( int i = 0; i < organisations.length(); ++i ){
-			JSONObject orga = organisations.getJSONObject(i);
-			if (orga == null ){
-				continue;
-			}
-			
-			Uri orgaUri = null;
-			//orgaUri = Uri.withAppendedPath(uri, Contacts.Organizations.CONTENT_DIRECTORY);
-			
-//			values.clear();
-//			setStringValue(values, Contacts.Organizations.COMPANY, ContactColumns.OrganizationColumns.COMPANY, orga);
-//			setBooleanValue(values, Contacts.Organizations.ISPRIMARY, ContactColumns.OrganizationColumns.IS_PRIMARY, orga);
-//			setStringValue(values, Contacts.Organizations.LABEL, ContactColumns.OrganizationColumns.LABEL, orga);
-//			setStringValue(values, Contacts.Organizations.TITLE, ContactColumns.OrganizationColumns.TITLE, orga);
-//			setIntValue(values, Contacts.Organizations.TYPE, ContactColumns.OrganizationColumns.TYPE, orga);
-
-			//cr.insert(orgaUri, values);
-			//setOrganization(uri.getPathSegments().get(1), values);
-
-			
-
-//			Uri.Builder builder = ContactsContract.Contacts.CONTENT_URI.buildUpon();
-			//builder = ContentUris.appendId(builder, contactId);
-//			orgaUri = Uri.withAppendedPath(builder.build(), ContactsContract.Contacts.Data.CONTENT_DIRECTORY);
-			orgaUri = ContactsContract.Data.CONTENT_URI;
-
-			values.clear();
-			setStringValue(values, ContactsContract.CommonDataKinds.Organization.COMPANY, ContactColumns.OrganizationColumns.COMPANY, orga);
-			setStringValue(values, ContactsContract.CommonDataKinds.Organization.LABEL, ContactColumns.OrganizationColumns.LABEL, orga);
-			setIntValue(values, ContactsContract.CommonDataKinds.Organization.TYPE, ContactColumns.OrganizationColumns.TYPE, orga);
-
-			//title needs special treatment. if we only set a company, contacts app won't show it at all (at least in 2.1)... title is a must!
-			String value = orga.optString(ContactColumns.OrganizationColumns.TITLE);
-			if (null == value || value.length() == 0) {
-				value = "N/A";
-			}
-			values.put(ContactsContract.CommonDataKinds.Organization.TITLE, value);
-			
-			//this only works if contact and rawcontact have the same id!
-			values.put(ContactsContract.CommonDataKinds.Organization.RAW_CONTACT_ID, contactId);
-			values.put(ContactsContract.CommonDataKinds.Organization.MIMETYPE,	ContactsContract.CommonDataKinds.Organization.CONTENT_ITEM_TYPE);
-			cr.insert(orgaUri, values);
-
-		}
-		organisations = null;
-		
-		
-	}
-	
-	private void setStringValue(ContentValues values, String contactConst, String columnConst, JSONObject source) {
-		try {
-			String value = source.getString(columnConst);
-			values.put(contactConst, value);
-		} catch (JSONException e) {	//ignore
-		}
-	}
-
-	private void setIntValue(ContentValues values, String contactConst, String columnConst, JSONObject source) {
-		try {
-			int value = source.getInt(columnConst);
-			values.put(contactConst, value);
-		} catch (JSONException e) {	//ignore
-		}
-	}
-
-	private void setLongValue(ContentValues values, String contactConst, String columnConst, JSONObject source) {
-		try {
-			long value = source.getLong(columnConst);
-			values.put(contactConst, value);
-		} catch (JSONException e) {	//ignore
-		}
-	}
-	
-	private void setBooleanValue(ContentValues values, String contactConst, String columnConst, JSONObject source) {
-		try {
-			int value = (source.getBoolean(columnConst ) ? 1 : 0);
-			values.put(contactConst, value);
-		} catch (JSONException e) {	//ignore
-		}
+	private void fail( String message ){
+		Message msg = mRestoreHandler.obtainMessage(JsonBackup.RESTORE_MSG_FAILED);
+		Bundle b = new Bundle();
+		b.putString("message", message);
+		msg.setData(b);
+		mRestoreHandler.sendMessage(msg);
 	}
 	
 	private void showError( String message ){
@@ -0,0 +1,221 @@
+package lu.albert.android.jsonbackup;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.preference.PreferenceActivity;
+
+/**
+ * Lets the user change the application options. The values are stored in
+ * the same preferences file as the rest of the application state (see
+ * {@link JsonBackup#PREFS_NAME}).
+ */
+public class Settings extends PreferenceActivity {
+
+	/** Preference key: write the compact binary format instead of JSON */
+	public static final String KEY_BINARY_FORMAT = "binaryFormat";
+
+	/** Preference key: the number of contacts read per query during a backup */
+	public static final String KEY_PAGE_SIZE = "pageSize";
+
+	/** Preference key: the number of threads exporting contacts */
+	public static final String KEY_EXPORT_THREADS = "exportThreads";
+
+	/** Preference key: the number of contacts per shard, 0 for a single file */
+	public static final String KEY_SHARD_SIZE = "shardSize";
+
+	/** Preference key: the number of older backups kept, 0 for none */
+	public static final String KEY_KEEP_GENERATIONS = "keepGenerations";
+
+	/** Preference key: append the changed contacts to the existing backup */
+	public static final String KEY_INCREMENTAL_BACKUP = "incrementalBackup";
+
+	/** Preference key: back up the contacts in the background when they change */
+	public static final String KEY_BACKGROUND_BACKUP = "backgroundBackup";
+
+	/** Preference key: copy unchanged contacts from the previous backup */
+	public static final String KEY_REUSE_RECORDS = "reuseRecords";
+
+	/** Preference key: write a search index next to the backup */
+	public static final String KEY_SEARCH_INDEX = "searchIndex";
+
+	/** Preference key: the false positive rate of the number filter, in percent, 0 for none */
+	public static final String KEY_FILTER_FALSE_POSITIVES = "filterFalsePositives";
+
+	/** Preference key: add the e-mail addresses to the number filter */
+	public static final String KEY_FILTER_EMAILS = "filterEmails";
+
+	/** Preference key: restore one table at a time instead of one contact */
+	public static final String KEY_PHASED_RESTORE = "phasedRestore";
+
+	/** Preference key: restore the photos after the text data, in the background */
+	public static final String KEY_BACKGROUND_PHOTOS = "backgroundPhotos";
+
+	/** Preference key: restore starred and frequently used contacts first */
+	public static final String KEY_PRIORITY_RESTORE = "priorityRestore";
+
+	@Override
+	public void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		getPreferenceManager().setSharedPreferencesName(JsonBackup.PREFS_NAME);
+		addPreferencesFromResource(R.xml.preferences);
+	}
+
+	/**
+	 * @param context The context used to access the preferences
+	 * @return The application preferences
+	 */
+	public static SharedPreferences getPreferences(Context context) {
+		return context.getSharedPreferences(JsonBackup.PREFS_NAME, 0);
+	}
+
+	/**
+	 * @param context The context used to access the preferences
+	 * @return true if new backups should use the compact binary format
+	 */
+	public static boolean isBinaryFormat(Context context) {
+		return getPreferences(context).getBoolean(KEY_BINARY_FORMAT, false);
+	}
+
+	/**
+	 * @param context The context used to access the preferences
+	 * @return true if a backup should only append the changes since the
+	 *         previous one. Not used for sharded backups.
+	 */
+	public static boolean isIncrementalBackup(Context context) {
+		return getPreferences(context).getBoolean(KEY_INCREMENTAL_BACKUP, false);
+	}
+
+	/**
+	 * @param context The context used to access the preferences
+	 * @return true if the {@link BackgroundBackupService} should back up the
+	 *         contacts whenever they change
+	 */
+	public static boolean isBackgroundBackup(Context context) {
+		return getPreferences(context).getBoolean(KEY_BACKGROUND_BACKUP, false);
+	}
+
+	/**
+	 * @param context The context used to access the preferences
+	 * @return true if a full backup should copy the contacts which did not
+	 *         change from the previous backup. Not used for sharded or
+	 *         incremental backups.
+	 */
+	public static boolean isReuseRecords(Context context) {
+		return getPreferences(context).getBoolean(KEY_REUSE_RECORDS, false);
+	}
+
+	/**
+	 * @param context The context used to access the preferences
+	 * @return true if a search index should be written after a backup. Not
+	 *         used for sharded or incremental backups.
+	 */
+	public static boolean isSearchIndex(Context context) {
+		return getPreferences(context).getBoolean(KEY_SEARCH_INDEX, false);
+	}
+
+	/**
+	 * @param context The context used to access the preferences
+	 * @return The number of contacts read per query during a backup
+	 */
+	public static int getPageSize(Context context) {
+		String value = getPreferences(context).getString(KEY_PAGE_SIZE, null);
+		try {
+			return value == null ? PeoplePager.DEFAULT_PAGE_SIZE : Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			return PeoplePager.DEFAULT_PAGE_SIZE;
+		}
+	}
+
+	/**
+	 * @param context The context used to access the preferences
+	 * @return How often the number filter written into a backup may answer
+	 *         "maybe" for a number which is not in it, like 0.01. 0 if no
+	 *         filter is written.
+	 */
+	public static double getFilterFalsePositives(Context context) {
+		String value = getPreferences(context).getString(KEY_FILTER_FALSE_POSITIVES, null);
+		try {
+			double percent = value == null ? 0 : Double.parseDouble(value);
+			return percent > 0 && percent < 100 ? percent / 100 : 0;
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * @param context The context used to access the preferences
+	 * @return true if the e-mail addresses are added to the number filter
+	 */
+	public static boolean isFilterEmails(Context context) {
+		return getPreferences(context).getBoolean(KEY_FILTER_EMAILS, false);
+	}
+
+	/**
+	 * @param context The context used to access the preferences
+	 * @return The number of contacts per shard of a backup, 0 if backups
+	 *         are written as a single file
+	 */
+	public static int getShardSize(Context context) {
+		String value = getPreferences(context).getString(KEY_SHARD_SIZE, null);
+		try {
+			return value == null ? 0 : Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * @param context The context used to access the preferences
+	 * @return The number of backups kept in the history, 0 if no history is
+	 *         kept
+	 */
+	public static int getKeepGenerations(Context context) {
+		String value = getPreferences(context).getString(KEY_KEEP_GENERATIONS, null);
+		try {
+			return value == null ? 0 : Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * @param context The context used to access the preferences
+	 * @return The number of threads exporting contacts during a backup
+	 */
+	public static int getExportThreads(Context context) {
+		String value = getPreferences(context).getString(KEY_EXPORT_THREADS, null);
+		try {
+			return value == null ? 1 : Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			return 1;
+		}
+	}
+
+	/**
+	 * @param context The context used to access the preferences
+	 * @return true if backups should be restored one table at a time
+	 */
+	public static boolean isPhasedRestore(Context context) {
+		return getPreferences(context).getBoolean(KEY_PHASED_RESTORE, false);
+	}
+
+	/**
+	 * @param context The context used to access the preferences
+	 * @return true if photos should be restored in the background, once the
+	 *         text data is restored
+	 */
+	public static boolean isBackgroundPhotos(Context context) {
+		return getPreferences(context).getBoolean(KEY_BACKGROUND_PHOTOS, false);
+	}
+
+	/**
+	 * @param context The context used to access the preferences
+	 * @return true if starred and frequently used contacts should be
+	 *         restored first
+	 */
+	public static boolean isPriorityRestore(Context context) {
+		return getPreferences(context).getBoolean(KEY_PRIORITY_RESTORE, false);
+	}
+
+}
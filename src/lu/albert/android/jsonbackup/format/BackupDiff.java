@@ -0,0 +1,694 @@
+package lu.albert.android.jsonbackup.format;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+
+import lu.albert.android.jsonbackup.schema.ContactColumns;
+import lu.albert.android.jsonbackup.schema.ContactRecord;
+import lu.albert.android.jsonbackup.schema.ContactSchema;
+
+/**
+ * The differences between two backups: the contacts which were added,
+ * removed or changed, and the fields which changed.
+ *
+ * Backups are written in ascending _ID order, so both files are usually
+ * read side by side, like the two inputs of a merge: only one contact of
+ * each is in memory, however large the files are. The contacts with the
+ * same _ID are compared through a hash of their content first, and field by
+ * field only if it differs.
+ *
+ * If a backup is not sorted (see {@link #isSorted(File)}), the _ID, hash
+ * and position of every contact of one of the backups are kept in a table
+ * instead, about 40 bytes per contact, and the other backup is streamed
+ * against it. The changed and the missing contacts are then read back by
+ * seeking, so that backup must be a single file without a change log.
+ *
+ * The child rows and the photos are compared as sets: a phone number which
+ * only moved is not a change.
+ *
+ * Also runs on a plain JVM, with the org.json classes on the class path,
+ * see {@link #main(String[])}.
+ */
+public class BackupDiff {
+
+	/**
+	 * Receives the differences
+	 */
+	public interface Listener {
+
+		/**
+		 * @param record A contact which is only in the second backup
+		 */
+		void added(ContactRecord record);
+
+		/**
+		 * @param record A contact which is only in the first backup
+		 */
+		void removed(ContactRecord record);
+
+		/**
+		 * A contact which is in both backups, but differs. Its changed
+		 * fields follow.
+		 *
+		 * @param before The contact in the first backup
+		 * @param after The contact in the second backup
+		 */
+		void changed(ContactRecord before, ContactRecord after);
+
+		/**
+		 * @param id The _ID of the changed contact
+		 * @param field The field, like "name" or "phone_numbers[1].number".
+		 *            A whole child row or photo is named without a field.
+		 * @param before The old value, null if the field was added
+		 * @param after The new value, null if the field was removed
+		 */
+		void fieldChanged(long id, String field, String before, String after);
+
+	}
+
+	/** The _ID after the last contact of a backup */
+	private static final long END = Long.MAX_VALUE;
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final File mBefore;
+	private final File mAfter;
+
+	private boolean mMerged;
+	private int mAdded;
+	private int mRemoved;
+	private int mChanged;
+	private int mUnchanged;
+
+	/**
+	 * Constructor
+	 *
+	 * @param before The older backup
+	 * @param after The newer backup
+	 */
+	public BackupDiff(File before, File after) {
+		mBefore = before;
+		mAfter = after;
+	}
+
+	/**
+	 * Compare the backups
+	 *
+	 * @param listener Receives the differences, in _ID order if both
+	 *            backups are sorted
+	 * @throws IOException when a backup cannot be read, or neither is sorted
+	 *             and neither can seek
+	 */
+	public void run(Listener listener) throws IOException {
+		mAdded = mRemoved = mChanged = mUnchanged = 0;
+		mMerged = isSorted(mBefore) && isSorted(mAfter);
+		if (mMerged) {
+			merge(listener);
+		} else {
+			join(listener);
+		}
+	}
+
+	/** @return true if the last run read the backups side by side */
+	public boolean isMerged() {
+		return mMerged;
+	}
+
+	/** @return The number of contacts only in the second backup */
+	public int getAdded() {
+		return mAdded;
+	}
+
+	/** @return The number of contacts only in the first backup */
+	public int getRemoved() {
+		return mRemoved;
+	}
+
+	/** @return The number of contacts which differ */
+	public int getChanged() {
+		return mChanged;
+	}
+
+	/** @return The number of contacts which are the same in both backups */
+	public int getUnchanged() {
+		return mUnchanged;
+	}
+
+	/**
+	 * Check whether the contacts of a backup are in ascending _ID order. The
+	 * record index is used if there is one, else the person rows are
+	 * scanned.
+	 *
+	 * @param file A backup file
+	 * @return true if the _IDs are ascending and unique
+	 * @throws IOException when the backup cannot be read
+	 */
+	public static boolean isSorted(File file) throws IOException {
+		long previous = Long.MIN_VALUE;
+		RecordIndex.Reader index = RecordIndex.open(file);
+		if (index != null) {
+			try {
+				while (index.next()) {
+					if (index.getId() <= previous) {
+						return false;
+					}
+					previous = index.getId();
+				}
+				return true;
+			} finally {
+				index.close();
+			}
+		}
+		ContactScanner scanner = ContactReaders.scan(file);
+		try {
+			ContactRecord record = new ContactRecord();
+			while (scanner.read(record)) {
+				long id = record.person.getLong(ContactSchema.ID);
+				if (id <= previous) {
+					return false;
+				}
+				previous = id;
+			}
+			return true;
+		} finally {
+			scanner.close();
+		}
+	}
+
+	/**
+	 * Read both backups side by side
+	 */
+	private void merge(Listener listener) throws IOException {
+		ContactReader before = ContactReaders.open(mBefore);
+		try {
+			ContactReader after = ContactReaders.open(mAfter);
+			try {
+				ContactRecord old = new ContactRecord();
+				ContactRecord current = new ContactRecord();
+				long oldId = next(before, old, Long.MIN_VALUE, mBefore);
+				long currentId = next(after, current, Long.MIN_VALUE, mAfter);
+				while (oldId != END || currentId != END) {
+					if (oldId < currentId) {
+						mRemoved++;
+						listener.removed(old);
+						oldId = next(before, old, oldId, mBefore);
+					} else if (currentId < oldId) {
+						mAdded++;
+						listener.added(current);
+						currentId = next(after, current, currentId, mAfter);
+					} else {
+						same(old, current, hash(old), hash(current), listener);
+						oldId = next(before, old, oldId, mBefore);
+						currentId = next(after, current, currentId, mAfter);
+					}
+				}
+			} finally {
+				after.close();
+			}
+		} finally {
+			before.close();
+		}
+	}
+
+	/**
+	 * @return The _ID of the next contact, or {@link #END}
+	 * @throws IOException when the backup cannot be read, or it turns out
+	 *             not to be sorted after all
+	 */
+	private static long next(ContactReader reader, ContactRecord record, long previous,
+			File file) throws IOException {
+		if (!reader.read(record)) {
+			return END;
+		}
+		long id = record.person.getLong(ContactSchema.ID);
+		if (id <= previous) {
+			throw new IOException(file.getName() + " is not sorted by _ID at " + id);
+		}
+		return id;
+	}
+
+	/**
+	 * Keep a table of one backup and stream the other against it
+	 */
+	private void join(Listener listener) throws IOException {
+		/* the table must be of a backup which can seek */
+		boolean swapped = !canSeek(mBefore);
+		File tableFile = swapped ? mAfter : mBefore;
+		File streamFile = swapped ? mBefore : mAfter;
+		if (!canSeek(tableFile)) {
+			throw new IOException("Neither backup is sorted by _ID, nor can be read out of order");
+		}
+
+		RecordTable table = new RecordTable();
+		ContactRecord record = new ContactRecord();
+		ContactScanner scanner = ContactReaders.scan(tableFile);
+		try {
+			scanner.setPersonOnly(false);
+			while (scanner.read(record)) {
+				table.add(record.person.getLong(ContactSchema.ID), hash(record),
+						scanner.getRecordOffset(), scanner.getRecordLength(), tableFile);
+			}
+		} finally {
+			scanner.close();
+		}
+
+		ContactScanner lookup = ContactReaders.scan(tableFile);
+		try {
+			lookup.setPersonOnly(false);
+			ContactRecord other = new ContactRecord();
+			ContactReader reader = ContactReaders.open(streamFile);
+			try {
+				while (reader.read(record)) {
+					int entry = table.find(record.person.getLong(ContactSchema.ID));
+					if (entry < 0) {
+						only(record, !swapped, listener);
+						continue;
+					}
+					table.mSeen.set(entry);
+					long hash = hash(record);
+					if (hash == table.mHashes[entry]) {
+						mUnchanged++;
+						continue;
+					}
+					seek(lookup, table, entry, other);
+					if (swapped) {
+						same(record, other, hash, table.mHashes[entry], listener);
+					} else {
+						same(other, record, table.mHashes[entry], hash, listener);
+					}
+				}
+			} finally {
+				reader.close();
+			}
+
+			/* what is left of the table is only in its backup */
+			for (int entry = table.mSeen.nextClearBit(0); entry < table.mSize;
+					entry = table.mSeen.nextClearBit(entry + 1)) {
+				seek(lookup, table, entry, other);
+				only(other, swapped, listener);
+			}
+		} finally {
+			lookup.close();
+		}
+	}
+
+	/**
+	 * @return true if the records of a backup can be read back by seeking
+	 */
+	private static boolean canSeek(File file) {
+		return !ShardManifest.isManifest(file) && !ChangeLog.hasLog(file);
+	}
+
+	private static void seek(ContactScanner scanner, RecordTable table, int entry,
+			ContactRecord record) throws IOException {
+		scanner.seek(table.mOffsets[entry], table.mLengths[entry]);
+		if (!scanner.read(record)) {
+			throw new IOException("No record at offset " + table.mOffsets[entry]);
+		}
+	}
+
+	private void only(ContactRecord record, boolean added, Listener listener) {
+		if (added) {
+			mAdded++;
+			listener.added(record);
+		} else {
+			mRemoved++;
+			listener.removed(record);
+		}
+	}
+
+	private void same(ContactRecord before, ContactRecord after, long beforeHash,
+			long afterHash, Listener listener) {
+		if (beforeHash == afterHash) {
+			mUnchanged++;
+			return;
+		}
+		mChanged++;
+		listener.changed(before, after);
+		compare(before, after, listener);
+	}
+
+	/**
+	 * Report the fields which differ between two versions of a contact
+	 *
+	 * @param before The old version
+	 * @param after The new version
+	 * @param listener Receives the fields, through
+	 *            {@link Listener#fieldChanged}
+	 */
+	public static void compare(ContactRecord before, ContactRecord after, Listener listener) {
+		long id = after.person.getLong(ContactSchema.ID);
+		ContactSchema.Group group = ContactSchema.PERSON;
+		for (int field = 0; field < group.size(); field++) {
+			String old = value(before.person, field);
+			String current = value(after.person, field);
+			if (old == null ? current != null : !old.equals(current)) {
+				listener.fieldChanged(id, group.getKey(field), old, current);
+			}
+		}
+		compare(id, ContactColumns.PHONE_NUMBERS, before.phones, after.phones, listener);
+		compare(id, ContactColumns.CONTACT_METHODS, before.methods, after.methods, listener);
+		compare(id, ContactColumns.ORGANIZATIONS, before.organizations, after.organizations,
+				listener);
+		comparePhotos(id, before.photos, after.photos, listener);
+	}
+
+	/**
+	 * Compare two lists of child rows. The rows found in both lists are
+	 * left out; the others are paired in order and compared field by field,
+	 * and the rest are reported whole.
+	 */
+	private static void compare(long id, String table, ContactRecord.RowList before,
+			ContactRecord.RowList after, Listener listener) {
+		BitSet matched = new BitSet();
+		int[] added = new int[after.size()];
+		int addedCount = 0;
+		for (int i = 0; i < after.size(); i++) {
+			int j = findRow(before, after.get(i), matched);
+			if (j < 0) {
+				added[addedCount++] = i;
+			} else {
+				matched.set(j);
+			}
+		}
+		int paired = 0;
+		for (int j = matched.nextClearBit(0); j < before.size(); j = matched.nextClearBit(j + 1)) {
+			ContactRecord.Row old = before.get(j);
+			if (paired < addedCount) {
+				int i = added[paired++];
+				ContactRecord.Row current = after.get(i);
+				for (int field = 0; field < old.getGroup().size(); field++) {
+					String a = value(old, field);
+					String b = value(current, field);
+					if (a == null ? b != null : !a.equals(b)) {
+						listener.fieldChanged(id, table + "[" + i + "]."
+								+ old.getGroup().getKey(field), a, b);
+					}
+				}
+			} else {
+				listener.fieldChanged(id, table + "[" + j + "]", describe(old), null);
+			}
+		}
+		for (; paired < addedCount; paired++) {
+			int i = added[paired];
+			listener.fieldChanged(id, table + "[" + i + "]", null, describe(after.get(i)));
+		}
+	}
+
+	/**
+	 * @return The position of a row of the list equal to the given one and
+	 *         not matched yet, or -1
+	 */
+	private static int findRow(ContactRecord.RowList list, ContactRecord.Row row, BitSet matched) {
+		for (int j = matched.nextClearBit(0); j < list.size(); j = matched.nextClearBit(j + 1)) {
+			ContactRecord.Row other = list.get(j);
+			if (other.getPresent() != row.getPresent()) {
+				continue;
+			}
+			boolean equal = true;
+			for (int field = 0; equal && field < row.getGroup().size(); field++) {
+				String a = value(row, field);
+				equal = a == null || a.equals(value(other, field));
+			}
+			if (equal) {
+				return j;
+			}
+		}
+		return -1;
+	}
+
+	private static void comparePhotos(long id, ContactRecord.PhotoList before,
+			ContactRecord.PhotoList after, Listener listener) {
+		BitSet matched = new BitSet();
+		for (int i = 0; i < after.size(); i++) {
+			int j = findPhoto(before, after.getData(i), after.getLength(i), matched);
+			if (j < 0) {
+				listener.fieldChanged(id, ContactColumns.PHOTOS + "[" + i + "]", null,
+						after.getLength(i) + " bytes");
+			} else {
+				matched.set(j);
+			}
+		}
+		for (int j = matched.nextClearBit(0); j < before.size(); j = matched.nextClearBit(j + 1)) {
+			listener.fieldChanged(id, ContactColumns.PHOTOS + "[" + j + "]",
+					before.getLength(j) + " bytes", null);
+		}
+	}
+
+	private static int findPhoto(ContactRecord.PhotoList list, byte[] data, int length,
+			BitSet matched) {
+		for (int j = matched.nextClearBit(0); j < list.size(); j = matched.nextClearBit(j + 1)) {
+			if (list.getLength(j) != length) {
+				continue;
+			}
+			byte[] other = list.getData(j);
+			int k = 0;
+			while (k < length && other[k] == data[k]) {
+				k++;
+			}
+			if (k == length) {
+				return j;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return The value of a field as text, or null if it is missing
+	 */
+	private static String value(ContactRecord.Row row, int field) {
+		if (!row.has(field)) {
+			return null;
+		}
+		switch (row.getGroup().getType(field)) {
+		case ContactSchema.TYPE_INTEGER:
+			return Long.toString(row.getLong(field));
+		case ContactSchema.TYPE_BOOLEAN:
+			return row.getBoolean(field) ? "true" : "false";
+		default:
+			return row.getString(field);
+		}
+	}
+
+	/**
+	 * @return The fields of a row, like "number=555-1234, type=2"
+	 */
+	private static String describe(ContactRecord.Row row) {
+		StringBuilder result = new StringBuilder();
+		for (int field = 0; field < row.getGroup().size(); field++) {
+			String value = value(row, field);
+			if (value != null) {
+				if (result.length() > 0) {
+					result.append(", ");
+				}
+				result.append(row.getGroup().getKey(field)).append('=').append(value);
+			}
+		}
+		return result.toString();
+	}
+
+	/**
+	 * A 64 bit hash of the content of a contact, without its _ID. The child
+	 * rows and the photos are hashed one by one and added up, so their
+	 * order does not matter.
+	 *
+	 * @param record The contact, with its photos
+	 * @return The hash
+	 */
+	public static long hash(ContactRecord record) {
+		long hash = hash(FNV_OFFSET, record.person, ContactSchema.ID);
+		hash = hash * FNV_PRIME + hash(record.phones);
+		hash = hash * FNV_PRIME + hash(record.methods);
+		hash = hash * FNV_PRIME + hash(record.organizations);
+		long photos = 0;
+		for (int i = 0; i < record.photos.size(); i++) {
+			long photo = FNV_OFFSET;
+			byte[] data = record.photos.getData(i);
+			for (int j = 0; j < record.photos.getLength(i); j++) {
+				photo = (photo ^ (data[j] & 0xFF)) * FNV_PRIME;
+			}
+			photos += mix(photo);
+		}
+		return mix(hash * FNV_PRIME + photos);
+	}
+
+	private static long hash(ContactRecord.RowList rows) {
+		long result = rows.size();
+		for (int i = 0; i < rows.size(); i++) {
+			result += mix(hash(FNV_OFFSET, rows.get(i), -1));
+		}
+		return result;
+	}
+
+	/**
+	 * FNV-1a over the fields of a row
+	 *
+	 * @param skip A field left out, or -1
+	 */
+	private static long hash(long hash, ContactRecord.Row row, int skip) {
+		hash = (hash ^ (row.getPresent() & ~(skip < 0 ? 0 : 1L << skip))) * FNV_PRIME;
+		for (int field = 0; field < row.getGroup().size(); field++) {
+			if (field == skip || !row.has(field)) {
+				continue;
+			}
+			if (row.getGroup().getType(field) == ContactSchema.TYPE_INTEGER
+					|| row.getGroup().getType(field) == ContactSchema.TYPE_BOOLEAN) {
+				hash = (hash ^ row.getLong(field)) * FNV_PRIME;
+			} else {
+				String value = row.getString(field);
+				for (int i = 0; i < value.length(); i++) {
+					hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+				}
+				hash = (hash ^ value.length()) * FNV_PRIME;
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * The finalizer of MurmurHash3, so hashes which are added up stay well
+	 * spread
+	 */
+	private static long mix(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	/**
+	 * The _ID, hash and position of the contacts of a backup, in primitive
+	 * arrays, with an open addressing hash table on the _IDs
+	 */
+	private static class RecordTable {
+
+		long[] mIds = new long[1024];
+		long[] mHashes = new long[1024];
+		long[] mOffsets = new long[1024];
+		int[] mLengths = new int[1024];
+		int mSize;
+		final BitSet mSeen = new BitSet();
+
+		/** Entry + 1 per slot, 0 for a free slot */
+		private int[] mSlots = new int[2048];
+
+		void add(long id, long hash, long offset, int length, File file) throws IOException {
+			if (find(id) >= 0) {
+				throw new IOException(file.getName() + " has the _ID " + id + " twice");
+			}
+			if (mSize == mIds.length) {
+				mIds = BinaryFormat.copyOf(mIds, mSize * 2);
+				mHashes = BinaryFormat.copyOf(mHashes, mSize * 2);
+				mOffsets = BinaryFormat.copyOf(mOffsets, mSize * 2);
+				int[] lengths = new int[mSize * 2];
+				System.arraycopy(mLengths, 0, lengths, 0, mSize);
+				mLengths = lengths;
+			}
+			mIds[mSize] = id;
+			mHashes[mSize] = hash;
+			mOffsets[mSize] = offset;
+			mLengths[mSize] = length;
+			mSize++;
+			if (mSize * 2 > mSlots.length) {
+				mSlots = new int[mSlots.length * 2];
+				for (int entry = 0; entry < mSize; entry++) {
+					mSlots[freeSlot(mIds[entry])] = entry + 1;
+				}
+			} else {
+				mSlots[freeSlot(id)] = mSize;
+			}
+		}
+
+		/**
+		 * @return The entry of a contact, or -1
+		 */
+		int find(long id) {
+			int mask = mSlots.length - 1;
+			for (int slot = (int) mix(id) & mask; mSlots[slot] != 0; slot = (slot + 1) & mask) {
+				if (mIds[mSlots[slot] - 1] == id) {
+					return mSlots[slot] - 1;
+				}
+			}
+			return -1;
+		}
+
+		private int freeSlot(long id) {
+			int mask = mSlots.length - 1;
+			int slot = (int) mix(id) & mask;
+			while (mSlots[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+
+	}
+
+	/**
+	 * Compare two backups from the command line, like diff(1). The exit
+	 * status is 0 if they hold the same contacts, 1 if they differ and 2 on
+	 * errors.
+	 *
+	 * <pre>
+	 * java lu.albert.android.jsonbackup.format.BackupDiff [-q] before after
+	 * </pre>
+	 *
+	 * -q only prints the counts.
+	 *
+	 * @param args The command line arguments
+	 */
+	public static void main(String[] args) {
+		boolean quiet = args.length == 3 && args[0].equals("-q");
+		if (args.length != (quiet ? 3 : 2)) {
+			System.err.println("Usage: BackupDiff [-q] <before> <after>");
+			System.exit(2);
+		}
+		final boolean verbose = !quiet;
+		BackupDiff diff = new BackupDiff(new File(args[args.length - 2]),
+				new File(args[args.length - 1]));
+		try {
+			diff.run(new Listener() {
+				public void added(ContactRecord record) {
+					print('+', record);
+				}
+
+				public void removed(ContactRecord record) {
+					print('-', record);
+				}
+
+				public void changed(ContactRecord before, ContactRecord after) {
+					print('~', after);
+				}
+
+				public void fieldChanged(long id, String field, String before, String after) {
+					if (verbose) {
+						System.out.println("    " + field + ": " + quote(before) + " -> "
+								+ quote(after));
+					}
+				}
+
+				private void print(char kind, ContactRecord record) {
+					if (verbose) {
+						System.out.println(kind + " " + record.person.getLong(ContactSchema.ID)
+								+ " " + record.getName());
+					}
+				}
+
+				private String quote(String value) {
+					return value == null ? "(none)" : "\"" + value + "\"";
+				}
+			});
+		} catch (IOException e) {
+			System.err.println("BackupDiff: " + e.getMessage());
+			System.exit(2);
+		}
+		System.out.println(diff.getAdded() + " added, " + diff.getRemoved() + " removed, "
+				+ diff.getChanged() + " changed, " + diff.getUnchanged() + " unchanged"
+				+ (diff.isMerged() ? "" : " (unsorted)"));
+		System.exit(diff.getAdded() + diff.getRemoved() + diff.getChanged() == 0 ? 0 : 1);
+	}
+
+}
@@ -0,0 +1,655 @@
+package lu.albert.android.jsonbackup.format;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import lu.albert.android.jsonbackup.schema.ContactRecord;
+import lu.albert.android.jsonbackup.schema.ContactSchema;
+
+import org.json.JSONException;
+
+/**
+ * Merges several backups into one, without the duplicates, e.g. the backups
+ * of an old and a new phone.
+ *
+ * Two contacts are the same if they have the same name, ignoring case and
+ * punctuation, and share a phone number (compared on its last
+ * {@link MembershipFilter#MIN_MATCH} digits, like the number keys of the
+ * phone). Contacts without phone numbers are the same if their names are.
+ * The first contact of a group is kept, in the order of the backups; the
+ * others add their missing fields, phone numbers, contact methods and
+ * organizations to it.
+ *
+ * The backups are read twice. The first pass looks up the keys of every
+ * contact (a hash of the name and a number) in a hash table: contacts
+ * sharing a key are grouped with a union-find structure. Once the table is
+ * full, new keys are appended to partition files on disk instead, which
+ * are grouped one at a time after the pass. Apart from the table, about 21
+ * bytes are kept per contact. The second pass writes the contacts in order,
+ * and reads the duplicates of each group back by seeking, so the backups
+ * must be single files without a change log.
+ *
+ * The contacts of the merged backup are numbered from 1, since the _IDs of
+ * different phones overlap.
+ *
+ * Also runs on a plain JVM, see {@link #main(String[])}.
+ */
+public class BackupMerger {
+
+	/** The default number of keys kept in memory, about 1.5 MB */
+	public static final int DEFAULT_MAX_KEYS = 1 << 16;
+
+	/** The number of files the keys beyond the table are spread over */
+	private static final int PARTITIONS = 16;
+
+	/** The most backups merged at once, so their number fits a byte */
+	private static final int MAX_INPUTS = 255;
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final File[] mInputs;
+	private final File mTempFolder;
+	private int mMaxKeys = DEFAULT_MAX_KEYS;
+
+	/* per contact, in the order they are read */
+	private byte[] mSources = new byte[1024];
+	private long[] mOffsets = new long[1024];
+	private int[] mLengths = new int[1024];
+	private int[] mParents = new int[1024];
+	private int mCount;
+
+	/** The next contact of the same group, or -1, see {@link #link()} */
+	private int[] mNext;
+
+	private long mSpilled;
+	private int mWritten;
+
+	/**
+	 * Constructor
+	 *
+	 * @param inputs The backups to merge. Where contacts are the same, the
+	 *            one of the first backup is kept.
+	 * @param tempFolder Where the keys which do not fit in memory are written
+	 */
+	public BackupMerger(File[] inputs, File tempFolder) {
+		if (inputs.length == 0 || inputs.length > MAX_INPUTS) {
+			throw new IllegalArgumentException("Cannot merge " + inputs.length + " backups");
+		}
+		mInputs = inputs;
+		mTempFolder = tempFolder;
+	}
+
+	/**
+	 * @param maxKeys The number of keys kept in memory, in a table of 24
+	 *            bytes per key. The following ones are written to disk.
+	 */
+	public void setMaxKeys(int maxKeys) {
+		mMaxKeys = maxKeys;
+	}
+
+	/** @return The number of contacts read from all backups */
+	public int getReadCount() {
+		return mCount;
+	}
+
+	/** @return The number of contacts of the merged backup */
+	public int getWrittenCount() {
+		return mWritten;
+	}
+
+	/** @return The number of keys which did not fit in memory */
+	public long getSpilledKeys() {
+		return mSpilled;
+	}
+
+	/**
+	 * Merge the backups. The result is written to a temporary file first,
+	 * with a {@link RecordIndex}, and replaces the output once complete.
+	 *
+	 * @param output The merged backup, binary if its name ends with
+	 *            {@link BinaryFormat#FILE_EXTENSION}
+	 * @throws IOException when a backup cannot be read or cannot seek, or
+	 *             the result cannot be written
+	 */
+	public void merge(File output) throws IOException {
+		mCount = 0;
+		mSpilled = 0;
+		mWritten = 0;
+		group();
+		link();
+
+		File temp = new File(output.getParentFile(), output.getName() + ".tmp");
+		File tempIndex = RecordIndex.indexFileFor(temp);
+		OutputStream out = null;
+		RecordIndex.Writer index = null;
+		boolean success = false;
+		try {
+			out = new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024);
+			ContactWriter writer = output.getName().endsWith(BinaryFormat.FILE_EXTENSION)
+					? new BinaryContactWriter(out) : new JsonContactWriter(out);
+			index = new RecordIndex.Writer(tempIndex);
+			writer.setIndex(index);
+			write(writer);
+			writer.close();
+			index.close(temp.length());
+			success = true;
+		} catch (JSONException e) {
+			throw new IOException(e.getMessage());
+		} finally {
+			BinaryFormat.closeQuietly(out);
+			if (!success) {
+				if (index != null) {
+					index.abort();
+				}
+				tempIndex.delete();
+				temp.delete();
+			}
+		}
+		RecordIndex.indexFileFor(output).delete();
+		output.delete();
+		if (!temp.renameTo(output)) {
+			throw new IOException("Unable to replace " + output);
+		}
+		tempIndex.renameTo(RecordIndex.indexFileFor(output));
+	}
+
+	/**
+	 * First pass: read the keys of all contacts and group the ones which
+	 * share one
+	 */
+	private void group() throws IOException {
+		KeyIndex keys = new KeyIndex(mMaxKeys);
+		try {
+			ContactRecord record = new ContactRecord();
+			for (int source = 0; source < mInputs.length; source++) {
+				File file = mInputs[source];
+				if (ShardManifest.isManifest(file) || ChangeLog.hasLog(file)) {
+					throw new IOException(file.getName()
+							+ " is sharded or incremental, and cannot be merged");
+				}
+				ContactScanner scanner = ContactReaders.scan(file);
+				try {
+					scanner.setPersonOnly(false);
+					scanner.setSkipPhotos(true);
+					while (scanner.read(record)) {
+						int contact = add(source, scanner.getRecordOffset(),
+								scanner.getRecordLength());
+						addKeys(keys, record, contact);
+					}
+				} finally {
+					scanner.close();
+				}
+			}
+			mSpilled = keys.mSpilled;
+			keys.close();
+			for (int partition = 0; partition < PARTITIONS; partition++) {
+				if (keys.hasSpilled(partition)) {
+					groupSpilled(keys.spillFile(partition));
+				}
+			}
+		} finally {
+			keys.delete();
+		}
+	}
+
+	/**
+	 * Group the contacts sharing the keys of one partition file, in a table
+	 * of its own
+	 */
+	private void groupSpilled(File file) throws IOException {
+		int entries = (int) (file.length() / 12);
+		KeyIndex keys = new KeyIndex(entries);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file), 64 * 1024));
+		try {
+			for (int i = 0; i < entries; i++) {
+				keys.add(in.readLong(), in.readInt());
+			}
+		} finally {
+			in.close();
+		}
+		file.delete();
+	}
+
+	/**
+	 * Add the keys of a contact: its name with each of its phone numbers,
+	 * or its name alone if it has none
+	 */
+	private static void addKeys(KeyIndex keys, ContactRecord record, int contact)
+			throws IOException {
+		long name = hash(FNV_OFFSET, normalize(record.getName()));
+		boolean numbers = false;
+		for (int i = 0; i < record.phones.size(); i++) {
+			String key = numberKey(record.phones.get(i));
+			if (key != null && key.length() > 0) {
+				if (key.length() > MembershipFilter.MIN_MATCH) {
+					key = key.substring(0, MembershipFilter.MIN_MATCH);
+				}
+				keys.add(mix(hash(name * FNV_PRIME + 1, key)), contact);
+				numbers = true;
+			}
+		}
+		if (!numbers && record.getName().trim().length() > 0) {
+			keys.add(mix(name), contact);
+		}
+	}
+
+	/**
+	 * @return The name in lower case, only its letters and digits, with one
+	 *         space between words
+	 */
+	static String normalize(String name) {
+		StringBuilder result = new StringBuilder(name.length());
+		boolean space = false;
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (Character.isLetterOrDigit(c)) {
+				if (space && result.length() > 0) {
+					result.append(' ');
+				}
+				result.append(Character.toLowerCase(c));
+				space = false;
+			} else {
+				space = true;
+			}
+		}
+		return result.toString();
+	}
+
+	/**
+	 * @return The digits of the number key of a phone row, last one first,
+	 *         null if it has no number
+	 */
+	private static String numberKey(ContactRecord.Row phone) {
+		if (phone.has(ContactSchema.PHONE_NUMBER_KEY)) {
+			return SearchIndex.digits(phone.getString(ContactSchema.PHONE_NUMBER_KEY)).toString();
+		} else if (phone.has(ContactSchema.PHONE_NUMBER)) {
+			return SearchIndex.phoneKey(phone.getString(ContactSchema.PHONE_NUMBER));
+		}
+		return null;
+	}
+
+	private int add(int source, long offset, int length) {
+		if (mCount == mOffsets.length) {
+			int size = mCount * 2;
+			byte[] sources = new byte[size];
+			long[] offsets = new long[size];
+			int[] lengths = new int[size];
+			int[] parents = new int[size];
+			System.arraycopy(mSources, 0, sources, 0, mCount);
+			System.arraycopy(mOffsets, 0, offsets, 0, mCount);
+			System.arraycopy(mLengths, 0, lengths, 0, mCount);
+			System.arraycopy(mParents, 0, parents, 0, mCount);
+			mSources = sources;
+			mOffsets = offsets;
+			mLengths = lengths;
+			mParents = parents;
+		}
+		mSources[mCount] = (byte) source;
+		mOffsets[mCount] = offset;
+		mLengths[mCount] = length;
+		mParents[mCount] = mCount;
+		return mCount++;
+	}
+
+	/**
+	 * @return The first contact of the group of a contact
+	 */
+	private int find(int contact) {
+		while (mParents[contact] != contact) {
+			/* path halving */
+			mParents[contact] = mParents[mParents[contact]];
+			contact = mParents[contact];
+		}
+		return contact;
+	}
+
+	/**
+	 * Put two contacts in the same group. The first contact read stays the
+	 * first of the group.
+	 */
+	private void union(int a, int b) {
+		a = find(a);
+		b = find(b);
+		if (a < b) {
+			mParents[b] = a;
+		} else if (b < a) {
+			mParents[a] = b;
+		}
+	}
+
+	/**
+	 * Point every contact at the first one of its group, and chain the
+	 * other contacts of each group from it, in order
+	 */
+	private void link() {
+		mNext = new int[mCount];
+		Arrays.fill(mNext, -1);
+		for (int contact = mCount - 1; contact >= 0; contact--) {
+			int first = find(contact);
+			mParents[contact] = first;
+			if (first != contact) {
+				mNext[contact] = mNext[first];
+				mNext[first] = contact;
+			}
+		}
+	}
+
+	/**
+	 * Second pass: write the first contact of every group, merged with the
+	 * others
+	 */
+	private void write(ContactWriter writer) throws IOException, JSONException {
+		ContactScanner[] lookups = new ContactScanner[mInputs.length];
+		ContactRecord record = new ContactRecord();
+		ContactRecord duplicate = new ContactRecord();
+		int contact = 0;
+		try {
+			for (int source = 0; source < mInputs.length; source++) {
+				ContactScanner scanner = ContactReaders.scan(mInputs[source]);
+				try {
+					while (contact < mCount && mSources[contact] == (byte) source) {
+						boolean first = mParents[contact] == contact;
+						/* the duplicates are only read with their group */
+						scanner.setPersonOnly(!first);
+						if (!scanner.read(record)) {
+							throw new IOException(mInputs[source].getName() + " changed");
+						}
+						if (first) {
+							for (int other = mNext[contact]; other >= 0; other = mNext[other]) {
+								read(lookups, other, duplicate);
+								absorb(record, duplicate);
+							}
+							mWritten++;
+							record.person.setLong(ContactSchema.ID, mWritten);
+							writer.write(record);
+						}
+						contact++;
+					}
+				} finally {
+					scanner.close();
+				}
+			}
+		} finally {
+			for (int i = 0; i < lookups.length; i++) {
+				if (lookups[i] != null) {
+					lookups[i].close();
+				}
+			}
+		}
+	}
+
+	private void read(ContactScanner[] lookups, int contact, ContactRecord record)
+			throws IOException {
+		int source = mSources[contact] & 0xFF;
+		if (lookups[source] == null) {
+			lookups[source] = ContactReaders.scan(mInputs[source]);
+			lookups[source].setPersonOnly(false);
+		}
+		lookups[source].seek(mOffsets[contact], mLengths[contact]);
+		if (!lookups[source].read(record)) {
+			throw new IOException("No record at offset " + mOffsets[contact]);
+		}
+	}
+
+	/**
+	 * Merge a duplicate into a contact: its missing fields, and the phone
+	 * numbers, contact methods and organizations it does not have yet
+	 *
+	 * @param record The contact which is kept
+	 * @param duplicate The duplicate
+	 */
+	static void absorb(ContactRecord record, ContactRecord duplicate) {
+		ContactRecord.Row person = record.person;
+		ContactRecord.Row other = duplicate.person;
+		for (int field = 0; field < person.getGroup().size(); field++) {
+			if (field != ContactSchema.ID && !person.has(field) && other.has(field)) {
+				copy(other, person, field);
+			}
+		}
+		if (other.getBoolean(ContactSchema.STARRED)) {
+			person.setBoolean(ContactSchema.STARRED, true);
+		}
+		person.setLong(ContactSchema.TIMES_CONTACTED, Math.max(
+				person.getLong(ContactSchema.TIMES_CONTACTED),
+				other.getLong(ContactSchema.TIMES_CONTACTED)));
+		person.setLong(ContactSchema.LAST_TIME_CONTACTED, Math.max(
+				person.getLong(ContactSchema.LAST_TIME_CONTACTED),
+				other.getLong(ContactSchema.LAST_TIME_CONTACTED)));
+
+		for (int i = 0; i < duplicate.phones.size(); i++) {
+			ContactRecord.Row phone = duplicate.phones.get(i);
+			if (!hasPhone(record, numberKey(phone))) {
+				record.phones.add().copyFrom(phone);
+			}
+		}
+		for (int i = 0; i < duplicate.methods.size(); i++) {
+			ContactRecord.Row method = duplicate.methods.get(i);
+			if (!hasRow(record.methods, method, ContactSchema.METHOD_KIND,
+					ContactSchema.METHOD_DATA)) {
+				record.methods.add().copyFrom(method);
+			}
+		}
+		for (int i = 0; i < duplicate.organizations.size(); i++) {
+			ContactRecord.Row organization = duplicate.organizations.get(i);
+			if (!hasRow(record.organizations, organization,
+					ContactSchema.ORGANIZATION_COMPANY, ContactSchema.ORGANIZATION_TITLE)) {
+				record.organizations.add().copyFrom(organization);
+			}
+		}
+		if (record.photos.size() == 0 && duplicate.photos.size() > 0) {
+			record.photos.copyFrom(duplicate.photos);
+			copy(other, person, ContactSchema.PHOTO_VERSION);
+		}
+	}
+
+	private static void copy(ContactRecord.Row from, ContactRecord.Row to, int field) {
+		if (!from.has(field)) {
+			to.remove(field);
+		} else if (from.getGroup().getType(field) == ContactSchema.TYPE_INTEGER
+				|| from.getGroup().getType(field) == ContactSchema.TYPE_BOOLEAN) {
+			to.setLong(field, from.getLong(field));
+		} else {
+			to.setString(field, from.getString(field));
+		}
+	}
+
+	/**
+	 * @return true if the contact has a phone number with that key
+	 */
+	private static boolean hasPhone(ContactRecord record, String key) {
+		if (key == null) {
+			return false;
+		}
+		for (int i = 0; i < record.phones.size(); i++) {
+			String other = numberKey(record.phones.get(i));
+			if (other != null && (SearchIndex.samePhone(other, key)
+					|| SearchIndex.samePhone(key, other))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if the list has a row with the same two fields, ignoring
+	 *         case and surrounding spaces
+	 */
+	private static boolean hasRow(ContactRecord.RowList rows, ContactRecord.Row row,
+			int first, int second) {
+		for (int i = 0; i < rows.size(); i++) {
+			ContactRecord.Row other = rows.get(i);
+			if (sameValue(row, other, first) && sameValue(row, other, second)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean sameValue(ContactRecord.Row a, ContactRecord.Row b, int field) {
+		if (a.has(field) != b.has(field)) {
+			return false;
+		}
+		if (a.getGroup().getType(field) == ContactSchema.TYPE_INTEGER) {
+			return a.getLong(field) == b.getLong(field);
+		}
+		return !a.has(field) || a.getString(field).trim().equalsIgnoreCase(
+				b.getString(field).trim());
+	}
+
+	private static long hash(long hash, String text) {
+		for (int i = 0; i < text.length(); i++) {
+			hash = (hash ^ text.charAt(i)) * FNV_PRIME;
+		}
+		return (hash ^ text.length()) * FNV_PRIME;
+	}
+
+	/**
+	 * The finalizer of MurmurHash3, so every bit of a key counts for its
+	 * slot and its partition
+	 */
+	private static long mix(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	/**
+	 * The first contact seen with each key, in an open addressing hash
+	 * table of a fixed size. Once it is full, the keys which are not in it
+	 * yet go to the partition files: all contacts with such a key do, since
+	 * it can never be added later.
+	 */
+	private class KeyIndex {
+
+		private final long[] mKeys;
+		/** Contact + 1 per slot, 0 for a free slot */
+		private final int[] mContacts;
+		private final int mMax;
+		private int mSize;
+
+		private DataOutputStream[] mSpills;
+		long mSpilled;
+
+		KeyIndex(int max) {
+			int capacity = 16;
+			while (capacity < max * 2) {
+				capacity *= 2;
+			}
+			mKeys = new long[capacity];
+			mContacts = new int[capacity];
+			mMax = max;
+		}
+
+		void add(long key, int contact) throws IOException {
+			int mask = mKeys.length - 1;
+			int slot = (int) key & mask;
+			while (mContacts[slot] != 0) {
+				if (mKeys[slot] == key) {
+					union(mContacts[slot] - 1, contact);
+					return;
+				}
+				slot = (slot + 1) & mask;
+			}
+			if (mSize < mMax) {
+				mKeys[slot] = key;
+				mContacts[slot] = contact + 1;
+				mSize++;
+				return;
+			}
+			int partition = (int) (key >>> 60) & (PARTITIONS - 1);
+			if (mSpills == null) {
+				mSpills = new DataOutputStream[PARTITIONS];
+			}
+			if (mSpills[partition] == null) {
+				mSpills[partition] = new DataOutputStream(new BufferedOutputStream(
+						new FileOutputStream(spillFile(partition)), 16 * 1024));
+			}
+			mSpills[partition].writeLong(key);
+			mSpills[partition].writeInt(contact);
+			mSpilled++;
+		}
+
+		File spillFile(int partition) {
+			return new File(mTempFolder, "merge-" + partition + ".tmp");
+		}
+
+		boolean hasSpilled(int partition) {
+			return mSpills != null && mSpills[partition] != null;
+		}
+
+		void close() throws IOException {
+			for (int i = 0; i < PARTITIONS; i++) {
+				if (hasSpilled(i)) {
+					mSpills[i].close();
+				}
+			}
+		}
+
+		/**
+		 * Close and delete the partition files which are left
+		 */
+		void delete() {
+			for (int i = 0; i < PARTITIONS; i++) {
+				if (hasSpilled(i)) {
+					BinaryFormat.closeQuietly(mSpills[i]);
+					spillFile(i).delete();
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Merge backups from the command line:
+	 *
+	 * <pre>
+	 * java lu.albert.android.jsonbackup.format.BackupMerger [-k keys] output input...
+	 * </pre>
+	 *
+	 * -k sets the number of keys kept in memory.
+	 *
+	 * @param args The command line arguments
+	 */
+	public static void main(String[] args) {
+		int first = 0;
+		int maxKeys = DEFAULT_MAX_KEYS;
+		if (args.length > 1 && args[0].equals("-k")) {
+			maxKeys = Integer.parseInt(args[1]);
+			first = 2;
+		}
+		if (args.length - first < 2) {
+			System.err.println("Usage: BackupMerger [-k <keys>] <output> <input>...");
+			System.exit(2);
+		}
+		File output = new File(args[first]).getAbsoluteFile();
+		File[] inputs = new File[args.length - first - 1];
+		for (int i = 0; i < inputs.length; i++) {
+			inputs[i] = new File(args[first + 1 + i]);
+		}
+		BackupMerger merger = new BackupMerger(inputs, output.getParentFile());
+		merger.setMaxKeys(maxKeys);
+		try {
+			merger.merge(output);
+		} catch (IOException e) {
+			System.err.println("BackupMerger: " + e.getMessage());
+			System.exit(2);
+		}
+		System.out.println("Merged " + merger.getReadCount() + " contacts of " + inputs.length
+				+ " backups into " + merger.getWrittenCount() + " (" + merger.getSpilledKeys()
+				+ " keys spilled to disk)");
+	}
+
+}
@@ -0,0 +1,414 @@
+package lu.albert.android.jsonbackup.format;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import lu.albert.android.jsonbackup.schema.ContactRecord;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Summary information about a backup file: which format version it uses,
+ * how many contacts and child rows it contains, and where it comes from.
+ *
+ * The writers collect this information while writing the contacts and store
+ * it at the end of the file. In JSON backups it is the last element of the
+ * root array (an object with the single key {@link #KEY}), in binary backups
+ * it is stored in a section of the trailer. This allows a restore to check a
+ * file (and size its buffers) before touching the contacts on the device.
+ */
+public class BackupMetadata {
+
+	/** The key of the JSON object holding the metadata */
+	public static final String KEY = "_meta";
+
+	/** The JSON layout version. Files without metadata are version 1. */
+	public static final int JSON_VERSION = 2;
+
+	/** How far from the end of a JSON file we look for the metadata */
+	private static final int MAX_TAIL_SIZE = 64 * 1024;
+
+	private static final String VERSION = "version";
+	private static final String CONTACTS = "contacts";
+	private static final String PHOTOS = "photos";
+	private static final String PHOTO_BYTES = "photo_bytes";
+	private static final String PHONE_NUMBERS = "phone_numbers";
+	private static final String CONTACT_METHODS = "contact_methods";
+	private static final String ORGANIZATIONS = "organizations";
+	private static final String MAX_RECORD_SIZE = "max_record_size";
+	private static final String CREATED = "created";
+	private static final String DEVICE = "device";
+	private static final String DATA_LENGTH = "data_length";
+	private static final String FILE_CRC = "file_crc";
+	private static final String FILTER_OFFSET = "filter_offset";
+	private static final String FILTER_LENGTH = "filter_length";
+
+	private int mVersion;
+	private int mContactCount;
+	private int mPhotoCount;
+	private long mPhotoBytes;
+	private int mPhoneCount;
+	private int mMethodCount;
+	private int mOrganizationCount;
+	private int mMaxRecordSize;
+	private long mCreated;
+	private String mDevice;
+	private long mDataLength;
+	private long mFileCrc;
+	private long mFilterOffset;
+	private int mFilterLength;
+
+	/**
+	 * Constructor
+	 *
+	 * @param version The format version of the file
+	 */
+	public BackupMetadata(int version) {
+		mVersion = version;
+		mCreated = System.currentTimeMillis();
+		mDevice = "";
+		mDataLength = -1;
+		mFileCrc = -1;
+		mFilterOffset = -1;
+	}
+
+	/**
+	 * Update the counters with a contact that has just been written
+	 *
+	 * @param contact The contact
+	 * @param recordSize The number of bytes the contact took in the file
+	 */
+	public void account(ContactRecord contact, int recordSize) {
+		long photoBytes = 0;
+		for (int i = 0; i < contact.photos.size(); i++) {
+			photoBytes += contact.photos.getLength(i);
+		}
+		account(contact.phones.size(), contact.methods.size(),
+				contact.organizations.size(), contact.photos.size(), photoBytes, recordSize);
+	}
+
+	/**
+	 * Update the counters with a contact that was copied as it is from
+	 * another backup
+	 *
+	 * @param phones The number of phone numbers of the contact
+	 * @param methods The number of contact methods
+	 * @param organizations The number of organizations
+	 * @param photos The number of photos
+	 * @param photoBytes The size of the photos, decoded
+	 * @param recordSize The number of bytes the contact took in the file
+	 */
+	public void account(int phones, int methods, int organizations, int photos,
+			long photoBytes, int recordSize) {
+		mContactCount++;
+		mPhoneCount += phones;
+		mMethodCount += methods;
+		mOrganizationCount += organizations;
+		mPhotoCount += photos;
+		mPhotoBytes += photoBytes;
+		mMaxRecordSize = Math.max(mMaxRecordSize, recordSize);
+	}
+
+	/**
+	 * @return The metadata as JSON object, wrapped in an object with the key
+	 *         {@link #KEY}
+	 * @throws JSONException never, unless the JSON library is broken
+	 */
+	public JSONObject toJSON() throws JSONException {
+		JSONObject meta = new JSONObject();
+		meta.put(VERSION, mVersion);
+		meta.put(CONTACTS, mContactCount);
+		meta.put(PHOTOS, mPhotoCount);
+		meta.put(PHOTO_BYTES, mPhotoBytes);
+		meta.put(PHONE_NUMBERS, mPhoneCount);
+		meta.put(CONTACT_METHODS, mMethodCount);
+		meta.put(ORGANIZATIONS, mOrganizationCount);
+		meta.put(MAX_RECORD_SIZE, mMaxRecordSize);
+		meta.put(CREATED, mCreated);
+		meta.put(DEVICE, mDevice);
+		meta.put(DATA_LENGTH, mDataLength);
+		meta.put(FILE_CRC, mFileCrc);
+		if (mFilterOffset >= 0) {
+			meta.put(FILTER_OFFSET, mFilterOffset);
+			meta.put(FILTER_LENGTH, mFilterLength);
+		}
+		JSONObject wrapper = new JSONObject();
+		wrapper.put(KEY, meta);
+		return wrapper;
+	}
+
+	/**
+	 * @param wrapper An object as returned by {@link #toJSON()}
+	 * @return The decoded metadata
+	 * @throws JSONException if the object does not contain metadata
+	 */
+	public static BackupMetadata fromJSON(JSONObject wrapper) throws JSONException {
+		JSONObject meta = wrapper.getJSONObject(KEY);
+		BackupMetadata result = new BackupMetadata(meta.getInt(VERSION));
+		result.mContactCount = meta.optInt(CONTACTS);
+		result.mPhotoCount = meta.optInt(PHOTOS);
+		result.mPhotoBytes = meta.optLong(PHOTO_BYTES);
+		result.mPhoneCount = meta.optInt(PHONE_NUMBERS);
+		result.mMethodCount = meta.optInt(CONTACT_METHODS);
+		result.mOrganizationCount = meta.optInt(ORGANIZATIONS);
+		result.mMaxRecordSize = meta.optInt(MAX_RECORD_SIZE);
+		result.mCreated = meta.optLong(CREATED);
+		result.mDevice = meta.optString(DEVICE);
+		result.mDataLength = meta.optLong(DATA_LENGTH, -1);
+		result.mFileCrc = meta.optLong(FILE_CRC, -1);
+		result.mFilterOffset = meta.optLong(FILTER_OFFSET, -1);
+		result.mFilterLength = meta.optInt(FILTER_LENGTH);
+		return result;
+	}
+
+	/**
+	 * Encode the metadata for the binary format. New fields must be
+	 * appended, older readers simply ignore the rest of the section.
+	 *
+	 * @return The encoded section payload
+	 * @throws IOException never
+	 */
+	byte[] toBytes() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+		BinaryFormat.writeVarLong(out, mVersion);
+		BinaryFormat.writeVarLong(out, mContactCount);
+		BinaryFormat.writeVarLong(out, mPhotoCount);
+		BinaryFormat.writeVarLong(out, mPhotoBytes);
+		BinaryFormat.writeVarLong(out, mPhoneCount);
+		BinaryFormat.writeVarLong(out, mMethodCount);
+		BinaryFormat.writeVarLong(out, mOrganizationCount);
+		BinaryFormat.writeVarLong(out, mMaxRecordSize);
+		BinaryFormat.writeVarLong(out, mCreated);
+		byte[] device = mDevice.getBytes("UTF-8");
+		BinaryFormat.writeVarLong(out, device.length);
+		out.write(device);
+		BinaryFormat.writeVarLong(out, mDataLength + 1);
+		BinaryFormat.writeVarLong(out, mFileCrc + 1);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decode the metadata from a binary section
+	 *
+	 * @param in The section payload
+	 * @return The decoded metadata
+	 * @throws IOException if the section is truncated
+	 */
+	static BackupMetadata fromBytes(InputStream in) throws IOException {
+		BackupMetadata result = new BackupMetadata((int) BinaryFormat.readVarLong(in));
+		result.mContactCount = (int) BinaryFormat.readVarLong(in);
+		result.mPhotoCount = (int) BinaryFormat.readVarLong(in);
+		result.mPhotoBytes = BinaryFormat.readVarLong(in);
+		result.mPhoneCount = (int) BinaryFormat.readVarLong(in);
+		result.mMethodCount = (int) BinaryFormat.readVarLong(in);
+		result.mOrganizationCount = (int) BinaryFormat.readVarLong(in);
+		result.mMaxRecordSize = (int) BinaryFormat.readVarLong(in);
+		result.mCreated = BinaryFormat.readVarLong(in);
+		byte[] device = new byte[(int) BinaryFormat.readVarLong(in)];
+		BinaryFormat.readFully(in, device, 0, device.length);
+		result.mDevice = new String(device, "UTF-8");
+		if (in.available() > 0) {
+			/* stored off by one, so "unknown" (-1) takes a single byte */
+			result.mDataLength = BinaryFormat.readVarLong(in) - 1;
+			result.mFileCrc = BinaryFormat.readVarLong(in) - 1;
+		}
+		return result;
+	}
+
+	/**
+	 * Read the metadata of a backup file without reading the contacts.
+	 *
+	 * @param file The backup file (JSON, binary or a shard manifest)
+	 * @return The metadata, or null if the file was written by a version
+	 *         which did not store any metadata. If the backup has a
+	 *         {@link ChangeLog}, the metadata stored by its last commit.
+	 * @throws IOException if the file is unreadable, truncated, or was
+	 *             written in a format version which is not supported
+	 */
+	public static BackupMetadata read(File file) throws IOException {
+		if (ChangeLog.hasLog(file)) {
+			BackupMetadata replayed = ChangeLog.readMetadata(file);
+			if (replayed != null) {
+				return replayed;
+			}
+		}
+		return readSnapshot(file);
+	}
+
+	/**
+	 * Read the metadata of a backup file, ignoring its change log
+	 *
+	 * @param file The backup file (JSON, binary or a shard manifest)
+	 * @return The metadata, or null if the file has none
+	 * @throws IOException if the file is unreadable or unsupported
+	 */
+	static BackupMetadata readSnapshot(File file) throws IOException {
+		BackupMetadata result;
+		if (ShardManifest.isManifest(file)) {
+			result = ShardManifest.read(file).getMetadata();
+		} else if (BinaryFormat.isBinary(file)) {
+			BinaryContactReader reader = new BinaryContactReader(file);
+			result = reader.getMetadata();
+			reader.close();
+			if (result != null && result.mVersion > BinaryFormat.VERSION) {
+				throw new IOException("Unsupported binary backup version "
+						+ result.mVersion);
+			}
+		} else {
+			result = readJsonTail(file);
+			if (result != null && result.mVersion > JSON_VERSION) {
+				throw new IOException("Unsupported JSON backup version "
+						+ result.mVersion);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * The metadata is the last element of the JSON array. So we only need to
+	 * look at the end of the file.
+	 */
+	private static BackupMetadata readJsonTail(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		String tail;
+		try {
+			int size = (int) Math.min(raf.length(), MAX_TAIL_SIZE);
+			byte[] bytes = new byte[size];
+			raf.seek(raf.length() - size);
+			raf.readFully(bytes);
+			tail = new String(bytes, "UTF-8");
+		} finally {
+			raf.close();
+		}
+
+		String trimmed = tail.trim();
+		if (trimmed.length() == 0 || !trimmed.endsWith("]")) {
+			throw new IOException("Truncated JSON backup");
+		}
+
+		int start = tail.lastIndexOf("{\"" + KEY + "\"");
+		if (start == -1) {
+			/* Written before metadata was introduced */
+			return null;
+		}
+		try {
+			return fromJSON(new JSONObject(new JSONTokener(tail.substring(start))));
+		} catch (JSONException e) {
+			throw new IOException("Corrupt backup metadata: " + e.getMessage());
+		}
+	}
+
+	/** @return The format version of the file */
+	public int getVersion() {
+		return mVersion;
+	}
+
+	/** @return The number of contacts in the file */
+	public int getContactCount() {
+		return mContactCount;
+	}
+
+	/** @return The number of photos in the file */
+	public int getPhotoCount() {
+		return mPhotoCount;
+	}
+
+	/** @return The total size of the (decoded) photos */
+	public long getPhotoBytes() {
+		return mPhotoBytes;
+	}
+
+	/** @return The number of phone numbers in the file */
+	public int getPhoneCount() {
+		return mPhoneCount;
+	}
+
+	/** @return The number of contact methods in the file */
+	public int getMethodCount() {
+		return mMethodCount;
+	}
+
+	/** @return The number of organizations in the file */
+	public int getOrganizationCount() {
+		return mOrganizationCount;
+	}
+
+	/** @return The size in bytes of the largest contact in the file */
+	public int getMaxRecordSize() {
+		return mMaxRecordSize;
+	}
+
+	/** @return When the backup was created (milliseconds since the epoch) */
+	public long getCreated() {
+		return mCreated;
+	}
+
+	/** @return A description of the device the backup was created on */
+	public String getDevice() {
+		return mDevice;
+	}
+
+	/**
+	 * @return The number of bytes covered by {@link #getFileCrc()}, or -1 if
+	 *         the file does not contain a checksum
+	 */
+	public long getDataLength() {
+		return mDataLength;
+	}
+
+	/**
+	 * @return The CRC32 of the first {@link #getDataLength()} bytes of the
+	 *         file, or -1 if the file does not contain a checksum
+	 */
+	public long getFileCrc() {
+		return mFileCrc;
+	}
+
+	/**
+	 * @param dataLength The number of bytes preceding the metadata
+	 * @param crc The CRC32 of those bytes
+	 */
+	public void setChecksum(long dataLength, long crc) {
+		mDataLength = dataLength;
+		mFileCrc = crc;
+	}
+
+	/**
+	 * @return Where the element holding the {@link MembershipFilter} of a
+	 *         JSON backup starts, -1 if there is none. Binary backups store
+	 *         it in a section.
+	 */
+	long getFilterOffset() {
+		return mFilterOffset;
+	}
+
+	/**
+	 * @return The size of the element holding the {@link MembershipFilter}
+	 */
+	int getFilterLength() {
+		return mFilterLength;
+	}
+
+	/**
+	 * @param offset Where the element holding the {@link MembershipFilter}
+	 *            starts in a JSON backup
+	 * @param length The size of the element
+	 */
+	void setFilter(long offset, int length) {
+		mFilterOffset = offset;
+		mFilterLength = length;
+	}
+
+	/**
+	 * @param device A description of the device the backup is created on
+	 */
+	public void setDevice(String device) {
+		mDevice = device == null ? "" : device;
+	}
+
+}
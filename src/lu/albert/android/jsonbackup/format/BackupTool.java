@@ -0,0 +1,480 @@
+package lu.albert.android.jsonbackup.format;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import lu.albert.android.jsonbackup.schema.ContactRecord;
+import lu.albert.android.jsonbackup.schema.ContactSchema;
+
+import org.json.JSONException;
+
+/**
+ * Converts, checks and inspects backup files on a plain JVM, with the
+ * readers and writers of the app. The org.json classes must be on the class
+ * path:
+ *
+ * <pre>
+ * java lu.albert.android.jsonbackup.format.BackupTool &lt;command&gt; ...
+ *
+ * convert -f &lt;format&gt; -o &lt;folder&gt; [-j &lt;threads&gt;] &lt;backup&gt;...
+ * validate [-j &lt;threads&gt;] &lt;backup&gt;...
+ * stats &lt;backup&gt;
+ * photos -o &lt;folder&gt; &lt;backup&gt;
+ * diff ...   (see {@link BackupDiff})
+ * merge ...  (see {@link BackupMerger})
+ * </pre>
+ *
+ * The formats are pretty and compact JSON, NDJSON, compressed (gzipped
+ * compact JSON) and binary; all of them can be read back. convert and
+ * validate work on one backup per thread, by default as many threads as
+ * there are processors.
+ */
+public class BackupTool {
+
+	/** The formats convert writes */
+	private static final String[] FORMATS = { "pretty", "compact", "ndjson", "compressed",
+			"binary" };
+	private static final int PRETTY = 0;
+	private static final int NDJSON = 2;
+	private static final int COMPRESSED = 3;
+	private static final int BINARY = 4;
+
+	/** The extension of compressed backups */
+	public static final String GZIP_EXTENSION = ".gz";
+
+	private static final String[] EXTENSIONS = { ".json", ".json",
+			NdjsonContactWriter.FILE_EXTENSION, ".json" + GZIP_EXTENSION,
+			BinaryFormat.FILE_EXTENSION };
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The work done on each backup of a command
+	 */
+	private interface Job {
+
+		/**
+		 * @param file The backup
+		 * @return What is printed about it
+		 * @throws IOException when the backup cannot be handled
+		 */
+		String run(File file) throws IOException;
+
+	}
+
+	/* the options of the command line */
+	private int mFormat = -1;
+	private File mFolder;
+	private int mThreads = Runtime.getRuntime().availableProcessors();
+	private final List<File> mFiles = new ArrayList<File>();
+
+	/**
+	 * @param args The command line arguments
+	 */
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			usage();
+		}
+		String command = args[0];
+		String[] rest = new String[args.length - 1];
+		System.arraycopy(args, 1, rest, 0, rest.length);
+		if (command.equals("diff")) {
+			BackupDiff.main(rest);
+			return;
+		} else if (command.equals("merge")) {
+			BackupMerger.main(rest);
+			return;
+		}
+
+		BackupTool tool = new BackupTool();
+		tool.parse(rest);
+		int status;
+		try {
+			if (command.equals("convert") && tool.mFormat >= 0 && tool.mFolder != null) {
+				status = tool.convert();
+			} else if (command.equals("validate")) {
+				status = tool.validate();
+			} else if (command.equals("stats") && tool.mFiles.size() == 1) {
+				status = tool.stats(tool.mFiles.get(0));
+			} else if (command.equals("photos") && tool.mFolder != null
+					&& tool.mFiles.size() == 1) {
+				status = tool.photos(tool.mFiles.get(0));
+			} else {
+				usage();
+				return;
+			}
+		} catch (IOException e) {
+			System.err.println("BackupTool: " + e.getMessage());
+			status = 2;
+		}
+		System.exit(status);
+	}
+
+	private static void usage() {
+		System.err.println("Usage: BackupTool convert -f <format> -o <folder> [-j <threads>] <backup>...");
+		System.err.println("       BackupTool validate [-j <threads>] <backup>...");
+		System.err.println("       BackupTool stats <backup>");
+		System.err.println("       BackupTool photos -o <folder> <backup>");
+		System.err.println("       BackupTool diff [-q] <before> <after>");
+		System.err.println("       BackupTool merge [-k <keys>] <output> <backup>...");
+		StringBuilder formats = new StringBuilder();
+		for (int i = 0; i < FORMATS.length; i++) {
+			formats.append(i == 0 ? "Formats: " : ", ").append(FORMATS[i]);
+		}
+		System.err.println(formats);
+		System.exit(2);
+	}
+
+	private void parse(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-f") && i + 1 < args.length) {
+				mFormat = indexOf(FORMATS, args[++i]);
+				if (mFormat < 0) {
+					usage();
+				}
+			} else if (args[i].equals("-o") && i + 1 < args.length) {
+				mFolder = new File(args[++i]);
+			} else if (args[i].equals("-j") && i + 1 < args.length) {
+				mThreads = Integer.parseInt(args[++i]);
+			} else if (args[i].startsWith("-")) {
+				usage();
+			} else {
+				mFiles.add(new File(args[i]));
+			}
+		}
+		if (mFiles.isEmpty()) {
+			usage();
+		}
+	}
+
+	private static int indexOf(String[] values, String value) {
+		for (int i = 0; i < values.length; i++) {
+			if (values[i].equals(value)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Run a job on every backup, in parallel. ForkJoinPool is not part of
+	 * the class library of the app, so a plain thread pool is used; the
+	 * backups are independent anyway.
+	 *
+	 * @return 0 if the job succeeded for all backups, else 1
+	 */
+	private int runAll(final Job job) {
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.max(1, Math.min(mThreads, mFiles.size())));
+		List<Future<String>> results = new ArrayList<Future<String>>();
+		for (int i = 0; i < mFiles.size(); i++) {
+			final File file = mFiles.get(i);
+			results.add(executor.submit(new Callable<String>() {
+				public String call() throws IOException {
+					return job.run(file);
+				}
+			}));
+		}
+		executor.shutdown();
+
+		/* in the order of the command line */
+		int failed = 0;
+		for (int i = 0; i < results.size(); i++) {
+			String name = mFiles.get(i).getName();
+			try {
+				System.out.println(name + ": " + results.get(i).get());
+			} catch (ExecutionException e) {
+				System.out.println(name + ": FAILED, " + e.getCause().getMessage());
+				failed++;
+			} catch (InterruptedException e) {
+				executor.shutdownNow();
+				return 2;
+			}
+		}
+		return failed == 0 ? 0 : 1;
+	}
+
+	/**
+	 * Open any backup the tool can write, or the app reads
+	 */
+	private static ContactReader open(File file) throws IOException {
+		if (file.getName().endsWith(GZIP_EXTENSION)) {
+			InputStream in = new BufferedInputStream(new GZIPInputStream(
+					new FileInputStream(file), BUFFER_SIZE), BUFFER_SIZE);
+			int first = peek(in);
+			if (first == '{') {
+				return new NdjsonContactReader(in);
+			} else if (first == '[') {
+				return new JsonContactReader(null, in);
+			}
+			in.close();
+			throw new IOException("Only JSON backups can be read compressed");
+		}
+		if (isNdjson(file)) {
+			return new NdjsonContactReader(file);
+		}
+		return ContactReaders.open(file);
+	}
+
+	/**
+	 * @return The first byte of a stream which is not white space, left in
+	 *         the stream, or -1
+	 */
+	private static int peek(InputStream in) throws IOException {
+		while (true) {
+			in.mark(1);
+			int c = in.read();
+			if (c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+				in.reset();
+				return c;
+			}
+		}
+	}
+
+	/**
+	 * @return The name of a backup file without its extensions
+	 */
+	private static String baseName(File file) {
+		String name = file.getName();
+		if (name.endsWith(GZIP_EXTENSION)) {
+			name = name.substring(0, name.length() - GZIP_EXTENSION.length());
+		}
+		int dot = name.lastIndexOf('.');
+		return dot > 0 ? name.substring(0, dot) : name;
+	}
+
+	private int convert() throws IOException {
+		if (!mFolder.isDirectory() && !mFolder.mkdirs()) {
+			throw new IOException("Unable to create " + mFolder);
+		}
+		return runAll(new Job() {
+			public String run(File file) throws IOException {
+				File output = new File(mFolder, baseName(file) + EXTENSIONS[mFormat]);
+				if (output.getCanonicalFile().equals(file.getCanonicalFile())) {
+					throw new IOException("The backup would replace itself");
+				}
+				return convert(file, output) + " contacts written to " + output;
+			}
+		});
+	}
+
+	/**
+	 * @return The number of contacts converted
+	 */
+	private int convert(File input, File output) throws IOException {
+		ContactReader reader = open(input);
+		OutputStream out = null;
+		boolean success = false;
+		try {
+			out = new BufferedOutputStream(new FileOutputStream(output), BUFFER_SIZE);
+			if (mFormat == COMPRESSED) {
+				out = new GZIPOutputStream(out, BUFFER_SIZE);
+			}
+			ContactWriter writer;
+			if (mFormat == BINARY) {
+				writer = new BinaryContactWriter(out);
+			} else if (mFormat == NDJSON) {
+				writer = new NdjsonContactWriter(out);
+			} else {
+				/* compact, also when compressed */
+				writer = new JsonContactWriter(out, mFormat == PRETTY);
+			}
+			if (reader.getMetadata() != null) {
+				writer.getMetadata().setDevice(reader.getMetadata().getDevice());
+			}
+			ContactRecord record = new ContactRecord();
+			int count = 0;
+			while (reader.read(record)) {
+				writer.write(record);
+				count++;
+			}
+			writer.close();
+			success = true;
+			return count;
+		} catch (JSONException e) {
+			throw new IOException(e.getMessage());
+		} finally {
+			reader.close();
+			BinaryFormat.closeQuietly(out);
+			if (!success) {
+				output.delete();
+			}
+		}
+	}
+
+	private int validate() {
+		return runAll(new Job() {
+			public String run(File file) throws IOException {
+				return "OK, " + verify(file) + " contacts";
+			}
+		});
+	}
+
+	/**
+	 * Check the checksums of a backup. A compressed backup is decompressed
+	 * to a temporary file first.
+	 *
+	 * @return The number of contacts
+	 */
+	private static int verify(File file) throws IOException {
+		if (!file.getName().endsWith(GZIP_EXTENSION)) {
+			return isNdjson(file) ? NdjsonContactReader.verify(file) : BackupVerifier.verify(file);
+		}
+		File temp = File.createTempFile("backup", baseName(file));
+		try {
+			InputStream in = new GZIPInputStream(new FileInputStream(file), BUFFER_SIZE);
+			OutputStream out = new FileOutputStream(temp);
+			try {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int read;
+				while ((read = in.read(buffer)) >= 0) {
+					out.write(buffer, 0, read);
+				}
+			} finally {
+				in.close();
+				out.close();
+			}
+			return verify(temp);
+		} finally {
+			temp.delete();
+		}
+	}
+
+	private static boolean isNdjson(File file) throws IOException {
+		if (ShardManifest.isManifest(file) || BinaryFormat.isBinary(file)) {
+			return false;
+		}
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			return peek(in) == '{';
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Print what a backup holds
+	 */
+	private int stats(File file) throws IOException {
+		int contacts = 0;
+		int phones = 0;
+		int methods = 0;
+		int organizations = 0;
+		int photos = 0;
+		long photoBytes = 0;
+		int largestPhoto = 0;
+		int starred = 0;
+		int withoutName = 0;
+		int withoutPhone = 0;
+		ContactReader reader = open(file);
+		try {
+			ContactRecord record = new ContactRecord();
+			while (reader.read(record)) {
+				contacts++;
+				phones += record.phones.size();
+				methods += record.methods.size();
+				organizations += record.organizations.size();
+				photos += record.photos.size();
+				for (int i = 0; i < record.photos.size(); i++) {
+					photoBytes += record.photos.getLength(i);
+					largestPhoto = Math.max(largestPhoto, record.photos.getLength(i));
+				}
+				if (record.person.getBoolean(ContactSchema.STARRED)) {
+					starred++;
+				}
+				if (record.getName().trim().length() == 0) {
+					withoutName++;
+				}
+				if (record.phones.size() == 0) {
+					withoutPhone++;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		BackupMetadata metadata = reader.getMetadata();
+		System.out.println("File:           " + file + " (" + file.length() + " bytes)");
+		if (metadata != null) {
+			System.out.println("Version:        " + metadata.getVersion());
+			if (metadata.getCreated() > 0) {
+				System.out.println("Created:        " + new Date(metadata.getCreated()));
+			}
+			if (metadata.getDevice() != null && metadata.getDevice().length() > 0) {
+				System.out.println("Device:         " + metadata.getDevice());
+			}
+		}
+		System.out.println("Contacts:       " + contacts + " (" + starred + " favourites, "
+				+ withoutName + " without name, " + withoutPhone + " without phone)");
+		System.out.println("Phone numbers:  " + phones);
+		System.out.println("Methods:        " + methods);
+		System.out.println("Organizations:  " + organizations);
+		System.out.println("Photos:         " + photos + " (" + photoBytes + " bytes, largest "
+				+ largestPhoto + ")");
+		return 0;
+	}
+
+	/**
+	 * Write the photos of a backup to files named after the contact _ID
+	 */
+	private int photos(File file) throws IOException {
+		if (!mFolder.isDirectory() && !mFolder.mkdirs()) {
+			throw new IOException("Unable to create " + mFolder);
+		}
+		int count = 0;
+		ContactReader reader = open(file);
+		try {
+			ContactRecord record = new ContactRecord();
+			while (reader.read(record)) {
+				long id = record.person.getLong(ContactSchema.ID);
+				for (int i = 0; i < record.photos.size(); i++) {
+					byte[] data = record.photos.getData(i);
+					int length = record.photos.getLength(i);
+					String name = id + (i == 0 ? "" : "-" + i) + photoExtension(data, length);
+					OutputStream out = new FileOutputStream(new File(mFolder, name));
+					try {
+						out.write(data, 0, length);
+					} finally {
+						out.close();
+					}
+					count++;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		System.out.println(count + " photos written to " + mFolder);
+		return 0;
+	}
+
+	/**
+	 * @return The file extension matching the image format of a photo
+	 */
+	private static String photoExtension(byte[] data, int length) {
+		if (length >= 3 && (data[0] & 0xFF) == 0xFF && (data[1] & 0xFF) == 0xD8) {
+			return ".jpg";
+		} else if (length >= 4 && (data[0] & 0xFF) == 0x89 && data[1] == 'P' && data[2] == 'N'
+				&& data[3] == 'G') {
+			return ".png";
+		} else if (length >= 3 && data[0] == 'G' && data[1] == 'I' && data[2] == 'F') {
+			return ".gif";
+		}
+		return ".img";
+	}
+
+}
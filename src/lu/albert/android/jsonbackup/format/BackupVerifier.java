@@ -0,0 +1,305 @@
+package lu.albert.android.jsonbackup.format;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Checks the integrity of a backup file without decoding the contacts.
+ *
+ * The file is streamed once, at disk speed. The checksums of the records
+ * (stored inline in binary backups, and in the {@link RecordIndex} for JSON
+ * backups) and of the whole file (stored in the {@link BackupMetadata}) are
+ * compared, and the record framing is checked. Files written before
+ * checksums were introduced only get the framing check.
+ */
+public class BackupVerifier {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final File mFile;
+	private final byte[] mBuffer;
+	private final CRC32 mCrc;
+	private CheckedInputStream mIn;
+	private long mPosition;
+	private int mContactCount;
+
+	/**
+	 * Constructor
+	 *
+	 * @param file The backup file to check
+	 */
+	public BackupVerifier(File file) {
+		mFile = file;
+		mBuffer = new byte[BUFFER_SIZE];
+		mCrc = new CRC32();
+	}
+
+	/**
+	 * Check the file. For a sharded backup, every shard is checked, for an
+	 * incremental backup also the {@link ChangeLog}.
+	 *
+	 * @return The number of contacts in the file
+	 * @throws IOException if the file is corrupt or unreadable. The message
+	 *             describes the problem.
+	 */
+	public int verify() throws IOException {
+		if (ShardManifest.isManifest(mFile)) {
+			return ShardManifest.read(mFile).verify();
+		}
+		BackupMetadata metadata = BackupMetadata.readSnapshot(mFile);
+		mIn = new CheckedInputStream(new BufferedInputStream(
+				new FileInputStream(mFile), BUFFER_SIZE), new CRC32());
+		mPosition = 0;
+		mContactCount = 0;
+		try {
+			long dataLength;
+			if (BinaryFormat.isBinary(mFile)) {
+				dataLength = verifyBinary();
+			} else {
+				RecordIndex.Reader index = RecordIndex.open(mFile);
+				try {
+					dataLength = verifyJson(metadata, index);
+				} finally {
+					if (index != null) {
+						index.close();
+					}
+				}
+			}
+
+			if (metadata != null) {
+				if (metadata.getContactCount() != mContactCount) {
+					throw new IOException("Expected " + metadata.getContactCount()
+							+ " contacts, found " + mContactCount);
+				}
+				if (metadata.getFileCrc() != -1) {
+					if (metadata.getDataLength() != dataLength) {
+						throw new IOException("The contacts end at offset "
+								+ dataLength + ", expected "
+								+ metadata.getDataLength());
+					}
+					if (metadata.getFileCrc() != mIn.getChecksum().getValue()) {
+						throw new IOException("File checksum mismatch");
+					}
+				}
+			}
+		} finally {
+			BinaryFormat.closeQuietly(mIn);
+		}
+
+		/* the contacts changed since the snapshot */
+		if (ChangeLog.hasLog(mFile)) {
+			ChangeLog.verify(ChangeLog.logFileFor(mFile));
+			BackupMetadata replayed = ChangeLog.readMetadata(mFile);
+			if (replayed != null) {
+				return replayed.getContactCount();
+			}
+		}
+		return mContactCount;
+	}
+
+	/**
+	 * Check the framing and checksum of each record of a binary backup
+	 *
+	 * @return The position of the end of the records
+	 */
+	private long verifyBinary() throws IOException {
+		readFully(BinaryFormat.HEADER_SIZE);
+		int version = mBuffer[BinaryFormat.MAGIC.length];
+		boolean checksums = version >= BinaryFormat.VERSION_RECORD_CRC;
+		byte[] record = new byte[4096];
+
+		long length = readVarLong();
+		while (length != 0) {
+			if (length < 0 || length > Integer.MAX_VALUE) {
+				throw new IOException("Invalid record length at offset " + mPosition);
+			}
+			if (record.length < length) {
+				record = new byte[(int) length];
+			}
+			long start = mPosition;
+			BinaryFormat.readFully(mIn, record, 0, (int) length);
+			mPosition += length;
+			if (checksums) {
+				readFully(4);
+				mCrc.reset();
+				mCrc.update(record, 0, (int) length);
+				if ((int) mCrc.getValue() != BinaryFormat.readFixedInt(mBuffer, 0)) {
+					throw new IOException("Checksum mismatch in record at offset " + start);
+				}
+			}
+			mContactCount++;
+			length = readVarLong();
+		}
+		return mPosition;
+	}
+
+	/**
+	 * Check a JSON backup. If there is an index, the checksum of each record
+	 * is verified, otherwise only the structure of the file.
+	 *
+	 * @return The position up to which the file checksum is computed
+	 */
+	private long verifyJson(BackupMetadata metadata, RecordIndex.Reader index)
+			throws IOException {
+		long dataLength = metadata == null ? -1 : metadata.getDataLength();
+		if (index == null || dataLength == -1) {
+			long end = scanJson(dataLength);
+			if (metadata != null && dataLength == -1) {
+				/* the metadata element has been counted as contact */
+				mContactCount--;
+			}
+			return end;
+		}
+
+		byte[] record = new byte[4096];
+		while (index.next()) {
+			skipSeparator(index.getOffset());
+			int length = index.getLength();
+			if (record.length < length) {
+				record = new byte[length];
+			}
+			BinaryFormat.readFully(mIn, record, 0, length);
+			if (length < 2 || record[0] != '{' || record[length - 1] != '}') {
+				throw new IOException("Invalid record at offset " + mPosition);
+			}
+			mCrc.reset();
+			mCrc.update(record, 0, length);
+			if ((int) mCrc.getValue() != index.getCrc()) {
+				throw new IOException("Checksum mismatch in contact #"
+						+ index.getId() + " at offset " + mPosition);
+			}
+			mPosition += length;
+			mContactCount++;
+		}
+		skipSeparator(dataLength);
+		return dataLength;
+	}
+
+	/**
+	 * Consume the bytes between two records. Only array punctuation and
+	 * white space is allowed there.
+	 *
+	 * @param offset The position of the next record
+	 */
+	private void skipSeparator(long offset) throws IOException {
+		if (offset < mPosition) {
+			throw new IOException("Index entries overlap at offset " + offset);
+		}
+		while (mPosition < offset) {
+			int b = mIn.read();
+			if (b == -1) {
+				throw new IOException("Unexpected end of file at offset " + mPosition);
+			}
+			if (b != '[' && b != ',' && b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+				throw new IOException("Unexpected data at offset " + mPosition);
+			}
+			mPosition++;
+		}
+	}
+
+	/**
+	 * Check the nesting of the JSON structure without decoding anything.
+	 * Strings (which includes the photos) are skipped in a tight loop.
+	 *
+	 * @param limit Stop after this many bytes (-1 to read the whole file)
+	 * @return The number of bytes scanned
+	 */
+	private long scanJson(long limit) throws IOException {
+		int depth = 0;
+		boolean inString = false;
+		boolean escaped = false;
+		boolean seenRoot = false;
+
+		while (limit == -1 || mPosition < limit) {
+			int wanted = BUFFER_SIZE;
+			if (limit != -1) {
+				wanted = (int) Math.min(wanted, limit - mPosition);
+			}
+			int read = mIn.read(mBuffer, 0, wanted);
+			if (read == -1) {
+				if (limit != -1) {
+					throw new IOException("Unexpected end of file at offset " + mPosition);
+				}
+				break;
+			}
+			for (int i = 0; i < read; i++) {
+				byte b = mBuffer[i];
+				if (inString) {
+					if (escaped) {
+						escaped = false;
+					} else if (b == '\\') {
+						escaped = true;
+					} else if (b == '"') {
+						inString = false;
+					}
+					continue;
+				}
+				switch (b) {
+				case '"':
+					inString = true;
+					break;
+				case '{':
+				case '[':
+					if (depth == 0) {
+						if (seenRoot || b != '[') {
+							throw new IOException("Unexpected data at offset " + (mPosition + i));
+						}
+						seenRoot = true;
+					}
+					depth++;
+					break;
+				case '}':
+				case ']':
+					depth--;
+					if (depth < 0) {
+						throw new IOException("Unbalanced brackets at offset " + (mPosition + i));
+					}
+					if (depth == 1 && b == '}') {
+						mContactCount++;
+					}
+					break;
+				default:
+					break;
+				}
+			}
+			mPosition += read;
+		}
+
+		/*
+		 * With metadata, we stop right before it, so we are still inside the
+		 * root array.
+		 */
+		int expected = limit == -1 ? 0 : 1;
+		if (inString || depth != expected || !seenRoot) {
+			throw new IOException("Truncated file");
+		}
+		return mPosition;
+	}
+
+	private void readFully(int length) throws IOException {
+		BinaryFormat.readFully(mIn, mBuffer, 0, length);
+		mPosition += length;
+	}
+
+	private long readVarLong() throws IOException {
+		long value = BinaryFormat.readVarLong(mIn);
+		mPosition += BinaryFormat.varLongSize(value);
+		return value;
+	}
+
+	/**
+	 * Convenience method
+	 *
+	 * @param file The backup file to check
+	 * @return The number of contacts in the file
+	 * @throws IOException if the file is corrupt or unreadable
+	 */
+	public static int verify(File file) throws IOException {
+		return new BackupVerifier(file).verify();
+	}
+
+}
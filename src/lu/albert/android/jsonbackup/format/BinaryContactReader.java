@@ -0,0 +1,442 @@
+package lu.albert.android.jsonbackup.format;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+import lu.albert.android.jsonbackup.schema.ContactRecord;
+import lu.albert.android.jsonbackup.schema.ContactSchema;
+
+/**
+ * Reads contacts from a file written by {@link BinaryContactWriter}. The
+ * contacts are streamed from disk one record at a time, straight into a
+ * {@link ContactRecord}.
+ */
+public class BinaryContactReader implements ContactScanner {
+
+	private final FileInputStream mFile;
+	private final RecordStream mInput;
+	private String[] mDictionary;
+
+	private boolean mPersonOnly;
+	private boolean mSkipPhotos;
+
+	/** Where the payload of the last record starts, and its size */
+	private long mRecordOffset;
+	private int mRecordLength;
+	private int mPhotoCount;
+	private BackupMetadata mMetadata;
+	private int mVersion;
+
+	/** Where the membership filter section is, -1 if there is none */
+	private long mFilterOffset = -1;
+	private int mFilterLength;
+	private final CRC32 mCrc;
+	private final byte[] mCrcBuffer;
+
+	/** The payload of the current record */
+	private byte[] mBuffer;
+	private int mBufferPosition;
+	private int mBufferLimit;
+
+	/** Number of bytes consumed from the file */
+	private long mPosition;
+	private boolean mFinished;
+
+	/**
+	 * Constructor. Reads the dictionary from the end of the file and
+	 * positions the stream on the first record.
+	 *
+	 * @param file The backup file
+	 * @throws IOException when the file is not a valid binary backup
+	 */
+	public BinaryContactReader(File file) throws IOException {
+		mDictionary = new String[0];
+		mBuffer = new byte[4096];
+		mCrc = new CRC32();
+		mCrcBuffer = new byte[4];
+		readSections(file);
+
+		mFile = new FileInputStream(file);
+		mInput = new RecordStream(mFile);
+		byte[] header = new byte[BinaryFormat.HEADER_SIZE];
+		BinaryFormat.readFully(mInput, header, 0, header.length);
+		mPosition = header.length;
+	}
+
+	/**
+	 * Read the tail of the file, and load the sections it points to
+	 *
+	 * @param file The backup file
+	 * @throws IOException when the file is not a valid binary backup
+	 */
+	private void readSections(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long length = raf.length();
+			if (length < BinaryFormat.HEADER_SIZE + BinaryFormat.TAIL_SIZE) {
+				throw new IOException("File too short to be a binary backup");
+			}
+			byte[] header = new byte[BinaryFormat.HEADER_SIZE];
+			raf.readFully(header);
+			if (!BinaryFormat.hasMagic(header, 0)) {
+				throw new IOException("Not a binary backup");
+			}
+			mVersion = header[BinaryFormat.MAGIC.length];
+			if (mVersion > BinaryFormat.VERSION) {
+				throw new IOException("Unsupported binary backup version "
+						+ mVersion);
+			}
+
+			byte[] tail = new byte[BinaryFormat.TAIL_SIZE];
+			raf.seek(length - tail.length);
+			raf.readFully(tail);
+			if (!BinaryFormat.hasMagic(tail, 8)) {
+				throw new IOException("Truncated binary backup");
+			}
+			long offset = BinaryFormat.readFixedLong(tail, 0);
+			if (offset < BinaryFormat.HEADER_SIZE || offset > length - tail.length) {
+				throw new IOException("Corrupt binary backup tail");
+			}
+
+			byte[] sections = new byte[(int) (length - tail.length - offset)];
+			raf.seek(offset);
+			raf.readFully(sections);
+			mBuffer = sections;
+			mBufferPosition = 0;
+			mBufferLimit = sections.length;
+			int tag = sections[mBufferPosition++];
+			while (tag != BinaryFormat.SECTION_END) {
+				int size = (int) readVarLong();
+				int end = mBufferPosition + size;
+				if (tag == BinaryFormat.SECTION_DICTIONARY) {
+					readDictionary();
+				} else if (tag == BinaryFormat.SECTION_METADATA) {
+					mMetadata = BackupMetadata.fromBytes(new ByteArrayInputStream(
+							sections, mBufferPosition, size));
+				} else if (tag == BinaryFormat.SECTION_FILTER) {
+					mFilterOffset = offset + mBufferPosition;
+					mFilterLength = size;
+				}
+				/* unknown sections are skipped */
+				mBufferPosition = end;
+				tag = sections[mBufferPosition++];
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Corrupt binary backup sections");
+		} finally {
+			raf.close();
+		}
+		int capacity = mMetadata == null ? 0 : mMetadata.getMaxRecordSize();
+		mBuffer = new byte[Math.max(capacity, 4096)];
+	}
+
+	private void readDictionary() throws IOException {
+		int count = (int) readVarLong();
+		mDictionary = new String[count];
+		for (int i = 0; i < count; i++) {
+			mDictionary[i] = readString();
+		}
+	}
+
+	/**
+	 * @return The strings the labels of the records refer to
+	 */
+	String[] getDictionary() {
+		return mDictionary;
+	}
+
+	public BackupMetadata getMetadata() {
+		return mMetadata;
+	}
+
+	/**
+	 * @return The position of the {@link MembershipFilter} in the file, -1
+	 *         if the backup has none
+	 */
+	long getFilterOffset() {
+		return mFilterOffset;
+	}
+
+	/**
+	 * @return The size of the {@link MembershipFilter}
+	 */
+	int getFilterLength() {
+		return mFilterLength;
+	}
+
+	/**
+	 * @return The format version of the file
+	 */
+	public int getVersion() {
+		return mVersion;
+	}
+
+	public long getPosition() {
+		return mPosition;
+	}
+
+	/**
+	 * In person only mode, the checksums of the records are not verified
+	 * either.
+	 */
+	public void setPersonOnly(boolean personOnly) {
+		mPersonOnly = personOnly;
+	}
+
+	public void setSkipPhotos(boolean skipPhotos) {
+		mSkipPhotos = skipPhotos;
+	}
+
+	public long getRecordOffset() {
+		return mRecordOffset;
+	}
+
+	public int getRecordLength() {
+		return mRecordLength;
+	}
+
+	public int getPhotoCount() {
+		return mPhotoCount;
+	}
+
+	public void seek(long offset, int length) throws IOException {
+		/* the index points at the payload, the length comes first */
+		long start = offset - BinaryFormat.varLongSize(length);
+		if (start < BinaryFormat.HEADER_SIZE) {
+			throw new IOException("Invalid record offset " + offset);
+		}
+		mFile.getChannel().position(start);
+		mInput.discard();
+		mPosition = start;
+		mFinished = false;
+	}
+
+	public boolean read(ContactRecord record) throws IOException {
+		record.clear();
+		if (mFinished) {
+			return false;
+		}
+		int length = (int) BinaryFormat.readVarLong(mInput);
+		mPosition += BinaryFormat.varLongSize(length);
+		if (length == 0) {
+			mFinished = true;
+			return false;
+		}
+		if (mBuffer.length < length) {
+			mBuffer = new byte[Math.max(length, mBuffer.length * 2)];
+		}
+		BinaryFormat.readFully(mInput, mBuffer, 0, length);
+		mRecordOffset = mPosition;
+		mRecordLength = length;
+		mPosition += length;
+		mBufferPosition = 0;
+		mBufferLimit = length;
+
+		if (mVersion >= BinaryFormat.VERSION_RECORD_CRC) {
+			BinaryFormat.readFully(mInput, mCrcBuffer, 0, 4);
+			mPosition += 4;
+		}
+		if (mVersion >= BinaryFormat.VERSION_RECORD_CRC && !mPersonOnly) {
+			mCrc.reset();
+			mCrc.update(mBuffer, 0, length);
+			if ((int) mCrc.getValue() != BinaryFormat.readFixedInt(mCrcBuffer, 0)) {
+				throw new IOException("Checksum mismatch in record ending at offset "
+						+ mPosition);
+			}
+		}
+
+		try {
+			readGroup(record.person);
+			if (mPersonOnly) {
+				skipChildren(ContactSchema.PHONE);
+				skipChildren(ContactSchema.METHOD);
+				skipChildren(ContactSchema.ORGANIZATION);
+				countPhotos();
+				return true;
+			}
+			readChildren(record.phones);
+			readChildren(record.methods);
+			readChildren(record.organizations);
+			if (mSkipPhotos) {
+				countPhotos();
+				return true;
+			}
+			readPhotos(record.photos);
+			mPhotoCount = record.photos.size();
+			return true;
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Corrupt record at offset " + mPosition);
+		}
+	}
+
+	/**
+	 * Close the underlying stream
+	 */
+	public void close() {
+		BinaryFormat.closeQuietly(mInput);
+	}
+
+	private void readChildren(ContactRecord.RowList rows) throws IOException {
+		int count = (int) readVarLong();
+		for (int i = 0; i < count; i++) {
+			readGroup(rows.add());
+		}
+	}
+
+	/**
+	 * Skip a list of child rows, without decoding their strings
+	 */
+	private void skipChildren(ContactSchema.Group group) throws IOException {
+		int count = (int) readVarLong();
+		for (int i = 0; i < count; i++) {
+			long mask = readVarLong();
+			for (int j = 0; j < group.size(); j++) {
+				if ((mask & (1L << j)) == 0) {
+					continue;
+				}
+				int type = group.getType(j);
+				if (type == ContactSchema.TYPE_INTEGER || type == ContactSchema.TYPE_BOOLEAN) {
+					readVarLong();
+				} else if (type != ContactSchema.TYPE_LABEL || readVarLong() == 0) {
+					skipBytes();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Count the non-empty photos, skipping their bytes
+	 */
+	private void countPhotos() throws IOException {
+		mPhotoCount = 0;
+		int count = (int) readVarLong();
+		for (int i = 0; i < count; i++) {
+			if (skipBytes() > 0) {
+				mPhotoCount++;
+			}
+		}
+	}
+
+	/**
+	 * Skip a length-prefixed string or photo
+	 *
+	 * @return Its length
+	 */
+	private int skipBytes() throws IOException {
+		int length = (int) readVarLong();
+		checkAvailable(length);
+		mBufferPosition += length;
+		return length;
+	}
+
+	/**
+	 * The photos are copied as raw bytes into the buffers of the record.
+	 */
+	private void readPhotos(ContactRecord.PhotoList photos) throws IOException {
+		int count = (int) readVarLong();
+		for (int i = 0; i < count; i++) {
+			int length = (int) readVarLong();
+			checkAvailable(length);
+			byte[] data = photos.prepare(length);
+			System.arraycopy(mBuffer, mBufferPosition, data, 0, length);
+			mBufferPosition += length;
+			/* empty photos are skipped, just like in JSON backups */
+			if (length > 0) {
+				photos.add(length);
+			}
+		}
+	}
+
+	/**
+	 * Read the fields of a row. The bits of the presence mask are the field
+	 * numbers of the row, so they can be used as they are.
+	 */
+	private void readGroup(ContactRecord.Row row) throws IOException {
+		ContactSchema.Group group = row.getGroup();
+		long mask = readVarLong();
+		for (int i = 0; i < group.size(); i++) {
+			if ((mask & (1L << i)) == 0) {
+				continue;
+			}
+			switch (group.getType(i)) {
+			case ContactSchema.TYPE_INTEGER:
+				row.setLong(i, BinaryFormat.decodeSigned(readVarLong()));
+				break;
+			case ContactSchema.TYPE_BOOLEAN:
+				row.setBoolean(i, readVarLong() != 0);
+				break;
+			case ContactSchema.TYPE_LABEL:
+				row.setString(i, readLabel());
+				break;
+			default:
+				row.setString(i, readString());
+				break;
+			}
+		}
+	}
+
+	private String readLabel() throws IOException {
+		int reference = (int) readVarLong();
+		if (reference == 0) {
+			return readString();
+		}
+		if (reference > mDictionary.length) {
+			throw new IOException("Invalid dictionary reference " + reference);
+		}
+		return mDictionary[reference - 1];
+	}
+
+	private String readString() throws IOException {
+		int length = (int) readVarLong();
+		checkAvailable(length);
+		String value = new String(mBuffer, mBufferPosition, length, "UTF-8");
+		mBufferPosition += length;
+		return value;
+	}
+
+	private long readVarLong() throws IOException {
+		long result = 0;
+		int shift = 0;
+		while (shift < 64) {
+			checkAvailable(1);
+			int b = mBuffer[mBufferPosition++];
+			result |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return result;
+			}
+			shift += 7;
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	private void checkAvailable(int length) throws IOException {
+		if (length < 0 || mBufferPosition + length > mBufferLimit) {
+			throw new IOException("Record overflow at offset " + mPosition);
+		}
+	}
+
+	/**
+	 * A buffered stream whose buffer can be dropped when the file is
+	 * positioned somewhere else
+	 */
+	static class RecordStream extends BufferedInputStream {
+
+		RecordStream(InputStream in) {
+			super(in, 16 * 1024);
+		}
+
+		void discard() {
+			pos = 0;
+			count = 0;
+			markpos = -1;
+		}
+
+	}
+
+}
@@ -0,0 +1,349 @@
+package lu.albert.android.jsonbackup.format;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import lu.albert.android.jsonbackup.schema.ContactRecord;
+import lu.albert.android.jsonbackup.schema.ContactSchema;
+
+/**
+ * Writes contacts in the compact binary format described in
+ * {@link BinaryFormat}.
+ */
+public class BinaryContactWriter implements SpliceableWriter {
+
+	/** Computes the checksum of everything up to the trailer */
+	private final CheckedOutputStream mOut;
+
+	/** Re-used buffer holding the payload of the current record */
+	private final RecordBuffer mRecord;
+
+	/** Computes the checksum of each record */
+	private final CRC32 mRecordCrc;
+
+	private RecordIndex.Writer mIndex;
+
+	/** Maps dictionary strings to their index */
+	private final HashMap<String, Integer> mDictionaryIndex;
+
+	/** The dictionary strings in index order */
+	private final ArrayList<String> mDictionary;
+
+	private final BackupMetadata mMetadata;
+
+	/** Copies records of an older backup, null if there is none */
+	private RecordSplicer mSplicer;
+
+	/** Collects the keys of the membership filter, null for none */
+	private MembershipFilter.Builder mFilter;
+
+	/** Holds the length and the checksum around a copied record */
+	private final RecordBuffer mFraming;
+
+	/** Number of bytes written so far */
+	private long mPosition;
+
+	/**
+	 * Constructor. Writes the file header right away.
+	 *
+	 * @param out The destination stream. It should be buffered.
+	 * @throws IOException when the stream cannot be written
+	 */
+	public BinaryContactWriter(OutputStream out) throws IOException {
+		mOut = new CheckedOutputStream(out, new CRC32());
+		mRecord = new RecordBuffer();
+		mRecordCrc = new CRC32();
+		mFraming = new RecordBuffer();
+		mDictionaryIndex = new HashMap<String, Integer>();
+		mDictionary = new ArrayList<String>();
+		mMetadata = new BackupMetadata(BinaryFormat.VERSION);
+		mOut.write(BinaryFormat.MAGIC);
+		mOut.write(BinaryFormat.VERSION);
+		mPosition = BinaryFormat.HEADER_SIZE;
+	}
+
+	public void write(ContactRecord contact) throws IOException {
+		flushSplice();
+		mRecord.reset();
+		writeRow(contact.person);
+		writeRows(contact.phones);
+		writeRows(contact.methods);
+		writeRows(contact.organizations);
+		writePhotos(contact.photos);
+
+		/*
+		 * A record can never be empty (the presence masks take at least a
+		 * byte), so a length of 0 is free to mark the end of the records.
+		 */
+		int length = mRecord.size();
+		mRecordCrc.reset();
+		mRecordCrc.update(mRecord.buffer(), 0, length);
+		int crc = (int) mRecordCrc.getValue();
+
+		writeVarLong(length);
+		if (mIndex != null) {
+			mIndex.add(contact.person.getLong(ContactSchema.ID), mPosition, length, crc);
+		}
+		mRecord.writeTo(mOut);
+		BinaryFormat.writeFixedInt(mOut, crc);
+		mPosition += length + 4;
+		mMetadata.account(contact, length);
+		if (mFilter != null) {
+			mFilter.add(contact);
+		}
+	}
+
+	public BackupMetadata getMetadata() {
+		return mMetadata;
+	}
+
+	public void setIndex(RecordIndex.Writer index) {
+		mIndex = index;
+	}
+
+	public void setFilter(MembershipFilter.Builder filter) {
+		mFilter = filter;
+	}
+
+	/**
+	 * The records copied refer to the dictionary of the old backup, so the
+	 * dictionary of this one starts as a copy of it.
+	 */
+	public void setSpliceSource(File previous, FileChannel target) throws IOException {
+		if (!mDictionary.isEmpty()) {
+			throw new IllegalStateException("Contacts were written already");
+		}
+		BinaryContactReader reader = new BinaryContactReader(previous);
+		try {
+			String[] dictionary = reader.getDictionary();
+			for (int i = 0; i < dictionary.length; i++) {
+				mDictionary.add(dictionary[i]);
+				mDictionaryIndex.put(dictionary[i], Integer.valueOf(i));
+			}
+		} finally {
+			reader.close();
+		}
+		mSplicer = new RecordSplicer(previous, target, mOut);
+	}
+
+	public void splice(long id, long offset, int length, int crc) throws IOException {
+		/* the length in front of the payload */
+		mFraming.reset();
+		BinaryFormat.writeVarLong(mFraming, length);
+		int prefix = mFraming.size();
+		mSplicer.copy(offset - prefix, prefix, framingCrc(), mPosition);
+		mPosition += prefix;
+
+		if (mIndex != null) {
+			mIndex.add(id, mPosition, length, crc);
+		}
+		mSplicer.copy(offset, length, crc & 0xFFFFFFFFL, mPosition);
+		mPosition += length;
+
+		/* the checksum behind it */
+		mFraming.reset();
+		BinaryFormat.writeFixedInt(mFraming, crc);
+		mSplicer.copy(offset + length, 4, framingCrc(), mPosition);
+		mPosition += 4;
+	}
+
+	public void close() throws IOException {
+		flushSplice();
+		writeVarLong(0);
+		long sectionsOffset = mPosition;
+		if (mSplicer != null) {
+			mMetadata.setChecksum(sectionsOffset, mSplicer.getCrc(sectionsOffset));
+			mSplicer.close();
+		} else {
+			mMetadata.setChecksum(sectionsOffset, mOut.getChecksum().getValue());
+		}
+
+		mRecord.reset();
+		mRecord.write(mMetadata.toBytes());
+		writeSection(BinaryFormat.SECTION_METADATA);
+
+		mRecord.reset();
+		BinaryFormat.writeVarLong(mRecord, mDictionary.size());
+		for (String entry : mDictionary) {
+			writeString(entry);
+		}
+		writeSection(BinaryFormat.SECTION_DICTIONARY);
+
+		MembershipFilter filter = mFilter == null ? null : mFilter.build();
+		if (filter != null) {
+			mRecord.reset();
+			mRecord.write(filter.toBytes());
+			writeSection(BinaryFormat.SECTION_FILTER);
+		}
+
+		mOut.write(BinaryFormat.SECTION_END);
+		BinaryFormat.writeFixedLong(mOut, sectionsOffset);
+		mOut.write(BinaryFormat.MAGIC);
+		mOut.close();
+	}
+
+	/**
+	 * Run the pending copy before anything is written to the stream
+	 *
+	 * @throws IOException when the old backup cannot be copied
+	 */
+	private void flushSplice() throws IOException {
+		if (mSplicer != null) {
+			mSplicer.flush();
+		}
+	}
+
+	/**
+	 * @return The checksum of the framing buffer
+	 */
+	private long framingCrc() {
+		mRecordCrc.reset();
+		mRecordCrc.update(mFraming.buffer(), 0, mFraming.size());
+		return mRecordCrc.getValue();
+	}
+
+	/**
+	 * Write the content of the record buffer as section
+	 *
+	 * @param tag The section tag
+	 * @throws IOException when the stream cannot be written
+	 */
+	private void writeSection(int tag) throws IOException {
+		mOut.write(tag);
+		mPosition += 1;
+		writeVarLong(mRecord.size());
+		mRecord.writeTo(mOut);
+		mPosition += mRecord.size();
+	}
+
+	/**
+	 * Write a varint directly to the output stream, keeping track of the
+	 * position
+	 *
+	 * @param value The value to write
+	 * @throws IOException when the stream cannot be written
+	 */
+	private void writeVarLong(long value) throws IOException {
+		BinaryFormat.writeVarLong(mOut, value);
+		mPosition += BinaryFormat.varLongSize(value);
+	}
+
+	/**
+	 * Encode a list of child rows (phones, contact methods, ...)
+	 *
+	 * @param rows The rows
+	 * @throws IOException when the buffer cannot be written
+	 */
+	private void writeRows(ContactRecord.RowList rows) throws IOException {
+		BinaryFormat.writeVarLong(mRecord, rows.size());
+		for (int i = 0; i < rows.size(); i++) {
+			writeRow(rows.get(i));
+		}
+	}
+
+	/**
+	 * Encode the fields of one row: the mask of the fields present, then
+	 * their values
+	 *
+	 * @param row The row
+	 * @throws IOException when the buffer cannot be written
+	 */
+	private void writeRow(ContactRecord.Row row) throws IOException {
+		ContactSchema.Group group = row.getGroup();
+		BinaryFormat.writeVarLong(mRecord, row.getPresent());
+
+		for (int i = 0; i < group.size(); i++) {
+			if (!row.has(i)) {
+				continue;
+			}
+			switch (group.getType(i)) {
+			case ContactSchema.TYPE_INTEGER:
+				BinaryFormat.writeSignedVarLong(mRecord, row.getLong(i));
+				break;
+			case ContactSchema.TYPE_BOOLEAN:
+				mRecord.write(row.getBoolean(i) ? 1 : 0);
+				break;
+			case ContactSchema.TYPE_LABEL:
+				writeLabel(row.getString(i));
+				break;
+			default:
+				writeString(row.getString(i));
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Encode the photos as raw bytes
+	 *
+	 * @param photos The photos
+	 * @throws IOException when the buffer cannot be written
+	 */
+	private void writePhotos(ContactRecord.PhotoList photos) throws IOException {
+		BinaryFormat.writeVarLong(mRecord, photos.size());
+		for (int i = 0; i < photos.size(); i++) {
+			BinaryFormat.writeVarLong(mRecord, photos.getLength(i));
+			mRecord.write(photos.getData(i), 0, photos.getLength(i));
+		}
+	}
+
+	/**
+	 * Write a length-prefixed UTF-8 string into the record buffer
+	 *
+	 * @param value The string
+	 * @throws IOException when the buffer cannot be written
+	 */
+	private void writeString(String value) throws IOException {
+		byte[] bytes = value.getBytes("UTF-8");
+		BinaryFormat.writeVarLong(mRecord, bytes.length);
+		mRecord.write(bytes);
+	}
+
+	/**
+	 * Write a string which is likely to be repeated. A value of 0 means the
+	 * string follows inline, any other value is the dictionary index plus one.
+	 *
+	 * @param value The string
+	 * @throws IOException when the buffer cannot be written
+	 */
+	private void writeLabel(String value) throws IOException {
+		Integer index = mDictionaryIndex.get(value);
+		if (index == null
+				&& value.length() <= BinaryFormat.MAX_DICTIONARY_STRING
+				&& mDictionary.size() < BinaryFormat.MAX_DICTIONARY_SIZE) {
+			index = Integer.valueOf(mDictionary.size());
+			mDictionary.add(value);
+			mDictionaryIndex.put(value, index);
+		}
+		if (index == null) {
+			BinaryFormat.writeVarLong(mRecord, 0);
+			writeString(value);
+		} else {
+			BinaryFormat.writeVarLong(mRecord, index.intValue() + 1);
+		}
+	}
+
+	/**
+	 * Gives access to the internal buffer, so the checksum can be computed
+	 * without copying the record.
+	 */
+	private static class RecordBuffer extends ByteArrayOutputStream {
+
+		RecordBuffer() {
+			super(1024);
+		}
+
+		byte[] buffer() {
+			return buf;
+		}
+
+	}
+
+}
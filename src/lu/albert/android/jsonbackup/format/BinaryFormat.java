@@ -0,0 +1,362 @@
+package lu.albert.android.jsonbackup.format;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Constants and low-level helpers shared by the compact binary backup
+ * reader and writer.
+ *
+ * The file layout is:
+ *
+ * <pre>
+ * magic ("JSBK") | version (1 byte)
+ * record*           varint length | payload | crc32 of the payload (4 bytes)
+ * varint 0          end of the records
+ * section*          tag (1 byte) | varint length | payload
+ * tag 0             end of the sections
+ * offset (8 bytes)  absolute position of the first section
+ * magic ("JSBK")
+ * </pre>
+ *
+ * A record payload contains the fields of a person, followed by the phone
+ * numbers, contact methods, organizations and finally the photos. Each
+ * field group starts with a varint bit mask telling which of the fields
+ * are present. The bits are the field numbers of
+ * {@link lu.albert.android.jsonbackup.schema.ContactSchema}. Integers are
+ * zig-zag encoded varints, booleans a single byte, strings a varint length
+ * followed by the UTF-8 bytes.
+ *
+ * Fields of type label (companies and similar short strings which repeat a
+ * lot) are stored as references into a dictionary. The dictionary is only known
+ * once all contacts have been written, so it is stored in a section at the
+ * end of the file.
+ */
+public final class BinaryFormat {
+
+	/** The file name extension used for binary backups */
+	public static final String FILE_EXTENSION = ".bin";
+
+	/** The bytes every binary backup starts (and ends) with */
+	public static final byte[] MAGIC = { 'J', 'S', 'B', 'K' };
+
+	/**
+	 * The current version of the binary format. Version 1 did not store a
+	 * checksum after each record.
+	 */
+	public static final int VERSION = 2;
+
+	/** The first version storing a CRC32 after each record */
+	public static final int VERSION_RECORD_CRC = 2;
+
+	/** The size of the header (magic + version) */
+	public static final int HEADER_SIZE = MAGIC.length + 1;
+
+	/** The size of the tail (section offset + magic) */
+	public static final int TAIL_SIZE = 8 + MAGIC.length;
+
+	/** Marks the end of the section list */
+	public static final int SECTION_END = 0;
+
+	/** The section containing the string dictionary */
+	public static final int SECTION_DICTIONARY = 1;
+
+	/** The section containing the {@link BackupMetadata} */
+	public static final int SECTION_METADATA = 2;
+
+	/** The section containing the {@link MembershipFilter} */
+	public static final int SECTION_FILTER = 3;
+
+	/** The maximum number of entries in the string dictionary */
+	public static final int MAX_DICTIONARY_SIZE = 4096;
+
+	/** Strings longer than this are never put into the dictionary */
+	public static final int MAX_DICTIONARY_STRING = 64;
+
+	private BinaryFormat() {
+		// static helpers only
+	}
+
+	/**
+	 * Check whether the given file is a binary backup by looking at the first
+	 * bytes.
+	 *
+	 * @param file The file to check
+	 * @return true if the file starts with the binary magic
+	 */
+	public static boolean isBinary(File file) {
+		if (!file.exists() || file.length() < HEADER_SIZE) {
+			return false;
+		}
+		byte[] head = new byte[MAGIC.length];
+		FileInputStream stream = null;
+		try {
+			stream = new FileInputStream(file);
+			readFully(stream, head, 0, head.length);
+		} catch (IOException e) {
+			return false;
+		} finally {
+			closeQuietly(stream);
+		}
+		return hasMagic(head, 0);
+	}
+
+	/**
+	 * @param buffer The bytes to check
+	 * @param offset Where to look for the magic
+	 * @return true if the magic is found at the given offset
+	 */
+	static boolean hasMagic(byte[] buffer, int offset) {
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (buffer[offset + i] != MAGIC[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Write an unsigned varint (7 bits per byte, least significant group
+	 * first)
+	 *
+	 * @param out The destination
+	 * @param value The value. Negative values take 10 bytes.
+	 * @throws IOException when the stream cannot be written
+	 */
+	public static void writeVarLong(OutputStream out, long value)
+			throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	/**
+	 * Write a signed value as zig-zag encoded varint, so small negative
+	 * numbers stay small.
+	 *
+	 * @param out The destination
+	 * @param value The value
+	 * @throws IOException when the stream cannot be written
+	 */
+	public static void writeSignedVarLong(OutputStream out, long value)
+			throws IOException {
+		writeVarLong(out, (value << 1) ^ (value >> 63));
+	}
+
+	/**
+	 * Read an unsigned varint from a stream
+	 *
+	 * @param in The source
+	 * @return The decoded value
+	 * @throws IOException when the stream ends in the middle of the value
+	 */
+	public static long readVarLong(InputStream in) throws IOException {
+		long result = 0;
+		int shift = 0;
+		while (shift < 64) {
+			int b = in.read();
+			if (b == -1) {
+				throw new EOFException("Unexpected end of file in varint");
+			}
+			result |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return result;
+			}
+			shift += 7;
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	/**
+	 * Undo the zig-zag encoding of {@link #writeSignedVarLong}
+	 *
+	 * @param value The raw varint
+	 * @return The signed value
+	 */
+	public static long decodeSigned(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Write a long as 8 big-endian bytes
+	 *
+	 * @param out The destination
+	 * @param value The value
+	 * @throws IOException when the stream cannot be written
+	 */
+	static void writeFixedLong(OutputStream out, long value) throws IOException {
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			out.write((int) (value >>> shift) & 0xFF);
+		}
+	}
+
+	/**
+	 * Write an int as 4 big-endian bytes
+	 *
+	 * @param out The destination
+	 * @param value The value
+	 * @throws IOException when the stream cannot be written
+	 */
+	static void writeFixedInt(OutputStream out, int value) throws IOException {
+		out.write((value >>> 24) & 0xFF);
+		out.write((value >>> 16) & 0xFF);
+		out.write((value >>> 8) & 0xFF);
+		out.write(value & 0xFF);
+	}
+
+	/**
+	 * Read 4 big-endian bytes
+	 *
+	 * @param buffer The source
+	 * @param offset The position of the first byte
+	 * @return The decoded value
+	 */
+	static int readFixedInt(byte[] buffer, int offset) {
+		return ((buffer[offset] & 0xFF) << 24)
+				| ((buffer[offset + 1] & 0xFF) << 16)
+				| ((buffer[offset + 2] & 0xFF) << 8)
+				| (buffer[offset + 3] & 0xFF);
+	}
+
+	/**
+	 * @param value A value to be written with {@link #writeVarLong}
+	 * @return The number of bytes the varint takes
+	 */
+	public static int varLongSize(long value) {
+		int size = 1;
+		while ((value & ~0x7FL) != 0) {
+			size++;
+			value >>>= 7;
+		}
+		return size;
+	}
+
+	/**
+	 * Read 8 big-endian bytes
+	 *
+	 * @param buffer The source
+	 * @param offset The position of the first byte
+	 * @return The decoded value
+	 */
+	static long readFixedLong(byte[] buffer, int offset) {
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (buffer[offset + i] & 0xFF);
+		}
+		return value;
+	}
+
+	/**
+	 * Fill the given buffer completely
+	 *
+	 * @param in The source
+	 * @param buffer The destination
+	 * @param offset Where to start writing into the buffer
+	 * @param length The number of bytes to read
+	 * @throws IOException if the stream ends prematurely
+	 */
+	static void readFully(InputStream in, byte[] buffer, int offset, int length)
+			throws IOException {
+		while (length > 0) {
+			int read = in.read(buffer, offset, length);
+			if (read == -1) {
+				throw new EOFException("Unexpected end of file");
+			}
+			offset += read;
+			length -= read;
+		}
+	}
+
+	/**
+	 * Write the header of a file describing a backup (a source or search
+	 * index): its magic and version, then the size and the checksum of the
+	 * backup, so it is ignored once the backup changes. Both are stored off
+	 * by one, as they may be -1.
+	 *
+	 * @param out The destination
+	 * @param magic The magic of the file
+	 * @param version The version of the file
+	 * @param backup The backup file, complete
+	 * @throws IOException when the backup or the destination cannot be
+	 *             accessed
+	 */
+	static void writeSidecarHeader(OutputStream out, byte[] magic, int version, File backup)
+			throws IOException {
+		BackupMetadata metadata = BackupMetadata.readSnapshot(backup);
+		out.write(magic);
+		out.write(version);
+		writeVarLong(out, backup.length() + 1);
+		writeVarLong(out, (metadata == null ? -1 : metadata.getFileCrc()) + 1);
+	}
+
+	/**
+	 * Read a header written by
+	 * {@link #writeSidecarHeader(OutputStream, byte[], int, File)}
+	 *
+	 * @param in The source
+	 * @param magic The expected magic
+	 * @param version The expected version
+	 * @param backup The backup file
+	 * @return false if the file has another format or version, or describes
+	 *         another state of the backup
+	 * @throws IOException when the backup or the source cannot be read
+	 */
+	static boolean readSidecarHeader(InputStream in, byte[] magic, int version, File backup)
+			throws IOException {
+		byte[] actual = new byte[magic.length];
+		readFully(in, actual, 0, actual.length);
+		if (!Arrays.equals(actual, magic) || in.read() != version) {
+			return false;
+		}
+		long length = readVarLong(in) - 1;
+		long crc = readVarLong(in) - 1;
+		BackupMetadata metadata = BackupMetadata.readSnapshot(backup);
+		return metadata != null && length == backup.length() && crc == metadata.getFileCrc();
+	}
+
+	/**
+	 * @param array An array
+	 * @param length The length of the copy
+	 * @return A copy of the array, truncated or padded with zeroes
+	 */
+	static long[] copyOf(long[] array, int length) {
+		long[] copy = new long[length];
+		System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+		return copy;
+	}
+
+	/**
+	 * @param array An array
+	 * @param length The length of the copy
+	 * @return A copy of the array, truncated or padded with zeroes
+	 */
+	static int[] copyOf(int[] array, int length) {
+		int[] copy = new int[length];
+		System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+		return copy;
+	}
+
+	/**
+	 * Close a stream, ignoring any errors
+	 *
+	 * @param stream The stream (may be null)
+	 */
+	static void closeQuietly(java.io.Closeable stream) {
+		if (stream == null) {
+			return;
+		}
+		try {
+			stream.close();
+		} catch (IOException e) {
+			// nothing we can do about it
+		}
+	}
+
+}
@@ -0,0 +1,567 @@
+package lu.albert.android.jsonbackup.format;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+import lu.albert.android.jsonbackup.schema.ContactRecord;
+
+import org.json.JSONException;
+
+/**
+ * An append-only log of the changes made to the contacts since a snapshot
+ * (a regular backup file) was written.
+ *
+ * Every incremental backup appends one upsert entry (holding the contact as
+ * JSON) per new or modified contact, one delete entry per contact which is
+ * gone, and a commit entry. Entries are only valid up to the last commit, so
+ * a backup which was interrupted leaves no trace: its entries are cut off
+ * when the next backup appends to the log.
+ *
+ * Layout: the magic "JSBL" and a version byte, then the entries. Each entry
+ * starts with its type byte and the contact ID (for a commit: the time),
+ * followed by the length and data for an upsert (the contact) or a commit
+ * (the {@link BackupMetadata} of the whole backup after the run), and ends
+ * with the CRC32 of the entry. Numbers are varints as in the
+ * {@link BinaryFormat}.
+ */
+public final class ChangeLog {
+
+	/** The extension added to the snapshot file name for its log */
+	public static final String FILE_EXTENSION = ".log";
+
+	/**
+	 * The extension added to the snapshot file name for the
+	 * {@link SourceIndex} of the snapshot with its log replayed
+	 */
+	public static final String CONTACTS_EXTENSION = ".log.src";
+
+	/** The extension of a snapshot being replaced by {@link #compact(File)} */
+	private static final String OLD_EXTENSION = ".old";
+
+	/** A contact was added or modified */
+	public static final int UPSERT = 'U';
+
+	/** A contact was deleted */
+	public static final int DELETE = 'D';
+
+	/** The end of one backup run */
+	public static final int COMMIT = 'C';
+
+	/** A log larger than this is compacted into a new snapshot */
+	private static final long COMPACT_SIZE = 4 * 1024 * 1024;
+
+	/** A log larger than 1/n of its snapshot is compacted */
+	private static final int COMPACT_RATIO = 2;
+
+	static final byte[] MAGIC = { 'J', 'S', 'B', 'L' };
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = MAGIC.length + 1;
+
+	private ChangeLog() {
+		// static helpers only
+	}
+
+	/**
+	 * @param snapshot A backup file
+	 * @return The change log belonging to the backup
+	 */
+	public static File logFileFor(File snapshot) {
+		return new File(snapshot.getParentFile(), snapshot.getName() + FILE_EXTENSION);
+	}
+
+	/**
+	 * @param snapshot A backup file
+	 * @return The digests and counts of the contacts as of the last
+	 *         incremental backup
+	 */
+	public static File contactsFileFor(File snapshot) {
+		return new File(snapshot.getParentFile(), snapshot.getName() + CONTACTS_EXTENSION);
+	}
+
+	/**
+	 * @param snapshot A backup file
+	 * @return true if the backup has a change log which must be replayed
+	 */
+	public static boolean hasLog(File snapshot) {
+		return logFileFor(snapshot).length() > HEADER_SIZE;
+	}
+
+	/**
+	 * Forget the incremental state of a backup: the log and the contacts
+	 * file
+	 *
+	 * @param snapshot A backup file
+	 */
+	public static void delete(File snapshot) {
+		logFileFor(snapshot).delete();
+		contactsFileFor(snapshot).delete();
+	}
+
+	/**
+	 * Finish or undo a {@link #compact(File)} which was interrupted. If the
+	 * new snapshot did not make it into place, the old one is moved back: its
+	 * log is still there. Otherwise the old one is deleted. Must be called
+	 * before the snapshot is opened or created.
+	 *
+	 * @param snapshot A backup file
+	 */
+	public static void recover(File snapshot) {
+		File old = oldFileFor(snapshot);
+		File oldIndex = RecordIndex.indexFileFor(old);
+		if (old.exists() && !snapshot.exists()) {
+			if (old.renameTo(snapshot) && oldIndex.exists()) {
+				oldIndex.renameTo(RecordIndex.indexFileFor(snapshot));
+			}
+			return;
+		}
+		old.delete();
+		oldIndex.delete();
+	}
+
+	private static File oldFileFor(File snapshot) {
+		return new File(snapshot.getParentFile(), snapshot.getName() + OLD_EXTENSION);
+	}
+
+	/**
+	 * @param snapshot A backup file
+	 * @return The metadata stored by the last commit of the log of the
+	 *         backup, or null if there is no valid log
+	 */
+	public static BackupMetadata readMetadata(File snapshot) {
+		try {
+			Reader reader = new Reader(logFileFor(snapshot));
+			reader.close();
+			return reader.getCommittedMetadata();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @param snapshot A backup file
+	 * @return true if the log of the backup has grown large enough to be
+	 *         worth merging into the snapshot
+	 */
+	public static boolean needsCompaction(File snapshot) {
+		long length = logFileFor(snapshot).length();
+		return length > COMPACT_SIZE || length > snapshot.length() / COMPACT_RATIO;
+	}
+
+	/**
+	 * Replay the log into a new snapshot, in the same format as the old one
+	 * and sorted by ID like it, and delete the log. The new snapshot is
+	 * written to a temporary file first, so the backup stays valid if this
+	 * fails. The old snapshot is then moved aside, and only deleted once the
+	 * new one is in place; {@link #recover(File)} cleans up after a crash in
+	 * between. Replaying the log again over the new snapshot gives the same
+	 * contacts, so nothing is lost if the log cannot be deleted either.
+	 *
+	 * @param snapshot A backup file with a log
+	 * @throws IOException when the new snapshot cannot be written
+	 */
+	public static void compact(File snapshot) throws IOException {
+		File temp = new File(snapshot.getParentFile(), snapshot.getName() + ".tmp");
+		File tempIndex = RecordIndex.indexFileFor(temp);
+		LogReplayReader reader = new LogReplayReader(snapshot);
+		OutputStream out = null;
+		RecordIndex.Writer index = null;
+		boolean success = false;
+		try {
+			out = new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024);
+			ContactWriter writer = BinaryFormat.isBinary(snapshot)
+					? new BinaryContactWriter(out) : new JsonContactWriter(out);
+			try {
+				index = new RecordIndex.Writer(tempIndex);
+				writer.setIndex(index);
+			} catch (IOException e) {
+				index = null;
+			}
+			if (reader.getMetadata() != null) {
+				writer.getMetadata().setDevice(reader.getMetadata().getDevice());
+			}
+			ContactRecord record = new ContactRecord();
+			while (reader.read(record)) {
+				writer.write(record);
+			}
+			writer.close();
+			if (index != null) {
+				index.close(temp.length());
+			}
+			success = true;
+		} catch (JSONException e) {
+			throw new IOException(e.getMessage());
+		} finally {
+			reader.close();
+			BinaryFormat.closeQuietly(out);
+			if (!success) {
+				if (index != null) {
+					index.abort();
+				}
+				tempIndex.delete();
+				temp.delete();
+			}
+		}
+
+		SourceIndex contacts = SourceIndex.read(contactsFileFor(snapshot), snapshot);
+		File snapshotIndex = RecordIndex.indexFileFor(snapshot);
+		File old = oldFileFor(snapshot);
+		File oldIndex = RecordIndex.indexFileFor(old);
+		old.delete();
+		oldIndex.delete();
+		if (!snapshot.renameTo(old)) {
+			tempIndex.delete();
+			temp.delete();
+			throw new IOException("Unable to move " + snapshot + " aside");
+		}
+		snapshotIndex.renameTo(oldIndex);
+		if (!temp.renameTo(snapshot)) {
+			tempIndex.delete();
+			temp.delete();
+			recover(snapshot);
+			throw new IOException("Unable to replace " + snapshot);
+		}
+		if (index != null) {
+			tempIndex.renameTo(snapshotIndex);
+		}
+		logFileFor(snapshot).delete();
+		old.delete();
+		oldIndex.delete();
+		if (contacts != null) {
+			/* the contacts did not change, only the file they are in */
+			contacts.write(contactsFileFor(snapshot), snapshot);
+		}
+	}
+
+	/**
+	 * Check the checksums of all committed entries of a log
+	 *
+	 * @param log The log file
+	 * @return The number of committed backup runs
+	 * @throws IOException if a committed entry is damaged
+	 */
+	public static int verify(File log) throws IOException {
+		Reader reader = new Reader(log);
+		int commits = 0;
+		try {
+			long end = reader.getCommittedLength();
+			while (reader.getPosition() < end && reader.next()) {
+				if (reader.getType() == COMMIT) {
+					commits++;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return commits;
+	}
+
+	/**
+	 * Appends the changes of one backup run
+	 */
+	public static class Writer {
+
+		private final OutputStream mOut;
+		private final ByteArrayOutputStream mEntry;
+		private final CRC32 mCrc;
+		private int mCount;
+
+		/**
+		 * Constructor. Entries after the last commit are cut off first.
+		 *
+		 * @param log The log file. It is created if needed.
+		 * @throws IOException when the log cannot be opened
+		 */
+		public Writer(File log) throws IOException {
+			long committed = HEADER_SIZE;
+			if (log.exists()) {
+				try {
+					Reader reader = new Reader(log);
+					committed = reader.getCommittedLength();
+					reader.close();
+				} catch (IOException e) {
+					/* not a log at all, start a new one */
+					committed = 0;
+				}
+			} else {
+				committed = 0;
+			}
+			RandomAccessFile file = new RandomAccessFile(log, "rw");
+			try {
+				file.setLength(committed);
+			} finally {
+				file.close();
+			}
+			mOut = new BufferedOutputStream(new FileOutputStream(log, true), 64 * 1024);
+			if (committed == 0) {
+				mOut.write(MAGIC);
+				mOut.write(VERSION);
+			}
+			mEntry = new ByteArrayOutputStream(1024);
+			mCrc = new CRC32();
+		}
+
+		/**
+		 * @param id The ID of the contact
+		 * @param json The contact, encoded as JSON
+		 * @throws IOException when the log cannot be written
+		 */
+		public void upsert(long id, byte[] json) throws IOException {
+			mEntry.reset();
+			mEntry.write(UPSERT);
+			BinaryFormat.writeVarLong(mEntry, id);
+			BinaryFormat.writeVarLong(mEntry, json.length);
+			mEntry.write(json);
+			flushEntry();
+			mCount++;
+		}
+
+		/**
+		 * @param id The ID of the deleted contact
+		 * @throws IOException when the log cannot be written
+		 */
+		public void delete(long id) throws IOException {
+			mEntry.reset();
+			mEntry.write(DELETE);
+			BinaryFormat.writeVarLong(mEntry, id);
+			flushEntry();
+			mCount++;
+		}
+
+		/**
+		 * @return The number of upserts and deletes written
+		 */
+		public int getCount() {
+			return mCount;
+		}
+
+		/**
+		 * Make the entries of this run valid, and close the log
+		 *
+		 * @param metadata Describes the backup with the log replayed
+		 * @throws IOException when the log cannot be written
+		 */
+		public void commit(BackupMetadata metadata) throws IOException {
+			byte[] data = metadata.toBytes();
+			mEntry.reset();
+			mEntry.write(COMMIT);
+			BinaryFormat.writeVarLong(mEntry, System.currentTimeMillis());
+			BinaryFormat.writeVarLong(mEntry, data.length);
+			mEntry.write(data);
+			flushEntry();
+			mOut.close();
+		}
+
+		/**
+		 * Close the log without committing. The entries of this run are
+		 * ignored, and cut off by the next writer.
+		 */
+		public void abort() {
+			BinaryFormat.closeQuietly(mOut);
+		}
+
+		private void flushEntry() throws IOException {
+			mCrc.reset();
+			mCrc.update(mEntry.toByteArray(), 0, mEntry.size());
+			mEntry.writeTo(mOut);
+			BinaryFormat.writeFixedInt(mOut, (int) mCrc.getValue());
+		}
+
+	}
+
+	/**
+	 * Iterates over the entries of a log
+	 */
+	public static class Reader {
+
+		private final File mFile;
+		private FileInputStream mFileIn;
+		private BinaryContactReader.RecordStream mBuffered;
+		private InputStream mIn;
+		private final CRC32 mCrc;
+		private final byte[] mCrcBytes = new byte[4];
+		private long mPosition;
+		private long mCommitted;
+		private BackupMetadata mCommittedMetadata;
+
+		private int mType;
+		private long mId;
+		private long mOffset;
+		private byte[] mData;
+		private int mLength;
+
+		/**
+		 * Constructor. The whole log is read once to find the last commit.
+		 *
+		 * @param log The log file
+		 * @throws IOException if the file is not a change log
+		 */
+		public Reader(File log) throws IOException {
+			mFile = log;
+			mCrc = new CRC32();
+			mData = new byte[1024];
+			open();
+			mCommitted = HEADER_SIZE;
+			try {
+				while (next()) {
+					if (mType == COMMIT) {
+						mCommittedMetadata = BackupMetadata.fromBytes(
+								new ByteArrayInputStream(mData, 0, mLength));
+						mCommitted = mPosition;
+					}
+				}
+			} catch (IOException e) {
+				/* a torn entry of an interrupted run: stop at the last commit */
+			}
+			close();
+			open();
+		}
+
+		private void open() throws IOException {
+			/* every byte read goes into the checksum of the current entry */
+			mFileIn = new FileInputStream(mFile);
+			mBuffered = new BinaryContactReader.RecordStream(mFileIn);
+			mIn = new CheckedInputStream(mBuffered, mCrc);
+			byte[] magic = new byte[MAGIC.length];
+			try {
+				BinaryFormat.readFully(mIn, magic, 0, magic.length);
+				if (!Arrays.equals(magic, MAGIC) || mIn.read() != VERSION) {
+					throw new IOException("Not a change log");
+				}
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+			mPosition = HEADER_SIZE;
+		}
+
+		/**
+		 * @return The size of the log up to the end of the last commit.
+		 *         Entries past it must be ignored.
+		 */
+		public long getCommittedLength() {
+			return mCommitted;
+		}
+
+		/**
+		 * @return The metadata stored by the last commit, null if there is
+		 *         none
+		 */
+		public BackupMetadata getCommittedMetadata() {
+			return mCommittedMetadata;
+		}
+
+		/**
+		 * @return The position after the current entry
+		 */
+		public long getPosition() {
+			return mPosition;
+		}
+
+		/**
+		 * Move to another entry, so that the next call to {@link #next()}
+		 * reads it
+		 *
+		 * @param offset The position of the entry, as returned by
+		 *            {@link #getOffset()}
+		 * @throws IOException when the file cannot be positioned
+		 */
+		public void seek(long offset) throws IOException {
+			if (offset == mPosition) {
+				return;
+			}
+			if (offset < HEADER_SIZE || offset >= mCommitted) {
+				throw new IOException("Invalid change log offset " + offset);
+			}
+			mFileIn.getChannel().position(offset);
+			mBuffered.discard();
+			mPosition = offset;
+		}
+
+		/**
+		 * Read the next entry, and check its checksum
+		 *
+		 * @return false at the end of the file
+		 * @throws IOException if the entry is truncated or damaged
+		 */
+		public boolean next() throws IOException {
+			mCrc.reset();
+			int type = mIn.read();
+			if (type == -1) {
+				return false;
+			}
+			mOffset = mPosition;
+			mType = type;
+			mId = BinaryFormat.readVarLong(mIn);
+			mLength = 0;
+			if (type == UPSERT || type == COMMIT) {
+				long length = BinaryFormat.readVarLong(mIn);
+				if (length > Integer.MAX_VALUE - 8) {
+					throw new IOException("Corrupt change log entry at offset " + mOffset);
+				}
+				mLength = (int) length;
+				if (mData.length < mLength) {
+					mData = new byte[Math.max(mLength, mData.length * 2)];
+				}
+				BinaryFormat.readFully(mIn, mData, 0, mLength);
+			} else if (type != DELETE) {
+				throw new IOException("Unknown change log entry at offset " + mOffset);
+			}
+			int expected = (int) mCrc.getValue();
+			BinaryFormat.readFully(mIn, mCrcBytes, 0, 4);
+			mPosition += 1 + BinaryFormat.varLongSize(mId) + mLength + 4;
+			if (type != DELETE) {
+				mPosition += BinaryFormat.varLongSize(mLength);
+			}
+			if (BinaryFormat.readFixedInt(mCrcBytes, 0) != expected) {
+				throw new IOException("Checksum mismatch in change log entry at offset "
+						+ mOffset);
+			}
+			return true;
+		}
+
+		/** @return {@link #UPSERT}, {@link #DELETE} or {@link #COMMIT} */
+		public int getType() {
+			return mType;
+		}
+
+		/** @return The contact ID, or the time of a commit */
+		public long getId() {
+			return mId;
+		}
+
+		/** @return The position of the entry in the log */
+		public long getOffset() {
+			return mOffset;
+		}
+
+		/** @return The buffer holding the JSON of an upsert or the metadata of a commit */
+		public byte[] getData() {
+			return mData;
+		}
+
+		/** @return The size of the data */
+		public int getLength() {
+			return mLength;
+		}
+
+		/**
+		 * Close the file
+		 */
+		public void close() {
+			BinaryFormat.closeQuietly(mIn);
+		}
+
+	}
+
+}
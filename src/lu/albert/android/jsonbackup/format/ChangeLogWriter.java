@@ -0,0 +1,244 @@
+package lu.albert.android.jsonbackup.format;
+
+import java.io.File;
+import java.io.IOException;
+
+import lu.albert.android.jsonbackup.schema.ContactRecord;
+import lu.albert.android.jsonbackup.schema.ContactSchema;
+
+import org.json.JSONException;
+
+/**
+ * Writes an incremental backup.
+ *
+ * The caller hands in a digest of the rows of every person, computed up
+ * front with one query per table. Along with the backup, the digests and
+ * the counts of every contact are stored in a {@link SourceIndex} next to
+ * the snapshot. In append mode, the contacts whose digest did not change
+ * since the previous run are passed to {@link #skip(long)} and not even
+ * read from the provider; only the other ones are written, and appended to
+ * the {@link ChangeLog} of the snapshot. Contacts which were not seen any
+ * more are logged as deleted when the writer is closed. In snapshot mode, a
+ * full backup is written by another writer, and only the digests are
+ * collected, so that the next run can append to it.
+ */
+public class ChangeLogWriter implements ContactWriter {
+
+	/** The log has no membership filter, so the keys are not kept */
+	private static final int[] NO_KEYS = new int[0];
+
+	private final File mSnapshot;
+	private final BackupMetadata mMetadata;
+	private final Fingerprints mDigests;
+	private final SourceIndex mContacts;
+
+	/** Snapshot mode: the writer of the full backup */
+	private final ContactWriter mWriter;
+
+	/** Append mode: the contacts of the previous run, and the log */
+	private final SourceIndex mPrevious;
+	private final ChangeLog.Writer mLog;
+	private int mDeletes;
+
+	/** Append mode: accounted for the contacts which are not written */
+	private final int mMaxRecordSize;
+
+	/**
+	 * Constructor for snapshot mode. The log of the previous snapshot is
+	 * deleted.
+	 *
+	 * @param snapshot The backup file
+	 * @param writer Writes the contacts to the backup file
+	 * @param digests The digests of the persons, by _ID
+	 */
+	public ChangeLogWriter(File snapshot, ContactWriter writer, Fingerprints digests) {
+		mSnapshot = snapshot;
+		mWriter = writer;
+		mMetadata = writer.getMetadata();
+		mDigests = digests;
+		mContacts = new SourceIndex();
+		mPrevious = null;
+		mLog = null;
+		mMaxRecordSize = 0;
+		ChangeLog.delete(snapshot);
+	}
+
+	/**
+	 * Constructor for append mode. The old contacts file is deleted first:
+	 * if this run does not complete, the next one writes a snapshot.
+	 *
+	 * @param snapshot The backup file. It is not modified.
+	 * @param previous The contacts written by the previous run, see
+	 *            {@link #readContacts(File)}
+	 * @param digests The digests of the persons, by _ID
+	 * @throws IOException when the snapshot or the log cannot be opened
+	 */
+	public ChangeLogWriter(File snapshot, SourceIndex previous, Fingerprints digests)
+			throws IOException {
+		BackupMetadata old = BackupMetadata.readSnapshot(snapshot);
+		BackupMetadata last = ChangeLog.readMetadata(snapshot);
+		if (last == null) {
+			last = old;
+		}
+		mSnapshot = snapshot;
+		mWriter = null;
+		mMetadata = new BackupMetadata(old != null ? old.getVersion() : BackupMetadata.JSON_VERSION);
+		mDigests = digests;
+		mContacts = new SourceIndex();
+		mPrevious = previous;
+		/* the largest of the records kept may still be there */
+		mMaxRecordSize = last != null ? last.getMaxRecordSize() : 0;
+		ChangeLog.contactsFileFor(snapshot).delete();
+		mLog = new ChangeLog.Writer(ChangeLog.logFileFor(snapshot));
+	}
+
+	/**
+	 * @param snapshot A backup file
+	 * @return The contacts of the backup to append to, or null if the backup
+	 *         has to be written again: there is no contacts file, or it
+	 *         belongs to a different file.
+	 */
+	public static SourceIndex readContacts(File snapshot) {
+		return SourceIndex.read(ChangeLog.contactsFileFor(snapshot), snapshot);
+	}
+
+	/**
+	 * Keep a contact which did not change since the previous run, instead of
+	 * writing it. Always false in snapshot mode.
+	 *
+	 * @param id The _ID of the person
+	 * @return true if the contact is unchanged: it must not be written then
+	 */
+	public boolean skip(long id) {
+		if (mLog == null) {
+			return false;
+		}
+		int digest = mDigests.indexOf(id);
+		int previous = mPrevious.indexOf(id);
+		if (digest < 0 || previous < 0
+				|| mDigests.getCrc(digest) != mPrevious.getDigest(previous)) {
+			return false;
+		}
+		SourceIndex old = mPrevious;
+		mContacts.add(id, old.getDigest(previous), old.getPhoneCount(previous),
+				old.getMethodCount(previous), old.getOrganizationCount(previous),
+				old.getPhotoCount(previous), old.getPhotoBytes(previous), NO_KEYS);
+		mMetadata.account(old.getPhoneCount(previous), old.getMethodCount(previous),
+				old.getOrganizationCount(previous), old.getPhotoCount(previous),
+				old.getPhotoBytes(previous), mMaxRecordSize);
+		return true;
+	}
+
+	/**
+	 * Write a contact. In append mode it is logged, so unchanged contacts
+	 * should be passed to {@link #skip(long)} instead. Contacts must be
+	 * written in _ID order.
+	 */
+	public void write(ContactRecord contact) throws IOException, JSONException {
+		long id = contact.person.has(ContactSchema.ID)
+				? contact.person.getLong(ContactSchema.ID) : -1;
+		int digest = mDigests.indexOf(id);
+		long photoBytes = 0;
+		for (int i = 0; i < contact.photos.size(); i++) {
+			photoBytes += contact.photos.getLength(i);
+		}
+		/*
+		 * A contact added after the digests were computed is logged again
+		 * by the next run, unless its digest happens to be 0
+		 */
+		mContacts.add(id, digest < 0 ? 0 : mDigests.getCrc(digest), contact.phones.size(),
+				contact.methods.size(), contact.organizations.size(), contact.photos.size(),
+				photoBytes, NO_KEYS);
+
+		if (mWriter != null) {
+			mWriter.write(contact);
+			return;
+		}
+		byte[] json = ContactJson.toJSON(contact).toString().getBytes("UTF-8");
+		mLog.upsert(id, json);
+		mMetadata.account(contact, json.length);
+	}
+
+	/**
+	 * @return true in append mode, false if a snapshot is written
+	 */
+	public boolean isAppending() {
+		return mLog != null;
+	}
+
+	/**
+	 * @return The number of contacts appended to the log (added, modified or
+	 *         deleted). 0 in snapshot mode.
+	 */
+	public int getChangeCount() {
+		return mLog == null ? 0 : mLog.getCount();
+	}
+
+	/**
+	 * @return In append mode, the metadata of the backup with the log
+	 *         replayed
+	 */
+	public BackupMetadata getMetadata() {
+		return mMetadata;
+	}
+
+	/**
+	 * Passed on in snapshot mode, ignored in append mode: the log is not
+	 * indexed.
+	 */
+	public void setIndex(RecordIndex.Writer index) {
+		if (mWriter != null) {
+			mWriter.setIndex(index);
+		}
+	}
+
+	/**
+	 * Finish the backup: log the deleted contacts and commit (append mode)
+	 * or close the snapshot, then store the contacts file. This must only be
+	 * called if all contacts were written or skipped, see {@link #abort()}.
+	 */
+	public void close() throws IOException {
+		if (mWriter != null) {
+			mWriter.close();
+		} else {
+			try {
+				for (int i = 0; i < mPrevious.size(); i++) {
+					long id = mPrevious.getId(i);
+					if (mContacts.indexOf(id) < 0) {
+						mLog.delete(id);
+						mDeletes++;
+					}
+				}
+				mLog.commit(mMetadata);
+			} catch (IOException e) {
+				mLog.abort();
+				throw e;
+			}
+		}
+		mContacts.write(ChangeLog.contactsFileFor(mSnapshot), mSnapshot);
+	}
+
+	/**
+	 * Close the backup after an interrupted run. In append mode nothing is
+	 * committed, and as there is no contacts file any more, the next run
+	 * writes a snapshot.
+	 *
+	 * @throws IOException when the snapshot cannot be closed
+	 */
+	public void abort() throws IOException {
+		if (mWriter != null) {
+			mWriter.close();
+		} else {
+			mLog.abort();
+		}
+		ChangeLog.contactsFileFor(mSnapshot).delete();
+	}
+
+	/**
+	 * @return The number of contacts logged as deleted by {@link #close()}
+	 */
+	public int getDeleteCount() {
+		return mDeletes;
+	}
+
+}
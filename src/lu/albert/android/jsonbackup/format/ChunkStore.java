@@ -0,0 +1,445 @@
+package lu.albert.android.jsonbackup.format;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Keeps older generations of the backup, storing the data which did not
+ * change only once.
+ *
+ * The backup files are split by a {@link Chunker}, and every chunk is
+ * stored under its SHA-1 in the "chunks" folder, unless it is already
+ * there. A generation is a small compressed JSON file in the "generations"
+ * folder listing the chunks of each backup file. Between two backups most
+ * contacts and photos are the same, so most chunks are shared, and a
+ * generation costs little more than the contacts which changed.
+ *
+ * Deleting a generation only deletes its list. The chunks no other
+ * generation refers to are deleted by {@link #prune()}.
+ */
+public class ChunkStore {
+
+	/** The layout version of the generation files */
+	public static final int VERSION = 1;
+
+	private static final String KEY = "_generation";
+	private static final String LAYOUT = "version";
+	private static final String CREATED = "created";
+	private static final String CONTACTS = "contacts";
+	private static final String DEVICE = "device";
+	private static final String FILES = "files";
+	private static final String NAME = "name";
+	private static final String LENGTH = "length";
+	private static final String CHUNKS = "chunks";
+
+	private static final String GENERATION_EXTENSION = ".gen";
+	private static final String TEMP_EXTENSION = ".tmp";
+
+	/** The length of a chunk name: a SHA-1 in hexadecimal */
+	private static final int HASH_LENGTH = 40;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final File mChunks;
+	private final File mGenerations;
+	private final byte[] mBuffer;
+	private long mAddedBytes;
+
+	/**
+	 * One backup kept in the store
+	 */
+	public static class Generation {
+
+		private final File mFile;
+		private final long mCreated;
+		private final int mContacts;
+		private final String mDevice;
+		private final String[] mNames;
+		private final long[] mLengths;
+		private final String[] mChunks;
+
+		Generation(File file, JSONObject generation) throws JSONException {
+			mFile = file;
+			mCreated = generation.getLong(CREATED);
+			mContacts = generation.optInt(CONTACTS);
+			mDevice = generation.optString(DEVICE);
+			JSONArray files = generation.getJSONArray(FILES);
+			mNames = new String[files.length()];
+			mLengths = new long[files.length()];
+			mChunks = new String[files.length()];
+			for (int i = 0; i < files.length(); i++) {
+				JSONObject entry = files.getJSONObject(i);
+				mNames[i] = entry.getString(NAME);
+				mLengths[i] = entry.getLong(LENGTH);
+				mChunks[i] = entry.getString(CHUNKS);
+			}
+		}
+
+		/** @return When the backup was created (milliseconds since the epoch) */
+		public long getCreated() {
+			return mCreated;
+		}
+
+		/** @return The number of contacts in the backup */
+		public int getContactCount() {
+			return mContacts;
+		}
+
+		/** @return A description of the device the backup was created on */
+		public String getDevice() {
+			return mDevice;
+		}
+
+		/** @return The size of the backup files */
+		public long getLength() {
+			long total = 0;
+			for (long length : mLengths) {
+				total += length;
+			}
+			return total;
+		}
+
+		/**
+		 * @return The file names of the backup, the main file (a backup file
+		 *         or shard manifest) first
+		 */
+		public String[] getFileNames() {
+			return mNames.clone();
+		}
+
+	}
+
+	/**
+	 * Constructor. The folders are created when needed.
+	 *
+	 * @param directory The folder holding the store
+	 */
+	public ChunkStore(File directory) {
+		mChunks = new File(directory, "chunks");
+		mGenerations = new File(directory, "generations");
+		mBuffer = new byte[Chunker.MAX_SIZE];
+	}
+
+	/**
+	 * Store a backup as a new generation
+	 *
+	 * @param files The files of the backup: a single backup file, or a shard
+	 *            manifest followed by its shards
+	 * @param metadata The metadata of the backup, null if unknown
+	 * @return The new generation
+	 * @throws IOException when the backup cannot be read or stored
+	 */
+	public Generation add(File[] files, BackupMetadata metadata) throws IOException {
+		mGenerations.mkdirs();
+		mAddedBytes = 0;
+		long created = metadata == null ? System.currentTimeMillis() : metadata.getCreated();
+		try {
+			JSONObject generation = new JSONObject();
+			generation.put(LAYOUT, VERSION);
+			generation.put(CREATED, created);
+			generation.put(CONTACTS, metadata == null ? 0 : metadata.getContactCount());
+			generation.put(DEVICE, metadata == null ? "" : metadata.getDevice());
+			JSONArray entries = new JSONArray();
+			for (File file : files) {
+				JSONObject entry = new JSONObject();
+				entry.put(NAME, file.getName());
+				entry.put(LENGTH, file.length());
+				entry.put(CHUNKS, storeChunks(file));
+				entries.put(entry);
+			}
+			generation.put(FILES, entries);
+			JSONObject wrapper = new JSONObject();
+			wrapper.put(KEY, generation);
+
+			/* the chunk names are hexadecimal, which compresses to half */
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+			OutputStream out = new GZIPOutputStream(compressed);
+			out.write(wrapper.toString().getBytes("UTF-8"));
+			out.close();
+			File target = new File(mGenerations, created + GENERATION_EXTENSION);
+			writeAtomically(target, compressed.toByteArray());
+			return new Generation(target, generation);
+		} catch (JSONException e) {
+			throw new IOException("Unable to encode the generation: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return The number of chunk bytes the last call to
+	 *         {@link #add(File[], BackupMetadata)} had to store. The rest was
+	 *         shared with older generations.
+	 */
+	public long getAddedBytes() {
+		return mAddedBytes;
+	}
+
+	/**
+	 * Split a file into chunks, and store the ones which are new
+	 *
+	 * @return The names of the chunks, concatenated
+	 */
+	private String storeChunks(File file) throws IOException {
+		MessageDigest digest = newDigest();
+		StringBuilder names = new StringBuilder();
+		InputStream in = new FileInputStream(file);
+		try {
+			Chunker chunker = new Chunker(in);
+			int length;
+			while ((length = chunker.next(mBuffer)) != -1) {
+				digest.update(mBuffer, 0, length);
+				String name = toHex(digest.digest());
+				File chunk = chunkFile(name);
+				if (!chunk.exists()) {
+					chunk.getParentFile().mkdirs();
+					writeAtomically(chunk, mBuffer, length);
+					mAddedBytes += length;
+				}
+				names.append(name);
+			}
+		} finally {
+			in.close();
+		}
+		return names.toString();
+	}
+
+	/**
+	 * @return All generations, the most recent first. Unreadable
+	 *         generation files are skipped.
+	 */
+	public List<Generation> getGenerations() {
+		List<Generation> result = new ArrayList<Generation>();
+		File[] files = mGenerations.listFiles();
+		if (files == null) {
+			return result;
+		}
+		for (File file : files) {
+			if (!file.getName().endsWith(GENERATION_EXTENSION)) {
+				continue;
+			}
+			try {
+				InputStream in = new GZIPInputStream(new FileInputStream(file));
+				ByteArrayOutputStream json = new ByteArrayOutputStream();
+				try {
+					int read;
+					while ((read = in.read(mBuffer)) != -1) {
+						json.write(mBuffer, 0, read);
+					}
+				} finally {
+					in.close();
+				}
+				JSONObject wrapper = new JSONObject(json.toString("UTF-8"));
+				JSONObject generation = wrapper.getJSONObject(KEY);
+				if (generation.optInt(LAYOUT) <= VERSION) {
+					result.add(new Generation(file, generation));
+				}
+			} catch (IOException e) {
+				// skipped
+			} catch (JSONException e) {
+				// skipped
+			}
+		}
+		Collections.sort(result, new Comparator<Generation>() {
+			public int compare(Generation a, Generation b) {
+				return a.mCreated > b.mCreated ? -1 : a.mCreated < b.mCreated ? 1 : 0;
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Write the files of a generation. Each file is written to a temporary
+	 * file first, and every chunk is checked against its hash.
+	 *
+	 * @param generation The generation
+	 * @param directory Where the files are written. Existing files with the
+	 *            same names are replaced, and their indexes deleted.
+	 * @throws IOException when a chunk is missing or damaged, or a file
+	 *             cannot be written
+	 */
+	public void extract(Generation generation, File directory) throws IOException {
+		MessageDigest digest = newDigest();
+		for (int i = 0; i < generation.mNames.length; i++) {
+			File target = new File(directory, generation.mNames[i]);
+			File temp = new File(directory, target.getName() + TEMP_EXTENSION);
+			String chunks = generation.mChunks[i];
+			OutputStream out = new FileOutputStream(temp);
+			try {
+				for (int offset = 0; offset < chunks.length(); offset += HASH_LENGTH) {
+					String name = chunks.substring(offset, offset + HASH_LENGTH);
+					byte[] data = readFile(chunkFile(name));
+					if (!toHex(digest.digest(data)).equals(name)) {
+						throw new IOException("Chunk " + name + " is damaged");
+					}
+					out.write(data);
+				}
+			} catch (IOException e) {
+				out.close();
+				temp.delete();
+				throw e;
+			}
+			out.close();
+			if (temp.length() != generation.mLengths[i]) {
+				temp.delete();
+				throw new IOException(target.getName() + " has the wrong size");
+			}
+			/*
+			 * the index and the change log belong to the file being
+			 * replaced. A log stored with the backup follows it.
+			 */
+			RecordIndex.indexFileFor(target).delete();
+			ChangeLog.delete(target);
+			target.delete();
+			if (!temp.renameTo(target)) {
+				throw new IOException("Unable to replace " + target);
+			}
+		}
+	}
+
+	/**
+	 * Delete all but the most recent generations. Their chunks stay until
+	 * the next {@link #prune()}.
+	 *
+	 * @param keep The number of generations to keep
+	 * @return The number of generations deleted
+	 */
+	public int retain(int keep) {
+		List<Generation> generations = getGenerations();
+		int deleted = 0;
+		for (int i = keep; i < generations.size(); i++) {
+			if (generations.get(i).mFile.delete()) {
+				deleted++;
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * Delete the chunks which no generation refers to, and the temporary
+	 * files left behind by an interrupted backup.
+	 *
+	 * @return The number of bytes freed
+	 */
+	public long prune() {
+		HashSet<String> used = new HashSet<String>();
+		for (Generation generation : getGenerations()) {
+			for (String chunks : generation.mChunks) {
+				for (int offset = 0; offset < chunks.length(); offset += HASH_LENGTH) {
+					used.add(chunks.substring(offset, offset + HASH_LENGTH));
+				}
+			}
+		}
+		long freed = 0;
+		File[] generations = mGenerations.listFiles();
+		for (int i = 0; generations != null && i < generations.length; i++) {
+			if (generations[i].getName().endsWith(TEMP_EXTENSION)) {
+				generations[i].delete();
+			}
+		}
+		File[] folders = mChunks.listFiles();
+		for (int i = 0; folders != null && i < folders.length; i++) {
+			File[] chunks = folders[i].listFiles();
+			for (int j = 0; chunks != null && j < chunks.length; j++) {
+				if (!used.contains(chunks[j].getName())) {
+					long length = chunks[j].length();
+					if (chunks[j].delete()) {
+						freed += length;
+					}
+				}
+			}
+		}
+		return freed;
+	}
+
+	/**
+	 * @return The size of the store: all chunks and generations
+	 */
+	public long getSize() {
+		long size = 0;
+		File[] generations = mGenerations.listFiles();
+		for (int i = 0; generations != null && i < generations.length; i++) {
+			size += generations[i].length();
+		}
+		File[] folders = mChunks.listFiles();
+		for (int i = 0; folders != null && i < folders.length; i++) {
+			File[] chunks = folders[i].listFiles();
+			for (int j = 0; chunks != null && j < chunks.length; j++) {
+				size += chunks[j].length();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * The chunks are spread over 256 folders, named after the first two
+	 * digits of the hash, to keep the folders small.
+	 */
+	private File chunkFile(String name) {
+		return new File(new File(mChunks, name.substring(0, 2)), name);
+	}
+
+	private static void writeAtomically(File file, byte[] data) throws IOException {
+		writeAtomically(file, data, data.length);
+	}
+
+	private static void writeAtomically(File file, byte[] data, int length) throws IOException {
+		File temp = new File(file.getParentFile(), file.getName() + TEMP_EXTENSION);
+		OutputStream out = new FileOutputStream(temp);
+		try {
+			out.write(data, 0, length);
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("Unable to write " + file);
+		}
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		byte[] data = new byte[(int) file.length()];
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			BinaryFormat.readFully(in, data, 0, data.length);
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	private static MessageDigest newDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("SHA-1 is not available");
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		char[] hex = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			hex[2 * i] = HEX[(bytes[i] >> 4) & 0x0f];
+			hex[2 * i + 1] = HEX[bytes[i] & 0x0f];
+		}
+		return new String(hex);
+	}
+
+}
@@ -0,0 +1,109 @@
+package lu.albert.android.jsonbackup.format;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits a stream into content-defined chunks.
+ *
+ * A rolling "gear" hash is computed over the bytes, and a chunk ends where
+ * the hash matches a fixed pattern. The hash only depends on the last 64
+ * bytes, so the boundaries depend on the content and not on the position:
+ * inserting a contact into a backup only changes the chunks around it, the
+ * chunks after it are found again unchanged. Chunks are at least
+ * {@link #MIN_SIZE} and at most {@link #MAX_SIZE} bytes, about 5 KB on
+ * average.
+ */
+public class Chunker {
+
+	/** The smallest chunk, except for the last one */
+	public static final int MIN_SIZE = 1024;
+
+	/** The largest chunk */
+	public static final int MAX_SIZE = 64 * 1024;
+
+	/** The number of top hash bits which must be zero: 4 KB on average */
+	private static final int BOUNDARY_BITS = 12;
+
+	/** A random value per byte value, fixed so that all versions agree */
+	private static final long[] GEAR = new long[256];
+
+	static {
+		long seed = 0x4A53424BL;
+		for (int i = 0; i < GEAR.length; i++) {
+			/* splitmix64 */
+			seed += 0x9E3779B97F4A7C15L;
+			long z = seed;
+			z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+			z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+			GEAR[i] = z ^ (z >>> 31);
+		}
+	}
+
+	private final InputStream mIn;
+	private final byte[] mBuffer;
+	private int mStart;
+	private int mEnd;
+	private boolean mEof;
+
+	/**
+	 * Constructor
+	 *
+	 * @param in The stream to split. It does not need to be buffered.
+	 */
+	public Chunker(InputStream in) {
+		mIn = in;
+		mBuffer = new byte[2 * MAX_SIZE];
+	}
+
+	/**
+	 * Read the next chunk
+	 *
+	 * @param chunk Receives the chunk. Must hold at least {@link #MAX_SIZE}
+	 *            bytes.
+	 * @return The size of the chunk, or -1 at the end of the stream
+	 * @throws IOException when the stream cannot be read
+	 */
+	public int next(byte[] chunk) throws IOException {
+		fill();
+		int available = mEnd - mStart;
+		if (available == 0) {
+			return -1;
+		}
+		int length = Math.min(available, MAX_SIZE);
+		long hash = 0;
+		/* start early enough for the hash to cover a full window */
+		for (int i = MIN_SIZE - 64; i < length; i++) {
+			hash = (hash << 1) + GEAR[mBuffer[mStart + i] & 0xff];
+			if (i >= MIN_SIZE && hash >>> (64 - BOUNDARY_BITS) == 0) {
+				length = i + 1;
+				break;
+			}
+		}
+		System.arraycopy(mBuffer, mStart, chunk, 0, length);
+		mStart += length;
+		return length;
+	}
+
+	/**
+	 * Make sure that a whole chunk is buffered, unless the stream ends
+	 * earlier.
+	 */
+	private void fill() throws IOException {
+		if (mEnd - mStart >= MAX_SIZE || mEof) {
+			return;
+		}
+		System.arraycopy(mBuffer, mStart, mBuffer, 0, mEnd - mStart);
+		mEnd -= mStart;
+		mStart = 0;
+		while (mEnd < mBuffer.length) {
+			int read = mIn.read(mBuffer, mEnd, mBuffer.length - mEnd);
+			if (read == -1) {
+				mEof = true;
+				break;
+			}
+			mEnd += read;
+		}
+	}
+
+}
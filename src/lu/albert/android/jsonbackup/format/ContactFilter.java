@@ -0,0 +1,257 @@
+package lu.albert.android.jsonbackup.format;
+
+import lu.albert.android.jsonbackup.schema.ContactRecord;
+import lu.albert.android.jsonbackup.schema.ContactSchema;
+
+/**
+ * Selects some of the contacts of a backup. A contact is selected if it
+ * matches every criterion which was set; a filter without criteria selects
+ * everything.
+ *
+ * The criteria on the person row are checked first, on records decoded in
+ * person only mode (see {@link ContactScanner}). The rest of a record is
+ * only decoded if it passed them, to check the criteria on the child rows
+ * (see {@link #hasRowCriteria()}).
+ */
+public class ContactFilter {
+
+	/** The selected _IDs, as sorted, disjoint [first, last] pairs */
+	private long[] mRanges;
+
+	private boolean mStarred;
+	private String mNamePrefix;
+	private long mContactedSince = -1;
+
+	private String mCompanyPrefix;
+	private boolean mWithPhone;
+
+	/**
+	 * Only select some _IDs. Can be called several times.
+	 *
+	 * @param first The first _ID selected
+	 * @param last The last _ID selected, included
+	 */
+	public void addIdRange(long first, long last) {
+		if (first > last) {
+			throw new IllegalArgumentException("Empty range " + first + "-" + last);
+		}
+		int count = mRanges == null ? 0 : mRanges.length / 2;
+		long[] ranges = new long[(count + 1) * 2];
+		int size = 0;
+		for (int i = 0; i < count; i++) {
+			long start = mRanges[i * 2];
+			long end = mRanges[i * 2 + 1];
+			if (end < first - 1 || start > last + 1) {
+				ranges[size++] = start;
+				ranges[size++] = end;
+			} else {
+				/* overlapping or adjacent ranges are merged */
+				first = Math.min(first, start);
+				last = Math.max(last, end);
+			}
+		}
+		ranges[size++] = first;
+		ranges[size++] = last;
+		mRanges = new long[size];
+		System.arraycopy(ranges, 0, mRanges, 0, size);
+		sortRanges();
+	}
+
+	/**
+	 * Only select some _IDs
+	 *
+	 * @param ids The _IDs, in any order
+	 */
+	public void addIds(long[] ids) {
+		for (int i = 0; i < ids.length; i++) {
+			addIdRange(ids[i], ids[i]);
+		}
+	}
+
+	/**
+	 * Only select some _IDs, as typed by a user: numbers and ranges
+	 * separated by commas or spaces, like "12, 40-55"
+	 *
+	 * @param text The _IDs
+	 * @throws NumberFormatException when the text cannot be parsed
+	 */
+	public void addIds(String text) {
+		String[] parts = text.trim().split("[,\\s]+");
+		for (int i = 0; i < parts.length; i++) {
+			if (parts[i].length() == 0) {
+				continue;
+			}
+			int dash = parts[i].indexOf('-', 1);
+			if (dash < 0) {
+				long id = Long.parseLong(parts[i]);
+				addIdRange(id, id);
+			} else {
+				addIdRange(Long.parseLong(parts[i].substring(0, dash)),
+						Long.parseLong(parts[i].substring(dash + 1)));
+			}
+		}
+	}
+
+	/**
+	 * @param starred true to only select the favourites
+	 */
+	public void setStarred(boolean starred) {
+		mStarred = starred;
+	}
+
+	/**
+	 * @param prefix Only select the contacts whose name or display name
+	 *            starts with it, ignoring the case. null to select any name.
+	 */
+	public void setNamePrefix(String prefix) {
+		mNamePrefix = normalize(prefix);
+	}
+
+	/**
+	 * @param since Only select the contacts last contacted at that time or
+	 *            later, in ms since the epoch. -1 to select all of them.
+	 */
+	public void setContactedSince(long since) {
+		mContactedSince = since;
+	}
+
+	/**
+	 * @param prefix Only select the contacts with an organization whose
+	 *            company starts with it, ignoring the case. null to select
+	 *            any contact.
+	 */
+	public void setCompanyPrefix(String prefix) {
+		mCompanyPrefix = normalize(prefix);
+	}
+
+	/**
+	 * @param withPhone true to only select the contacts with a phone number
+	 */
+	public void setWithPhone(boolean withPhone) {
+		mWithPhone = withPhone;
+	}
+
+	/**
+	 * @return true if only some _IDs are selected, so a {@link RecordIndex}
+	 *         can point straight at them
+	 */
+	public boolean hasIds() {
+		return mRanges != null;
+	}
+
+	/**
+	 * @return true if some criteria need the child rows of the records
+	 */
+	public boolean hasRowCriteria() {
+		return mCompanyPrefix != null || mWithPhone;
+	}
+
+	/**
+	 * @param id The _ID of a contact
+	 * @return false if the _ID is not selected
+	 */
+	public boolean acceptsId(long id) {
+		if (mRanges == null) {
+			return true;
+		}
+		/* the last range which starts at or before the _ID */
+		int low = 0;
+		int high = mRanges.length / 2 - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (mRanges[middle * 2] <= id) {
+				low = middle + 1;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return high >= 0 && id <= mRanges[high * 2 + 1];
+	}
+
+	/**
+	 * Check the criteria on the person row
+	 *
+	 * @param person The person row of a contact
+	 * @return false if the contact is not selected
+	 */
+	public boolean acceptsPerson(ContactRecord.Row person) {
+		if (mRanges != null
+				&& !(person.has(ContactSchema.ID) && acceptsId(person.getLong(ContactSchema.ID)))) {
+			return false;
+		}
+		if (mStarred && !(person.has(ContactSchema.STARRED)
+				&& person.getLong(ContactSchema.STARRED) != 0)) {
+			return false;
+		}
+		if (mContactedSince >= 0 && !(person.has(ContactSchema.LAST_TIME_CONTACTED)
+				&& person.getLong(ContactSchema.LAST_TIME_CONTACTED) >= mContactedSince)) {
+			return false;
+		}
+		if (mNamePrefix != null && !startsWith(person, ContactSchema.NAME, mNamePrefix)
+				&& !startsWith(person, ContactSchema.DISPLAY_NAME, mNamePrefix)) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Check every criterion
+	 *
+	 * @param record A contact, decoded in full
+	 * @return false if the contact is not selected
+	 */
+	public boolean accepts(ContactRecord record) {
+		if (!acceptsPerson(record.person)) {
+			return false;
+		}
+		if (mWithPhone && record.phones.size() == 0) {
+			return false;
+		}
+		if (mCompanyPrefix != null) {
+			for (int i = 0; i < record.organizations.size(); i++) {
+				if (startsWith(record.organizations.get(i), ContactSchema.ORGANIZATION_COMPANY,
+						mCompanyPrefix)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		return true;
+	}
+
+	private static boolean startsWith(ContactRecord.Row row, int field, String prefix) {
+		if (!row.has(field)) {
+			return false;
+		}
+		String value = row.getString(field);
+		return value != null && value.regionMatches(true, 0, prefix, 0, prefix.length());
+	}
+
+	/**
+	 * @return The text without surrounding spaces, null if nothing is left
+	 */
+	private static String normalize(String text) {
+		if (text == null || text.trim().length() == 0) {
+			return null;
+		}
+		return text.trim();
+	}
+
+	/**
+	 * Sort the ranges by their first _ID. Only the last one can be out of
+	 * place.
+	 */
+	private void sortRanges() {
+		int i = mRanges.length - 2;
+		long first = mRanges[i];
+		long last = mRanges[i + 1];
+		while (i > 0 && mRanges[i - 2] > first) {
+			mRanges[i] = mRanges[i - 2];
+			mRanges[i + 1] = mRanges[i - 1];
+			i -= 2;
+		}
+		mRanges[i] = first;
+		mRanges[i + 1] = last;
+	}
+
+}
@@ -0,0 +1,134 @@
+package lu.albert.android.jsonbackup.format;
+
+import java.io.IOException;
+
+import lu.albert.android.jsonbackup.Base64;
+import lu.albert.android.jsonbackup.schema.ContactColumns;
+import lu.albert.android.jsonbackup.schema.ContactRecord;
+import lu.albert.android.jsonbackup.schema.ContactSchema;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Converts a {@link ContactRecord} into the JSON object written by the JSON
+ * writers, and back. The keys and types come from {@link ContactSchema},
+ * missing fields are left out.
+ */
+public final class ContactJson {
+
+	private ContactJson() {
+		// static helpers only
+	}
+
+	/**
+	 * @param record The contact
+	 * @return A new JSON object holding all fields of the contact
+	 * @throws JSONException when a value cannot be encoded
+	 */
+	public static JSONObject toJSON(ContactRecord record) throws JSONException {
+		JSONObject contact = new JSONObject();
+		putFields(contact, record.person);
+		contact.put(ContactColumns.PHONE_NUMBERS, toJSON(record.phones));
+		contact.put(ContactColumns.CONTACT_METHODS, toJSON(record.methods));
+		contact.put(ContactColumns.ORGANIZATIONS, toJSON(record.organizations));
+
+		JSONArray photos = new JSONArray();
+		for (int i = 0; i < record.photos.size(); i++) {
+			photos.put(Base64.encodeBytes(record.photos.getData(i), 0,
+					record.photos.getLength(i)));
+		}
+		contact.put(ContactColumns.PHOTOS, photos);
+		return contact;
+	}
+
+	/**
+	 * The reverse of {@link #toJSON(ContactRecord)}, for contacts which are
+	 * already parsed, like the lines of an NDJSON backup. Unknown keys are
+	 * ignored.
+	 *
+	 * @param contact The contact
+	 * @param record The record to fill. It is cleared first.
+	 * @throws JSONException when a value has the wrong type, or a photo is
+	 *             not valid Base64
+	 */
+	public static void fromJSON(JSONObject contact, ContactRecord record) throws JSONException {
+		record.clear();
+		getFields(contact, record.person);
+		fromJSON(contact.optJSONArray(ContactColumns.PHONE_NUMBERS), record.phones);
+		fromJSON(contact.optJSONArray(ContactColumns.CONTACT_METHODS), record.methods);
+		fromJSON(contact.optJSONArray(ContactColumns.ORGANIZATIONS), record.organizations);
+
+		JSONArray photos = contact.optJSONArray(ContactColumns.PHOTOS);
+		for (int i = 0; photos != null && i < photos.length(); i++) {
+			byte[] photo;
+			try {
+				photo = Base64.decode(photos.getString(i));
+			} catch (IOException e) {
+				throw new JSONException("Invalid photo: " + e.getMessage());
+			}
+			System.arraycopy(photo, 0, record.photos.prepare(photo.length), 0, photo.length);
+			record.photos.add(photo.length);
+		}
+	}
+
+	private static JSONArray toJSON(ContactRecord.RowList rows) throws JSONException {
+		JSONArray array = new JSONArray();
+		for (int i = 0; i < rows.size(); i++) {
+			JSONObject object = new JSONObject();
+			putFields(object, rows.get(i));
+			array.put(object);
+		}
+		return array;
+	}
+
+	private static void fromJSON(JSONArray array, ContactRecord.RowList rows)
+			throws JSONException {
+		for (int i = 0; array != null && i < array.length(); i++) {
+			getFields(array.getJSONObject(i), rows.add());
+		}
+	}
+
+	private static void getFields(JSONObject object, ContactRecord.Row row) throws JSONException {
+		ContactSchema.Group group = row.getGroup();
+		for (int field = 0; field < group.size(); field++) {
+			String key = group.getKey(field);
+			if (object.isNull(key)) {
+				continue;
+			}
+			switch (group.getType(field)) {
+			case ContactSchema.TYPE_INTEGER:
+				row.setLong(field, object.getLong(key));
+				break;
+			case ContactSchema.TYPE_BOOLEAN:
+				row.setBoolean(field, object.getBoolean(key));
+				break;
+			default:
+				row.setString(field, object.get(key).toString());
+				break;
+			}
+		}
+	}
+
+	private static void putFields(JSONObject object, ContactRecord.Row row) throws JSONException {
+		ContactSchema.Group group = row.getGroup();
+		for (int field = 0; field < group.size(); field++) {
+			if (!row.has(field)) {
+				continue;
+			}
+			switch (group.getType(field)) {
+			case ContactSchema.TYPE_INTEGER:
+				object.put(group.getKey(field), row.getLong(field));
+				break;
+			case ContactSchema.TYPE_BOOLEAN:
+				object.put(group.getKey(field), row.getBoolean(field));
+				break;
+			default:
+				object.put(group.getKey(field), row.getString(field));
+				break;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,38 @@
+package lu.albert.android.jsonbackup.format;
+
+import java.io.IOException;
+
+import lu.albert.android.jsonbackup.schema.ContactRecord;
+
+/**
+ * Streams the contacts of a backup file into a re-usable
+ * {@link ContactRecord}, one contact at a time.
+ */
+public interface ContactReader {
+
+	/**
+	 * Read the next contact
+	 *
+	 * @param record The record to fill. It is cleared first.
+	 * @return false if there are no more contacts
+	 * @throws IOException when the file cannot be read or is malformed
+	 */
+	boolean read(ContactRecord record) throws IOException;
+
+	/**
+	 * @return The metadata of the backup, or null for old files
+	 */
+	BackupMetadata getMetadata();
+
+	/**
+	 * @return The number of bytes consumed so far. Useful for progress
+	 *         reporting.
+	 */
+	long getPosition();
+
+	/**
+	 * Close the underlying file
+	 */
+	void close();
+
+}
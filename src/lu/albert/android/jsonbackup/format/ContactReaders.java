@@ -0,0 +1,147 @@
+package lu.albert.android.jsonbackup.format;
+
+import java.io.File;
+import java.io.IOException;
+
+import lu.albert.android.jsonbackup.schema.ContactRecord;
+
+/**
+ * Creates the {@link ContactReader} matching the format of a backup file
+ */
+public final class ContactReaders {
+
+	private ContactReaders() {
+		// static helpers only
+	}
+
+	/**
+	 * Open a backup file for reading
+	 *
+	 * @param file The backup file, in any supported format. A
+	 *            {@link ChangeLog} is replayed.
+	 * @return The reader, positioned before the first contact
+	 * @throws IOException when the file cannot be opened or is invalid
+	 */
+	public static ContactReader open(File file) throws IOException {
+		if (ShardManifest.isManifest(file)) {
+			return new ShardedContactReader(ShardManifest.read(file));
+		}
+		if (ChangeLog.hasLog(file)) {
+			return new LogReplayReader(file);
+		}
+		if (BinaryFormat.isBinary(file)) {
+			return new BinaryContactReader(file);
+		}
+		return new JsonContactReader(file);
+	}
+
+	/**
+	 * Open a backup file for reading. The shards of a sharded backup are
+	 * decoded by several threads, but the contacts are still returned in
+	 * order.
+	 *
+	 * @param file The backup file, in any supported format
+	 * @param threads The number of shards decoded at the same time
+	 * @return The reader, positioned before the first contact
+	 * @throws IOException when the file cannot be opened or is invalid
+	 */
+	public static ContactReader open(File file, int threads) throws IOException {
+		if (threads > 1 && ShardManifest.isManifest(file)) {
+			return new ParallelShardReader(ShardManifest.read(file), threads);
+		}
+		return open(file);
+	}
+
+	/**
+	 * Open a backup file to scan the person rows of its contacts. Single
+	 * files skip the rest of the records without decoding it (see
+	 * {@link ContactScanner}). Sharded backups and backups with a change
+	 * log are read in full, and report no record positions.
+	 *
+	 * @param file The backup file, in any supported format
+	 * @return The scanner, positioned before the first contact
+	 * @throws IOException when the file cannot be opened or is invalid
+	 */
+	public static ContactScanner scan(File file) throws IOException {
+		ContactReader reader = open(file);
+		if (reader instanceof ContactScanner) {
+			ContactScanner scanner = (ContactScanner) reader;
+			scanner.setPersonOnly(true);
+			return scanner;
+		}
+		return new DecodingScanner(reader);
+	}
+
+	/**
+	 * Open a backup file to read some of its contacts only. The records
+	 * which are not selected are skipped with as little decoding as
+	 * possible (see {@link FilteredContactReader}).
+	 *
+	 * @param file The backup file, in any supported format
+	 * @param filter Selects the contacts
+	 * @return The reader, positioned before the first selected contact
+	 * @throws IOException when the file cannot be opened or is invalid
+	 */
+	public static ContactReader filter(File file, ContactFilter filter) throws IOException {
+		ContactScanner scanner = scan(file);
+		return new FilteredContactReader(file, scanner, !(scanner instanceof DecodingScanner),
+				filter);
+	}
+
+	/**
+	 * Reads the records in full for readers which cannot skip
+	 */
+	private static class DecodingScanner implements ContactScanner {
+
+		private final ContactReader mReader;
+		private int mPhotoCount;
+
+		DecodingScanner(ContactReader reader) {
+			mReader = reader;
+		}
+
+		public boolean read(ContactRecord record) throws IOException {
+			boolean result = mReader.read(record);
+			mPhotoCount = record.photos.size();
+			return result;
+		}
+
+		public BackupMetadata getMetadata() {
+			return mReader.getMetadata();
+		}
+
+		public long getPosition() {
+			return mReader.getPosition();
+		}
+
+		public void close() {
+			mReader.close();
+		}
+
+		public void setPersonOnly(boolean personOnly) {
+			// everything is decoded anyway
+		}
+
+		public void setSkipPhotos(boolean skipPhotos) {
+			// everything is decoded anyway
+		}
+
+		public long getRecordOffset() {
+			return -1;
+		}
+
+		public int getRecordLength() {
+			return -1;
+		}
+
+		public int getPhotoCount() {
+			return mPhotoCount;
+		}
+
+		public void seek(long offset, int length) throws IOException {
+			throw new IOException("Cannot seek in a sharded backup or a change log");
+		}
+
+	}
+
+}
@@ -0,0 +1,58 @@
+package lu.albert.android.jsonbackup.format;
+
+import java.io.IOException;
+
+/**
+ * A {@link ContactReader} which can leave most of a record undecoded.
+ *
+ * Counting the contacts, scoring them or listing their names only needs the
+ * person row. In "person only" mode, the child rows and the photos are
+ * skipped at the byte level: no Base64 decoding, no UTF-8 decoding and no
+ * copying, so a scan is limited by how fast the file can be read. Where each
+ * record is stored is reported as well.
+ */
+public interface ContactScanner extends ContactReader {
+
+	/**
+	 * @param personOnly true to only fill the person row of the records.
+	 *            Their child rows and photos are left empty.
+	 */
+	void setPersonOnly(boolean personOnly);
+
+	/**
+	 * @param skipPhotos true to decode the child rows, but skip the photos.
+	 *            They are still counted.
+	 */
+	void setSkipPhotos(boolean skipPhotos);
+
+	/**
+	 * @return The offset of the last record read, as listed in a
+	 *         {@link RecordIndex}, or -1 if unknown
+	 */
+	long getRecordOffset();
+
+	/**
+	 * @return The length of the last record read, as listed in a
+	 *         {@link RecordIndex}, or -1 if unknown
+	 */
+	int getRecordLength();
+
+	/**
+	 * @return The number of photos of the last record read, counted even if
+	 *         they were skipped
+	 */
+	int getPhotoCount();
+
+	/**
+	 * Position the scanner on a record. The next {@link #read} returns it,
+	 * and the records which follow it after that.
+	 *
+	 * @param offset The offset of the record, as listed in a
+	 *            {@link RecordIndex} or returned by {@link #getRecordOffset()}
+	 * @param length The length of the record
+	 * @throws IOException when the file cannot be positioned, or the scanner
+	 *             does not report record positions
+	 */
+	void seek(long offset, int length) throws IOException;
+
+}
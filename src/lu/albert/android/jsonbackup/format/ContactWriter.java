@@ -0,0 +1,46 @@
+package lu.albert.android.jsonbackup.format;
+
+import java.io.IOException;
+
+import lu.albert.android.jsonbackup.schema.ContactRecord;
+
+import org.json.JSONException;
+
+/**
+ * Serializes contacts one at a time into a backup file. Implementations
+ * never keep more than one contact in memory.
+ */
+public interface ContactWriter {
+
+	/**
+	 * Append a contact to the backup
+	 * 
+	 * @param contact The contact. It may be re-used once this returns.
+	 * @throws IOException when the data could not be written
+	 * @throws JSONException when the contact could not be encoded
+	 */
+	void write(ContactRecord contact) throws IOException, JSONException;
+
+	/**
+	 * @return The metadata which will be written to the end of the file when
+	 *         it is closed. It is updated with every contact.
+	 */
+	BackupMetadata getMetadata();
+
+	/**
+	 * Write the position and checksum of every following contact into the
+	 * given index.
+	 * 
+	 * @param index The index writer. The caller remains responsible for
+	 *            closing it.
+	 */
+	void setIndex(RecordIndex.Writer index);
+
+	/**
+	 * Write any trailing data and close the underlying stream
+	 * 
+	 * @throws IOException when the data could not be written
+	 */
+	void close() throws IOException;
+
+}
@@ -0,0 +1,43 @@
+package lu.albert.android.jsonbackup.format;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes written through it, e.g. to know when a shard is full or
+ * where the next block of a file starts
+ */
+class CountingOutputStream extends FilterOutputStream {
+
+	private long mCount;
+
+	/**
+	 * Constructor
+	 *
+	 * @param out The stream the bytes are written to
+	 */
+	CountingOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	/**
+	 * @return The number of bytes written so far
+	 */
+	long getCount() {
+		return mCount;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		out.write(b);
+		mCount++;
+	}
+
+	@Override
+	public void write(byte[] buffer, int offset, int length) throws IOException {
+		out.write(buffer, offset, length);
+		mCount += length;
+	}
+
+}
@@ -0,0 +1,159 @@
+package lu.albert.android.jsonbackup.format;
+
+import java.io.File;
+import java.io.IOException;
+
+import lu.albert.android.jsonbackup.schema.ContactRecord;
+
+/**
+ * Only returns the contacts of a backup selected by a {@link ContactFilter}.
+ *
+ * The file is scanned in person only mode, so the records which are not
+ * selected are skipped without decoding their child rows and photos. Once a
+ * person row is selected, the scanner seeks back to the start of the record
+ * and decodes it in full, then carries on scanning after it.
+ *
+ * If only some _IDs are selected and the backup has a valid
+ * {@link RecordIndex}, the other records are not even read: the index is
+ * searched for the _IDs, and the scanner seeks straight to them.
+ *
+ * Readers which cannot seek (sharded backups, backups with a change log)
+ * decode every record and drop the ones which are not selected.
+ */
+class FilteredContactReader implements ContactReader {
+
+	private final ContactScanner mScanner;
+	private final ContactFilter mFilter;
+	private final boolean mSeekable;
+
+	/** The records selected by the index, null to scan the whole file */
+	private long[] mOffsets;
+	private int[] mLengths;
+	private int mCount;
+	private int mNext;
+
+	/** The number of records looked at, and decoded in full */
+	private int mScanned;
+	private int mDecoded;
+
+	/**
+	 * Constructor
+	 *
+	 * @param file The backup file
+	 * @param scanner The scanner of the file, in person only mode
+	 * @param seekable true if the scanner can seek
+	 * @param filter Selects the contacts
+	 * @throws IOException when the index cannot be read
+	 */
+	FilteredContactReader(File file, ContactScanner scanner, boolean seekable,
+			ContactFilter filter) throws IOException {
+		mScanner = scanner;
+		mSeekable = seekable;
+		mFilter = filter;
+		if (seekable && filter.hasIds()) {
+			readIndex(file);
+		}
+	}
+
+	/**
+	 * Look up the selected _IDs in the index of the file
+	 */
+	private void readIndex(File file) throws IOException {
+		RecordIndex.Reader index = RecordIndex.open(file);
+		if (index == null) {
+			return;
+		}
+		try {
+			long[] offsets = new long[64];
+			int[] lengths = new int[64];
+			int count = 0;
+			long previous = -1;
+			while (index.next()) {
+				if (!mFilter.acceptsId(index.getId())) {
+					continue;
+				}
+				if (index.getOffset() <= previous) {
+					/* not in file order, seeking back and forth is not worth it */
+					return;
+				}
+				previous = index.getOffset();
+				if (count == offsets.length) {
+					long[] grownOffsets = new long[count * 2];
+					int[] grownLengths = new int[count * 2];
+					System.arraycopy(offsets, 0, grownOffsets, 0, count);
+					System.arraycopy(lengths, 0, grownLengths, 0, count);
+					offsets = grownOffsets;
+					lengths = grownLengths;
+				}
+				offsets[count] = index.getOffset();
+				lengths[count] = index.getLength();
+				count++;
+			}
+			mOffsets = offsets;
+			mLengths = lengths;
+			mCount = count;
+		} finally {
+			index.close();
+		}
+	}
+
+	public boolean read(ContactRecord record) throws IOException {
+		while (readPerson(record)) {
+			mScanned++;
+			if (!mFilter.acceptsPerson(record.person)) {
+				continue;
+			}
+			if (mSeekable) {
+				/* back to the start of the record, to decode all of it */
+				mScanner.seek(mScanner.getRecordOffset(), mScanner.getRecordLength());
+				mScanner.setPersonOnly(false);
+				try {
+					mScanner.read(record);
+				} finally {
+					mScanner.setPersonOnly(true);
+				}
+			}
+			mDecoded++;
+			if (mFilter.accepts(record)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Read the person row of the next record, or the next record listed by
+	 * the index
+	 */
+	private boolean readPerson(ContactRecord record) throws IOException {
+		if (mOffsets == null) {
+			return mScanner.read(record);
+		}
+		if (mNext == mCount) {
+			record.clear();
+			return false;
+		}
+		mScanner.seek(mOffsets[mNext], mLengths[mNext]);
+		mNext++;
+		return mScanner.read(record);
+	}
+
+	public BackupMetadata getMetadata() {
+		return mScanner.getMetadata();
+	}
+
+	public long getPosition() {
+		return mScanner.getPosition();
+	}
+
+	public void close() {
+		mScanner.close();
+	}
+
+	@Override
+	public String toString() {
+		return (mOffsets != null ? "indexed, " : "scanned, ") + mScanned + " records looked at, "
+				+ mDecoded + " decoded";
+	}
+
+}
@@ -0,0 +1,119 @@
+package lu.albert.android.jsonbackup.format;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A checksum of every contact, by contact ID.
+ *
+ * A backup run compares the digests of the persons with the ones stored by
+ * the previous backup (see {@link SourceIndex}) to find the contacts which
+ * changed. The IDs are kept sorted in a primitive array, so looking one up
+ * is a binary search and 10000 contacts take about 120 KB.
+ */
+public class Fingerprints {
+
+	private long[] mIds;
+	private int[] mCrcs;
+	private int mSize;
+	private boolean mSorted;
+
+	/**
+	 * Constructor for an empty set
+	 */
+	public Fingerprints() {
+		mIds = new long[64];
+		mCrcs = new int[64];
+		mSorted = true;
+	}
+
+	/**
+	 * Add the fingerprint of a contact. IDs should be added only once.
+	 *
+	 * @param id The ID of the contact
+	 * @param crc The checksum of the contact
+	 */
+	public void add(long id, int crc) {
+		if (mSize == mIds.length) {
+			mIds = BinaryFormat.copyOf(mIds, mSize * 2);
+			mCrcs = BinaryFormat.copyOf(mCrcs, mSize * 2);
+		}
+		if (mSize > 0 && mIds[mSize - 1] > id) {
+			mSorted = false;
+		}
+		mIds[mSize] = id;
+		mCrcs[mSize] = crc;
+		mSize++;
+	}
+
+	/** @return The number of contacts */
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * @param index A position, 0 to size() - 1, in ascending ID order
+	 * @return The ID at that position
+	 */
+	public long getId(int index) {
+		sort();
+		return mIds[index];
+	}
+
+	/**
+	 * @param id The ID of a contact
+	 * @return The position of the contact, or a negative value if it is not
+	 *         known
+	 */
+	public int indexOf(long id) {
+		sort();
+		return Arrays.binarySearch(mIds, 0, mSize, id);
+	}
+
+	/**
+	 * @param index A position returned by {@link #indexOf(long)}
+	 * @return The checksum of the contact
+	 */
+	public int getCrc(int index) {
+		return mCrcs[index];
+	}
+
+	/**
+	 * @param index A position returned by {@link #indexOf(long)}
+	 * @param crc The new checksum of the contact
+	 */
+	public void setCrc(int index, int crc) {
+		mCrcs[index] = crc;
+	}
+
+	/**
+	 * Sort the entries by ID. The exports read the contacts in ascending ID
+	 * order, so usually nothing needs to move.
+	 */
+	private void sort() {
+		if (mSorted) {
+			return;
+		}
+		Integer[] order = new Integer[mSize];
+		for (int i = 0; i < mSize; i++) {
+			order[i] = Integer.valueOf(i);
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				long x = mIds[a.intValue()];
+				long y = mIds[b.intValue()];
+				return x < y ? -1 : x > y ? 1 : 0;
+			}
+		});
+		long[] ids = new long[mIds.length];
+		int[] crcs = new int[mCrcs.length];
+		for (int i = 0; i < mSize; i++) {
+			ids[i] = mIds[order[i].intValue()];
+			crcs[i] = mCrcs[order[i].intValue()];
+		}
+		mIds = ids;
+		mCrcs = crcs;
+		mSorted = true;
+	}
+
+}
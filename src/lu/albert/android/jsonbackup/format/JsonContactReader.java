@@ -0,0 +1,824 @@
+package lu.albert.android.jsonbackup.format;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+
+import lu.albert.android.jsonbackup.schema.ContactColumns;
+import lu.albert.android.jsonbackup.schema.ContactRecord;
+import lu.albert.android.jsonbackup.schema.ContactSchema;
+
+/**
+ * Reads the contacts of a JSON backup straight into a {@link ContactRecord}.
+ *
+ * This is not a general purpose JSON parser. It knows the layout of a
+ * backup: keys are matched against {@link ContactSchema} while still UTF-8
+ * encoded, numbers are parsed from the raw bytes, photos are Base64 decoded
+ * into the pooled buffers of the record, and only string values ever get
+ * decoded into characters. Unknown keys are skipped, so files written by
+ * newer versions can still be read.
+ *
+ * The values are converted the same way org.json converts them: numbers
+ * stored as strings are accepted for integer fields, null means missing,
+ * and values of the wrong type are ignored.
+ *
+ * In person only mode (see {@link ContactScanner}), the child arrays and the
+ * photos are skipped by looking for the closing quotes and brackets only.
+ * The photos alone can be skipped the same way.
+ */
+public class JsonContactReader implements ContactScanner {
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	private static final byte[] PHONE_NUMBERS = ContactSchema.toBytes(ContactColumns.PHONE_NUMBERS);
+	private static final byte[] CONTACT_METHODS = ContactSchema.toBytes(ContactColumns.CONTACT_METHODS);
+	private static final byte[] ORGANIZATIONS = ContactSchema.toBytes(ContactColumns.ORGANIZATIONS);
+	private static final byte[] PHOTOS = ContactSchema.toBytes(ContactColumns.PHOTOS);
+	private static final byte[] META = ContactSchema.toBytes(BackupMetadata.KEY);
+
+	/** Maps Base64 characters to their value, everything else to -1 */
+	private static final byte[] BASE64_VALUES = new byte[256];
+	static {
+		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+		for (int i = 0; i < BASE64_VALUES.length; i++) {
+			BASE64_VALUES[i] = -1;
+		}
+		for (int i = 0; i < alphabet.length(); i++) {
+			BASE64_VALUES[alphabet.charAt(i)] = (byte) i;
+		}
+	}
+
+	private final InputStream mIn;
+	private final BackupMetadata mMetadata;
+
+	/** Used to seek, null if the stream is not a file */
+	private final FileChannel mChannel;
+
+	private final byte[] mBuffer;
+	private int mBufferPosition;
+	private int mBufferLimit;
+
+	/** The position of the first byte of the buffer in the file */
+	private long mBufferOffset;
+
+	/** The unescaped bytes of the last string or number */
+	private byte[] mText;
+	private int mTextLength;
+
+	/** Used to decode mText into strings */
+	private char[] mChars;
+
+	private boolean mStarted;
+	private boolean mFinished;
+
+	/** true right after a seek: the next token opens a record */
+	private boolean mSeeked;
+
+	private boolean mPersonOnly;
+	private boolean mSkipPhotos;
+
+	/** Where the last record starts and ends */
+	private long mRecordOffset;
+	private long mRecordEnd;
+	private int mPhotoCount;
+
+	/**
+	 * Constructor
+	 *
+	 * @param file The backup file
+	 * @throws IOException when the file cannot be opened, or its metadata is
+	 *             invalid
+	 */
+	public JsonContactReader(File file) throws IOException {
+		this(BackupMetadata.readSnapshot(file), new FileInputStream(file));
+	}
+
+	/**
+	 * Constructor for a JSON array which does not come from a backup file
+	 *
+	 * @param metadata The metadata, used to size the buffers (may be null)
+	 * @param in The stream, starting with the array
+	 */
+	JsonContactReader(BackupMetadata metadata, InputStream in) {
+		mMetadata = metadata;
+		int capacity = 1024;
+		if (mMetadata != null) {
+			capacity = Math.max(capacity, mMetadata.getMaxRecordSize());
+		}
+		mText = new byte[capacity];
+		mChars = new char[256];
+		mBuffer = new byte[BUFFER_SIZE];
+		mIn = in;
+		mChannel = in instanceof FileInputStream ? ((FileInputStream) in).getChannel() : null;
+	}
+
+	public BackupMetadata getMetadata() {
+		return mMetadata;
+	}
+
+	public void setPersonOnly(boolean personOnly) {
+		mPersonOnly = personOnly;
+	}
+
+	public void setSkipPhotos(boolean skipPhotos) {
+		mSkipPhotos = skipPhotos;
+	}
+
+	public long getRecordOffset() {
+		return mRecordOffset;
+	}
+
+	public int getRecordLength() {
+		return (int) (mRecordEnd - mRecordOffset);
+	}
+
+	public int getPhotoCount() {
+		return mPhotoCount;
+	}
+
+	public void seek(long offset, int length) throws IOException {
+		if (mChannel == null) {
+			throw new IOException("Cannot seek in a stream");
+		}
+		mChannel.position(offset);
+		mBufferOffset = offset;
+		mBufferPosition = 0;
+		mBufferLimit = 0;
+		mStarted = true;
+		mFinished = false;
+		mSeeked = true;
+	}
+
+	public long getPosition() {
+		return mBufferOffset + mBufferPosition;
+	}
+
+	public void close() {
+		BinaryFormat.closeQuietly(mIn);
+	}
+
+	public boolean read(ContactRecord record) throws IOException {
+		record.clear();
+		while (!mFinished) {
+			int c = nextToken();
+			if (!mStarted) {
+				if (c != '[') {
+					throw error("Expected '['");
+				}
+				mStarted = true;
+				c = nextToken();
+			} else if (mSeeked) {
+				/* c opens the record the reader was positioned on */
+				mSeeked = false;
+			} else if (c == ',') {
+				c = nextToken();
+			} else if (c != ']') {
+				throw error("Expected ',' or ']'");
+			}
+			if (c == ']') {
+				mFinished = true;
+				break;
+			}
+			if (c != '{') {
+				throw error("Expected a contact");
+			}
+			mRecordOffset = getPosition() - 1;
+			mPhotoCount = 0;
+			boolean contact = readContact(record);
+			mRecordEnd = getPosition();
+			if (contact) {
+				return true;
+			}
+			/* that was the metadata */
+			record.clear();
+		}
+		return false;
+	}
+
+	/**
+	 * Read the members of a contact. The opening brace has been consumed.
+	 *
+	 * @param record The destination
+	 * @return false if the object turned out to be the metadata
+	 */
+	private boolean readContact(ContactRecord record) throws IOException {
+		boolean meta = false;
+		int c = nextToken();
+		if (c == '}') {
+			return true;
+		}
+		while (true) {
+			readKey(c);
+			int field = ContactSchema.PERSON.find(mText, 0, mTextLength);
+			if (field != -1) {
+				readValue(record.person, field);
+			} else if (mPersonOnly && !isText(PHOTOS)) {
+				meta |= isText(META);
+				skipValue(nextToken());
+			} else if (isText(PHONE_NUMBERS)) {
+				readRows(record.phones);
+			} else if (isText(CONTACT_METHODS)) {
+				readRows(record.methods);
+			} else if (isText(ORGANIZATIONS)) {
+				readRows(record.organizations);
+			} else if (isText(PHOTOS)) {
+				readPhotos(record.photos);
+			} else {
+				meta |= isText(META);
+				skipValue(nextToken());
+			}
+			c = nextToken();
+			if (c == '}') {
+				return !meta;
+			}
+			if (c != ',') {
+				throw error("Expected ',' or '}'");
+			}
+			c = nextToken();
+		}
+	}
+
+	/**
+	 * Read an array of objects into a list of rows
+	 */
+	private void readRows(ContactRecord.RowList rows) throws IOException {
+		int c = nextToken();
+		if (c != '[') {
+			skipValue(c);
+			return;
+		}
+		c = nextToken();
+		if (c == ']') {
+			return;
+		}
+		while (true) {
+			if (c == '{') {
+				readRow(rows.add());
+			} else {
+				skipValue(c);
+			}
+			c = nextToken();
+			if (c == ']') {
+				return;
+			}
+			if (c != ',') {
+				throw error("Expected ',' or ']'");
+			}
+			c = nextToken();
+		}
+	}
+
+	/**
+	 * Read the members of a child object. The opening brace has been
+	 * consumed.
+	 */
+	private void readRow(ContactRecord.Row row) throws IOException {
+		int c = nextToken();
+		if (c == '}') {
+			return;
+		}
+		while (true) {
+			readKey(c);
+			int field = row.getGroup().find(mText, 0, mTextLength);
+			if (field != -1) {
+				readValue(row, field);
+			} else {
+				skipValue(nextToken());
+			}
+			c = nextToken();
+			if (c == '}') {
+				return;
+			}
+			if (c != ',') {
+				throw error("Expected ',' or '}'");
+			}
+			c = nextToken();
+		}
+	}
+
+	/**
+	 * Read a key and the following colon into mText
+	 *
+	 * @param c The first token of the key
+	 */
+	private void readKey(int c) throws IOException {
+		if (c != '"') {
+			throw error("Expected a key");
+		}
+		readString();
+		if (nextToken() != ':') {
+			throw error("Expected ':'");
+		}
+	}
+
+	/**
+	 * Read a value and store it in the given field if it has a suitable
+	 * type
+	 */
+	private void readValue(ContactRecord.Row row, int field) throws IOException {
+		int type = row.getGroup().getType(field);
+		boolean isString = type == ContactSchema.TYPE_STRING
+				|| type == ContactSchema.TYPE_LABEL;
+		int c = nextToken();
+		switch (c) {
+		case '"':
+			readString();
+			if (type == ContactSchema.TYPE_INTEGER) {
+				parseInteger(row, field);
+			} else if (type == ContactSchema.TYPE_BOOLEAN) {
+				if (isTextIgnoreCase("true")) {
+					row.setBoolean(field, true);
+				} else if (isTextIgnoreCase("false")) {
+					row.setBoolean(field, false);
+				}
+			} else {
+				row.setString(field, decodeText());
+			}
+			break;
+		case 't':
+		case 'f':
+			boolean value = readBoolean(c);
+			if (type == ContactSchema.TYPE_BOOLEAN) {
+				row.setBoolean(field, value);
+			} else if (isString) {
+				row.setString(field, value ? "true" : "false");
+			}
+			break;
+		case 'n':
+			/* null means missing */
+			expectLiteral("null");
+			break;
+		default:
+			if (c == '-' || (c >= '0' && c <= '9')) {
+				readNumber(c);
+				if (type == ContactSchema.TYPE_INTEGER) {
+					parseInteger(row, field);
+				} else if (isString) {
+					row.setString(field, decodeText());
+				}
+			} else {
+				skipValue(c);
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Parse mText as integer. Plain numbers are parsed without creating any
+	 * objects, everything else takes the slow path.
+	 */
+	private void parseInteger(ContactRecord.Row row, int field) {
+		int i = 0;
+		boolean negative = false;
+		if (mTextLength > 0 && mText[0] == '-') {
+			negative = true;
+			i = 1;
+		}
+		if (mTextLength > i && mTextLength - i <= 18) {
+			long value = 0;
+			for (; i < mTextLength; i++) {
+				int digit = mText[i] - '0';
+				if (digit < 0 || digit > 9) {
+					break;
+				}
+				value = value * 10 + digit;
+			}
+			if (i == mTextLength) {
+				row.setLong(field, negative ? -value : value);
+				return;
+			}
+		}
+
+		String text = decodeText().trim();
+		try {
+			row.setLong(field, Long.parseLong(text));
+		} catch (NumberFormatException e) {
+			try {
+				row.setLong(field, (long) Double.parseDouble(text));
+			} catch (NumberFormatException e2) {
+				/* not a number, same as a missing value */
+			}
+		}
+	}
+
+	/**
+	 * Read an array of Base64 encoded photos
+	 */
+	private void readPhotos(ContactRecord.PhotoList photos) throws IOException {
+		int c = nextToken();
+		if (c != '[') {
+			skipValue(c);
+			return;
+		}
+		c = nextToken();
+		if (c == ']') {
+			return;
+		}
+		while (true) {
+			if (c == '"' && (mPersonOnly || mSkipPhotos)) {
+				/* empty strings are not photos */
+				long start = getPosition();
+				skipString();
+				if (getPosition() - start > 1) {
+					mPhotoCount++;
+				}
+			} else if (c == '"') {
+				readString();
+				decodeBase64(photos);
+				mPhotoCount = photos.size();
+			} else {
+				skipValue(c);
+			}
+			c = nextToken();
+			if (c == ']') {
+				return;
+			}
+			if (c != ',') {
+				throw error("Expected ',' or ']'");
+			}
+			c = nextToken();
+		}
+	}
+
+	/**
+	 * Decode mText as Base64 into the next photo buffer. Empty strings and
+	 * invalid data are skipped.
+	 */
+	private void decodeBase64(ContactRecord.PhotoList photos) {
+		byte[] out = photos.prepare(mTextLength / 4 * 3 + 3);
+		int length = 0;
+		int bits = 0;
+		int pending = 0;
+		for (int i = 0; i < mTextLength; i++) {
+			int b = mText[i] & 0xFF;
+			if (b == '=') {
+				break;
+			}
+			if (b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+				continue;
+			}
+			int value = BASE64_VALUES[b];
+			if (value < 0) {
+				return;
+			}
+			bits = (bits << 6) | value;
+			pending += 6;
+			if (pending >= 8) {
+				pending -= 8;
+				out[length++] = (byte) (bits >> pending);
+			}
+		}
+		if (length > 0) {
+			photos.add(length);
+		}
+	}
+
+	/**
+	 * Read the rest of a string into mText, resolving escapes. The opening
+	 * quote has been consumed.
+	 */
+	private void readString() throws IOException {
+		mTextLength = 0;
+		while (true) {
+			if (mBufferPosition == mBufferLimit && !fill()) {
+				throw new EOFException("Unexpected end of file in string");
+			}
+			byte[] buffer = mBuffer;
+			int start = mBufferPosition;
+			int end = start;
+			while (end < mBufferLimit && buffer[end] != '"' && buffer[end] != '\\') {
+				end++;
+			}
+			appendText(buffer, start, end - start);
+			mBufferPosition = end;
+			if (end == mBufferLimit) {
+				continue;
+			}
+			mBufferPosition++;
+			if (buffer[end] == '"') {
+				return;
+			}
+			readEscape(nextByte());
+		}
+	}
+
+	/**
+	 * Append the character of an escape sequence to mText
+	 *
+	 * @param c The character following the backslash
+	 */
+	private void readEscape(int c) throws IOException {
+		switch (c) {
+		case '"':
+		case '\\':
+		case '/':
+			appendByte(c);
+			break;
+		case 'b':
+			appendByte('\b');
+			break;
+		case 'f':
+			appendByte('\f');
+			break;
+		case 'n':
+			appendByte('\n');
+			break;
+		case 'r':
+			appendByte('\r');
+			break;
+		case 't':
+			appendByte('\t');
+			break;
+		case 'u':
+			int value = readHex();
+			if (value >= 0xD800 && value <= 0xDBFF && peek() == '\\') {
+				/* a surrogate pair is encoded as two escapes */
+				nextByte();
+				int next = nextByte();
+				if (next != 'u') {
+					appendCodePoint(value);
+					readEscape(next);
+					break;
+				}
+				int low = readHex();
+				if (low >= 0xDC00 && low <= 0xDFFF) {
+					appendCodePoint(0x10000 + ((value - 0xD800) << 10) + (low - 0xDC00));
+				} else {
+					appendCodePoint(value);
+					appendCodePoint(low);
+				}
+			} else {
+				appendCodePoint(value);
+			}
+			break;
+		default:
+			throw error("Invalid escape sequence");
+		}
+	}
+
+	private int readHex() throws IOException {
+		int value = 0;
+		for (int i = 0; i < 4; i++) {
+			int c = nextByte();
+			int digit = Character.digit((char) c, 16);
+			if (digit < 0) {
+				throw error("Invalid unicode escape");
+			}
+			value = (value << 4) | digit;
+		}
+		return value;
+	}
+
+	/**
+	 * Read the rest of a number into mText
+	 *
+	 * @param c The first character of the number
+	 */
+	private void readNumber(int c) throws IOException {
+		mTextLength = 0;
+		appendByte(c);
+		while (isNumberChar(peek())) {
+			appendByte(nextByte());
+		}
+	}
+
+	private static boolean isNumberChar(int c) {
+		return (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.'
+				|| c == 'e' || c == 'E';
+	}
+
+	private boolean readBoolean(int c) throws IOException {
+		if (c == 't') {
+			expectLiteral("true");
+			return true;
+		}
+		expectLiteral("false");
+		return false;
+	}
+
+	/**
+	 * Consume the rest of a literal. The first character has been consumed.
+	 */
+	private void expectLiteral(String literal) throws IOException {
+		for (int i = 1; i < literal.length(); i++) {
+			if (nextByte() != literal.charAt(i)) {
+				throw error("Expected " + literal);
+			}
+		}
+	}
+
+	/**
+	 * Skip a value of any kind
+	 *
+	 * @param c The first token of the value
+	 */
+	private void skipValue(int c) throws IOException {
+		switch (c) {
+		case '"':
+			skipString();
+			break;
+		case '{':
+		case '[':
+			int depth = 1;
+			while (depth > 0) {
+				int b = nextByte();
+				if (b == '"') {
+					skipString();
+				} else if (b == '{' || b == '[') {
+					depth++;
+				} else if (b == '}' || b == ']') {
+					depth--;
+				}
+			}
+			break;
+		case 't':
+		case 'f':
+			readBoolean(c);
+			break;
+		case 'n':
+			expectLiteral("null");
+			break;
+		default:
+			if (c != '-' && (c < '0' || c > '9')) {
+				throw error("Unexpected character '" + (char) c + "'");
+			}
+			while (isNumberChar(peek())) {
+				nextByte();
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Skip the rest of a string without copying it. The opening quote has
+	 * been consumed.
+	 */
+	private void skipString() throws IOException {
+		while (true) {
+			if (mBufferPosition == mBufferLimit && !fill()) {
+				throw new EOFException("Unexpected end of file in string");
+			}
+			/*
+			 * Run to the next quote or backslash. Android's org.json
+			 * escapes the '/' of Base64 as "\/", so a photo stops here at
+			 * every slash, and carries on after the escaped character.
+			 */
+			byte[] buffer = mBuffer;
+			int limit = mBufferLimit;
+			int end = mBufferPosition;
+			while (end < limit && buffer[end] != '"' && buffer[end] != '\\') {
+				end++;
+			}
+			mBufferPosition = end;
+			if (end == limit) {
+				continue;
+			}
+			mBufferPosition++;
+			if (buffer[end] == '"') {
+				return;
+			}
+			/* the escaped character */
+			nextByte();
+		}
+	}
+
+	/**
+	 * @return The next byte which is not white space
+	 */
+	private int nextToken() throws IOException {
+		int c = nextByte();
+		while (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+			c = nextByte();
+		}
+		return c;
+	}
+
+	private int nextByte() throws IOException {
+		if (mBufferPosition == mBufferLimit && !fill()) {
+			throw new EOFException("Unexpected end of file");
+		}
+		return mBuffer[mBufferPosition++] & 0xFF;
+	}
+
+	/**
+	 * @return The next byte without consuming it, or -1 at the end of the
+	 *         file
+	 */
+	private int peek() throws IOException {
+		if (mBufferPosition == mBufferLimit && !fill()) {
+			return -1;
+		}
+		return mBuffer[mBufferPosition] & 0xFF;
+	}
+
+	private boolean fill() throws IOException {
+		int read = mIn.read(mBuffer, 0, mBuffer.length);
+		if (read <= 0) {
+			return false;
+		}
+		mBufferOffset += mBufferLimit;
+		mBufferPosition = 0;
+		mBufferLimit = read;
+		return true;
+	}
+
+	private void appendByte(int b) {
+		if (mTextLength == mText.length) {
+			growText(mTextLength + 1);
+		}
+		mText[mTextLength++] = (byte) b;
+	}
+
+	private void appendText(byte[] source, int offset, int length) {
+		if (mTextLength + length > mText.length) {
+			growText(mTextLength + length);
+		}
+		System.arraycopy(source, offset, mText, mTextLength, length);
+		mTextLength += length;
+	}
+
+	private void growText(int capacity) {
+		byte[] text = new byte[Math.max(capacity, mText.length * 2)];
+		System.arraycopy(mText, 0, text, 0, mTextLength);
+		mText = text;
+	}
+
+	/**
+	 * Append a character as UTF-8
+	 */
+	private void appendCodePoint(int c) {
+		if (c < 0x80) {
+			appendByte(c);
+		} else if (c < 0x800) {
+			appendByte(0xC0 | (c >> 6));
+			appendByte(0x80 | (c & 0x3F));
+		} else if (c < 0x10000) {
+			appendByte(0xE0 | (c >> 12));
+			appendByte(0x80 | ((c >> 6) & 0x3F));
+			appendByte(0x80 | (c & 0x3F));
+		} else {
+			appendByte(0xF0 | (c >> 18));
+			appendByte(0x80 | ((c >> 12) & 0x3F));
+			appendByte(0x80 | ((c >> 6) & 0x3F));
+			appendByte(0x80 | (c & 0x3F));
+		}
+	}
+
+	/**
+	 * @return mText decoded as UTF-8. Invalid sequences become U+FFFD.
+	 */
+	private String decodeText() {
+		if (mChars.length < mTextLength) {
+			mChars = new char[Math.max(mTextLength, mChars.length * 2)];
+		}
+		byte[] text = mText;
+		char[] chars = mChars;
+		int length = 0;
+		for (int i = 0; i < mTextLength; i++) {
+			int b = text[i];
+			if (b >= 0) {
+				chars[length++] = (char) b;
+			} else if ((b & 0xE0) == 0xC0 && i + 1 < mTextLength) {
+				chars[length++] = (char) (((b & 0x1F) << 6) | (text[++i] & 0x3F));
+			} else if ((b & 0xF0) == 0xE0 && i + 2 < mTextLength) {
+				chars[length++] = (char) (((b & 0x0F) << 12)
+						| ((text[i + 1] & 0x3F) << 6) | (text[i + 2] & 0x3F));
+				i += 2;
+			} else if ((b & 0xF8) == 0xF0 && i + 3 < mTextLength) {
+				int c = ((b & 0x07) << 18) | ((text[i + 1] & 0x3F) << 12)
+						| ((text[i + 2] & 0x3F) << 6) | (text[i + 3] & 0x3F);
+				c -= 0x10000;
+				chars[length++] = (char) (0xD800 + (c >> 10));
+				chars[length++] = (char) (0xDC00 + (c & 0x3FF));
+				i += 3;
+			} else {
+				chars[length++] = '\uFFFD';
+			}
+		}
+		return new String(chars, 0, length);
+	}
+
+	private boolean isText(byte[] key) {
+		return ContactSchema.matches(key, mText, 0, mTextLength);
+	}
+
+	private boolean isTextIgnoreCase(String value) {
+		if (value.length() != mTextLength) {
+			return false;
+		}
+		for (int i = 0; i < mTextLength; i++) {
+			if (Character.toLowerCase((char) mText[i]) != value.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private IOException error(String message) {
+		return new IOException(message + " at offset " + (getPosition() - 1));
+	}
+
+}
@@ -0,0 +1,189 @@
+package lu.albert.android.jsonbackup.format;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import lu.albert.android.jsonbackup.schema.ContactRecord;
+import lu.albert.android.jsonbackup.schema.ContactSchema;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Writes the contacts as a pretty-printed JSON array, or a compact one.
+ * 
+ * We don't construct the whole list in memory. Instead we write to disk
+ * after each contact, which should keep memory consumption low. This means,
+ * we cannot create the "root" JSONArray. But that's nothing more that
+ * printing out an opening "[", some commas, and a closing "]"
+ * 
+ * The last element of the array holds the {@link BackupMetadata}. It
+ * contains a checksum of all bytes preceding it, or preceding the
+ * {@link MembershipFilter} element in front of it.
+ */
+public class JsonContactWriter implements SpliceableWriter {
+
+	/** The number of spaces used to indent nested values */
+	private static final int INDENT = 3;
+
+	/** Between two records (JSON array grammar) */
+	private static final byte[] SEPARATOR = { ',', '\n' };
+
+	/** The checksum of {@link #SEPARATOR} */
+	private static final long SEPARATOR_CRC;
+	static {
+		CRC32 crc = new CRC32();
+		crc.update(SEPARATOR, 0, SEPARATOR.length);
+		SEPARATOR_CRC = crc.getValue();
+	}
+
+	/** Computes the checksum of everything up to the metadata */
+	private final CheckedOutputStream mOut;
+	private final BackupMetadata mMetadata;
+	private final CRC32 mRecordCrc;
+	private RecordIndex.Writer mIndex;
+	private boolean mFirst;
+
+	/** Collects the keys of the membership filter, null for none */
+	private MembershipFilter.Builder mFilter;
+
+	/** Copies records of an older backup, null if there is none */
+	private RecordSplicer mSplicer;
+
+	/** Number of bytes written so far */
+	private long mPosition;
+
+	/** false to write every contact on one line, without spaces */
+	private final boolean mPretty;
+
+	/**
+	 * Constructor for a pretty-printed array. Writes the opening "[" right
+	 * away.
+	 * 
+	 * @param out The destination stream
+	 * @throws IOException when the stream cannot be written
+	 */
+	public JsonContactWriter(OutputStream out) throws IOException {
+		this(out, true);
+	}
+
+	/**
+	 * Constructor. Writes the opening "[" right away.
+	 * 
+	 * @param out The destination stream
+	 * @param pretty true to indent the contacts, false to write each of
+	 *            them on one line
+	 * @throws IOException when the stream cannot be written
+	 */
+	public JsonContactWriter(OutputStream out, boolean pretty) throws IOException {
+		mPretty = pretty;
+		mOut = new CheckedOutputStream(out, new CRC32());
+		mMetadata = new BackupMetadata(BackupMetadata.JSON_VERSION);
+		mRecordCrc = new CRC32();
+		mFirst = true;
+		write(toBytes("[\n"));
+	}
+
+	public BackupMetadata getMetadata() {
+		return mMetadata;
+	}
+
+	public void setIndex(RecordIndex.Writer index) {
+		mIndex = index;
+	}
+
+	public void write(ContactRecord contact) throws IOException, JSONException {
+		JSONObject json = ContactJson.toJSON(contact);
+		byte[] encoded = toBytes(mPretty ? json.toString(INDENT) : json.toString());
+		writeSeparator();
+		if (mIndex != null) {
+			mRecordCrc.reset();
+			mRecordCrc.update(encoded, 0, encoded.length);
+			mIndex.add(contact.person.getLong(ContactSchema.ID), mPosition,
+					encoded.length, (int) mRecordCrc.getValue());
+		}
+		write(encoded);
+		mMetadata.account(contact, encoded.length);
+		if (mFilter != null) {
+			mFilter.add(contact);
+		}
+	}
+
+	public void setFilter(MembershipFilter.Builder filter) {
+		mFilter = filter;
+	}
+
+	public void setSpliceSource(File previous, FileChannel target) throws IOException {
+		mSplicer = new RecordSplicer(previous, target, mOut);
+	}
+
+	public void splice(long id, long offset, int length, int crc) throws IOException {
+		if (!mFirst && mSplicer.follows(offset - SEPARATOR.length)) {
+			/* the records were neighbours: copy the separator along */
+			mSplicer.copy(offset - SEPARATOR.length, SEPARATOR.length, SEPARATOR_CRC, mPosition);
+			mPosition += SEPARATOR.length;
+		} else {
+			writeSeparator();
+		}
+		if (mIndex != null) {
+			mIndex.add(id, mPosition, length, crc);
+		}
+		mSplicer.copy(offset, length, crc & 0xFFFFFFFFL, mPosition);
+		mPosition += length;
+	}
+
+	public void close() throws IOException {
+		writeSeparator();
+		if (mSplicer != null) {
+			mMetadata.setChecksum(mPosition, mSplicer.getCrc(mPosition));
+			mSplicer.close();
+		} else {
+			mMetadata.setChecksum(mPosition, mOut.getChecksum().getValue());
+		}
+		/* after the checksummed data, so the verifier stops before it */
+		MembershipFilter filter = mFilter == null ? null : mFilter.build();
+		if (filter != null) {
+			byte[] element = MembershipFilter.toElement(filter.toBytes());
+			mMetadata.setFilter(mPosition, element.length);
+			write(element);
+			write(SEPARATOR);
+		}
+		try {
+			write(toBytes(mMetadata.toJSON().toString()));
+		} catch (JSONException e) {
+			throw new IOException("Unable to encode the metadata");
+		}
+		/* Add the closing "]" (JSON array grammar) */
+		write(toBytes("\n]\n"));
+		mOut.close();
+	}
+
+	/**
+	 * Add commas (JSON array grammar)
+	 * 
+	 * @throws IOException when the stream cannot be written
+	 */
+	private void writeSeparator() throws IOException {
+		if (!mFirst) {
+			write(SEPARATOR);
+		}
+		mFirst = false;
+	}
+
+	private void write(byte[] data) throws IOException {
+		if (mSplicer != null) {
+			mSplicer.flush();
+		}
+		mOut.write(data);
+		mPosition += data.length;
+	}
+
+	private static byte[] toBytes(String value) throws IOException {
+		return value.getBytes("UTF-8");
+	}
+
+}
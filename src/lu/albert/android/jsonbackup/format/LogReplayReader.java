@@ -0,0 +1,284 @@
+package lu.albert.android.jsonbackup.format;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import lu.albert.android.jsonbackup.schema.ContactRecord;
+import lu.albert.android.jsonbackup.schema.ContactSchema;
+
+/**
+ * Reads a backup with its {@link ChangeLog} replayed.
+ *
+ * The log is scanned once to find the last entry of every contact it
+ * mentions; only these IDs are kept in memory, with the position of the
+ * entry. The snapshot is then streamed, skipping the contacts which the log
+ * overrides, and the last upsert of every contact in the log is merged into
+ * it by ID. Contacts whose last entry is a delete are not returned at all.
+ *
+ * As the snapshot is written by ascending ID, so is the replayed backup, and
+ * so is every snapshot written by {@link ChangeLog#compact(File)}.
+ */
+public class LogReplayReader implements ContactReader {
+
+	/** Marks a contact whose last entry is a delete */
+	private static final Long DELETED = Long.valueOf(-1);
+
+	/** The punctuation of the array of upserts */
+	private static final byte[] OPEN = { '[' };
+	private static final byte[] SEPARATOR = { ',' };
+	private static final byte[] CLOSE = { ']' };
+	private static final byte[] EMPTY = { '[', ']' };
+
+	private final File mLogFile;
+	private final ContactReader mSnapshot;
+	private final BackupMetadata mMetadata;
+
+	/** The position of the last entry of every contact in the log */
+	private final HashMap<Long, Long> mLatest;
+
+	/** The IDs of the contacts whose last entry is an upsert, ascending */
+	private final long[] mUpsertIds;
+
+	/** The index in {@link #mUpsertIds} of the next upsert to return */
+	private int mNextUpsert;
+
+	/** Reads the upserts, in the order of {@link #mUpsertIds} */
+	private final ContactReader mUpserts;
+	private final UpsertStream mUpsertStream;
+
+	/** A snapshot contact held back while upserts with lower IDs are returned */
+	private final ContactRecord mPending;
+	private long mPendingId;
+	private boolean mHasPending;
+	private boolean mSnapshotDone;
+
+	/**
+	 * Constructor
+	 *
+	 * @param snapshot The backup file. Its log must exist.
+	 * @throws IOException when the snapshot or the log cannot be read
+	 */
+	public LogReplayReader(File snapshot) throws IOException {
+		mLogFile = ChangeLog.logFileFor(snapshot);
+		mLatest = new HashMap<Long, Long>();
+		ChangeLog.Reader log = new ChangeLog.Reader(mLogFile);
+		try {
+			long committed = log.getCommittedLength();
+			mMetadata = log.getCommittedMetadata();
+			while (log.getPosition() < committed && log.next()) {
+				if (log.getType() == ChangeLog.UPSERT) {
+					mLatest.put(Long.valueOf(log.getId()), Long.valueOf(log.getOffset()));
+				} else if (log.getType() == ChangeLog.DELETE) {
+					mLatest.put(Long.valueOf(log.getId()), DELETED);
+				}
+			}
+		} finally {
+			log.close();
+		}
+
+		int count = 0;
+		for (Long offset : mLatest.values()) {
+			if (offset.longValue() >= 0) {
+				count++;
+			}
+		}
+		mUpsertIds = new long[count];
+		count = 0;
+		for (Map.Entry<Long, Long> entry : mLatest.entrySet()) {
+			if (entry.getValue().longValue() >= 0) {
+				mUpsertIds[count++] = entry.getKey().longValue();
+			}
+		}
+		Arrays.sort(mUpsertIds);
+		mPending = new ContactRecord();
+
+		/* not through ContactReaders, which would open the log again */
+		if (BinaryFormat.isBinary(snapshot)) {
+			mSnapshot = new BinaryContactReader(snapshot);
+		} else {
+			mSnapshot = new JsonContactReader(snapshot);
+		}
+		try {
+			mUpsertStream = new UpsertStream();
+		} catch (IOException e) {
+			mSnapshot.close();
+			throw e;
+		}
+		mUpserts = new JsonContactReader(mMetadata, mUpsertStream);
+	}
+
+	/**
+	 * @return The number of contacts changed by the log
+	 */
+	public int getChangeCount() {
+		return mLatest.size();
+	}
+
+	public boolean read(ContactRecord record) throws IOException {
+		long id;
+		if (mHasPending) {
+			id = mPendingId;
+		} else if (readSnapshot(record)) {
+			id = getId(record);
+		} else {
+			return mUpserts.read(record);
+		}
+		if (mNextUpsert < mUpsertIds.length && mUpsertIds[mNextUpsert] < id) {
+			if (!mHasPending) {
+				mPending.copyFrom(record);
+				mPendingId = id;
+				mHasPending = true;
+			}
+			mNextUpsert++;
+			return mUpserts.read(record);
+		}
+		if (mHasPending) {
+			record.copyFrom(mPending);
+			mHasPending = false;
+		}
+		return true;
+	}
+
+	/**
+	 * Read the next contact of the snapshot which the log does not override
+	 *
+	 * @return false at the end of the snapshot
+	 */
+	private boolean readSnapshot(ContactRecord record) throws IOException {
+		while (!mSnapshotDone && mSnapshot.read(record)) {
+			if (!mLatest.containsKey(Long.valueOf(getId(record)))) {
+				return true;
+			}
+		}
+		mSnapshotDone = true;
+		return false;
+	}
+
+	private static long getId(ContactRecord record) {
+		return record.person.has(ContactSchema.ID)
+				? record.person.getLong(ContactSchema.ID) : -1;
+	}
+
+	public BackupMetadata getMetadata() {
+		return mMetadata != null ? mMetadata : mSnapshot.getMetadata();
+	}
+
+	public long getPosition() {
+		return mSnapshot.getPosition() + mUpsertStream.getPosition();
+	}
+
+	public void close() {
+		mSnapshot.close();
+		mUpserts.close();
+	}
+
+	/**
+	 * Presents the last upsert of every contact as a JSON array, by
+	 * ascending ID, so that the regular {@link JsonContactReader} can decode
+	 * them.
+	 */
+	private class UpsertStream extends InputStream {
+
+		private final ChangeLog.Reader mLog;
+		private int mNext;
+		private long mConsumed;
+		private byte[] mData;
+		private int mPosition;
+		private int mLength;
+		private boolean mFirst;
+		private boolean mUpsertPending;
+		private boolean mEnd;
+
+		UpsertStream() throws IOException {
+			mLog = new ChangeLog.Reader(mLogFile);
+			mFirst = true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!fill()) {
+				return -1;
+			}
+			return mData[mPosition++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (!fill()) {
+				return -1;
+			}
+			int count = Math.min(length, mLength - mPosition);
+			System.arraycopy(mData, mPosition, buffer, offset, count);
+			mPosition += count;
+			return count;
+		}
+
+		/**
+		 * Make sure there is something to read: the punctuation of the
+		 * array, or the JSON of an upsert
+		 *
+		 * @return false at the end of the array
+		 */
+		private boolean fill() throws IOException {
+			while (mPosition == mLength) {
+				if (mEnd) {
+					return false;
+				}
+				mPosition = 0;
+				if (mUpsertPending) {
+					setData(mLog.getData(), mLog.getLength());
+					mUpsertPending = false;
+				} else if (nextUpsert()) {
+					setData(mFirst ? OPEN : SEPARATOR, 1);
+					mFirst = false;
+					mUpsertPending = true;
+				} else {
+					setData(mFirst ? EMPTY : CLOSE, mFirst ? 2 : 1);
+					mEnd = true;
+				}
+			}
+			return true;
+		}
+
+		private void setData(byte[] data, int length) {
+			mData = data;
+			mLength = length;
+		}
+
+		/**
+		 * Move to the last upsert of the next contact
+		 *
+		 * @return false if there is none
+		 */
+		private boolean nextUpsert() throws IOException {
+			if (mNext == mUpsertIds.length) {
+				return false;
+			}
+			long offset = mLatest.get(Long.valueOf(mUpsertIds[mNext++])).longValue();
+			mLog.seek(offset);
+			if (!mLog.next() || mLog.getType() != ChangeLog.UPSERT) {
+				throw new IOException("Missing change log entry at offset " + offset);
+			}
+			mConsumed += mLog.getPosition() - offset;
+			return true;
+		}
+
+		/**
+		 * @return The size of the log entries read so far
+		 */
+		long getPosition() {
+			return mConsumed;
+		}
+
+		@Override
+		public void close() {
+			mLog.close();
+		}
+
+	}
+
+}
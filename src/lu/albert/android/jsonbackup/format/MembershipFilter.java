@@ -0,0 +1,512 @@
+package lu.albert.android.jsonbackup.format;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+import lu.albert.android.jsonbackup.Base64;
+import lu.albert.android.jsonbackup.schema.ContactRecord;
+import lu.albert.android.jsonbackup.schema.ContactSchema;
+
+/**
+ * A bloom filter of the phone numbers (and optionally the e-mail addresses)
+ * of a backup, stored in its footer. It answers "is this number in the
+ * backup?" by reading the footer only: "no" is always right, "maybe" is
+ * wrong at the false positive rate chosen when the backup was written, and
+ * is checked against the {@link SearchIndex} (or the backup itself) by
+ * {@link #contains(File, String)}.
+ *
+ * Numbers are matched like {@link SearchIndex#findPhone(String)} does: on
+ * their last {@link #MIN_MATCH} digits, so only those are added. E-mail
+ * addresses are matched in full, ignoring the case.
+ *
+ * Binary backups store the filter in a section of their trailer. JSON
+ * backups store it in an element of the root array right before the
+ * metadata, which points at it; that element has a {@link BackupMetadata#KEY}
+ * member, so every reader skips it. Encoding:
+ *
+ * <pre>
+ * version | flags | hash count | bit count (varints) | bits | crc32 (4 bytes)
+ * </pre>
+ *
+ * A filter can only be written if every key of the backup was added. The
+ * keys of the records copied from an older backup come from its
+ * {@link SourceIndex}.
+ */
+public class MembershipFilter {
+
+	/** The JSON member holding the Base64 encoded filter */
+	public static final String JSON_KEY = "filter";
+
+	/** Numbers are matched on that many last digits, as in SearchIndex */
+	public static final int MIN_MATCH = 7;
+
+	private static final int VERSION = 1;
+
+	/** Flag: the e-mail addresses were added */
+	private static final int FLAG_EMAILS = 1;
+
+	/** ContactMethods.KIND of e-mail addresses (Contacts.KIND_EMAIL) */
+	private static final int KIND_EMAIL = 1;
+
+	/** The lowest bit of a key hash tells what kind of key it is */
+	private static final int PHONE = 0;
+	private static final int EMAIL = 1;
+
+	private static final int MAX_HASH_COUNT = 16;
+
+	private final boolean mEmails;
+	private final int mHashCount;
+	private final int mBitCount;
+	private final byte[] mBits;
+
+	private MembershipFilter(boolean emails, int hashCount, int bitCount) {
+		mEmails = emails;
+		mHashCount = hashCount;
+		mBitCount = bitCount;
+		mBits = new byte[(bitCount + 7) / 8];
+	}
+
+	/**
+	 * Read the filter of a backup from its footer
+	 *
+	 * @param backup The backup file
+	 * @return The filter, or null if the backup has none, it is damaged, or
+	 *         the backup has changed since it was written (sharded backups,
+	 *         backups with a change log)
+	 * @throws IOException when the backup cannot be read
+	 */
+	public static MembershipFilter read(File backup) throws IOException {
+		if (ShardManifest.isManifest(backup) || ChangeLog.hasLog(backup)) {
+			return null;
+		}
+		long offset;
+		int length;
+		if (BinaryFormat.isBinary(backup)) {
+			BinaryContactReader reader = new BinaryContactReader(backup);
+			offset = reader.getFilterOffset();
+			length = reader.getFilterLength();
+			reader.close();
+		} else {
+			BackupMetadata metadata = BackupMetadata.readSnapshot(backup);
+			if (metadata == null) {
+				return null;
+			}
+			offset = metadata.getFilterOffset();
+			length = metadata.getFilterLength();
+		}
+		if (offset < 0 || length <= 0 || offset + length > backup.length()) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		RandomAccessFile raf = new RandomAccessFile(backup, "r");
+		try {
+			raf.seek(offset);
+			raf.readFully(bytes);
+		} finally {
+			raf.close();
+		}
+		if (!BinaryFormat.isBinary(backup)) {
+			bytes = decodeElement(bytes);
+			if (bytes == null) {
+				return null;
+			}
+		}
+		return fromBytes(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Check whether a backup holds a phone number or an e-mail address. The
+	 * filter is asked first; only if it answers "maybe" (or there is none)
+	 * is the search index, or else the backup itself, looked at.
+	 *
+	 * @param backup The backup file
+	 * @param query A phone number or an e-mail address
+	 * @return true if a contact of the backup has it
+	 * @throws IOException when the backup cannot be read
+	 */
+	public static boolean contains(File backup, String query) throws IOException {
+		String text = query.trim();
+		boolean email = text.indexOf('@') >= 0;
+		MembershipFilter filter = read(backup);
+		if (filter != null && !(email ? filter.mightContainEmail(text)
+				: filter.mightContainPhone(text))) {
+			return false;
+		}
+		SearchIndex index = SearchIndex.open(backup);
+		if (index == null) {
+			return scan(backup, text, email);
+		}
+		SearchIndex.Hits hits;
+		try {
+			if (!email) {
+				return index.findPhone(text).size() > 0;
+			}
+			hits = index.search(text);
+		} finally {
+			index.close();
+		}
+		/* the index finds the addresses starting with the text */
+		ContactScanner scanner = BinaryFormat.isBinary(backup) ? new BinaryContactReader(backup)
+				: new JsonContactReader(backup);
+		try {
+			scanner.setSkipPhotos(true);
+			ContactRecord record = new ContactRecord();
+			for (int i = 0; i < hits.size(); i++) {
+				scanner.seek(hits.getOffset(i), hits.getLength(i));
+				if (scanner.read(record) && hasKey(record, text, true)) {
+					return true;
+				}
+			}
+			return false;
+		} finally {
+			scanner.close();
+		}
+	}
+
+	/**
+	 * Look for a key in every contact of a backup
+	 */
+	private static boolean scan(File backup, String query, boolean email) throws IOException {
+		ContactReader reader = ContactReaders.open(backup);
+		try {
+			if (reader instanceof ContactScanner) {
+				((ContactScanner) reader).setSkipPhotos(true);
+			}
+			ContactRecord record = new ContactRecord();
+			while (reader.read(record)) {
+				if (hasKey(record, query, email)) {
+					return true;
+				}
+			}
+			return false;
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * @param number A phone number
+	 * @return false if no phone number of the backup ends with the same
+	 *         digits. Numbers shorter than {@link #MIN_MATCH} digits are
+	 *         matched on their start by the search index, so the filter
+	 *         cannot tell.
+	 */
+	public boolean mightContainPhone(String number) {
+		String key = SearchIndex.phoneKey(number);
+		if (key.length() == 0) {
+			return false;
+		}
+		if (key.length() < MIN_MATCH) {
+			return true;
+		}
+		return mightContain(phoneHash(key));
+	}
+
+	/**
+	 * @param address An e-mail address
+	 * @return false if no contact of the backup has it. Always true if the
+	 *         e-mail addresses were not added to the filter.
+	 */
+	public boolean mightContainEmail(String address) {
+		if (!mEmails) {
+			return true;
+		}
+		return mightContain(emailHash(address));
+	}
+
+	/**
+	 * @return The number of bits of the filter
+	 */
+	public int getBitCount() {
+		return mBitCount;
+	}
+
+	private boolean mightContain(int hash) {
+		long first = hash & 0xFFFFFFFFL;
+		long second = mix(hash ^ 0x9E3779B9) & 0xFFFFFFFFL | 1;
+		for (int i = 0; i < mHashCount; i++) {
+			int bit = (int) ((first + i * second) % mBitCount);
+			if ((mBits[bit >>> 3] & (1 << (bit & 7))) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void set(int hash) {
+		long first = hash & 0xFFFFFFFFL;
+		long second = mix(hash ^ 0x9E3779B9) & 0xFFFFFFFFL | 1;
+		for (int i = 0; i < mHashCount; i++) {
+			int bit = (int) ((first + i * second) % mBitCount);
+			mBits[bit >>> 3] |= 1 << (bit & 7);
+		}
+	}
+
+	/**
+	 * @return The encoded filter, as stored in the footer
+	 * @throws IOException never
+	 */
+	byte[] toBytes() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(mBits.length + 16);
+		BinaryFormat.writeVarLong(out, VERSION);
+		BinaryFormat.writeVarLong(out, mEmails ? FLAG_EMAILS : 0);
+		BinaryFormat.writeVarLong(out, mHashCount);
+		BinaryFormat.writeVarLong(out, mBitCount);
+		out.write(mBits);
+		CRC32 crc = new CRC32();
+		crc.update(out.toByteArray());
+		BinaryFormat.writeFixedInt(out, (int) crc.getValue());
+		return out.toByteArray();
+	}
+
+	/**
+	 * @return The decoded filter, or null if it is damaged or was written by
+	 *         a newer version
+	 */
+	static MembershipFilter fromBytes(byte[] data, int offset, int length) throws IOException {
+		if (length < 4) {
+			return null;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(data, offset, length - 4);
+		if ((int) crc.getValue() != BinaryFormat.readFixedInt(data, offset + length - 4)) {
+			return null;
+		}
+		InputStream in = new ByteArrayInputStream(data, offset, length - 4);
+		if (BinaryFormat.readVarLong(in) != VERSION) {
+			return null;
+		}
+		long flags = BinaryFormat.readVarLong(in);
+		long hashCount = BinaryFormat.readVarLong(in);
+		long bitCount = BinaryFormat.readVarLong(in);
+		if (hashCount < 1 || hashCount > MAX_HASH_COUNT || bitCount < 8
+				|| (bitCount + 7) / 8 != in.available()) {
+			return null;
+		}
+		MembershipFilter filter = new MembershipFilter((flags & FLAG_EMAILS) != 0,
+				(int) hashCount, (int) bitCount);
+		BinaryFormat.readFully(in, filter.mBits, 0, filter.mBits.length);
+		return filter;
+	}
+
+	/**
+	 * @param filter The encoded filter
+	 * @return The element of the JSON root array holding it
+	 * @throws IOException never
+	 */
+	static byte[] toElement(byte[] filter) throws IOException {
+		return ("{\"" + BackupMetadata.KEY + "\":{\"" + JSON_KEY + "\":\""
+				+ Base64.encodeBytes(filter) + "\"}}")
+				.getBytes("UTF-8");
+	}
+
+	/**
+	 * @param element The element written by {@link #toElement(byte[])}
+	 * @return The encoded filter, or null if the element is not one
+	 */
+	private static byte[] decodeElement(byte[] element) throws IOException {
+		String text = new String(element, "UTF-8");
+		String prefix = "{\"" + BackupMetadata.KEY + "\":{\"" + JSON_KEY + "\":\"";
+		if (!text.startsWith(prefix) || !text.endsWith("\"}}")) {
+			return null;
+		}
+		return Base64.decode(
+				text.substring(prefix.length(), text.length() - 3));
+	}
+
+	/**
+	 * Check whether a contact has a key, with the rules of the filter
+	 */
+	private static boolean hasKey(ContactRecord record, String query, boolean email) {
+		if (email) {
+			String address = query.toLowerCase();
+			for (int i = 0; i < record.methods.size(); i++) {
+				ContactRecord.Row method = record.methods.get(i);
+				if (isEmail(method) && address.equals(
+						method.getString(ContactSchema.METHOD_DATA).trim().toLowerCase())) {
+					return true;
+				}
+			}
+			return false;
+		}
+		String key = SearchIndex.phoneKey(query);
+		for (int i = 0; i < record.phones.size(); i++) {
+			String stored = phoneKey(record.phones.get(i));
+			if (stored != null && SearchIndex.samePhone(stored, key)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isEmail(ContactRecord.Row method) {
+		return method.has(ContactSchema.METHOD_KIND) && method.has(ContactSchema.METHOD_DATA)
+				&& method.getLong(ContactSchema.METHOD_KIND) == KIND_EMAIL;
+	}
+
+	/**
+	 * @return The number key of a phone row, null if it has none
+	 */
+	private static String phoneKey(ContactRecord.Row phone) {
+		if (phone.has(ContactSchema.PHONE_NUMBER_KEY)) {
+			return SearchIndex.digits(phone.getString(ContactSchema.PHONE_NUMBER_KEY)).toString();
+		} else if (phone.has(ContactSchema.PHONE_NUMBER)) {
+			return SearchIndex.phoneKey(phone.getString(ContactSchema.PHONE_NUMBER));
+		}
+		return null;
+	}
+
+	/**
+	 * Compute the key hashes of a contact, as stored in a
+	 * {@link SourceIndex} and added to a {@link Builder}
+	 *
+	 * @param record The contact
+	 * @return The hashes of its phone numbers and e-mail addresses
+	 */
+	public static int[] hashes(ContactRecord record) {
+		int[] hashes = new int[record.phones.size() + record.methods.size()];
+		int count = 0;
+		for (int i = 0; i < record.phones.size(); i++) {
+			String key = phoneKey(record.phones.get(i));
+			if (key != null && key.length() > 0) {
+				hashes[count++] = phoneHash(key);
+			}
+		}
+		for (int i = 0; i < record.methods.size(); i++) {
+			ContactRecord.Row method = record.methods.get(i);
+			if (isEmail(method)) {
+				hashes[count++] = emailHash(method.getString(ContactSchema.METHOD_DATA));
+			}
+		}
+		return trim(hashes, count);
+	}
+
+	private static int phoneHash(String key) {
+		return hash(PHONE, key.length() > MIN_MATCH ? key.substring(0, MIN_MATCH) : key);
+	}
+
+	private static int emailHash(String address) {
+		return hash(EMAIL, address.trim().toLowerCase());
+	}
+
+	/**
+	 * FNV-1a over the characters, then mixed, with the kind in the lowest bit
+	 */
+	private static int hash(int kind, String key) {
+		int hash = 0x811C9DC5;
+		for (int i = 0; i < key.length(); i++) {
+			hash ^= key.charAt(i);
+			hash *= 0x01000193;
+		}
+		return (mix(hash) & ~1) | kind;
+	}
+
+	/** The finalizer of MurmurHash3 */
+	private static int mix(int hash) {
+		hash ^= hash >>> 16;
+		hash *= 0x85EBCA6B;
+		hash ^= hash >>> 13;
+		hash *= 0xC2B2AE35;
+		hash ^= hash >>> 16;
+		return hash;
+	}
+
+	private static int[] trim(int[] array, int length) {
+		if (array.length == length) {
+			return array;
+		}
+		int[] trimmed = new int[length];
+		System.arraycopy(array, 0, trimmed, 0, length);
+		return trimmed;
+	}
+
+	/**
+	 * Collects the key hashes of the contacts written into a backup. The
+	 * filter is sized once the number of keys is known.
+	 */
+	public static class Builder {
+
+		private final double mFalsePositiveRate;
+		private final boolean mEmails;
+		private int[] mHashes = new int[1024];
+		private int mCount;
+		private boolean mComplete = true;
+
+		/**
+		 * Constructor
+		 *
+		 * @param falsePositiveRate How often the filter may answer "maybe"
+		 *            for a key which is not in the backup, like 0.01
+		 * @param emails true to add the e-mail addresses, not only the phone
+		 *            numbers
+		 */
+		public Builder(double falsePositiveRate, boolean emails) {
+			if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+				throw new IllegalArgumentException("Invalid false positive rate "
+						+ falsePositiveRate);
+			}
+			mFalsePositiveRate = falsePositiveRate;
+			mEmails = emails;
+		}
+
+		/**
+		 * Add the keys of a contact which is written
+		 */
+		void add(ContactRecord contact) {
+			add(hashes(contact));
+		}
+
+		/**
+		 * Add the keys of a contact
+		 *
+		 * @param hashes The hashes returned by {@link MembershipFilter#hashes},
+		 *            null if they are not known. The filter cannot be
+		 *            written then.
+		 */
+		public void add(int[] hashes) {
+			if (hashes == null) {
+				mComplete = false;
+				return;
+			}
+			for (int i = 0; i < hashes.length; i++) {
+				if ((hashes[i] & 1) == EMAIL && !mEmails) {
+					continue;
+				}
+				if (mCount == mHashes.length) {
+					int[] grown = new int[mCount * 2];
+					System.arraycopy(mHashes, 0, grown, 0, mCount);
+					mHashes = grown;
+				}
+				mHashes[mCount++] = hashes[i];
+			}
+		}
+
+		/**
+		 * @return The filter, or null if the keys of some contacts are not
+		 *         known
+		 */
+		MembershipFilter build() {
+			if (!mComplete) {
+				return null;
+			}
+			/* m = -n ln(p) / ln(2)^2, k = m / n ln(2) */
+			int keys = Math.max(mCount, 1);
+			double bits = -keys * Math.log(mFalsePositiveRate) / (Math.log(2) * Math.log(2));
+			int bitCount = (int) Math.max(64, Math.min(bits, Integer.MAX_VALUE - 7));
+			int hashCount = (int) Math.round((double) bitCount / keys * Math.log(2));
+			hashCount = Math.max(1, Math.min(MAX_HASH_COUNT, hashCount));
+			MembershipFilter filter = new MembershipFilter(mEmails, hashCount, bitCount);
+			for (int i = 0; i < mCount; i++) {
+				filter.set(mHashes[i]);
+			}
+			return filter;
+		}
+
+	}
+
+}
@@ -0,0 +1,202 @@
+package lu.albert.android.jsonbackup.format;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+import lu.albert.android.jsonbackup.schema.ContactRecord;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Reads the contacts of a backup written by {@link NdjsonContactWriter}, or
+ * of any file with one JSON contact per line. Empty lines are skipped, and
+ * so is the metadata line.
+ */
+public class NdjsonContactReader implements ContactReader {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/** How much of the end of a file is searched for the metadata line */
+	private static final int MAX_TAIL_SIZE = 64 * 1024;
+
+	private static final String META_PREFIX = "{\"" + BackupMetadata.KEY + "\"";
+
+	private final InputStream mIn;
+	private BackupMetadata mMetadata;
+	private byte[] mLine = new byte[1024];
+	private long mPosition;
+	private int mLineNumber;
+
+	/**
+	 * Constructor
+	 *
+	 * @param file The backup file
+	 * @throws IOException when the file cannot be opened, or its metadata is
+	 *             invalid
+	 */
+	public NdjsonContactReader(File file) throws IOException {
+		this(new FileInputStream(file));
+		mMetadata = readTail(file);
+	}
+
+	/**
+	 * Constructor for a stream, e.g. a decompressed one. The metadata is
+	 * only known once the last contact has been read.
+	 *
+	 * @param in The stream
+	 */
+	public NdjsonContactReader(InputStream in) {
+		mIn = new BufferedInputStream(in, BUFFER_SIZE);
+	}
+
+	public boolean read(ContactRecord record) throws IOException {
+		String line;
+		while ((line = readLine()) != null) {
+			mLineNumber++;
+			if (line.trim().length() == 0) {
+				continue;
+			}
+			try {
+				JSONObject object = new JSONObject(line);
+				if (object.has(BackupMetadata.KEY)) {
+					mMetadata = BackupMetadata.fromJSON(object);
+					continue;
+				}
+				ContactJson.fromJSON(object, record);
+				return true;
+			} catch (JSONException e) {
+				throw new IOException("Line " + mLineNumber + ": " + e.getMessage());
+			}
+		}
+		return false;
+	}
+
+	public BackupMetadata getMetadata() {
+		return mMetadata;
+	}
+
+	public long getPosition() {
+		return mPosition;
+	}
+
+	public void close() {
+		BinaryFormat.closeQuietly(mIn);
+	}
+
+	/**
+	 * @return The next line without its end, or null at the end of the
+	 *         stream
+	 */
+	private String readLine() throws IOException {
+		int length = 0;
+		int c;
+		while ((c = mIn.read()) >= 0) {
+			mPosition++;
+			if (c == '\n') {
+				break;
+			}
+			if (length == mLine.length) {
+				byte[] line = new byte[length * 2];
+				System.arraycopy(mLine, 0, line, 0, length);
+				mLine = line;
+			}
+			mLine[length++] = (byte) c;
+		}
+		if (c < 0 && length == 0) {
+			return null;
+		}
+		if (length > 0 && mLine[length - 1] == '\r') {
+			length--;
+		}
+		return new String(mLine, 0, length, "UTF-8");
+	}
+
+	/**
+	 * @return The metadata on the last line of a file, or null if it has
+	 *         none
+	 */
+	private static BackupMetadata readTail(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		String tail;
+		try {
+			int size = (int) Math.min(raf.length(), MAX_TAIL_SIZE);
+			byte[] bytes = new byte[size];
+			raf.seek(raf.length() - size);
+			raf.readFully(bytes);
+			tail = new String(bytes, "UTF-8").trim();
+		} finally {
+			raf.close();
+		}
+		int start = tail.lastIndexOf('\n') + 1;
+		if (!tail.startsWith(META_PREFIX, start)) {
+			return null;
+		}
+		try {
+			BackupMetadata result = BackupMetadata.fromJSON(new JSONObject(tail.substring(start)));
+			if (result.getVersion() > BackupMetadata.JSON_VERSION) {
+				throw new IOException("Unsupported backup version " + result.getVersion());
+			}
+			return result;
+		} catch (JSONException e) {
+			throw new IOException("Invalid metadata: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Check a backup: every line must be a valid contact, and the lines
+	 * before the metadata must match its checksum
+	 *
+	 * @param file The backup file
+	 * @return The number of contacts
+	 * @throws IOException if the file is damaged
+	 */
+	public static int verify(File file) throws IOException {
+		NdjsonContactReader reader = new NdjsonContactReader(file);
+		int count = 0;
+		try {
+			ContactRecord record = new ContactRecord();
+			while (reader.read(record)) {
+				count++;
+			}
+		} finally {
+			reader.close();
+		}
+		BackupMetadata metadata = reader.getMetadata();
+		if (metadata == null) {
+			return count;
+		}
+		if (metadata.getContactCount() != count) {
+			throw new IOException("Found " + count + " contacts instead of "
+					+ metadata.getContactCount());
+		}
+		if (metadata.getDataLength() >= 0) {
+			CRC32 crc = new CRC32();
+			InputStream in = new FileInputStream(file);
+			try {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				long left = metadata.getDataLength();
+				while (left > 0) {
+					int read = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+					if (read < 0) {
+						throw new IOException("The file is truncated");
+					}
+					crc.update(buffer, 0, read);
+					left -= read;
+				}
+			} finally {
+				in.close();
+			}
+			if (crc.getValue() != metadata.getFileCrc()) {
+				throw new IOException("Checksum mismatch");
+			}
+		}
+		return count;
+	}
+
+}
@@ -0,0 +1,81 @@
+package lu.albert.android.jsonbackup.format;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import lu.albert.android.jsonbackup.schema.ContactRecord;
+import lu.albert.android.jsonbackup.schema.ContactSchema;
+
+import org.json.JSONException;
+
+/**
+ * Writes the contacts as newline delimited JSON: one compact object per
+ * line, so other tools can process a backup line by line.
+ *
+ * The last line holds the {@link BackupMetadata}, with a checksum of all
+ * lines before it (see {@link NdjsonContactReader#verify(java.io.File)}).
+ * The app itself does not read this format.
+ */
+public class NdjsonContactWriter implements ContactWriter {
+
+	/** The usual extension of such backups */
+	public static final String FILE_EXTENSION = ".ndjson";
+
+	private static final int NEWLINE = '\n';
+
+	/** Computes the checksum of everything up to the metadata */
+	private final CheckedOutputStream mOut;
+	private final BackupMetadata mMetadata;
+	private final CRC32 mRecordCrc;
+	private RecordIndex.Writer mIndex;
+
+	/** Number of bytes written so far */
+	private long mPosition;
+
+	/**
+	 * Constructor
+	 *
+	 * @param out The destination stream
+	 */
+	public NdjsonContactWriter(OutputStream out) {
+		mOut = new CheckedOutputStream(out, new CRC32());
+		mMetadata = new BackupMetadata(BackupMetadata.JSON_VERSION);
+		mRecordCrc = new CRC32();
+	}
+
+	public BackupMetadata getMetadata() {
+		return mMetadata;
+	}
+
+	public void setIndex(RecordIndex.Writer index) {
+		mIndex = index;
+	}
+
+	public void write(ContactRecord contact) throws IOException, JSONException {
+		byte[] encoded = ContactJson.toJSON(contact).toString().getBytes("UTF-8");
+		if (mIndex != null) {
+			mRecordCrc.reset();
+			mRecordCrc.update(encoded, 0, encoded.length);
+			mIndex.add(contact.person.getLong(ContactSchema.ID), mPosition,
+					encoded.length, (int) mRecordCrc.getValue());
+		}
+		mOut.write(encoded);
+		mOut.write(NEWLINE);
+		mPosition += encoded.length + 1;
+		mMetadata.account(contact, encoded.length);
+	}
+
+	public void close() throws IOException {
+		mMetadata.setChecksum(mPosition, mOut.getChecksum().getValue());
+		try {
+			mOut.write(mMetadata.toJSON().toString().getBytes("UTF-8"));
+		} catch (JSONException e) {
+			throw new IOException("Unable to encode the metadata");
+		}
+		mOut.write(NEWLINE);
+		mOut.close();
+	}
+
+}
@@ -0,0 +1,189 @@
+package lu.albert.android.jsonbackup.format;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import lu.albert.android.jsonbackup.schema.ContactRecord;
+
+/**
+ * Reads a sharded backup with several threads, but hands the contacts out
+ * in the order of the backup.
+ *
+ * Each shard is parsed by a worker, which stages the decoded contacts in a
+ * small queue of its own. The caller drains the queues one shard after the
+ * other, so it can write the contacts to the device from a single thread
+ * while the next shards are already being decoded. The workers start the
+ * shards in order, so the shard being drained is always being read (or
+ * done) and a full queue never blocks the caller.
+ *
+ * The staged records are recycled once the caller has copied them, so the
+ * memory used is bounded by the number of threads times the queue size.
+ */
+class ParallelShardReader implements ContactReader {
+
+	/** The number of contacts staged per shard */
+	private static final int QUEUE_SIZE = 32;
+
+	/** Marks the end of a shard */
+	private static final Staged END = new Staged();
+
+	private final ShardManifest mManifest;
+	private final ExecutorService mExecutor;
+	private final List<BlockingQueue<Staged>> mQueues;
+	private final IOException[] mErrors;
+	private final BlockingQueue<Staged> mFree;
+	private int mShard;
+
+	/** The size of the shards which have been drained completely */
+	private long mDone;
+	private long mPosition;
+	private volatile boolean mClosed;
+
+	/**
+	 * A contact decoded by a worker, waiting to be copied
+	 */
+	private static class Staged {
+		final ContactRecord record = new ContactRecord();
+		long position;
+	}
+
+	/**
+	 * Constructor. The workers start right away.
+	 *
+	 * @param manifest The manifest of the backup
+	 * @param threads The number of shards read at the same time
+	 */
+	ParallelShardReader(ShardManifest manifest, int threads) {
+		mManifest = manifest;
+		int shards = manifest.getShardCount();
+		mQueues = new ArrayList<BlockingQueue<Staged>>(shards);
+		mErrors = new IOException[shards];
+		mFree = new LinkedBlockingQueue<Staged>();
+		mExecutor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, shards)));
+		for (int i = 0; i < shards; i++) {
+			mQueues.add(new ArrayBlockingQueue<Staged>(QUEUE_SIZE));
+			mExecutor.execute(new Worker(i));
+		}
+		mExecutor.shutdown();
+	}
+
+	public boolean read(ContactRecord record) throws IOException {
+		while (mShard < mQueues.size()) {
+			Staged staged;
+			try {
+				staged = mQueues.get(mShard).take();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted");
+			}
+			if (staged != END) {
+				record.copyFrom(staged.record);
+				mPosition = mDone + staged.position;
+				mFree.offer(staged);
+				return true;
+			}
+			if (mErrors[mShard] != null) {
+				throw mErrors[mShard];
+			}
+			mDone += mManifest.getShardLength(mShard);
+			mPosition = mDone;
+			mShard++;
+		}
+		return false;
+	}
+
+	public BackupMetadata getMetadata() {
+		return mManifest.getMetadata();
+	}
+
+	/**
+	 * @return The position in all shards, as if they were one file, of the
+	 *         last contact handed out
+	 */
+	public long getPosition() {
+		return mPosition;
+	}
+
+	/**
+	 * Stop the workers. Contacts which are staged but not read are dropped.
+	 */
+	public void close() {
+		mClosed = true;
+		mExecutor.shutdownNow();
+	}
+
+	/**
+	 * Decodes one shard into its queue
+	 */
+	private class Worker implements Runnable {
+
+		private final int mNumber;
+
+		Worker(int number) {
+			mNumber = number;
+		}
+
+		/**
+		 * Decode the shard. Unless the reader is closed, the end of the
+		 * shard is queued whatever happens, with an error if the shard was
+		 * not read completely, so the caller never waits for a worker which
+		 * is gone.
+		 */
+		public void run() {
+			BlockingQueue<Staged> queue = mQueues.get(mNumber);
+			ContactReader reader = null;
+			boolean done = false;
+			try {
+				if (!mClosed) {
+					reader = ContactReaders.open(mManifest.getShardFile(mNumber));
+				}
+				while (!mClosed) {
+					Staged staged = mFree.poll();
+					if (staged == null) {
+						staged = new Staged();
+					}
+					if (!reader.read(staged.record)) {
+						mFree.offer(staged);
+						break;
+					}
+					staged.position = reader.getPosition();
+					queue.put(staged);
+				}
+				done = true;
+			} catch (IOException e) {
+				setError(e.getMessage());
+			} catch (RuntimeException e) {
+				/* a damaged shard can also trip up the decoder itself */
+				setError(e.toString());
+			} catch (InterruptedException e) {
+				// closed, the shard is dropped
+			} finally {
+				if (reader != null) {
+					reader.close();
+				}
+				if (!mClosed) {
+					if (!done && mErrors[mNumber] == null) {
+						setError("Decoding stopped");
+					}
+					try {
+						queue.put(END);
+					} catch (InterruptedException e) {
+						// closed, nobody waits for the end any more
+					}
+				}
+			}
+		}
+
+		private void setError(String message) {
+			mErrors[mNumber] = new IOException(mManifest.getShardFile(mNumber).getName()
+					+ ": " + message);
+		}
+
+	}
+
+}
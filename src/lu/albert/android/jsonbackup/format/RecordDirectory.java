@@ -0,0 +1,168 @@
+package lu.albert.android.jsonbackup.format;
+
+import java.io.File;
+import java.io.IOException;
+
+import lu.albert.android.jsonbackup.schema.ContactRecord;
+
+/**
+ * Where the records of a backup are, so any of them can be decoded on
+ * demand: a list of contacts can show a page of them without reading the
+ * rest of the file.
+ *
+ * The positions come from the {@link RecordIndex} of the backup, or if it
+ * has none, from a scan of the file in person only mode. Either way they
+ * are collected a step at a time (see {@link #load(int)}), so the first
+ * records can be shown before the end of the file is reached. Only an
+ * offset and a length are kept per record.
+ *
+ * Sharded backups and backups with a change log cannot seek, and are not
+ * supported. A directory must only be used by one thread at a time.
+ */
+public class RecordDirectory {
+
+	private final File mFile;
+
+	/** The source of the positions, until they are all known */
+	private RecordIndex.Reader mIndex;
+	private ContactScanner mScanner;
+	private final ContactRecord mScanned = new ContactRecord();
+
+	/** Decodes the records */
+	private ContactScanner mReader;
+
+	private long[] mOffsets = new long[1024];
+	private int[] mLengths = new int[1024];
+	private int mCount;
+	private int mExpected = -1;
+
+	/**
+	 * Constructor
+	 *
+	 * @param file The backup file
+	 * @throws IOException when the file cannot be opened, or it cannot seek
+	 */
+	public RecordDirectory(File file) throws IOException {
+		if (ShardManifest.isManifest(file) || ChangeLog.hasLog(file)) {
+			throw new IOException("Sharded and incremental backups cannot be browsed");
+		}
+		mFile = file;
+		mIndex = RecordIndex.open(file);
+		if (mIndex != null) {
+			mExpected = mIndex.getCount();
+		} else {
+			mScanner = ContactReaders.scan(file);
+		}
+	}
+
+	/**
+	 * Find the positions of more records
+	 *
+	 * @param max The number of records to add at most
+	 * @return The number of records added, 0 once they are all known
+	 * @throws IOException when the index or the backup cannot be read
+	 */
+	public int load(int max) throws IOException {
+		int added = 0;
+		while (added < max && (mIndex != null || mScanner != null)) {
+			long offset;
+			int length;
+			if (mIndex != null) {
+				if (!mIndex.next()) {
+					mIndex.close();
+					mIndex = null;
+					break;
+				}
+				offset = mIndex.getOffset();
+				length = mIndex.getLength();
+			} else {
+				if (!mScanner.read(mScanned)) {
+					mScanner.close();
+					mScanner = null;
+					break;
+				}
+				offset = mScanner.getRecordOffset();
+				length = mScanner.getRecordLength();
+			}
+			add(offset, length);
+			added++;
+		}
+		return added;
+	}
+
+	/**
+	 * @return true once the positions of all records are known
+	 */
+	public boolean isComplete() {
+		return mIndex == null && mScanner == null;
+	}
+
+	/**
+	 * @return The number of records whose position is known
+	 */
+	public int size() {
+		return mCount;
+	}
+
+	/**
+	 * @return The number of records of the backup, as told by its index, or
+	 *         -1 if it is only known once all records have been scanned
+	 */
+	public int getExpectedSize() {
+		return isComplete() ? mCount : mExpected;
+	}
+
+	/**
+	 * Decode a record
+	 *
+	 * @param position The position of the record in the directory
+	 * @param record The destination, with the photos
+	 * @throws IOException when the backup cannot be read
+	 */
+	public void read(int position, ContactRecord record) throws IOException {
+		if (position < 0 || position >= mCount) {
+			throw new IndexOutOfBoundsException("No record " + position + " of " + mCount);
+		}
+		if (mReader == null) {
+			mReader = BinaryFormat.isBinary(mFile) ? new BinaryContactReader(mFile)
+					: new JsonContactReader(mFile);
+		}
+		mReader.seek(mOffsets[position], mLengths[position]);
+		if (!mReader.read(record)) {
+			throw new IOException("No record at offset " + mOffsets[position]);
+		}
+	}
+
+	/**
+	 * Close the backup file
+	 */
+	public void close() {
+		if (mIndex != null) {
+			mIndex.close();
+			mIndex = null;
+		}
+		if (mScanner != null) {
+			mScanner.close();
+			mScanner = null;
+		}
+		if (mReader != null) {
+			mReader.close();
+			mReader = null;
+		}
+	}
+
+	private void add(long offset, int length) {
+		if (mCount == mOffsets.length) {
+			long[] offsets = new long[mCount * 2];
+			int[] lengths = new int[mCount * 2];
+			System.arraycopy(mOffsets, 0, offsets, 0, mCount);
+			System.arraycopy(mLengths, 0, lengths, 0, mCount);
+			mOffsets = offsets;
+			mLengths = lengths;
+		}
+		mOffsets[mCount] = offset;
+		mLengths[mCount] = length;
+		mCount++;
+	}
+
+}
@@ -0,0 +1,262 @@
+package lu.albert.android.jsonbackup.format;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * A sidecar file listing where each contact is stored in a backup file,
+ * together with a CRC32 checksum of its bytes.
+ *
+ * The index is written next to the backup (the backup file name with
+ * {@link #FILE_EXTENSION} appended). It is an optional companion: everything
+ * works without it, it only makes some operations (verification, seeking to
+ * a single contact) cheaper.
+ *
+ * Layout:
+ *
+ * <pre>
+ * magic ("JSBI") | version (1 byte) | entry size (1 byte)
+ * entry*          id (8) | offset (8) | length (4) | crc32 (4)
+ * backup length   (8 bytes) the size of the backup file the index belongs to
+ * </pre>
+ *
+ * All numbers are big-endian. Entries are fixed-size, so the n-th entry can
+ * be read without reading the ones before it. Readers skip any bytes of an
+ * entry beyond the fields they know.
+ */
+public class RecordIndex {
+
+	/** Appended to the name of the backup file */
+	public static final String FILE_EXTENSION = ".idx";
+
+	/** The bytes every index file starts with */
+	static final byte[] MAGIC = { 'J', 'S', 'B', 'I' };
+
+	/** The current version of the index format */
+	static final int VERSION = 1;
+
+	/** The size of an entry as written by this version */
+	static final int ENTRY_SIZE = 24;
+
+	/** The size of the header (magic + version + entry size) */
+	static final int HEADER_SIZE = MAGIC.length + 2;
+
+	/** The size of the trailer (backup length) */
+	static final int TRAILER_SIZE = 8;
+
+	private RecordIndex() {
+		// static helpers only
+	}
+
+	/**
+	 * @param backup A backup file
+	 * @return The index file belonging to the backup
+	 */
+	public static File indexFileFor(File backup) {
+		return new File(backup.getParentFile(), backup.getName() + FILE_EXTENSION);
+	}
+
+	/**
+	 * Open the index of a backup file for reading
+	 *
+	 * @param backup The backup file
+	 * @return The reader, or null if there is no index, or if the index does
+	 *         not belong to the current version of the backup file.
+	 */
+	public static Reader open(File backup) {
+		File file = indexFileFor(backup);
+		if (!file.exists()) {
+			return null;
+		}
+		try {
+			Reader reader = new Reader(file);
+			if (reader.mBackupLength != backup.length()) {
+				/* stale index, the backup has been replaced since */
+				reader.close();
+				return null;
+			}
+			return reader;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Appends entries to an index file
+	 */
+	public static class Writer {
+
+		private final DataOutputStream mOut;
+
+		/**
+		 * Constructor. Writes the header right away.
+		 *
+		 * @param file The index file. It will be overwritten.
+		 * @throws IOException when the file cannot be written
+		 */
+		public Writer(File file) throws IOException {
+			mOut = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(file), 8 * 1024));
+			mOut.write(MAGIC);
+			mOut.write(VERSION);
+			mOut.write(ENTRY_SIZE);
+		}
+
+		/**
+		 * Add a record to the index
+		 *
+		 * @param id The contact ID
+		 * @param offset The position of the first byte of the record in the
+		 *            backup file
+		 * @param length The number of bytes of the record
+		 * @param crc The CRC32 of the record bytes
+		 * @throws IOException when the file cannot be written
+		 */
+		public void add(long id, long offset, int length, int crc)
+				throws IOException {
+			mOut.writeLong(id);
+			mOut.writeLong(offset);
+			mOut.writeInt(length);
+			mOut.writeInt(crc);
+		}
+
+		/**
+		 * Finish the index
+		 *
+		 * @param backupLength The final size of the backup file
+		 * @throws IOException when the file cannot be written
+		 */
+		public void close(long backupLength) throws IOException {
+			mOut.writeLong(backupLength);
+			mOut.close();
+		}
+
+		/**
+		 * Close the file without finishing it. The index is unusable
+		 * afterwards.
+		 */
+		public void abort() {
+			BinaryFormat.closeQuietly(mOut);
+		}
+
+	}
+
+	/**
+	 * Reads the entries of an index file sequentially
+	 */
+	public static class Reader {
+
+		private final DataInputStream mIn;
+		private final int mEntrySize;
+		private final int mCount;
+		private final long mBackupLength;
+		private int mRead;
+
+		private long mId;
+		private long mOffset;
+		private int mLength;
+		private int mCrc;
+
+		private Reader(File file) throws IOException {
+			long fileLength = file.length();
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				if (fileLength < HEADER_SIZE + TRAILER_SIZE) {
+					throw new IOException("Index too short");
+				}
+				raf.seek(fileLength - TRAILER_SIZE);
+				mBackupLength = raf.readLong();
+			} finally {
+				raf.close();
+			}
+
+			mIn = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file), 8 * 1024));
+			byte[] header = new byte[HEADER_SIZE];
+			mIn.readFully(header);
+			mEntrySize = header[MAGIC.length + 1] & 0xFF;
+			for (int i = 0; i < MAGIC.length; i++) {
+				if (header[i] != MAGIC[i]) {
+					close();
+					throw new IOException("Not an index file");
+				}
+			}
+			long entryBytes = fileLength - HEADER_SIZE - TRAILER_SIZE;
+			if (mEntrySize < ENTRY_SIZE || entryBytes % mEntrySize != 0) {
+				close();
+				throw new IOException("Corrupt index file");
+			}
+			mCount = (int) (entryBytes / mEntrySize);
+		}
+
+		/** @return The number of entries in the index */
+		public int getCount() {
+			return mCount;
+		}
+
+		/** @return The size of the backup file the index belongs to */
+		public long getBackupLength() {
+			return mBackupLength;
+		}
+
+		/**
+		 * Move to the next entry
+		 *
+		 * @return false if there are no more entries
+		 * @throws IOException when the file cannot be read
+		 */
+		public boolean next() throws IOException {
+			if (mRead >= mCount) {
+				return false;
+			}
+			try {
+				mId = mIn.readLong();
+				mOffset = mIn.readLong();
+				mLength = mIn.readInt();
+				mCrc = mIn.readInt();
+				mIn.skipBytes(mEntrySize - ENTRY_SIZE);
+			} catch (EOFException e) {
+				throw new IOException("Truncated index file");
+			}
+			mRead++;
+			return true;
+		}
+
+		/** @return The contact ID of the current entry */
+		public long getId() {
+			return mId;
+		}
+
+		/** @return The position of the current record in the backup */
+		public long getOffset() {
+			return mOffset;
+		}
+
+		/** @return The size of the current record */
+		public int getLength() {
+			return mLength;
+		}
+
+		/** @return The CRC32 of the current record */
+		public int getCrc() {
+			return mCrc;
+		}
+
+		/**
+		 * Close the index file
+		 */
+		public void close() {
+			BinaryFormat.closeQuietly(mIn);
+		}
+
+	}
+
+}
@@ -0,0 +1,195 @@
+package lu.albert.android.jsonbackup.format;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Copies byte ranges of an older backup into the backup being written, with
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}:
+ * the bytes go from file to file without passing through the Java heap.
+ * Ranges which follow each other in the old file are merged into a single
+ * transfer.
+ *
+ * The copied bytes bypass the checksum of the writer. Their CRC32 is known
+ * from the index of the old backup, so it is combined with the checksum of
+ * the bytes written around them, the way zlib's crc32_combine() does.
+ */
+final class RecordSplicer {
+
+	/** The CRC32 polynomial, reversed */
+	private static final long POLYNOMIAL = 0xEDB88320L;
+
+	private final FileInputStream mSourceStream;
+	private final FileChannel mSource;
+	private final FileChannel mTarget;
+	private final CheckedOutputStream mOut;
+
+	/** The CRC32 of the new file up to mSegmentStart */
+	private long mCrc;
+
+	/** Where the bytes written through mOut since the last transfer start */
+	private long mSegmentStart;
+
+	/** The pending transfer: offset in the old file (-1 if none), length and CRC32 */
+	private long mRunOffset;
+	private long mRunLength;
+	private long mRunCrc;
+
+	/** Where the pending transfer goes in the new file */
+	private long mRunPosition;
+
+	/**
+	 * Constructor
+	 *
+	 * @param previous The old backup
+	 * @param target The channel of the file being written
+	 * @param out The stream of the writer. Its checksum must cover everything
+	 *            written so far.
+	 * @throws IOException when the old backup cannot be opened
+	 */
+	RecordSplicer(File previous, FileChannel target, CheckedOutputStream out)
+			throws IOException {
+		mSourceStream = new FileInputStream(previous);
+		mSource = mSourceStream.getChannel();
+		mTarget = target;
+		mOut = out;
+		mRunOffset = -1;
+	}
+
+	/**
+	 * @param offset A position in the old file
+	 * @return true if the pending transfer ends right there
+	 */
+	boolean follows(long offset) {
+		return mRunOffset >= 0 && mRunOffset + mRunLength == offset;
+	}
+
+	/**
+	 * Queue a range of the old file. Nothing may be written through the
+	 * stream before {@link #flush()} has been called.
+	 *
+	 * @param offset The offset of the range in the old file
+	 * @param length The length of the range
+	 * @param crc The CRC32 of the range
+	 * @param position Where the range goes in the new file
+	 * @throws IOException when the pending transfer fails
+	 */
+	void copy(long offset, long length, long crc, long position) throws IOException {
+		if (!follows(offset)) {
+			flush();
+			mRunOffset = offset;
+			mRunLength = 0;
+			mRunCrc = 0;
+			mRunPosition = position;
+		}
+		mRunCrc = combine(mRunCrc, crc, length);
+		mRunLength += length;
+	}
+
+	/**
+	 * Run the pending transfer, if any. The writer calls this before
+	 * writing to its stream.
+	 *
+	 * @throws IOException when the files cannot be read or written
+	 */
+	void flush() throws IOException {
+		if (mRunOffset < 0) {
+			return;
+		}
+		/* the channel writes at the end of what the stream has written */
+		mOut.flush();
+		mCrc = combine(mCrc, mOut.getChecksum().getValue(), mRunPosition - mSegmentStart);
+		mOut.getChecksum().reset();
+
+		long done = 0;
+		while (done < mRunLength) {
+			long count = mSource.transferTo(mRunOffset + done, mRunLength - done, mTarget);
+			if (count <= 0) {
+				throw new IOException("The previous backup is shorter than its index");
+			}
+			done += count;
+		}
+		mCrc = combine(mCrc, mRunCrc, mRunLength);
+		mSegmentStart = mRunPosition + mRunLength;
+		mRunOffset = -1;
+	}
+
+	/**
+	 * @param position The number of bytes written to the new file
+	 * @return The CRC32 of the new file so far, as computed by the stream
+	 *         if nothing had been copied
+	 * @throws IOException when the pending transfer fails
+	 */
+	long getCrc(long position) throws IOException {
+		flush();
+		return combine(mCrc, mOut.getChecksum().getValue(), position - mSegmentStart);
+	}
+
+	/**
+	 * Close the old backup
+	 */
+	void close() {
+		BinaryFormat.closeQuietly(mSourceStream);
+	}
+
+	/**
+	 * @param crc1 The CRC32 of a first block
+	 * @param crc2 The CRC32 of a second block
+	 * @param length2 The length of the second block
+	 * @return The CRC32 of both blocks one after the other
+	 */
+	static long combine(long crc1, long crc2, long length2) {
+		if (length2 <= 0) {
+			return crc1;
+		}
+		/* the operator which appends one, two, four... zero bits */
+		long[] even = new long[32];
+		long[] odd = new long[32];
+		odd[0] = POLYNOMIAL;
+		long row = 1;
+		for (int n = 1; n < 32; n++) {
+			odd[n] = row;
+			row <<= 1;
+		}
+		square(even, odd);
+		square(odd, even);
+
+		/* apply it for every bit set in the length, in bytes */
+		do {
+			square(even, odd);
+			if ((length2 & 1) != 0) {
+				crc1 = times(even, crc1);
+			}
+			length2 >>= 1;
+			if (length2 == 0) {
+				break;
+			}
+			square(odd, even);
+			if ((length2 & 1) != 0) {
+				crc1 = times(odd, crc1);
+			}
+			length2 >>= 1;
+		} while (length2 != 0);
+		return crc1 ^ crc2;
+	}
+
+	private static long times(long[] matrix, long vector) {
+		long sum = 0;
+		for (int i = 0; vector != 0; i++, vector >>>= 1) {
+			if ((vector & 1) != 0) {
+				sum ^= matrix[i];
+			}
+		}
+		return sum;
+	}
+
+	private static void square(long[] square, long[] matrix) {
+		for (int n = 0; n < 32; n++) {
+			square[n] = times(matrix, matrix[n]);
+		}
+	}
+
+}
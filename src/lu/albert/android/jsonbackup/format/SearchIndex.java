@@ -0,0 +1,682 @@
+package lu.albert.android.jsonbackup.format;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import lu.albert.android.jsonbackup.schema.ContactRecord;
+import lu.albert.android.jsonbackup.schema.ContactSchema;
+
+/**
+ * An inverted index of a backup, to find contacts without reading the
+ * backup itself.
+ *
+ * The terms are the words of the names, the data of the contact methods
+ * (e-mail addresses and the like) and the number keys of the phone numbers
+ * (the digits reversed, see {@link #phoneKey(String)}). Every term lists
+ * where the records holding it are stored, as in a {@link RecordIndex}, so a
+ * match can be decoded with {@link ContactScanner#seek(long, int)}.
+ *
+ * The file is written next to the backup (the backup file name with
+ * {@link #FILE_EXTENSION} appended), once the backup is complete. Like the
+ * {@link SourceIndex}, it holds the size and the checksum of the backup it
+ * describes, and is ignored once they do not match any more. Layout:
+ *
+ * <pre>
+ * magic ("JSBQ") | version (1 byte) | backup length + 1 | file crc + 1
+ * block*           up to BLOCK_TERMS sorted terms: shared prefix length,
+ *                  suffix, record count, (offset delta, length)*
+ * directory        block count | (first term, block offset)*
+ * directory offset (8 bytes)
+ * </pre>
+ *
+ * Only the directory is loaded when the index is opened, a lookup reads a
+ * single block (more for prefixes which span blocks). Numbers are varints,
+ * terms are length-prefixed UTF-8.
+ */
+public class SearchIndex {
+
+	/** Appended to the name of the backup file */
+	public static final String FILE_EXTENSION = ".search";
+
+	private static final byte[] MAGIC = { 'J', 'S', 'B', 'Q' };
+	private static final int VERSION = 1;
+
+	/** The number of terms of a block */
+	private static final int BLOCK_TERMS = 64;
+
+	/** Longer words are cut, nobody types them in full */
+	private static final int MAX_TERM_LENGTH = 48;
+
+	/** The first character of a term tells where it comes from */
+	private static final char NAME = 'n';
+	private static final char METHOD = 'm';
+	private static final char PHONE = 'p';
+
+	/**
+	 * The number of trailing digits phone numbers are matched on, like the
+	 * contacts provider does
+	 */
+	private static final int MIN_MATCH = 7;
+
+	private final RandomAccessFile mFile;
+	private final String[] mFirstTerms;
+	/** Where every block starts, and where the last one ends */
+	private final long[] mBlockOffsets;
+
+	private SearchIndex(RandomAccessFile file, String[] firstTerms, long[] blockOffsets) {
+		mFile = file;
+		mFirstTerms = firstTerms;
+		mBlockOffsets = blockOffsets;
+	}
+
+	/**
+	 * @param backup A backup file
+	 * @return The file holding its search index
+	 */
+	public static File fileFor(File backup) {
+		return new File(backup.getParentFile(), backup.getName() + FILE_EXTENSION);
+	}
+
+	/**
+	 * @param backup A backup file
+	 */
+	public static void delete(File backup) {
+		fileFor(backup).delete();
+	}
+
+	/**
+	 * Open the search index of a backup
+	 *
+	 * @param backup The backup file
+	 * @return The index, or null if there is none, it cannot be read, or it
+	 *         belongs to an older version of the backup
+	 */
+	public static SearchIndex open(File backup) {
+		File file = fileFor(backup);
+		if (!file.exists()) {
+			return null;
+		}
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			byte[] header = new byte[MAGIC.length + 1 + 20];
+			int length = (int) Math.min(header.length, raf.length());
+			raf.readFully(header, 0, length);
+			InputStream in = new ByteArrayInputStream(header, 0, length);
+			if (!BinaryFormat.readSidecarHeader(in, MAGIC, VERSION, backup)) {
+				raf.close();
+				return null;
+			}
+
+			raf.seek(raf.length() - 8);
+			long directory = raf.readLong();
+			byte[] bytes = new byte[(int) (raf.length() - 8 - directory)];
+			raf.seek(directory);
+			raf.readFully(bytes);
+			in = new ByteArrayInputStream(bytes);
+			int count = (int) BinaryFormat.readVarLong(in);
+			String[] firstTerms = new String[count];
+			long[] offsets = new long[count + 1];
+			for (int i = 0; i < count; i++) {
+				firstTerms[i] = readString(in);
+				offsets[i] = BinaryFormat.readVarLong(in);
+			}
+			offsets[count] = directory;
+			return new SearchIndex(raf, firstTerms, offsets);
+		} catch (IOException e) {
+			BinaryFormat.closeQuietly(raf);
+			return null;
+		} catch (RuntimeException e) {
+			/* a damaged index, an array too large or too small */
+			BinaryFormat.closeQuietly(raf);
+			return null;
+		}
+	}
+
+	/**
+	 * Close the index file
+	 */
+	public void close() {
+		BinaryFormat.closeQuietly(mFile);
+	}
+
+	/**
+	 * Find contacts the way a user would look for them. Digits are looked up
+	 * as a phone number, text with an '@' as the start of a contact method,
+	 * anything else as the starts of words of the name (all of them must
+	 * match) or the start of a contact method.
+	 *
+	 * @param query What the user typed
+	 * @return Where the matching records are, in file order
+	 * @throws IOException when the index cannot be read
+	 */
+	public Hits search(String query) throws IOException {
+		String text = query.trim();
+		if (text.length() == 0) {
+			return new Hits();
+		}
+		if (isPhoneNumber(text)) {
+			return findPhone(text);
+		}
+		Hits methods = find(METHOD + truncate(text.toLowerCase()), true);
+		if (text.indexOf('@') >= 0) {
+			return methods;
+		}
+		String[] words = tokenize(text);
+		Hits names = null;
+		for (int i = 0; i < words.length; i++) {
+			Hits hits = find(NAME + words[i], true);
+			names = names == null ? hits : names.retain(hits);
+		}
+		return names == null ? methods : names.add(methods);
+	}
+
+	/**
+	 * Find the contacts with a phone number. Numbers are matched on their
+	 * last digits, so a number with or without the country code is found.
+	 *
+	 * @param number The phone number
+	 * @return Where the matching records are, in file order
+	 * @throws IOException when the index cannot be read
+	 */
+	public Hits findPhone(String number) throws IOException {
+		String key = phoneKey(number);
+		if (key.length() == 0) {
+			return new Hits();
+		}
+		if (key.length() <= MIN_MATCH) {
+			return find(PHONE + key, true);
+		}
+		/* the keys which are the same up to the shorter of the two */
+		Hits hits = find(PHONE + key.substring(0, MIN_MATCH), false);
+		for (int i = MIN_MATCH + 1; i <= key.length(); i++) {
+			hits.add(find(PHONE + key.substring(0, i), i == key.length()));
+		}
+		return hits;
+	}
+
+	/**
+	 * Look a term up
+	 *
+	 * @param term The term, with its kind
+	 * @param prefix true to find all the terms starting with it
+	 * @return The records of the term
+	 */
+	private Hits find(String term, boolean prefix) throws IOException {
+		Hits hits = new Hits();
+		/* the last block starting at or before the term */
+		int first = Arrays.binarySearch(mFirstTerms, term);
+		if (first < 0) {
+			first = Math.max(0, -first - 2);
+		}
+		for (int block = first; block < mFirstTerms.length; block++) {
+			/* the blocks which follow start with a larger term */
+			if (block > first && !mFirstTerms[block].startsWith(term)) {
+				break;
+			}
+			if (!readBlock(block, term, prefix, hits)) {
+				break;
+			}
+		}
+		hits.sort();
+		return hits;
+	}
+
+	/**
+	 * Collect the records of the matching terms of a block
+	 *
+	 * @return false if the block holds terms beyond the matching ones
+	 */
+	private boolean readBlock(int block, String term, boolean prefix, Hits hits)
+			throws IOException {
+		long start = mBlockOffsets[block];
+		byte[] bytes = new byte[(int) (mBlockOffsets[block + 1] - start)];
+		mFile.seek(start);
+		mFile.readFully(bytes);
+		InputStream in = new ByteArrayInputStream(bytes);
+		String previous = "";
+		while (in.available() > 0) {
+			int shared = (int) BinaryFormat.readVarLong(in);
+			String current = previous.substring(0, shared) + readString(in);
+			int count = (int) BinaryFormat.readVarLong(in);
+			boolean match = prefix ? current.startsWith(term) : current.equals(term);
+			long offset = 0;
+			for (int i = 0; i < count; i++) {
+				offset += BinaryFormat.readVarLong(in);
+				int length = (int) BinaryFormat.readVarLong(in);
+				if (match) {
+					hits.add(offset, length);
+				}
+			}
+			if (!match && current.compareTo(term) > 0) {
+				return false;
+			}
+			previous = current;
+		}
+		return true;
+	}
+
+	/**
+	 * Write the search index of a backup which has just been written. The
+	 * backup is read once, without decoding the photos. Sharded backups and
+	 * backups with a change log are not indexed.
+	 *
+	 * @param backup The backup file, complete
+	 * @return false if the backup cannot be indexed. An older index is
+	 *         deleted then.
+	 * @throws IOException when the backup or the index cannot be accessed
+	 */
+	public static boolean build(File backup) throws IOException {
+		delete(backup);
+		if (ShardManifest.isManifest(backup) || ChangeLog.hasLog(backup)) {
+			return false;
+		}
+		ContactScanner scanner = BinaryFormat.isBinary(backup)
+				? new BinaryContactReader(backup) : new JsonContactReader(backup);
+		Builder builder = new Builder();
+		try {
+			scanner.setSkipPhotos(true);
+			ContactRecord record = new ContactRecord();
+			while (scanner.read(record)) {
+				builder.add(record, scanner.getRecordOffset(), scanner.getRecordLength());
+			}
+		} finally {
+			scanner.close();
+		}
+		builder.write(backup);
+		return true;
+	}
+
+	/**
+	 * @param number A phone number
+	 * @return Its digits, last one first, like Phones.NUMBER_KEY
+	 */
+	public static String phoneKey(String number) {
+		return digits(number).reverse().toString();
+	}
+
+	/**
+	 * @return The digits of a phone number or a number key, without the
+	 *         '+' and the separators
+	 */
+	static StringBuilder digits(String number) {
+		StringBuilder digits = new StringBuilder(number.length());
+		for (int i = 0; i < number.length(); i++) {
+			char c = number.charAt(i);
+			if (c >= '0' && c <= '9') {
+				digits.append(c);
+			}
+		}
+		return digits;
+	}
+
+	/**
+	 * The rule of {@link #findPhone(String)}: one key starts with the
+	 * other, and the shorter one has at least {@link #MIN_MATCH} digits
+	 * unless it is the one looked for.
+	 *
+	 * @param stored The number key of a contact, digits only
+	 * @param key The number key looked for
+	 * @return true if the numbers match
+	 */
+	static boolean samePhone(String stored, String key) {
+		if (key.length() == 0) {
+			return false;
+		}
+		if (key.length() <= MIN_MATCH || stored.length() >= key.length()) {
+			return stored.startsWith(key);
+		}
+		return stored.length() >= MIN_MATCH && key.startsWith(stored);
+	}
+
+	/**
+	 * @param text What the user typed
+	 * @return true if it is looked up as a phone number
+	 */
+	public static boolean isPhoneNumber(String text) {
+		boolean digits = false;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c >= '0' && c <= '9') {
+				digits = true;
+			} else if ("+-() ./".indexOf(c) < 0) {
+				return false;
+			}
+		}
+		return digits;
+	}
+
+	/**
+	 * @param text A name
+	 * @return Its words, in lower case
+	 */
+	private static String[] tokenize(String text) {
+		String[] words = new String[text.length() / 2 + 1];
+		int count = 0;
+		int start = -1;
+		for (int i = 0; i <= text.length(); i++) {
+			boolean letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if (letter && start < 0) {
+				start = i;
+			} else if (!letter && start >= 0) {
+				words[count++] = truncate(text.substring(start, i).toLowerCase());
+				start = -1;
+			}
+		}
+		String[] result = new String[count];
+		System.arraycopy(words, 0, result, 0, count);
+		return result;
+	}
+
+	private static String truncate(String term) {
+		return term.length() > MAX_TERM_LENGTH ? term.substring(0, MAX_TERM_LENGTH) : term;
+	}
+
+	private static String readString(InputStream in) throws IOException {
+		byte[] bytes = new byte[(int) BinaryFormat.readVarLong(in)];
+		BinaryFormat.readFully(in, bytes, 0, bytes.length);
+		return new String(bytes, "UTF-8");
+	}
+
+	private static void writeString(OutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes("UTF-8");
+		BinaryFormat.writeVarLong(out, bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Where the records matching a search are stored
+	 */
+	public static class Hits {
+
+		private long[] mOffsets = new long[16];
+		private int[] mLengths = new int[16];
+		private int mSize;
+
+		/** @return The number of records */
+		public int size() {
+			return mSize;
+		}
+
+		/** @return The offset of a record, as listed in a {@link RecordIndex} */
+		public long getOffset(int index) {
+			return mOffsets[index];
+		}
+
+		/** @return The length of a record */
+		public int getLength(int index) {
+			return mLengths[index];
+		}
+
+		void add(long offset, int length) {
+			if (mSize == mOffsets.length) {
+				long[] offsets = new long[mSize * 2];
+				int[] lengths = new int[mSize * 2];
+				System.arraycopy(mOffsets, 0, offsets, 0, mSize);
+				System.arraycopy(mLengths, 0, lengths, 0, mSize);
+				mOffsets = offsets;
+				mLengths = lengths;
+			}
+			mOffsets[mSize] = offset;
+			mLengths[mSize] = length;
+			mSize++;
+		}
+
+		/**
+		 * Add the records of other hits which are not in these ones yet
+		 *
+		 * @return this
+		 */
+		Hits add(Hits other) {
+			for (int i = 0; i < other.mSize; i++) {
+				add(other.mOffsets[i], other.mLengths[i]);
+			}
+			sort();
+			return this;
+		}
+
+		/**
+		 * Only keep the records which are in other hits too
+		 *
+		 * @param other Sorted hits
+		 * @return this
+		 */
+		Hits retain(Hits other) {
+			int size = 0;
+			for (int i = 0; i < mSize; i++) {
+				if (Arrays.binarySearch(other.mOffsets, 0, other.mSize, mOffsets[i]) >= 0) {
+					mOffsets[size] = mOffsets[i];
+					mLengths[size] = mLengths[i];
+					size++;
+				}
+			}
+			mSize = size;
+			return this;
+		}
+
+		/**
+		 * Sort the records in file order, and drop the duplicates
+		 */
+		void sort() {
+			/* the offset and the position in one long: far fewer than 2^24 hits */
+			long[] keys = new long[mSize];
+			for (int i = 0; i < mSize; i++) {
+				keys[i] = (mOffsets[i] << 24) | i;
+			}
+			Arrays.sort(keys);
+			long[] offsets = new long[Math.max(16, mSize)];
+			int[] lengths = new int[offsets.length];
+			int size = 0;
+			for (int i = 0; i < mSize; i++) {
+				int index = (int) (keys[i] & 0xFFFFFF);
+				if (size > 0 && offsets[size - 1] == mOffsets[index]) {
+					continue;
+				}
+				offsets[size] = mOffsets[index];
+				lengths[size] = mLengths[index];
+				size++;
+			}
+			mOffsets = offsets;
+			mLengths = lengths;
+			mSize = size;
+		}
+
+	}
+
+	/**
+	 * Collects the terms of the records of a backup, and writes the index.
+	 *
+	 * Every distinct term is held once; the occurrences are packed as
+	 * (term number, record number) in a single array of longs, which is
+	 * sorted once all records are known.
+	 */
+	private static class Builder {
+
+		private final HashMap<String, Integer> mTermNumbers = new HashMap<String, Integer>();
+		private String[] mTerms = new String[1024];
+		private int mTermCount;
+
+		private long[] mOccurrences = new long[4096];
+		private int mOccurrenceCount;
+
+		private long[] mOffsets = new long[1024];
+		private int[] mLengths = new int[1024];
+		private int mRecordCount;
+
+		/**
+		 * Collect the terms of a record
+		 */
+		void add(ContactRecord record, long offset, int length) {
+			if (mRecordCount == mOffsets.length) {
+				long[] offsets = new long[mRecordCount * 2];
+				int[] lengths = new int[mRecordCount * 2];
+				System.arraycopy(mOffsets, 0, offsets, 0, mRecordCount);
+				System.arraycopy(mLengths, 0, lengths, 0, mRecordCount);
+				mOffsets = offsets;
+				mLengths = lengths;
+			}
+			mOffsets[mRecordCount] = offset;
+			mLengths[mRecordCount] = length;
+
+			addWords(record.person, ContactSchema.NAME);
+			addWords(record.person, ContactSchema.DISPLAY_NAME);
+			addWords(record.person, ContactSchema.PHONETIC_NAME);
+			for (int i = 0; i < record.methods.size(); i++) {
+				ContactRecord.Row method = record.methods.get(i);
+				if (method.has(ContactSchema.METHOD_DATA)) {
+					String data = method.getString(ContactSchema.METHOD_DATA).trim();
+					if (data.length() > 0) {
+						addTerm(METHOD + truncate(data.toLowerCase()));
+					}
+				}
+			}
+			for (int i = 0; i < record.phones.size(); i++) {
+				ContactRecord.Row phone = record.phones.get(i);
+				String key = null;
+				if (phone.has(ContactSchema.PHONE_NUMBER_KEY)) {
+					key = digits(phone.getString(ContactSchema.PHONE_NUMBER_KEY)).toString();
+				} else if (phone.has(ContactSchema.PHONE_NUMBER)) {
+					key = phoneKey(phone.getString(ContactSchema.PHONE_NUMBER));
+				}
+				if (key != null && key.length() > 0) {
+					addTerm(PHONE + key);
+				}
+			}
+			mRecordCount++;
+		}
+
+		private void addWords(ContactRecord.Row person, int field) {
+			if (!person.has(field)) {
+				return;
+			}
+			String[] words = tokenize(person.getString(field));
+			for (int i = 0; i < words.length; i++) {
+				addTerm(NAME + words[i]);
+			}
+		}
+
+		private void addTerm(String term) {
+			Integer number = mTermNumbers.get(term);
+			if (number == null) {
+				if (mTermCount == mTerms.length) {
+					String[] terms = new String[mTermCount * 2];
+					System.arraycopy(mTerms, 0, terms, 0, mTermCount);
+					mTerms = terms;
+				}
+				number = Integer.valueOf(mTermCount);
+				mTerms[mTermCount++] = term;
+				mTermNumbers.put(term, number);
+			}
+			if (mOccurrenceCount == mOccurrences.length) {
+				long[] occurrences = new long[mOccurrenceCount * 2];
+				System.arraycopy(mOccurrences, 0, occurrences, 0, mOccurrenceCount);
+				mOccurrences = occurrences;
+			}
+			mOccurrences[mOccurrenceCount++] = ((long) number.intValue() << 32) | mRecordCount;
+		}
+
+		/**
+		 * Write the index. A temporary file is written first, then renamed.
+		 */
+		void write(File backup) throws IOException {
+			/* number the terms in sorted order */
+			String[] sorted = new String[mTermCount];
+			System.arraycopy(mTerms, 0, sorted, 0, mTermCount);
+			Arrays.sort(sorted);
+			int[] ranks = new int[mTermCount];
+			for (int i = 0; i < mTermCount; i++) {
+				ranks[mTermNumbers.get(sorted[i]).intValue()] = i;
+			}
+			for (int i = 0; i < mOccurrenceCount; i++) {
+				long occurrence = mOccurrences[i];
+				mOccurrences[i] = ((long) ranks[(int) (occurrence >>> 32)] << 32)
+						| (occurrence & 0xFFFFFFFFL);
+			}
+			/* by term, then by record, which is file order */
+			Arrays.sort(mOccurrences, 0, mOccurrenceCount);
+
+			File file = fileFor(backup);
+			File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+			CountingOutputStream out = new CountingOutputStream(new BufferedOutputStream(
+					new FileOutputStream(temp), 16 * 1024));
+			String[] firstTerms = new String[mTermCount / BLOCK_TERMS + 1];
+			long[] blockOffsets = new long[firstTerms.length];
+			int blocks = 0;
+			try {
+				BinaryFormat.writeSidecarHeader(out, MAGIC, VERSION, backup);
+				String previous = "";
+				int next = 0;
+				for (int rank = 0; rank < mTermCount; rank++) {
+					String term = sorted[rank];
+					if (rank % BLOCK_TERMS == 0) {
+						firstTerms[blocks] = term;
+						blockOffsets[blocks] = out.getCount();
+						blocks++;
+						previous = "";
+					}
+					int shared = 0;
+					int max = Math.min(previous.length(), term.length());
+					while (shared < max && previous.charAt(shared) == term.charAt(shared)) {
+						shared++;
+					}
+					/* never split a surrogate pair */
+					if (shared > 0 && Character.isHighSurrogate(term.charAt(shared - 1))) {
+						shared--;
+					}
+					BinaryFormat.writeVarLong(out, shared);
+					writeString(out, term.substring(shared));
+
+					int end = next;
+					long rankBits = (long) rank << 32;
+					while (end < mOccurrenceCount && (mOccurrences[end] & ~0xFFFFFFFFL) == rankBits) {
+						end++;
+					}
+					/* a word found twice in a record is listed once */
+					int count = 0;
+					for (int i = next; i < end; i++) {
+						if (i == next || mOccurrences[i] != mOccurrences[i - 1]) {
+							count++;
+						}
+					}
+					BinaryFormat.writeVarLong(out, count);
+					long offset = 0;
+					for (int i = next; i < end; i++) {
+						if (i > next && mOccurrences[i] == mOccurrences[i - 1]) {
+							continue;
+						}
+						int record = (int) mOccurrences[i];
+						BinaryFormat.writeVarLong(out, mOffsets[record] - offset);
+						BinaryFormat.writeVarLong(out, mLengths[record]);
+						offset = mOffsets[record];
+					}
+					next = end;
+					previous = term;
+				}
+
+				long directory = out.getCount();
+				BinaryFormat.writeVarLong(out, blocks);
+				for (int i = 0; i < blocks; i++) {
+					writeString(out, firstTerms[i]);
+					BinaryFormat.writeVarLong(out, blockOffsets[i]);
+				}
+				BinaryFormat.writeFixedLong(out, directory);
+			} finally {
+				out.close();
+			}
+			file.delete();
+			if (!temp.renameTo(file)) {
+				throw new IOException("Unable to replace " + file);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,340 @@
+package lu.albert.android.jsonbackup.format;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Describes a backup which is split into several shards.
+ *
+ * Each shard is a complete backup file on its own (JSON or binary, with its
+ * own metadata, checksums and index), holding a consecutive slice of the
+ * contacts. The manifest lists the shards in order, with the number of
+ * contacts, the size and the checksum of each, and the metadata of the
+ * whole backup. So a single shard can be checked, copied or written again
+ * without touching the others.
+ *
+ * The manifest is a small JSON object. The shards are stored next to it and
+ * named after it and the generation of the backup: the third backup into
+ * "contacts.manifest" has the shards "contacts.3.000.bin", "contacts.3.001.bin"
+ * and so on. So a new backup never overwrites the shards of the previous one,
+ * which stays valid until the new manifest replaces it.
+ */
+public class ShardManifest {
+
+	/** The extension of manifest files */
+	public static final String FILE_EXTENSION = ".manifest";
+
+	/** The key of the JSON object holding the manifest */
+	public static final String KEY = "_shards";
+
+	/** The manifest layout version */
+	public static final int VERSION = 1;
+
+	private static final String MANIFEST_VERSION = "manifest_version";
+	private static final String SHARDS = "shards";
+	private static final String NAME = "name";
+	private static final String CONTACTS = "contacts";
+	private static final String LENGTH = "length";
+	private static final String FILE_CRC = "file_crc";
+	private static final String GENERATION = "generation";
+
+	private final File mFile;
+	private final BackupMetadata mMetadata;
+	private final int mGeneration;
+	private final ArrayList<Shard> mShards;
+
+	/**
+	 * One file of a sharded backup
+	 */
+	private static class Shard {
+		String name;
+		int contacts;
+		long length;
+		long crc;
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param file The manifest file
+	 * @param metadata The metadata of the whole backup
+	 * @param generation The number of the backup, which its shards are
+	 *            named after
+	 */
+	ShardManifest(File file, BackupMetadata metadata, int generation) {
+		mFile = file;
+		mMetadata = metadata;
+		mGeneration = generation;
+		mShards = new ArrayList<Shard>();
+	}
+
+	/**
+	 * @param file Any file
+	 * @return true if the file is the manifest of a sharded backup
+	 */
+	public static boolean isManifest(File file) {
+		return file.getName().endsWith(FILE_EXTENSION);
+	}
+
+	/**
+	 * @param manifest The manifest file
+	 * @param generation The generation of the backup
+	 * @param number The number of the shard
+	 * @param binary true for binary shards, false for JSON
+	 * @return The file of the shard
+	 */
+	static File shardFile(File manifest, int generation, int number, boolean binary) {
+		String name = manifest.getName();
+		String base = name.substring(0, name.length() - FILE_EXTENSION.length());
+		String suffix = String.valueOf(1000 + number).substring(1);
+		return new File(manifest.getParentFile(), base + "." + generation + "." + suffix
+				+ (binary ? BinaryFormat.FILE_EXTENSION : ".json"));
+	}
+
+	/**
+	 * Read a manifest
+	 *
+	 * @param file The manifest file
+	 * @return The manifest
+	 * @throws IOException if the file is unreadable or malformed
+	 */
+	public static ShardManifest read(File file) throws IOException {
+		byte[] bytes = new byte[(int) file.length()];
+		InputStream in = new FileInputStream(file);
+		try {
+			BinaryFormat.readFully(in, bytes, 0, bytes.length);
+		} finally {
+			in.close();
+		}
+		try {
+			JSONObject wrapper = new JSONObject(new String(bytes, "UTF-8"));
+			JSONObject manifest = wrapper.getJSONObject(KEY);
+			if (manifest.getInt(MANIFEST_VERSION) > VERSION) {
+				throw new IOException("Unsupported shard manifest version "
+						+ manifest.getInt(MANIFEST_VERSION));
+			}
+			/* the shards of older manifests have no generation in their names */
+			ShardManifest result = new ShardManifest(file,
+					BackupMetadata.fromJSON(manifest), manifest.optInt(GENERATION, 0));
+			JSONArray shards = manifest.getJSONArray(SHARDS);
+			for (int i = 0; i < shards.length(); i++) {
+				JSONObject entry = shards.getJSONObject(i);
+				result.add(entry.getString(NAME), entry.getInt(CONTACTS),
+						entry.getLong(LENGTH), entry.optLong(FILE_CRC, -1));
+			}
+			return result;
+		} catch (JSONException e) {
+			throw new IOException("Corrupt shard manifest: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Append a shard
+	 *
+	 * @param name The file name of the shard, relative to the manifest
+	 * @param contacts The number of contacts in the shard
+	 * @param length The size of the shard
+	 * @param crc The checksum stored in the metadata of the shard, -1 if none
+	 */
+	void add(String name, int contacts, long length, long crc) {
+		Shard shard = new Shard();
+		shard.name = name;
+		shard.contacts = contacts;
+		shard.length = length;
+		shard.crc = crc;
+		mShards.add(shard);
+	}
+
+	/**
+	 * Write the manifest. It is written to a temporary file first, then
+	 * renamed over the old one, so a crash leaves either the old or the new
+	 * manifest behind.
+	 *
+	 * @throws IOException when the file cannot be written
+	 */
+	void write() throws IOException {
+		byte[] bytes;
+		try {
+			/* the metadata is kept under its usual key */
+			JSONObject manifest = mMetadata.toJSON();
+			manifest.put(MANIFEST_VERSION, VERSION);
+			manifest.put(GENERATION, mGeneration);
+			JSONArray shards = new JSONArray();
+			for (Shard shard : mShards) {
+				JSONObject entry = new JSONObject();
+				entry.put(NAME, shard.name);
+				entry.put(CONTACTS, shard.contacts);
+				entry.put(LENGTH, shard.length);
+				entry.put(FILE_CRC, shard.crc);
+				shards.put(entry);
+			}
+			manifest.put(SHARDS, shards);
+			JSONObject wrapper = new JSONObject();
+			wrapper.put(KEY, manifest);
+			bytes = wrapper.toString(3).getBytes("UTF-8");
+		} catch (JSONException e) {
+			throw new IOException("Unable to encode the shard manifest");
+		}
+
+		File temp = new File(mFile.getParentFile(), mFile.getName() + ".tmp");
+		OutputStream out = new FileOutputStream(temp);
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(mFile)) {
+			/* only where renaming does not replace the target */
+			mFile.delete();
+			if (!temp.renameTo(mFile)) {
+				throw new IOException("Unable to replace " + mFile);
+			}
+		}
+	}
+
+	/** @return The metadata of the whole backup */
+	public BackupMetadata getMetadata() {
+		return mMetadata;
+	}
+
+	/** @return The number of the backup, which its shards are named after */
+	public int getGeneration() {
+		return mGeneration;
+	}
+
+	/** @return The number of shards */
+	public int getShardCount() {
+		return mShards.size();
+	}
+
+	/**
+	 * @param shard The number of the shard
+	 * @return The file of the shard
+	 */
+	public File getShardFile(int shard) {
+		return new File(mFile.getParentFile(), mShards.get(shard).name);
+	}
+
+	/**
+	 * @return The manifest followed by the files of all shards
+	 */
+	public File[] getFiles() {
+		File[] files = new File[mShards.size() + 1];
+		files[0] = mFile;
+		for (int i = 0; i < mShards.size(); i++) {
+			files[i + 1] = getShardFile(i);
+		}
+		return files;
+	}
+
+	/**
+	 * @param shard The number of the shard
+	 * @return The number of contacts in the shard
+	 */
+	public int getShardContacts(int shard) {
+		return mShards.get(shard).contacts;
+	}
+
+	/**
+	 * @param shard The number of the shard
+	 * @return The size of the shard in bytes
+	 */
+	public long getShardLength(int shard) {
+		return mShards.get(shard).length;
+	}
+
+	/**
+	 * @return The size of all shards in bytes
+	 */
+	public long getTotalLength() {
+		long total = 0;
+		for (Shard shard : mShards) {
+			total += shard.length;
+		}
+		return total;
+	}
+
+	/**
+	 * Check one shard: it must be the file listed in the manifest, and it
+	 * must pass the {@link BackupVerifier}.
+	 *
+	 * @param shard The number of the shard
+	 * @throws IOException if the shard is missing, stale or corrupt. The
+	 *             message names the shard.
+	 */
+	public void verifyShard(int shard) throws IOException {
+		Shard entry = mShards.get(shard);
+		File file = getShardFile(shard);
+		if (!file.exists()) {
+			throw new IOException(entry.name + " is missing");
+		}
+		if (file.length() != entry.length) {
+			throw new IOException(entry.name + " has " + file.length()
+					+ " bytes, expected " + entry.length);
+		}
+		try {
+			BackupMetadata metadata = BackupMetadata.read(file);
+			if (entry.crc != -1 && (metadata == null || metadata.getFileCrc() != entry.crc)) {
+				throw new IOException("does not belong to this backup");
+			}
+			int count = BackupVerifier.verify(file);
+			if (count != entry.contacts) {
+				throw new IOException("expected " + entry.contacts
+						+ " contacts, found " + count);
+			}
+		} catch (IOException e) {
+			throw new IOException(entry.name + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Check all shards
+	 *
+	 * @return The number of contacts in the backup
+	 * @throws IOException if a shard is missing, stale or corrupt
+	 */
+	public int verify() throws IOException {
+		int count = 0;
+		for (int i = 0; i < mShards.size(); i++) {
+			verifyShard(i);
+			count += mShards.get(i).contacts;
+		}
+		if (count != mMetadata.getContactCount()) {
+			throw new IOException("Expected " + mMetadata.getContactCount()
+					+ " contacts, found " + count);
+		}
+		return count;
+	}
+
+	/**
+	 * Delete a sharded backup: the manifest, the shards it lists and their
+	 * indexes.
+	 *
+	 * @param file The manifest file
+	 */
+	public static void delete(File file) {
+		if (file.exists()) {
+			try {
+				ShardManifest manifest = read(file);
+				for (int i = 0; i < manifest.getShardCount(); i++) {
+					File shard = manifest.getShardFile(i);
+					RecordIndex.indexFileFor(shard).delete();
+					shard.delete();
+				}
+			} catch (IOException e) {
+				// the manifest is unreadable, only the manifest itself can go
+			}
+		}
+		file.delete();
+	}
+
+}
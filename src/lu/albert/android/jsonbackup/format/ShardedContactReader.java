@@ -0,0 +1,65 @@
+package lu.albert.android.jsonbackup.format;
+
+import java.io.IOException;
+
+import lu.albert.android.jsonbackup.schema.ContactRecord;
+
+/**
+ * Reads the shards of a sharded backup one after the other, as if they were
+ * a single file.
+ */
+class ShardedContactReader implements ContactReader {
+
+	private final ShardManifest mManifest;
+
+	/** The shard being read, null between shards */
+	private ContactReader mReader;
+	private int mShard;
+
+	/** The size of the shards which have been read completely */
+	private long mDone;
+
+	/**
+	 * Constructor
+	 *
+	 * @param manifest The manifest of the backup
+	 */
+	ShardedContactReader(ShardManifest manifest) {
+		mManifest = manifest;
+	}
+
+	public boolean read(ContactRecord record) throws IOException {
+		while (mShard < mManifest.getShardCount()) {
+			if (mReader == null) {
+				mReader = ContactReaders.open(mManifest.getShardFile(mShard));
+			}
+			if (mReader.read(record)) {
+				return true;
+			}
+			mReader.close();
+			mReader = null;
+			mDone += mManifest.getShardLength(mShard);
+			mShard++;
+		}
+		return false;
+	}
+
+	public BackupMetadata getMetadata() {
+		return mManifest.getMetadata();
+	}
+
+	/**
+	 * @return The position in all shards, as if they were one file
+	 */
+	public long getPosition() {
+		return mDone + (mReader == null ? 0 : mReader.getPosition());
+	}
+
+	public void close() {
+		if (mReader != null) {
+			mReader.close();
+			mReader = null;
+		}
+	}
+
+}
@@ -0,0 +1,185 @@
+package lu.albert.android.jsonbackup.format;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import lu.albert.android.jsonbackup.schema.ContactRecord;
+
+import org.json.JSONException;
+
+/**
+ * Writes a backup as several shards plus a {@link ShardManifest}.
+ *
+ * A new shard is started once the current one holds the maximum number of
+ * contacts, or has grown past the maximum size. Every shard is written by
+ * a regular {@link BinaryContactWriter} or {@link JsonContactWriter} and
+ * gets its own {@link RecordIndex}.
+ *
+ * The shards get the names of a new generation, so the ones of the previous
+ * backup are not touched. The manifest is written last and swapped in with
+ * a single rename; only then are the old shards deleted. So an interrupted
+ * backup leaves the previous one as it was.
+ */
+public class ShardedContactWriter implements ContactWriter {
+
+	/** The size a shard may grow to when none is given */
+	public static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final File mManifestFile;
+	private final boolean mBinary;
+	private final int mMaxContacts;
+	private final long mMaxBytes;
+	private final BackupMetadata mMetadata;
+	private final ShardManifest mManifest;
+
+	/** The manifest of the previous backup, null if there is none */
+	private final ShardManifest mPrevious;
+
+	/** The shard being written, null before the first contact */
+	private ContactWriter mShard;
+	private CountingOutputStream mShardOut;
+	private RecordIndex.Writer mShardIndex;
+	private File mShardFile;
+	private int mShardContacts;
+	private int mShardCount;
+
+	/**
+	 * Constructor. No file is created before the first contact.
+	 *
+	 * @param manifest The manifest file. The shards are written next to it.
+	 * @param binary true for binary shards, false for JSON
+	 * @param maxContacts The maximum number of contacts per shard
+	 * @param maxBytes The size after which a new shard is started
+	 */
+	public ShardedContactWriter(File manifest, boolean binary, int maxContacts, long maxBytes) {
+		mManifestFile = manifest;
+		mBinary = binary;
+		mMaxContacts = Math.max(maxContacts, 1);
+		mMaxBytes = maxBytes;
+		mMetadata = new BackupMetadata(binary ? BinaryFormat.VERSION : BackupMetadata.JSON_VERSION);
+		mPrevious = readPrevious(manifest);
+		mManifest = new ShardManifest(manifest, mMetadata,
+				mPrevious == null ? 1 : mPrevious.getGeneration() + 1);
+	}
+
+	/**
+	 * @param manifest The manifest file
+	 * @return The manifest of the previous backup, null if there is none or
+	 *         it cannot be read
+	 */
+	private static ShardManifest readPrevious(File manifest) {
+		if (!manifest.exists()) {
+			return null;
+		}
+		try {
+			return ShardManifest.read(manifest);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	public void write(ContactRecord contact) throws IOException, JSONException {
+		if (mShard == null || mShardContacts >= mMaxContacts
+				|| mShardOut.getCount() >= mMaxBytes) {
+			closeShard();
+			openShard();
+		}
+		long before = mShardOut.getCount();
+		mShard.write(contact);
+		mShardContacts++;
+		mMetadata.account(contact, (int) (mShardOut.getCount() - before));
+	}
+
+	/**
+	 * @return The metadata of the whole backup, which is stored in the
+	 *         manifest
+	 */
+	public BackupMetadata getMetadata() {
+		return mMetadata;
+	}
+
+	/**
+	 * Ignored. Each shard is indexed on its own.
+	 */
+	public void setIndex(RecordIndex.Writer index) {
+		// each shard has its own index
+	}
+
+	/**
+	 * Close the last shard and swap the new manifest in. Then delete the
+	 * shards of the previous backup, and the ones an interrupted run of
+	 * this generation may have left behind: beyond the last shard, and in
+	 * the other format.
+	 */
+	public void close() throws IOException {
+		closeShard();
+		mManifest.write();
+		if (mPrevious != null) {
+			for (int i = 0; i < mPrevious.getShardCount(); i++) {
+				File old = mPrevious.getShardFile(i);
+				RecordIndex.indexFileFor(old).delete();
+				old.delete();
+			}
+		}
+		deleteShards(mShardCount, mBinary);
+		deleteShards(0, !mBinary);
+	}
+
+	private void deleteShards(int first, boolean binary) {
+		for (int i = first; ; i++) {
+			File stale = ShardManifest.shardFile(mManifestFile, mManifest.getGeneration(), i,
+					binary);
+			if (!stale.exists()) {
+				break;
+			}
+			RecordIndex.indexFileFor(stale).delete();
+			stale.delete();
+		}
+	}
+
+	private void openShard() throws IOException {
+		mShardFile = ShardManifest.shardFile(mManifestFile, mManifest.getGeneration(),
+				mShardCount, mBinary);
+		mShardOut = new CountingOutputStream(new BufferedOutputStream(
+				new FileOutputStream(mShardFile), BUFFER_SIZE));
+		mShard = mBinary ? new BinaryContactWriter(mShardOut)
+				: new JsonContactWriter(mShardOut);
+		mShard.getMetadata().setDevice(mMetadata.getDevice());
+		mShardContacts = 0;
+
+		/* as for single files, the index is a nice-to-have */
+		try {
+			mShardIndex = new RecordIndex.Writer(RecordIndex.indexFileFor(mShardFile));
+			mShard.setIndex(mShardIndex);
+		} catch (IOException e) {
+			mShardIndex = null;
+			RecordIndex.indexFileFor(mShardFile).delete();
+		}
+	}
+
+	private void closeShard() throws IOException {
+		if (mShard == null) {
+			return;
+		}
+		mShard.close();
+		long length = mShardFile.length();
+		if (mShardIndex != null) {
+			try {
+				mShardIndex.close(length);
+			} catch (IOException e) {
+				mShardIndex.abort();
+				RecordIndex.indexFileFor(mShardFile).delete();
+			}
+		}
+		mManifest.add(mShardFile.getName(), mShardContacts, length,
+				mShard.getMetadata().getFileCrc());
+		mShard = null;
+		mShardIndex = null;
+		mShardCount++;
+	}
+
+}
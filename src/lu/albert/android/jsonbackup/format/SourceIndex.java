@@ -0,0 +1,305 @@
+package lu.albert.android.jsonbackup.format;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * What every record of a backup was made from: a digest of the rows the
+ * contact had in the provider when it was exported, and the counts needed to
+ * account for the record in the {@link BackupMetadata} without decoding it.
+ *
+ * The next backup compares the digests with the ones of the current rows. The
+ * records of the contacts which did not change can be copied from the old
+ * file as they are (see {@link SpliceableWriter}).
+ *
+ * The file is written next to the backup (the backup file name with
+ * {@link #FILE_EXTENSION} appended). It holds the size and the checksum of
+ * the backup it describes, and is ignored once they do not match any more.
+ * Contacts must be added in ascending ID order.
+ *
+ * The hashes of the phone numbers and e-mail addresses of every contact are
+ * kept too, so the {@link MembershipFilter} of the next backup covers the
+ * records it copies.
+ */
+public class SourceIndex {
+
+	/** Appended to the name of the backup file */
+	public static final String FILE_EXTENSION = ".src";
+
+	private static final byte[] MAGIC = { 'J', 'S', 'B', 'S' };
+	private static final int VERSION = 1;
+
+	/** The counts of an entry: phones, methods, organizations, photos */
+	private static final int COUNTS = 4;
+
+	private long[] mIds;
+	private int[] mDigests;
+	private int[] mCounts;
+	private long[] mPhotoBytes;
+	private int mSize;
+
+	/** The key hashes of all contacts, and where those of each contact start */
+	private int[] mKeys;
+	private int[] mKeyStarts;
+	private int mKeyCount;
+
+	/**
+	 * Constructor for an empty index
+	 */
+	public SourceIndex() {
+		mIds = new long[64];
+		mDigests = new int[64];
+		mCounts = new int[64 * COUNTS];
+		mPhotoBytes = new long[64];
+		mKeys = new int[128];
+		mKeyStarts = new int[64];
+	}
+
+	/**
+	 * @param backup A backup file
+	 * @return The file holding its source index
+	 */
+	public static File fileFor(File backup) {
+		return new File(backup.getParentFile(), backup.getName() + FILE_EXTENSION);
+	}
+
+	/**
+	 * Add a contact
+	 *
+	 * @param id The ID of the contact, larger than the ones added before
+	 * @param digest The digest of its rows
+	 * @param phones The number of phone numbers
+	 * @param methods The number of contact methods
+	 * @param organizations The number of organizations
+	 * @param photos The number of photos
+	 * @param photoBytes The size of the photos
+	 * @param keys The hashes of its phone numbers and e-mail addresses (see
+	 *            {@link MembershipFilter#hashes})
+	 */
+	public void add(long id, int digest, int phones, int methods, int organizations,
+			int photos, long photoBytes, int[] keys) {
+		if (mSize > 0 && mIds[mSize - 1] >= id) {
+			throw new IllegalArgumentException("IDs must be added in ascending order");
+		}
+		if (mSize == mIds.length) {
+			mIds = BinaryFormat.copyOf(mIds, mSize * 2);
+			mDigests = BinaryFormat.copyOf(mDigests, mSize * 2);
+			mCounts = BinaryFormat.copyOf(mCounts, mSize * 2 * COUNTS);
+			mPhotoBytes = BinaryFormat.copyOf(mPhotoBytes, mSize * 2);
+			mKeyStarts = BinaryFormat.copyOf(mKeyStarts, mSize * 2);
+		}
+		if (mKeyCount + keys.length > mKeys.length) {
+			mKeys = BinaryFormat.copyOf(mKeys,
+					Math.max(mKeys.length * 2, mKeyCount + keys.length));
+		}
+		System.arraycopy(keys, 0, mKeys, mKeyCount, keys.length);
+		mKeyStarts[mSize] = mKeyCount;
+		mKeyCount += keys.length;
+		mIds[mSize] = id;
+		mDigests[mSize] = digest;
+		mCounts[mSize * COUNTS] = phones;
+		mCounts[mSize * COUNTS + 1] = methods;
+		mCounts[mSize * COUNTS + 2] = organizations;
+		mCounts[mSize * COUNTS + 3] = photos;
+		mPhotoBytes[mSize] = photoBytes;
+		mSize++;
+	}
+
+	/** @return The number of contacts */
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * @param index A position, from 0 to {@link #size()} - 1
+	 * @return The ID of the contact at that position
+	 */
+	public long getId(int index) {
+		return mIds[index];
+	}
+
+	/**
+	 * @param id The ID of a contact
+	 * @return The position of the contact, or a negative value if it is not
+	 *         known
+	 */
+	public int indexOf(long id) {
+		return Arrays.binarySearch(mIds, 0, mSize, id);
+	}
+
+	/**
+	 * @param index A position returned by {@link #indexOf(long)}
+	 * @return The digest of the rows of the contact
+	 */
+	public int getDigest(int index) {
+		return mDigests[index];
+	}
+
+	/** @return The number of phone numbers of the contact at that position */
+	public int getPhoneCount(int index) {
+		return mCounts[index * COUNTS];
+	}
+
+	/** @return The number of contact methods of the contact at that position */
+	public int getMethodCount(int index) {
+		return mCounts[index * COUNTS + 1];
+	}
+
+	/** @return The number of organizations of the contact at that position */
+	public int getOrganizationCount(int index) {
+		return mCounts[index * COUNTS + 2];
+	}
+
+	/** @return The number of photos of the contact at that position */
+	public int getPhotoCount(int index) {
+		return mCounts[index * COUNTS + 3];
+	}
+
+	/** @return The size of the photos of the contact at that position */
+	public long getPhotoBytes(int index) {
+		return mPhotoBytes[index];
+	}
+
+	/**
+	 * @return The hashes of the phone numbers and e-mail addresses of the
+	 *         contact at that position
+	 */
+	public int[] getKeys(int index) {
+		int start = mKeyStarts[index];
+		int[] keys = new int[keyEnd(index) - start];
+		System.arraycopy(mKeys, start, keys, 0, keys.length);
+		return keys;
+	}
+
+	/**
+	 * @return Where the keys of the contact at that position end
+	 */
+	private int keyEnd(int index) {
+		return index + 1 < mSize ? mKeyStarts[index + 1] : mKeyCount;
+	}
+
+	/**
+	 * Read the source index of a backup
+	 *
+	 * @param backup The backup file
+	 * @return The index, or null if there is none, it cannot be read, or it
+	 *         belongs to an older version of the backup
+	 */
+	public static SourceIndex read(File backup) {
+		return read(fileFor(backup), backup);
+	}
+
+	/**
+	 * Read an index stored in another file than the usual one, see
+	 * {@link #write(File, File)}
+	 *
+	 * @param file The file holding the index
+	 * @param backup The backup file it describes
+	 * @return The index, or null if there is none, it cannot be read, or it
+	 *         belongs to another version of the backup
+	 */
+	public static SourceIndex read(File file, File backup) {
+		if (!file.exists()) {
+			return null;
+		}
+		try {
+			InputStream in = new BufferedInputStream(new FileInputStream(file));
+			try {
+				if (!BinaryFormat.readSidecarHeader(in, MAGIC, VERSION, backup)) {
+					return null;
+				}
+				SourceIndex result = new SourceIndex();
+				int count = (int) BinaryFormat.readVarLong(in);
+				long id = 0;
+				for (int i = 0; i < count; i++) {
+					/* the IDs are sorted, so only the differences are stored */
+					id += BinaryFormat.readVarLong(in);
+					int digest = (int) BinaryFormat.readVarLong(in);
+					int[] counts = new int[COUNTS];
+					for (int j = 0; j < COUNTS; j++) {
+						counts[j] = (int) BinaryFormat.readVarLong(in);
+					}
+					long photoBytes = BinaryFormat.readVarLong(in);
+					int[] keys = new int[(int) BinaryFormat.readVarLong(in)];
+					for (int j = 0; j < keys.length; j++) {
+						keys[j] = (int) BinaryFormat.readVarLong(in);
+					}
+					result.add(id, digest, counts[0], counts[1], counts[2], counts[3],
+							photoBytes, keys);
+				}
+				return result;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Write the index of a backup which has just been written. A temporary
+	 * file is written first, then renamed.
+	 *
+	 * @param backup The backup file, complete
+	 * @throws IOException when the backup or the index cannot be accessed
+	 */
+	public void write(File backup) throws IOException {
+		write(fileFor(backup), backup);
+	}
+
+	/**
+	 * Write the index to another file than the usual one. This is how a
+	 * {@link ChangeLogWriter} keeps the contacts of the snapshot and its log
+	 * apart from the ones of the snapshot alone.
+	 *
+	 * @param file The destination
+	 * @param backup The backup file, complete
+	 * @throws IOException when the backup or the index cannot be accessed
+	 */
+	public void write(File file, File backup) throws IOException {
+		File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+		try {
+			BinaryFormat.writeSidecarHeader(out, MAGIC, VERSION, backup);
+			BinaryFormat.writeVarLong(out, mSize);
+			long previous = 0;
+			for (int i = 0; i < mSize; i++) {
+				BinaryFormat.writeVarLong(out, mIds[i] - previous);
+				BinaryFormat.writeVarLong(out, mDigests[i] & 0xFFFFFFFFL);
+				for (int j = 0; j < COUNTS; j++) {
+					BinaryFormat.writeVarLong(out, mCounts[i * COUNTS + j]);
+				}
+				BinaryFormat.writeVarLong(out, mPhotoBytes[i]);
+				int end = keyEnd(i);
+				BinaryFormat.writeVarLong(out, end - mKeyStarts[i]);
+				for (int j = mKeyStarts[i]; j < end; j++) {
+					BinaryFormat.writeVarLong(out, mKeys[j] & 0xFFFFFFFFL);
+				}
+				previous = mIds[i];
+			}
+		} finally {
+			out.close();
+		}
+		file.delete();
+		if (!temp.renameTo(file)) {
+			throw new IOException("Unable to replace " + file);
+		}
+	}
+
+	/**
+	 * @param backup A backup file
+	 */
+	public static void delete(File backup) {
+		fileFor(backup).delete();
+	}
+
+}
@@ -0,0 +1,48 @@
+package lu.albert.android.jsonbackup.format;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * A {@link ContactWriter} which can copy the records of an older backup in
+ * the same format as they are, without decoding and encoding them again.
+ * These single file writers can also store a {@link MembershipFilter}.
+ */
+public interface SpliceableWriter extends ContactWriter {
+
+	/**
+	 * Set the backup records are copied from. Must be called before the
+	 * first contact is written.
+	 *
+	 * @param previous The old backup, in the format of this writer. It must
+	 *            not be the file being written.
+	 * @param target The channel of the file being written
+	 * @throws IOException when the old backup cannot be read
+	 */
+	void setSpliceSource(File previous, FileChannel target) throws IOException;
+
+	/**
+	 * Append a record of the old backup. The caller accounts for the
+	 * contact in the {@link #getMetadata() metadata}.
+	 *
+	 * @param id The ID of the contact
+	 * @param offset The offset of the record, as listed in the
+	 *            {@link RecordIndex} of the old backup
+	 * @param length The length of the record, from the index
+	 * @param crc The checksum of the record, from the index
+	 * @throws IOException when the record cannot be copied
+	 */
+	void splice(long id, long offset, int length, int crc) throws IOException;
+
+	/**
+	 * Collect the phone numbers (and e-mail addresses) of the contacts
+	 * written, and store a {@link MembershipFilter} of them in the footer
+	 * when the file is closed. Must be called before the first contact is
+	 * written. The caller adds the keys of the records it splices.
+	 *
+	 * @param filter Collects the keys
+	 */
+	void setFilter(MembershipFilter.Builder filter);
+
+}
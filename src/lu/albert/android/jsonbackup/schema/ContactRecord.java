@@ -0,0 +1,388 @@
+package lu.albert.android.jsonbackup.schema;
+
+/**
+ * A contact as read from a backup, meant to be re-used for every contact.
+ *
+ * Values are kept in primitive arrays indexed by the field numbers of
+ * {@link ContactSchema}. A bit mask tells which fields are present, so
+ * missing optional fields cost nothing. The rows of the child tables and the
+ * photo buffers are pooled: {@link #clear()} only resets the counters, and
+ * once the largest contact has been seen, reading further contacts does not
+ * allocate anything apart from the strings.
+ */
+public class ContactRecord {
+
+	/** The fields of the person itself */
+	public final Row person;
+
+	/** The phone numbers */
+	public final RowList phones;
+
+	/** The contact methods (e-mail, postal addresses, ...) */
+	public final RowList methods;
+
+	/** The organizations */
+	public final RowList organizations;
+
+	/** The photos, as raw image data */
+	public final PhotoList photos;
+
+	/**
+	 * Constructor
+	 */
+	public ContactRecord() {
+		person = new Row(ContactSchema.PERSON);
+		phones = new RowList(ContactSchema.PHONE);
+		methods = new RowList(ContactSchema.METHOD);
+		organizations = new RowList(ContactSchema.ORGANIZATION);
+		photos = new PhotoList();
+	}
+
+	/**
+	 * Forget everything, keeping the allocated rows and buffers
+	 */
+	public void clear() {
+		person.clear();
+		phones.clear();
+		methods.clear();
+		organizations.clear();
+		photos.clear();
+	}
+
+	/**
+	 * Replace the content of this record with a copy of another one. The
+	 * strings are shared, the photos are copied into the buffers of this
+	 * record.
+	 *
+	 * @param other The record to copy
+	 */
+	public void copyFrom(ContactRecord other) {
+		person.copyFrom(other.person);
+		phones.copyFrom(other.phones);
+		methods.copyFrom(other.methods);
+		organizations.copyFrom(other.organizations);
+		photos.copyFrom(other.photos);
+	}
+
+	/**
+	 * @return The name of the contact, or an empty string
+	 */
+	public String getName() {
+		return person.has(ContactSchema.NAME) ? person.getString(ContactSchema.NAME) : "";
+	}
+
+	/**
+	 * The values of one row of a table. Integers and booleans are stored as
+	 * long, strings as references.
+	 */
+	public static final class Row {
+
+		private final ContactSchema.Group mGroup;
+		private final long[] mLongs;
+		private final String[] mStrings;
+		private long mPresent;
+
+		Row(ContactSchema.Group group) {
+			mGroup = group;
+			mLongs = new long[group.size()];
+			mStrings = new String[group.size()];
+		}
+
+		/** @return The fields this row holds */
+		public ContactSchema.Group getGroup() {
+			return mGroup;
+		}
+
+		/** @return A bit mask of the fields which are present */
+		public long getPresent() {
+			return mPresent;
+		}
+
+		/**
+		 * @param field The field number
+		 * @return true if the field has a value
+		 */
+		public boolean has(int field) {
+			return (mPresent & (1L << field)) != 0;
+		}
+
+		/**
+		 * @param field An integer field
+		 * @return The value, or 0 if the field is missing
+		 */
+		public long getLong(int field) {
+			return mLongs[field];
+		}
+
+		/**
+		 * @param field An integer field
+		 * @return The value, or 0 if the field is missing
+		 */
+		public int getInt(int field) {
+			return (int) mLongs[field];
+		}
+
+		/**
+		 * @param field A boolean field
+		 * @return The value, or false if the field is missing
+		 */
+		public boolean getBoolean(int field) {
+			return mLongs[field] != 0;
+		}
+
+		/**
+		 * @param field A string field
+		 * @return The value, or null if the field is missing
+		 */
+		public String getString(int field) {
+			return mStrings[field];
+		}
+
+		/**
+		 * @param field An integer field
+		 * @param value The new value
+		 */
+		public void setLong(int field, long value) {
+			mLongs[field] = value;
+			mPresent |= 1L << field;
+		}
+
+		/**
+		 * @param field A boolean field
+		 * @param value The new value
+		 */
+		public void setBoolean(int field, boolean value) {
+			setLong(field, value ? 1 : 0);
+		}
+
+		/**
+		 * @param field A string field
+		 * @param value The new value. null removes the field.
+		 */
+		public void setString(int field, String value) {
+			if (value == null) {
+				remove(field);
+				return;
+			}
+			mStrings[field] = value;
+			mPresent |= 1L << field;
+		}
+
+		/**
+		 * @param field The field to remove
+		 */
+		public void remove(int field) {
+			mLongs[field] = 0;
+			mStrings[field] = null;
+			mPresent &= ~(1L << field);
+		}
+
+		/**
+		 * @param other A row of the same group, whose values replace the
+		 *            ones of this row
+		 */
+		public void copyFrom(Row other) {
+			System.arraycopy(other.mLongs, 0, mLongs, 0, mLongs.length);
+			System.arraycopy(other.mStrings, 0, mStrings, 0, mStrings.length);
+			mPresent = other.mPresent;
+		}
+
+		/**
+		 * Remove all fields
+		 */
+		public void clear() {
+			for (int i = 0; i < mStrings.length; i++) {
+				mStrings[i] = null;
+				mLongs[i] = 0;
+			}
+			mPresent = 0;
+		}
+
+	}
+
+	/**
+	 * A list of rows which are recycled when the list is cleared
+	 */
+	public static final class RowList {
+
+		private final ContactSchema.Group mGroup;
+		private Row[] mRows;
+		private int mSize;
+
+		RowList(ContactSchema.Group group) {
+			mGroup = group;
+			mRows = new Row[4];
+		}
+
+		/** @return The number of rows */
+		public int size() {
+			return mSize;
+		}
+
+		/**
+		 * @param index The index of the row
+		 * @return The row
+		 */
+		public Row get(int index) {
+			if (index >= mSize) {
+				throw new IndexOutOfBoundsException("Row " + index + " of " + mSize);
+			}
+			return mRows[index];
+		}
+
+		/**
+		 * Append an empty row
+		 *
+		 * @return The new row
+		 */
+		public Row add() {
+			if (mSize == mRows.length) {
+				Row[] rows = new Row[mRows.length * 2];
+				System.arraycopy(mRows, 0, rows, 0, mSize);
+				mRows = rows;
+			}
+			Row row = mRows[mSize];
+			if (row == null) {
+				row = new Row(mGroup);
+				mRows[mSize] = row;
+			} else {
+				row.clear();
+			}
+			mSize++;
+			return row;
+		}
+
+		/**
+		 * Remove the last row, e.g. because it turned out to be empty
+		 */
+		public void removeLast() {
+			if (mSize > 0) {
+				mSize--;
+			}
+		}
+
+		/**
+		 * @param other A list of the same group, whose rows replace the ones
+		 *            of this list
+		 */
+		public void copyFrom(RowList other) {
+			clear();
+			for (int i = 0; i < other.mSize; i++) {
+				add().copyFrom(other.mRows[i]);
+			}
+		}
+
+		/**
+		 * Remove all rows
+		 */
+		public void clear() {
+			mSize = 0;
+		}
+
+	}
+
+	/**
+	 * Photo buffers which are recycled when the list is cleared. The buffers
+	 * are usually larger than the photo they hold.
+	 */
+	public static final class PhotoList {
+
+		private byte[][] mData;
+		private int[] mLengths;
+		private int mSize;
+
+		PhotoList() {
+			mData = new byte[1][];
+			mLengths = new int[1];
+		}
+
+		/** @return The number of photos */
+		public int size() {
+			return mSize;
+		}
+
+		/**
+		 * @param index The index of the photo
+		 * @return The buffer holding the photo. Only the first
+		 *         {@link #getLength(int)} bytes are valid.
+		 */
+		public byte[] getData(int index) {
+			return mData[index];
+		}
+
+		/**
+		 * @param index The index of the photo
+		 * @return The size of the photo in bytes
+		 */
+		public int getLength(int index) {
+			return mLengths[index];
+		}
+
+		/**
+		 * @param index The index of the photo
+		 * @return A copy of the photo with the exact size, as needed by the
+		 *         content provider
+		 */
+		public byte[] toByteArray(int index) {
+			byte[] copy = new byte[mLengths[index]];
+			System.arraycopy(mData[index], 0, copy, 0, copy.length);
+			return copy;
+		}
+
+		/**
+		 * Get a buffer for the next photo. Call {@link #add(int)} once it has
+		 * been filled.
+		 *
+		 * @param capacity The minimum size of the buffer
+		 * @return The buffer
+		 */
+		public byte[] prepare(int capacity) {
+			if (mSize == mData.length) {
+				byte[][] data = new byte[mSize * 2][];
+				int[] lengths = new int[mSize * 2];
+				System.arraycopy(mData, 0, data, 0, mSize);
+				System.arraycopy(mLengths, 0, lengths, 0, mSize);
+				mData = data;
+				mLengths = lengths;
+			}
+			byte[] buffer = mData[mSize];
+			if (buffer == null || buffer.length < capacity) {
+				buffer = new byte[Math.max(capacity, 1024)];
+				mData[mSize] = buffer;
+			}
+			return buffer;
+		}
+
+		/**
+		 * Append the photo stored in the buffer returned by the last call to
+		 * {@link #prepare(int)}
+		 *
+		 * @param length The size of the photo
+		 */
+		public void add(int length) {
+			mLengths[mSize] = length;
+			mSize++;
+		}
+
+		/**
+		 * @param other The photos which replace the ones of this list
+		 */
+		public void copyFrom(PhotoList other) {
+			clear();
+			for (int i = 0; i < other.mSize; i++) {
+				System.arraycopy(other.mData[i], 0, prepare(other.mLengths[i]), 0,
+						other.mLengths[i]);
+				add(other.mLengths[i]);
+			}
+		}
+
+		/**
+		 * Remove all photos
+		 */
+		public void clear() {
+			mSize = 0;
+		}
+
+	}
+
+}
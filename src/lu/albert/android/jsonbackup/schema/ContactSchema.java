@@ -0,0 +1,238 @@
+package lu.albert.android.jsonbackup.schema;
+
+import java.io.UnsupportedEncodingException;
+
+import lu.albert.android.jsonbackup.schema.ContactColumns.ContactMethodColumns;
+import lu.albert.android.jsonbackup.schema.ContactColumns.OrganizationColumns;
+import lu.albert.android.jsonbackup.schema.ContactColumns.PhoneColumns;
+
+/**
+ * The typed fields of a contact, grouped by table.
+ *
+ * Each field has a fixed number: its position in the group. The number is
+ * used as bit in the presence masks of {@link ContactRecord} and of the
+ * binary backup format, so the order must never change. New fields may only
+ * be appended.
+ */
+public final class ContactSchema {
+
+	/** A whole number */
+	public static final int TYPE_INTEGER = 0;
+
+	/** true or false */
+	public static final int TYPE_BOOLEAN = 1;
+
+	/** A free-text string */
+	public static final int TYPE_STRING = 2;
+
+	/** A short string which is likely to repeat across contacts */
+	public static final int TYPE_LABEL = 3;
+
+	/* Fields of PERSON */
+	public static final int ID = 0;
+	public static final int NAME = 1;
+	public static final int DISPLAY_NAME = 2;
+	public static final int PHONETIC_NAME = 3;
+	public static final int NOTES = 4;
+	public static final int CUSTOM_RING_TONE = 5;
+	public static final int STARRED = 6;
+	public static final int TIMES_CONTACTED = 7;
+	public static final int LAST_TIME_CONTACTED = 8;
+	public static final int SEND_TO_VOICEMAIL = 9;
+	public static final int PHOTO_VERSION = 10;
+
+	/* Fields of PHONE */
+	public static final int PHONE_IS_PRIMARY = 0;
+	public static final int PHONE_TYPE = 1;
+	public static final int PHONE_LABEL = 2;
+	public static final int PHONE_NUMBER = 3;
+	public static final int PHONE_NUMBER_KEY = 4;
+
+	/* Fields of METHOD */
+	public static final int METHOD_IS_PRIMARY = 0;
+	public static final int METHOD_KIND = 1;
+	public static final int METHOD_TYPE = 2;
+	public static final int METHOD_LABEL = 3;
+	public static final int METHOD_DATA = 4;
+	public static final int METHOD_AUX_DATA = 5;
+
+	/* Fields of ORGANIZATION */
+	public static final int ORGANIZATION_IS_PRIMARY = 0;
+	public static final int ORGANIZATION_TYPE = 1;
+	public static final int ORGANIZATION_LABEL = 2;
+	public static final int ORGANIZATION_COMPANY = 3;
+	public static final int ORGANIZATION_TITLE = 4;
+
+	/** The fields of a person */
+	public static final Group PERSON = new Group(new String[] {
+			ContactColumns.ID,
+			ContactColumns.NAME,
+			ContactColumns.DISPLAY_NAME,
+			ContactColumns.PHONETIC_NAME,
+			ContactColumns.NOTES,
+			ContactColumns.CUSTOM_RING_TONE,
+			ContactColumns.STARRED,
+			ContactColumns.TIMES_CONTACTED,
+			ContactColumns.LAST_TIME_CONTACTED,
+			ContactColumns.SEND_TO_VOICEMAIL,
+			ContactColumns.PHOTO_VERSION,
+		}, new int[] {
+			TYPE_INTEGER,
+			TYPE_STRING,
+			TYPE_STRING,
+			TYPE_STRING,
+			TYPE_STRING,
+			TYPE_LABEL,
+			TYPE_INTEGER,
+			TYPE_INTEGER,
+			TYPE_INTEGER,
+			TYPE_INTEGER,
+			TYPE_STRING,
+		});
+
+	/** The fields of a phone number */
+	public static final Group PHONE = new Group(new String[] {
+			PhoneColumns.IS_PRIMARY,
+			PhoneColumns.TYPE,
+			PhoneColumns.LABEL,
+			PhoneColumns.NUMBER,
+			PhoneColumns.NUMBER_KEY,
+		}, new int[] {
+			TYPE_BOOLEAN,
+			TYPE_INTEGER,
+			TYPE_LABEL,
+			TYPE_STRING,
+			TYPE_STRING,
+		});
+
+	/** The fields of a contact method */
+	public static final Group METHOD = new Group(new String[] {
+			ContactMethodColumns.IS_PRIMARY,
+			ContactMethodColumns.KIND,
+			ContactMethodColumns.TYPE,
+			ContactMethodColumns.LABEL,
+			ContactMethodColumns.DATA,
+			ContactMethodColumns.AUX_DATA,
+		}, new int[] {
+			TYPE_BOOLEAN,
+			TYPE_INTEGER,
+			TYPE_INTEGER,
+			TYPE_LABEL,
+			TYPE_STRING,
+			TYPE_STRING,
+		});
+
+	/** The fields of an organization */
+	public static final Group ORGANIZATION = new Group(new String[] {
+			OrganizationColumns.IS_PRIMARY,
+			OrganizationColumns.TYPE,
+			OrganizationColumns.LABEL,
+			OrganizationColumns.COMPANY,
+			OrganizationColumns.TITLE,
+		}, new int[] {
+			TYPE_BOOLEAN,
+			TYPE_INTEGER,
+			TYPE_LABEL,
+			TYPE_LABEL,
+			TYPE_STRING,
+		});
+
+	private ContactSchema() {
+		// constants only
+	}
+
+	/**
+	 * An ordered list of fields with their JSON key and type
+	 */
+	public static final class Group {
+
+		private final String[] mKeys;
+		private final int[] mTypes;
+
+		/** The UTF-8 encoded keys, to match them without decoding */
+		private final byte[][] mKeyBytes;
+
+		private Group(String[] keys, int[] types) {
+			mKeys = keys;
+			mTypes = types;
+			mKeyBytes = new byte[keys.length][];
+			for (int i = 0; i < keys.length; i++) {
+				mKeyBytes[i] = toBytes(keys[i]);
+			}
+		}
+
+		/** @return The number of fields */
+		public int size() {
+			return mKeys.length;
+		}
+
+		/**
+		 * @param field The field number
+		 * @return The key of the field in the JSON backup
+		 */
+		public String getKey(int field) {
+			return mKeys[field];
+		}
+
+		/**
+		 * @param field The field number
+		 * @return One of the TYPE_* constants
+		 */
+		public int getType(int field) {
+			return mTypes[field];
+		}
+
+		/**
+		 * Look up a field by its UTF-8 encoded key
+		 *
+		 * @param buffer The bytes containing the key
+		 * @param offset The position of the first byte of the key
+		 * @param length The number of bytes of the key
+		 * @return The field number, or -1 if the key is not part of the group
+		 */
+		public int find(byte[] buffer, int offset, int length) {
+			for (int i = 0; i < mKeyBytes.length; i++) {
+				if (matches(mKeyBytes[i], buffer, offset, length)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+	}
+
+	/**
+	 * Compare a key with a range of bytes
+	 *
+	 * @param key The UTF-8 encoded key
+	 * @param buffer The bytes to compare with
+	 * @param offset The position of the first byte
+	 * @param length The number of bytes
+	 * @return true if the bytes are equal to the key
+	 */
+	public static boolean matches(byte[] key, byte[] buffer, int offset, int length) {
+		if (key.length != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (key[i] != buffer[offset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param key A JSON key
+	 * @return The UTF-8 encoding of the key
+	 */
+	public static byte[] toBytes(String key) {
+		try {
+			return key.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			/* UTF-8 is always supported */
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+
+}
@@ -0,0 +1,135 @@
+package lu.albert.android.jsonbackup.format;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+import lu.albert.android.jsonbackup.schema.ContactRecord;
+import lu.albert.android.jsonbackup.schema.ContactSchema;
+
+import org.json.JSONException;
+
+/**
+ * Checks that replaying a change log, and compacting it, keeps the contacts
+ * sorted by ID.
+ */
+public class LogReplayReaderTest extends TestCase {
+
+	private File mFolder;
+
+	@Override
+	protected void setUp() throws Exception {
+		mFolder = File.createTempFile("replay", "");
+		mFolder.delete();
+		mFolder.mkdirs();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		File[] files = mFolder.listFiles();
+		for (int i = 0; files != null && i < files.length; i++) {
+			files[i].delete();
+		}
+		mFolder.delete();
+	}
+
+	public void testBinaryOrder() throws Exception {
+		checkOrder(new File(mFolder, "backup.bin"), true);
+	}
+
+	public void testJsonOrder() throws Exception {
+		checkOrder(new File(mFolder, "backup.json"), false);
+	}
+
+	/**
+	 * Snapshot 1..50; a first run modifies 20..24, adds 1000..1002 and
+	 * deletes 30; a second run modifies 22 and 1001 again and adds 5.
+	 */
+	private void checkOrder(File snapshot, boolean binary) throws Exception {
+		writeSnapshot(snapshot, binary, 1, 50);
+
+		ChangeLog.Writer log = new ChangeLog.Writer(ChangeLog.logFileFor(snapshot));
+		for (long id = 20; id <= 24; id++) {
+			upsert(log, id, "first");
+		}
+		for (long id = 1000; id <= 1002; id++) {
+			upsert(log, id, "first");
+		}
+		log.delete(30);
+		log.commit(new BackupMetadata(BackupMetadata.JSON_VERSION));
+
+		log = new ChangeLog.Writer(ChangeLog.logFileFor(snapshot));
+		upsert(log, 1001, "second");
+		upsert(log, 22, "second");
+		log.delete(5);
+		upsert(log, 5, "second");
+		log.commit(new BackupMetadata(BackupMetadata.JSON_VERSION));
+
+		ArrayList<String> expected = new ArrayList<String>();
+		for (long id = 1; id <= 50; id++) {
+			if (id == 5 || id == 22) {
+				expected.add(id + ":second");
+			} else if (id >= 20 && id <= 24) {
+				expected.add(id + ":first");
+			} else if (id != 30) {
+				expected.add(id + ":snapshot");
+			}
+		}
+		expected.add("1000:first");
+		expected.add("1001:second");
+		expected.add("1002:first");
+
+		assertEquals(expected, readAll(new LogReplayReader(snapshot)));
+
+		ChangeLog.compact(snapshot);
+		assertFalse(ChangeLog.hasLog(snapshot));
+		assertEquals(expected, readAll(ContactReaders.open(snapshot)));
+	}
+
+	private static void writeSnapshot(File file, boolean binary, long first, long last)
+			throws IOException, JSONException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+		ContactWriter writer = binary ? new BinaryContactWriter(out) : new JsonContactWriter(out);
+		ContactRecord record = new ContactRecord();
+		for (long id = first; id <= last; id++) {
+			setContact(record, id, "snapshot");
+			writer.write(record);
+		}
+		writer.close();
+	}
+
+	private static void upsert(ChangeLog.Writer log, long id, String name)
+			throws IOException, JSONException {
+		ContactRecord record = new ContactRecord();
+		setContact(record, id, name);
+		log.upsert(id, ContactJson.toJSON(record).toString().getBytes("UTF-8"));
+	}
+
+	private static void setContact(ContactRecord record, long id, String name) {
+		record.clear();
+		record.person.setLong(ContactSchema.ID, id);
+		record.person.setString(ContactSchema.NAME, name);
+		record.phones.add().setString(ContactSchema.PHONE_NUMBER, "+352 " + id);
+	}
+
+	/**
+	 * @return "id:name" of every contact, in the order of the reader
+	 */
+	private static ArrayList<String> readAll(ContactReader reader) throws IOException {
+		ArrayList<String> result = new ArrayList<String>();
+		ContactRecord record = new ContactRecord();
+		try {
+			while (reader.read(record)) {
+				result.add(record.person.getLong(ContactSchema.ID) + ":" + record.getName());
+			}
+		} finally {
+			reader.close();
+		}
+		return result;
+	}
+
+}